@@ -0,0 +1,284 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.layouts;
+
+import jakarta.servlet.http.HttpServletRequest;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/*
+ * Picks the composition mode of each route from what its recent requests looked like. A route is the request path (without the
+ * context path) with any segment containing a digit replaced by {id} so /users/42 and /users/43 share statistics.
+ *
+ * Routes start out buffered. Each composed request updates moving averages of the view size, view time, how often the response
+ * actually got a layout and how often the layout came from the layout cache. A route is switched to:
+ *
+ *   STREAMING   when its views are large or slow (and the layout isn't mostly coming from the cache, which only buffered
+ *               composition uses).
+ *   BUFFERED    when a streaming route's views are back under half the thresholds.
+ *
+ * A route must have MIN_SAMPLES samples since its last switch before it switches again. Routes matching a pinned pattern always
+ * use the pinned mode. PASSTHROUGH is only ever pinned, never picked from the statistics: it drops the layout rather than just
+ * changing how it's composed, and a route can be shared by a page and responses that never get a layout (/users/42 and
+ * /users/42.json). Those responses already go straight through HttpBufferedResponse once their content type is set anyway.
+ */
+class AdaptiveComposition implements AdaptiveCompositionMXBean
+{
+  enum Mode
+  {
+    BUFFERED,
+    STREAMING,
+    PASSTHROUGH
+  }
+
+  final int maxRoutes;
+
+  final long streamSize;
+
+  final long streamViewNanos;
+
+  private final List<Pattern> pinPatterns;
+
+  private final List<Mode> pinModes;
+
+  private final Map<String, Route> routes;
+
+  private final AtomicLong switchCount = new AtomicLong();
+
+  AdaptiveComposition(int maxRoutes, long streamSize, long streamViewMillis, Map<Pattern, Mode> pins)
+  {
+    this.maxRoutes = maxRoutes;
+    this.streamSize = streamSize;
+    streamViewNanos = streamViewMillis * 1000000L;
+    pinPatterns = new ArrayList<Pattern>(pins.keySet());
+    pinModes = new ArrayList<Mode>(pins.values());
+    routes = new LinkedHashMap<String, Route>(16, 0.75f, true)
+    {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Route> eldest)
+      {
+        return size() > AdaptiveComposition.this.maxRoutes;
+      }
+    };
+  }
+
+  Route route(HttpServletRequest httpRequest)
+  {
+    String requestPath = httpRequest.getRequestURI().substring(httpRequest.getContextPath().length());
+    String key = routeKey(requestPath);
+    synchronized (routes)
+    {
+      Route route = routes.get(key);
+      if (route == null)
+      {
+        route = new Route(pinnedMode(requestPath));
+        routes.put(key, route);
+      }
+      return route;
+    }
+  }
+
+  @Override
+  public int getRoutes()
+  {
+    synchronized (routes)
+    {
+      return routes.size();
+    }
+  }
+
+  @Override
+  public int getMaxRoutes()
+  {
+    return maxRoutes;
+  }
+
+  @Override
+  public long getSwitchCount()
+  {
+    return switchCount.get();
+  }
+
+  @Override
+  public Map<String, String> getDecisions()
+  {
+    Map<String, Route> snapshot;
+    synchronized (routes)
+    {
+      snapshot = new TreeMap<String, Route>(routes);
+    }
+
+    Map<String, String> decisions = new TreeMap<String, String>();
+    for (Map.Entry<String, Route> entry : snapshot.entrySet())
+    {
+      decisions.put(entry.getKey(), entry.getValue().toString());
+    }
+    return decisions;
+  }
+
+  private Mode pinnedMode(String requestPath)
+  {
+    for (int i = 0; i < pinPatterns.size(); i++)
+    {
+      if (pinPatterns.get(i).matcher(requestPath).matches())
+      {
+        return pinModes.get(i);
+      }
+    }
+    return null;
+  }
+
+  static String routeKey(String requestPath)
+  {
+    StringBuilder key = null;
+    int segmentStart = 0;
+    for (int i = 0; i <= requestPath.length(); i++)
+    {
+      if (i == requestPath.length() || requestPath.charAt(i) == '/')
+      {
+        boolean hasDigit = false;
+        for (int j = segmentStart; j < i && !hasDigit; j++)
+        {
+          hasDigit = Character.isDigit(requestPath.charAt(j));
+        }
+
+        if (hasDigit && key == null)
+        {
+          key = new StringBuilder(requestPath.length()).append(requestPath, 0, segmentStart);
+        }
+
+        if (key != null)
+        {
+          if (hasDigit)
+          {
+            key.append(ID_SEGMENT);
+          }
+          else
+          {
+            key.append(requestPath, segmentStart, i);
+          }
+
+          if (i < requestPath.length())
+          {
+            key.append('/');
+          }
+        }
+        segmentStart = i + 1;
+      }
+    }
+    return (key == null) ? requestPath : key.toString();
+  }
+
+  /*
+   * The statistics and current mode of one route.
+   */
+  class Route
+  {
+    final Mode pinned;
+
+    private Mode mode;
+
+    private long samples;
+
+    private long samplesSinceSwitch;
+
+    private double bytes;
+
+    private double viewNanos;
+
+    private double composedRatio = 1;
+
+    private double cacheHitRatio;
+
+    Route(Mode pinned)
+    {
+      this.pinned = pinned;
+      mode = (pinned == null) ? Mode.BUFFERED : pinned;
+    }
+
+    /*
+     * @return The mode for the next request.
+     */
+    synchronized Mode mode()
+    {
+      return mode;
+    }
+
+    /*
+     * @param cacheHit Null if the layout cache wasn't used.
+     */
+    synchronized void record(long viewBytes, long viewTimeNanos, boolean composed, Boolean cacheHit)
+    {
+      bytes = average(bytes, viewBytes, samples);
+      viewNanos = average(viewNanos, viewTimeNanos, samples);
+      composedRatio = average(composedRatio, composed ? 1 : 0, samples);
+      if (cacheHit != null)
+      {
+        cacheHitRatio = average(cacheHitRatio, cacheHit ? 1 : 0, samples);
+      }
+      ++samples;
+
+      if (pinned != null || ++samplesSinceSwitch < MIN_SAMPLES)
+      {
+        return;
+      }
+
+      if (mode == Mode.BUFFERED && (bytes >= streamSize || viewNanos >= streamViewNanos) && cacheHitRatio < CACHE_HIT_RATIO)
+      {
+        switchTo(Mode.STREAMING);
+      }
+      else if (mode == Mode.STREAMING && bytes < streamSize / 2 && viewNanos < streamViewNanos / 2)
+      {
+        switchTo(Mode.BUFFERED);
+      }
+    }
+
+    private void switchTo(Mode next)
+    {
+      mode = next;
+      samplesSinceSwitch = 0;
+      switchCount.incrementAndGet();
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+      return mode + (pinned == null ? "" : " (pinned)") + " samples=" + samples + " size=" + Math.round(bytes) + " view=" +
+             Math.round(viewNanos / 1000000) + "ms layout=" + Math.round(composedRatio * 100) + "% cached=" + Math.round(cacheHitRatio * 100) + "%";
+    }
+  }
+
+  /*
+   * An exponentially weighted moving average that starts at the first sample.
+   */
+  static double average(double average, double sample, long samples)
+  {
+    return (samples == 0) ? sample : average + (sample - average) * ALPHA;
+  }
+
+  static final String ID_SEGMENT = "{id}";
+
+  static final double ALPHA = 0.1;
+
+  static final int MIN_SAMPLES = 20;
+
+  static final double CACHE_HIT_RATIO = 0.5;
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.layouts;
+
+import java.util.Map;
+
+/**
+ * <p>
+ * The composition mode picked for each route when the <i>COMPOSITION</i> init parameter of the {@link LayoutsFilter} is
+ * <i>ADAPTIVE</i>. Registered with the platform MBean server under {@code org.baswell.layouts:type=AdaptiveComposition}.
+ * </p>
+ */
+public interface AdaptiveCompositionMXBean
+{
+  /**
+   * @return The number of routes being tracked.
+   */
+  int getRoutes();
+
+  /**
+   * @return The maximum number of routes tracked (the least recently used route is dropped to make room for a new one).
+   */
+  int getMaxRoutes();
+
+  /**
+   * @return The number of times a route has switched composition modes.
+   */
+  long getSwitchCount();
+
+  /**
+   * @return The current mode (BUFFERED, STREAMING or PASSTHROUGH) of each tracked route with the statistics it was picked from.
+   */
+  Map<String, String> getDecisions();
+}
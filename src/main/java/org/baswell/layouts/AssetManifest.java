@@ -0,0 +1,228 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.layouts;
+
+import jakarta.servlet.ServletContext;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Maps the static assets in the configured directories to content hashed (fingerprinted) names. The fingerprinted names are
+ * what get written to the client in composed pages and since they change whenever the content does they can be served with
+ * an immutable, long lived Cache-Control header.
+ */
+class AssetManifest
+{
+  static final String IMMUTABLE_CACHE_CONTROL = "public, max-age=31536000, immutable";
+
+  private final String contextPath;
+
+  private final Map<String, String> fingerprintedPaths = new HashMap<String, String>();
+
+  private final Map<String, String> originalPaths = new HashMap<String, String>();
+
+  private final byte[][] urls;
+
+  private final byte[][] fingerprintedUrls;
+
+  AssetManifest(ServletContext servletContext, String[] assetDirectories) throws ServletException
+  {
+    contextPath = servletContext.getContextPath();
+
+    for (String assetDirectory : assetDirectories)
+    {
+      assetDirectory = assetDirectory.trim();
+      if (!assetDirectory.isEmpty())
+      {
+        if (!assetDirectory.startsWith("/")) assetDirectory = "/" + assetDirectory;
+        if (!assetDirectory.endsWith("/")) assetDirectory += "/";
+        addAssets(servletContext, assetDirectory);
+      }
+    }
+
+    /*
+     * The URLs are sorted so the rewriting stream can narrow down the possible matches with a binary search as bytes come in.
+     */
+    final String[] paths = fingerprintedPaths.keySet().toArray(new String[0]);
+    final byte[][] pathUrls = new byte[paths.length][];
+    Integer[] order = new Integer[paths.length];
+    for (int i = 0; i < paths.length; i++)
+    {
+      pathUrls[i] = (contextPath + paths[i]).getBytes();
+      order[i] = i;
+    }
+
+    Arrays.sort(order, new Comparator<Integer>()
+    {
+      @Override
+      public int compare(Integer first, Integer second)
+      {
+        return Arrays.compareUnsigned(pathUrls[first], pathUrls[second]);
+      }
+    });
+
+    urls = new byte[paths.length][];
+    fingerprintedUrls = new byte[paths.length][];
+    for (int i = 0; i < order.length; i++)
+    {
+      urls[i] = pathUrls[order[i]];
+      fingerprintedUrls[i] = (contextPath + fingerprintedPaths.get(paths[order[i]])).getBytes();
+    }
+  }
+
+  boolean isEmpty()
+  {
+    return fingerprintedPaths.isEmpty();
+  }
+
+  /*
+   * The fingerprinted version of the given URL (that includes the context path) or the URL unaltered if it's not in this manifest.
+   */
+  String fingerprintedUrl(String url)
+  {
+    if (url.startsWith(contextPath))
+    {
+      String fingerprintedPath = fingerprintedPaths.get(url.substring(contextPath.length()));
+      if (fingerprintedPath != null)
+      {
+        return contextPath + fingerprintedPath;
+      }
+    }
+    return url;
+  }
+
+  /*
+   * If the request is for a fingerprinted asset then forward to the original asset with immutable caching.
+   *
+   * @return true if the request was for a fingerprinted asset and has been served.
+   */
+  boolean serve(HttpServletRequest httpRequest, HttpServletResponse httpResponse) throws IOException, ServletException
+  {
+    String originalPath = originalPaths.get(httpRequest.getRequestURI().substring(httpRequest.getContextPath().length()));
+    if (originalPath == null)
+    {
+      return false;
+    }
+    else
+    {
+      httpResponse.setHeader("Cache-Control", IMMUTABLE_CACHE_CONTROL);
+      httpRequest.getRequestDispatcher(originalPath).forward(httpRequest, httpResponse);
+      return true;
+    }
+  }
+
+  OutputStream rewrite(OutputStream outputStream)
+  {
+    return isEmpty() ? outputStream : new AssetUrlRewritingOutputStream(outputStream, urls, fingerprintedUrls);
+  }
+
+  static String fingerprintedPath(String path, String hash)
+  {
+    int slashIndex = path.lastIndexOf('/');
+    int extensionIndex = path.lastIndexOf('.');
+    if (extensionIndex > slashIndex + 1)
+    {
+      return path.substring(0, extensionIndex) + "." + hash + path.substring(extensionIndex);
+    }
+    else
+    {
+      return path + "." + hash;
+    }
+  }
+
+  private void addAssets(ServletContext servletContext, String directory) throws ServletException
+  {
+    Set<String> resourcePaths = servletContext.getResourcePaths(directory);
+    if (resourcePaths != null)
+    {
+      for (String resourcePath : resourcePaths)
+      {
+        if (resourcePath.endsWith("/"))
+        {
+          addAssets(servletContext, resourcePath);
+        }
+        else
+        {
+          String hash = contentHash(servletContext, resourcePath);
+          if (hash != null)
+          {
+            String fingerprintedPath = fingerprintedPath(resourcePath, hash);
+            fingerprintedPaths.put(resourcePath, fingerprintedPath);
+            originalPaths.put(fingerprintedPath, resourcePath);
+          }
+        }
+      }
+    }
+  }
+
+  private static String contentHash(ServletContext servletContext, String path) throws ServletException
+  {
+    try
+    {
+      InputStream inputStream = servletContext.getResourceAsStream(path);
+      if (inputStream == null)
+      {
+        return null;
+      }
+
+      try
+      {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = inputStream.read(buffer)) != -1)
+        {
+          digest.update(buffer, 0, read);
+        }
+
+        byte[] hash = digest.digest();
+        StringBuilder hex = new StringBuilder(HASH_LENGTH);
+        for (int i = 0; i < HASH_LENGTH / 2; i++)
+        {
+          hex.append(HEX_DIGITS[(hash[i] >> 4) & 0xf]).append(HEX_DIGITS[hash[i] & 0xf]);
+        }
+        return hex.toString();
+      }
+      finally
+      {
+        inputStream.close();
+      }
+    }
+    catch (IOException e)
+    {
+      throw new ServletException("Unable to read asset: " + path, e);
+    }
+    catch (NoSuchAlgorithmException e)
+    {
+      throw new ServletException(e);
+    }
+  }
+
+  static final int HASH_LENGTH = 12;
+
+  static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+}
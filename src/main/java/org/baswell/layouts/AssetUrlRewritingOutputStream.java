@@ -0,0 +1,238 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.layouts;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/*
+ * Replaces quoted asset URLs with their fingerprinted versions as the composed page is written out. A URL is only replaced when
+ * it starts right after a quote or = and is immediately followed by a quote so "/assets/app.css" is rewritten but
+ * "/assets/app.css.map", "https://cdn.example.com/assets/app.css" and "/other/assets/app.css" are not.
+ *
+ * The URLs must be sorted (unsigned byte order). As bytes come in the range of URLs that could still match is narrowed with a
+ * binary search so bytes that can't be part of a URL are passed straight through.
+ */
+class AssetUrlRewritingOutputStream extends OutputStream
+{
+  private final OutputStream out;
+
+  private final byte[][] urls;
+
+  private final byte[][] replacements;
+
+  private final byte firstByte;
+
+  private final byte[] pending;
+
+  private int pendingLength;
+
+  /*
+   * Bytes that still have to be processed after a match fails part way through.
+   */
+  private final byte[] scratch;
+
+  /*
+   * The last byte written out (not pending).
+   */
+  private byte lastByte;
+
+  private int lo;
+
+  private int hi;
+
+  private boolean closed;
+
+  AssetUrlRewritingOutputStream(OutputStream out, byte[][] urls, byte[][] replacements)
+  {
+    this.out = out;
+    this.urls = urls;
+    this.replacements = replacements;
+
+    int maxLength = 0;
+    for (byte[] url : urls)
+    {
+      maxLength = Math.max(maxLength, url.length);
+    }
+
+    pending = new byte[maxLength];
+    scratch = new byte[maxLength + 1];
+    firstByte = urls[0][0];
+    hi = urls.length;
+  }
+
+  @Override
+  public void write(int b) throws IOException
+  {
+    process((byte) b);
+  }
+
+  @Override
+  public void write(byte[] buffer, int offset, int length) throws IOException
+  {
+    int end = offset + length;
+    int index = offset;
+    while (index < end)
+    {
+      if (pendingLength == 0)
+      {
+        /*
+         * Nothing is being matched so everything up to the next possible start of a URL goes straight through.
+         */
+        int start = index;
+        while (index < end && buffer[index] != firstByte)
+        {
+          ++index;
+        }
+
+        if (index > start)
+        {
+          out.write(buffer, start, index - start);
+          lastByte = buffer[index - 1];
+        }
+
+        if (index == end)
+        {
+          break;
+        }
+      }
+
+      process(buffer[index++]);
+    }
+  }
+
+  @Override
+  public void flush() throws IOException
+  {
+    if (!closed)
+    {
+      writePending();
+      out.flush();
+    }
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    if (!closed)
+    {
+      writePending();
+      closed = true;
+      out.close();
+    }
+  }
+
+  private void process(byte b) throws IOException
+  {
+    scratch[0] = b;
+    int count = 1;
+    int index = 0;
+    while (index < count)
+    {
+      byte next = scratch[index++];
+      if (pendingLength > 0 && urls[lo].length == pendingLength && (next == DOUBLE_QUOTE || next == SINGLE_QUOTE))
+      {
+        out.write(replacements[lo]);
+        out.write(next);
+        lastByte = next;
+        reset();
+        continue;
+      }
+
+      int key = next & 0xff;
+      int matchLo = (pendingLength == 0 && !isUrlStart(lastByte)) ? hi : lowerBound(lo, hi, pendingLength, key);
+      int matchHi = (matchLo == hi) ? hi : lowerBound(matchLo, hi, pendingLength, key + 1);
+      if (matchLo < matchHi)
+      {
+        pending[pendingLength++] = next;
+        lo = matchLo;
+        hi = matchHi;
+      }
+      else if (pendingLength == 0)
+      {
+        out.write(next);
+        lastByte = next;
+      }
+      else
+      {
+        /*
+         * The match failed part way through. The first pending byte can't start a URL but any of the bytes after it could so
+         * they get processed again, ahead of the bytes that haven't been processed yet.
+         */
+        out.write(pending[0]);
+        lastByte = pending[0];
+        int replayLength = pendingLength - 1;
+        System.arraycopy(scratch, index, scratch, replayLength + 1, count - index);
+        scratch[replayLength] = next;
+        System.arraycopy(pending, 1, scratch, 0, replayLength);
+        count = replayLength + 1 + count - index;
+        index = 0;
+        reset();
+      }
+    }
+  }
+
+  /*
+   * All the URLs in the range share the same first position bytes. Find the first URL in the range whose byte at position is
+   * greater than or equal to key (URLs that end at position sort first).
+   */
+  private int lowerBound(int from, int to, int position, int key)
+  {
+    while (from < to)
+    {
+      int middle = (from + to) >>> 1;
+      byte[] url = urls[middle];
+      int middleKey = (url.length > position) ? (url[position] & 0xff) : -1;
+      if (middleKey < key)
+      {
+        from = middle + 1;
+      }
+      else
+      {
+        to = middle;
+      }
+    }
+    return from;
+  }
+
+  private void writePending() throws IOException
+  {
+    if (pendingLength > 0)
+    {
+      out.write(pending, 0, pendingLength);
+      lastByte = pending[pendingLength - 1];
+      reset();
+    }
+  }
+
+  private void reset()
+  {
+    pendingLength = 0;
+    lo = 0;
+    hi = urls.length;
+  }
+
+  static boolean isUrlStart(byte previous)
+  {
+    return previous == DOUBLE_QUOTE || previous == SINGLE_QUOTE || previous == EQUALS;
+  }
+
+  static final byte DOUBLE_QUOTE = (byte) '"';
+
+  static final byte SINGLE_QUOTE = (byte) '\'';
+
+  static final byte EQUALS = (byte) '=';
+}
@@ -0,0 +1,510 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.layouts;
+
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletContext;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.ServletResponse;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.baswell.layouts.Layouts.*;
+
+/**
+ * <p>
+ * Renders pages outside of HTTP requests (static exports, email digests, PDF inputs). Each {@link Job} is view content that is
+ * composed with its layout through the same {@link LayoutsFilter} (and so the same layouts, view sections, asset handling and
+ * layout cache) as live requests. Jobs are rendered in parallel and each page is written to a {@link Sink}.
+ * </p>
+ *
+ * <pre>
+ * {@code
+ * BatchRenderer renderer = new BatchRenderer(layoutsFilter);
+ * BatchRenderer.Batch batch = renderer.render(jobs, BatchRenderer.directorySink(new File("export")));
+ * batch.await();
+ * System.out.println(batch.getRendered() + " pages at " + batch.getPagesPerSecond() + " pages/sec");
+ * renderer.close();
+ * }
+ * </pre>
+ *
+ * <p>
+ * The filter must be initialized. Layouts are run through request dispatchers of the servlet context so jobs should be rendered once
+ * the web application has started. By default jobs run on a fork-join pool with a thread per processor. Any {@code ExecutorService}
+ * can be given instead, for example {@code Executors.newVirtualThreadPerTaskExecutor()} on Java 21 or later.
+ * </p>
+ */
+public class BatchRenderer implements AutoCloseable
+{
+  private final LayoutsFilter layoutsFilter;
+
+  private final ServletContext servletContext;
+
+  private final ExecutorService executor;
+
+  private final boolean ownsExecutor;
+
+  /*
+   * Page buffers are kept between jobs so their storage only has to grow to the size of the largest page once.
+   */
+  private final ConcurrentLinkedQueue<HeapViewBuffer> pages = new ConcurrentLinkedQueue<HeapViewBuffer>();
+
+  /**
+   * Render on a fork-join pool with a thread per processor. The pool is shut down by {@link #close()}.
+   *
+   * @param layoutsFilter An initialized filter.
+   */
+  public BatchRenderer(LayoutsFilter layoutsFilter)
+  {
+    this(layoutsFilter, new ForkJoinPool(), true);
+  }
+
+  /**
+   * Render on the given executor. The executor isn't shut down by {@link #close()}.
+   *
+   * @param layoutsFilter An initialized filter.
+   * @param executor Where jobs are rendered.
+   */
+  public BatchRenderer(LayoutsFilter layoutsFilter, ExecutorService executor)
+  {
+    this(layoutsFilter, executor, false);
+  }
+
+  private BatchRenderer(LayoutsFilter layoutsFilter, ExecutorService executor, boolean ownsExecutor)
+  {
+    this.servletContext = layoutsFilter.servletContext();
+    if (servletContext == null)
+    {
+      throw new IllegalStateException("LayoutsFilter has not been initialized.");
+    }
+
+    this.layoutsFilter = layoutsFilter;
+    this.executor = executor;
+    this.ownsExecutor = ownsExecutor;
+  }
+
+  /**
+   * Start rendering the given jobs. Returns right away, use the returned batch to wait for, follow or cancel the jobs.
+   *
+   * @param jobs The pages to render.
+   * @param sink Where each rendered page is written.
+   * @return The batch of jobs.
+   */
+  public Batch render(Collection<Job> jobs, final Sink sink)
+  {
+    final Batch batch = new Batch(jobs.size());
+    for (final Job job : jobs)
+    {
+      executor.execute(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          batch.run(job, sink);
+        }
+      });
+    }
+    return batch;
+  }
+
+  /**
+   * Shuts down the fork-join pool if this renderer created it. Jobs already started are finished.
+   */
+  @Override
+  public void close()
+  {
+    if (ownsExecutor)
+    {
+      executor.shutdown();
+    }
+    pages.clear();
+  }
+
+  /*
+   * @return The number of bytes written to the sink.
+   */
+  long render(final Job job, Sink sink) throws IOException, ServletException
+  {
+    LayoutWarmUp.SyntheticRequest request = new LayoutWarmUp.SyntheticRequest(servletContext, job.path, null);
+    for (Map.Entry<String, Object> attribute : job.attributes.entrySet())
+    {
+      request.setAttribute(attribute.getKey(), attribute.getValue());
+    }
+    if (job.layout != null)
+    {
+      request.setAttribute(LAYOUT, job.layout);
+    }
+
+    if (layoutsFilter.layoutFor(request) == null)
+    {
+      throw new ServletException("No layout defined with name: " + job.layout);
+    }
+
+    HeapViewBuffer page = pages.poll();
+    if (page == null)
+    {
+      page = new HeapViewBuffer();
+    }
+
+    try
+    {
+      PageResponse response = new PageResponse(page);
+      layoutsFilter.composeWithLayout(request.dispatchable(), response, new FilterChain()
+      {
+        @Override
+        public void doFilter(ServletRequest request, ServletResponse response) throws IOException
+        {
+          response.setContentType("text/html");
+          response.getOutputStream().write(job.view);
+        }
+      }, null);
+      response.flushBuffer();
+
+      OutputStream out = sink.open(job);
+      try
+      {
+        page.writeTo(out);
+      }
+      finally
+      {
+        out.close();
+      }
+      return page.size();
+    }
+    finally
+    {
+      page.clear();
+      pages.offer(page);
+    }
+  }
+
+  /**
+   * Writes each page to a file in the given directory. The path of the job is the path of the file in the directory. A job whose
+   * path resolves to a file outside of the directory (for example with {@code ../}) fails.
+   *
+   * @param directory The root directory of the rendered pages.
+   * @return The sink.
+   */
+  public static Sink directorySink(final File directory)
+  {
+    return new Sink()
+    {
+      @Override
+      public OutputStream open(Job job) throws IOException
+      {
+        File root = directory.getCanonicalFile();
+        File file = new File(root, job.path.substring(1)).getCanonicalFile();
+        if (file.equals(root) || !file.toPath().startsWith(root.toPath()))
+        {
+          throw new IOException("Job path " + job.path + " is outside of directory: " + directory);
+        }
+
+        File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs())
+        {
+          throw new IOException("Unable to create directory: " + parent);
+        }
+        return new FileOutputStream(file);
+      }
+    };
+  }
+
+  /**
+   * Where rendered pages are written.
+   */
+  public interface Sink
+  {
+    /**
+     * Called once the page of the job has been rendered. The page is written to the returned stream which is then closed.
+     *
+     * @param job The rendered job.
+     * @return Where the page is written.
+     * @throws IOException If the stream can't be opened.
+     */
+    OutputStream open(Job job) throws IOException;
+  }
+
+  /**
+   * A page to render.
+   */
+  public static class Job
+  {
+    final String path;
+
+    final byte[] view;
+
+    final String layout;
+
+    final Map<String, Object> attributes;
+
+    /**
+     * A page rendered with the default layout.
+     *
+     * @param path The path of the page (the request URI the layout sees, minus the context path).
+     * @param view The view content (HTML with a head and body).
+     */
+    public Job(String path, String view)
+    {
+      this(path, view.getBytes(), null, Collections.<String, Object>emptyMap());
+    }
+
+    /**
+     * @param path The path of the page (the request URI the layout sees, minus the context path).
+     * @param view The view content (HTML with a head and body).
+     * @param layout The name of the layout or null for the default layout.
+     * @param attributes The request attributes the layout sees.
+     */
+    public Job(String path, byte[] view, String layout, Map<String, Object> attributes)
+    {
+      this.path = path.startsWith("/") ? path : "/" + path;
+      this.view = view;
+      this.layout = layout;
+      this.attributes = new HashMap<String, Object>(attributes);
+    }
+
+    public String getPath()
+    {
+      return path;
+    }
+
+    public String getLayout()
+    {
+      return layout;
+    }
+  }
+
+  /**
+   * The jobs given to one call of {@link #render(Collection, Sink)}.
+   */
+  public class Batch
+  {
+    private final CountDownLatch remaining;
+
+    private final AtomicInteger running;
+
+    private final AtomicInteger rendered = new AtomicInteger();
+
+    private final AtomicInteger failed = new AtomicInteger();
+
+    private final AtomicInteger skipped = new AtomicInteger();
+
+    private final AtomicLong bytes = new AtomicLong();
+
+    private final Map<Job, Exception> failures = new ConcurrentHashMap<Job, Exception>();
+
+    private final long startNanos = System.nanoTime();
+
+    private volatile long endNanos;
+
+    private volatile boolean cancelled;
+
+    Batch(int jobs)
+    {
+      remaining = new CountDownLatch(jobs);
+      running = new AtomicInteger(jobs);
+      if (jobs == 0)
+      {
+        endNanos = startNanos;
+      }
+    }
+
+    /**
+     * Jobs that haven't started yet are skipped. Jobs already rendering are finished.
+     */
+    public void cancel()
+    {
+      cancelled = true;
+    }
+
+    public boolean isCancelled()
+    {
+      return cancelled;
+    }
+
+    /**
+     * @return true once every job has been rendered, failed or skipped.
+     */
+    public boolean isDone()
+    {
+      return remaining.getCount() == 0;
+    }
+
+    /**
+     * Wait for every job to be rendered, fail or be skipped.
+     *
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public void await() throws InterruptedException
+    {
+      remaining.await();
+    }
+
+    /**
+     * @param timeout How long to wait.
+     * @param unit The unit of timeout.
+     * @return true if the batch is done, false if the timeout passed first.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException
+    {
+      return remaining.await(timeout, unit);
+    }
+
+    /**
+     * @return The number of pages rendered and written so far.
+     */
+    public int getRendered()
+    {
+      return rendered.get();
+    }
+
+    /**
+     * @return The number of jobs that failed so far.
+     */
+    public int getFailed()
+    {
+      return failed.get();
+    }
+
+    /**
+     * @return The number of jobs skipped because the batch was cancelled.
+     */
+    public int getSkipped()
+    {
+      return skipped.get();
+    }
+
+    /**
+     * @return The number of bytes written to the sink so far.
+     */
+    public long getBytes()
+    {
+      return bytes.get();
+    }
+
+    /**
+     * @return The failed jobs and why they failed.
+     */
+    public Map<Job, Exception> getFailures()
+    {
+      return Collections.unmodifiableMap(failures);
+    }
+
+    /**
+     * @return The milliseconds since the batch started (until it was done).
+     */
+    public long getElapsedMillis()
+    {
+      long end = isDone() ? endNanos : System.nanoTime();
+      return TimeUnit.NANOSECONDS.toMillis(end - startNanos);
+    }
+
+    /**
+     * @return The pages rendered per second since the batch started (until it was done).
+     */
+    public double getPagesPerSecond()
+    {
+      long end = isDone() ? endNanos : System.nanoTime();
+      return (end == startNanos) ? 0 : rendered.get() / ((end - startNanos) / 1000000000.0);
+    }
+
+    void run(Job job, Sink sink)
+    {
+      try
+      {
+        if (cancelled)
+        {
+          skipped.incrementAndGet();
+        }
+        else
+        {
+          bytes.addAndGet(render(job, sink));
+          rendered.incrementAndGet();
+        }
+      }
+      catch (Exception e)
+      {
+        failures.put(job, e);
+        failed.incrementAndGet();
+      }
+      finally
+      {
+        if (running.decrementAndGet() == 0)
+        {
+          endNanos = System.nanoTime();
+        }
+        remaining.countDown();
+      }
+    }
+  }
+
+  /*
+   * Writes the composed page to the page buffer.
+   */
+  static class PageResponse extends LayoutWarmUp.SyntheticResponse
+  {
+    private final ServletOutputStream pageStream;
+
+    private PrintWriter pageWriter;
+
+    PageResponse(HeapViewBuffer page)
+    {
+      pageStream = new LayoutsOutputStream(page);
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream()
+    {
+      return pageStream;
+    }
+
+    @Override
+    public PrintWriter getWriter()
+    {
+      if (pageWriter == null)
+      {
+        pageWriter = new LayoutsPrintWriter(pageStream);
+      }
+      return pageWriter;
+    }
+
+    @Override
+    public void flushBuffer()
+    {
+      if (pageWriter != null)
+      {
+        pageWriter.flush();
+      }
+    }
+  }
+}
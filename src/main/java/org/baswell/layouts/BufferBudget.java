@@ -0,0 +1,174 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.layouts;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * A lock-free byte budget shared by all the views buffered by one LayoutsFilter. Buffers reserve bytes as they grow and give
+ * them back when the request ends.
+ */
+class BufferBudget implements BufferBudgetMXBean
+{
+  enum ExhaustedPolicy
+  {
+    /*
+     * Stream the view straight to the client without a layout.
+     */
+    PASSTHROUGH,
+
+    /*
+     * Wait (briefly) for budget to become available then stream without a layout if it doesn't.
+     */
+    WAIT,
+
+    /*
+     * Reject the request with a 503.
+     */
+    REJECT
+  }
+
+  final long limit;
+
+  final ExhaustedPolicy exhaustedPolicy;
+
+  final long waitNanos;
+
+  private final AtomicLong reserved = new AtomicLong();
+
+  private final AtomicLong peakReserved = new AtomicLong();
+
+  private final AtomicLong passthroughCount = new AtomicLong();
+
+  private final AtomicLong waitCount = new AtomicLong();
+
+  private final AtomicLong rejectedCount = new AtomicLong();
+
+  BufferBudget(long limit, ExhaustedPolicy exhaustedPolicy, long waitMillis)
+  {
+    this.limit = limit;
+    this.exhaustedPolicy = exhaustedPolicy;
+    this.waitNanos = TimeUnit.MILLISECONDS.toNanos(waitMillis);
+  }
+
+  boolean tryReserve(long bytes)
+  {
+    while (true)
+    {
+      long current = reserved.get();
+      long updated = current + bytes;
+      if (updated > limit)
+      {
+        return false;
+      }
+      else if (reserved.compareAndSet(current, updated))
+      {
+        long peak;
+        while (updated > (peak = peakReserved.get()) && !peakReserved.compareAndSet(peak, updated));
+        return true;
+      }
+    }
+  }
+
+  void release(long bytes)
+  {
+    if (bytes > 0)
+    {
+      reserved.addAndGet(-bytes);
+    }
+  }
+
+  boolean isExhausted()
+  {
+    return reserved.get() >= limit;
+  }
+
+  /*
+   * Park the current thread until the budget is no longer exhausted or the wait time has elapsed.
+   *
+   * @return true if budget is available.
+   */
+  boolean awaitAvailable()
+  {
+    waitCount.incrementAndGet();
+    long deadline = System.nanoTime() + waitNanos;
+    while (isExhausted())
+    {
+      if (System.nanoTime() - deadline >= 0)
+      {
+        return false;
+      }
+      LockSupport.parkNanos(WAIT_INTERVAL_NANOS);
+    }
+    return true;
+  }
+
+  void passedThrough()
+  {
+    passthroughCount.incrementAndGet();
+  }
+
+  void rejected()
+  {
+    rejectedCount.incrementAndGet();
+  }
+
+  @Override
+  public long getLimitBytes()
+  {
+    return limit;
+  }
+
+  @Override
+  public long getReservedBytes()
+  {
+    return reserved.get();
+  }
+
+  @Override
+  public long getPeakReservedBytes()
+  {
+    return peakReserved.get();
+  }
+
+  @Override
+  public double getReservedPercent()
+  {
+    return (reserved.get() * 100.0) / limit;
+  }
+
+  @Override
+  public long getPassthroughCount()
+  {
+    return passthroughCount.get();
+  }
+
+  @Override
+  public long getWaitCount()
+  {
+    return waitCount.get();
+  }
+
+  @Override
+  public long getRejectedCount()
+  {
+    return rejectedCount.get();
+  }
+
+  static final long WAIT_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.layouts;
+
+/**
+ * <p>
+ * The memory budget shared by all views buffered by a {@link LayoutsFilter}. Registered with the platform MBean server under
+ * {@code org.baswell.layouts:type=BufferBudget} when the <i>BUFFER_BUDGET</i> init parameter is set.
+ * </p>
+ */
+public interface BufferBudgetMXBean
+{
+  /**
+   * @return The maximum number of bytes that can be reserved by buffered views at one time.
+   */
+  long getLimitBytes();
+
+  /**
+   * @return The number of bytes currently reserved by buffered views.
+   */
+  long getReservedBytes();
+
+  /**
+   * @return The highest number of bytes reserved at one time.
+   */
+  long getPeakReservedBytes();
+
+  /**
+   * @return The reserved bytes as a percentage of the limit.
+   */
+  double getReservedPercent();
+
+  /**
+   * @return The number of requests that were streamed without a layout because the budget was exhausted.
+   */
+  long getPassthroughCount();
+
+  /**
+   * @return The number of requests that had to wait for budget to become available.
+   */
+  long getWaitCount();
+
+  /**
+   * @return The number of requests that were rejected with a 503 because the budget was exhausted.
+   */
+  long getRejectedCount();
+}
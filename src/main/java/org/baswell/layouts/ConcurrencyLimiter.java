@@ -0,0 +1,394 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.layouts;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Limits how many layout rendered requests of a group (layout or route) run at once, the limit of each group adapting to its
+ * latency the way gradient limiters do. Each group keeps a short term (about the last 10 requests) and a long term (about the last
+ * 100) moving average of how long its requests take. As long as the short term latency is within TOLERANCE of the long term the
+ * limit grows by about its square root each time. Once requests slow down (more of them are competing for the same CPU, pool or
+ * database) the limit is cut in proportion, down to half at a time. The limit only grows when the group is actually using at least
+ * half of it.
+ *
+ * A request over the limit of its group waits up to waitNanos for a slot then is shed with a 503. Waiting requests are queued in
+ * arrival order and parked, a release hands its slot straight to the request at the head of the queue. Requests that aren't
+ * rendered with a layout never get here.
+ *
+ * At most MAX_GROUPS groups are kept, when there are more the least recently used group without requests in flight or on their
+ * way in is dropped.
+ */
+class ConcurrencyLimiter implements ConcurrencyLimiterMXBean
+{
+  enum GroupBy
+  {
+    LAYOUT,
+    ROUTE
+  }
+
+  final GroupBy groupBy;
+
+  final int initialLimit;
+
+  final int maxLimit;
+
+  final long waitNanos;
+
+  private final Map<String, Group> groups;
+
+  private final AtomicInteger queueDepth = new AtomicInteger();
+
+  private final AtomicLong queuedCount = new AtomicLong();
+
+  private final AtomicLong shedCount = new AtomicLong();
+
+  ConcurrencyLimiter(GroupBy groupBy, int initialLimit, int maxLimit, long waitMillis)
+  {
+    this.groupBy = groupBy;
+    this.initialLimit = initialLimit;
+    this.maxLimit = maxLimit;
+    waitNanos = TimeUnit.MILLISECONDS.toNanos(waitMillis);
+    groups = new LinkedHashMap<String, Group>(16, 0.75f, true)
+    {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Group> eldest)
+      {
+        if (size() > MAX_GROUPS)
+        {
+          Iterator<Group> iterator = values().iterator();
+          while (iterator.hasNext())
+          {
+            if (iterator.next().isIdle())
+            {
+              iterator.remove();
+              break;
+            }
+          }
+        }
+        return false;
+      }
+    };
+  }
+
+  /*
+   * The group of the key, which can't be dropped until acquire is called on it.
+   */
+  Group group(String key)
+  {
+    synchronized (groups)
+    {
+      Group group = groups.get(key);
+      if (group == null)
+      {
+        group = new Group();
+        groups.put(key, group);
+      }
+      group.arriving.incrementAndGet();
+      return group;
+    }
+  }
+
+  void shed()
+  {
+    shedCount.incrementAndGet();
+  }
+
+  @Override
+  public String getGroupBy()
+  {
+    return groupBy.name();
+  }
+
+  @Override
+  public int getMaxLimit()
+  {
+    return maxLimit;
+  }
+
+  @Override
+  public Map<String, Integer> getLimits()
+  {
+    Map<String, Integer> limits = new TreeMap<String, Integer>();
+    for (Map.Entry<String, Group> entry : snapshot().entrySet())
+    {
+      limits.put(entry.getKey(), entry.getValue().limit);
+    }
+    return limits;
+  }
+
+  @Override
+  public Map<String, String> getGroups()
+  {
+    Map<String, String> groups = new TreeMap<String, String>();
+    for (Map.Entry<String, Group> entry : snapshot().entrySet())
+    {
+      groups.put(entry.getKey(), entry.getValue().toString());
+    }
+    return groups;
+  }
+
+  @Override
+  public int getQueueDepth()
+  {
+    return queueDepth.get();
+  }
+
+  @Override
+  public long getQueuedCount()
+  {
+    return queuedCount.get();
+  }
+
+  @Override
+  public long getShedCount()
+  {
+    return shedCount.get();
+  }
+
+  private Map<String, Group> snapshot()
+  {
+    synchronized (groups)
+    {
+      return new TreeMap<String, Group>(groups);
+    }
+  }
+
+  /*
+   * The limit and latency statistics of one group.
+   */
+  class Group
+  {
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private final AtomicInteger arriving = new AtomicInteger();
+
+    /*
+     * The requests waiting for a slot, in arrival order.
+     */
+    private final ArrayDeque<Waiter> waiters = new ArrayDeque<Waiter>();
+
+    private volatile int limit = initialLimit;
+
+    private double estimatedLimit = initialLimit;
+
+    private double shortNanos;
+
+    private double longNanos;
+
+    private long samples;
+
+    /*
+     * @return false if the group stayed at its limit for the whole wait, the request should be shed.
+     */
+    boolean acquire()
+    {
+      Waiter waiter;
+      try
+      {
+        if (queued.get() == 0 && tryAcquire())
+        {
+          return true;
+        }
+        else if (waitNanos <= 0)
+        {
+          return false;
+        }
+
+        waiter = new Waiter();
+        synchronized (waiters)
+        {
+          /*
+           * Queued before trying again so a release that happens in between sees the request waiting.
+           */
+          queued.incrementAndGet();
+          if (waiters.isEmpty() && tryAcquire())
+          {
+            queued.decrementAndGet();
+            return true;
+          }
+          waiters.addLast(waiter);
+        }
+        queuedCount.incrementAndGet();
+        queueDepth.incrementAndGet();
+      }
+      finally
+      {
+        arriving.decrementAndGet();
+      }
+
+      return await(waiter);
+    }
+
+    /*
+     * @param latencyNanos How long the request took once acquired, -1 if it failed and shouldn't count.
+     */
+    void release(long latencyNanos)
+    {
+      int requestsInFlight = inFlight.getAndDecrement();
+      if (latencyNanos >= 0)
+      {
+        sample(latencyNanos, requestsInFlight);
+      }
+
+      if (queued.get() > 0)
+      {
+        signalWaiters();
+      }
+    }
+
+    boolean isIdle()
+    {
+      return inFlight.get() == 0 && queued.get() == 0 && arriving.get() == 0;
+    }
+
+    private boolean await(Waiter waiter)
+    {
+      long deadline = System.nanoTime() + waitNanos;
+      try
+      {
+        while (!waiter.granted)
+        {
+          long remainingNanos = deadline - System.nanoTime();
+          if (remainingNanos <= 0)
+          {
+            synchronized (waiters)
+            {
+              if (waiter.granted)
+              {
+                return true;
+              }
+              waiters.remove(waiter);
+              queued.decrementAndGet();
+            }
+            return false;
+          }
+          LockSupport.parkNanos(this, remainingNanos);
+        }
+        return true;
+      }
+      finally
+      {
+        queueDepth.decrementAndGet();
+      }
+    }
+
+    /*
+     * Hands the free slots to the waiting requests, oldest first.
+     */
+    private void signalWaiters()
+    {
+      synchronized (waiters)
+      {
+        while (!waiters.isEmpty() && tryAcquire())
+        {
+          Waiter waiter = waiters.pollFirst();
+          queued.decrementAndGet();
+          waiter.granted = true;
+          LockSupport.unpark(waiter.thread);
+        }
+      }
+    }
+
+    private boolean tryAcquire()
+    {
+      while (true)
+      {
+        int current = inFlight.get();
+        if (current >= limit)
+        {
+          return false;
+        }
+        else if (inFlight.compareAndSet(current, current + 1))
+        {
+          return true;
+        }
+      }
+    }
+
+    synchronized void sample(long latencyNanos, int requestsInFlight)
+    {
+      shortNanos = average(shortNanos, latencyNanos, samples, SHORT_ALPHA);
+      longNanos = average(longNanos, latencyNanos, samples, LONG_ALPHA);
+      ++samples;
+
+      if (longNanos > shortNanos * 2)
+      {
+        /*
+         * Latency has dropped well below what it was, catch the long term average up faster.
+         */
+        longNanos *= 0.95;
+      }
+
+      if (requestsInFlight < estimatedLimit / 2)
+      {
+        /*
+         * Not using the limit, latency says nothing about whether it could be higher.
+         */
+        return;
+      }
+
+      double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longNanos / shortNanos));
+      double newLimit = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+      estimatedLimit = Math.max(MIN_LIMIT, Math.min(maxLimit, estimatedLimit * (1 - SMOOTHING) + newLimit * SMOOTHING));
+      limit = (int) estimatedLimit;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+      return "limit=" + limit + " inFlight=" + inFlight.get() + " queued=" + queued.get() + " samples=" + samples + " short=" +
+             Math.round(shortNanos / 100000) / 10.0 + "ms long=" + Math.round(longNanos / 100000) / 10.0 + "ms";
+    }
+  }
+
+  static class Waiter
+  {
+    final Thread thread = Thread.currentThread();
+
+    volatile boolean granted;
+  }
+
+  /*
+   * An exponentially weighted moving average that starts at the first sample.
+   */
+  static double average(double average, double sample, long samples, double alpha)
+  {
+    return (samples == 0) ? sample : average + (sample - average) * alpha;
+  }
+
+  static final int MAX_GROUPS = 1000;
+
+  static final int MIN_LIMIT = 1;
+
+  static final double SHORT_ALPHA = 0.1;
+
+  static final double LONG_ALPHA = 0.01;
+
+  static final double TOLERANCE = 1.5;
+
+  static final double SMOOTHING = 0.2;
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.layouts;
+
+import java.util.Map;
+
+/**
+ * <p>
+ * The adaptive concurrency limits of layout rendered requests when the <i>CONCURRENCY_LIMIT</i> init parameter of the {@link LayoutsFilter}
+ * is set. Registered with the platform MBean server under {@code org.baswell.layouts:type=ConcurrencyLimiter}.
+ * </p>
+ */
+public interface ConcurrencyLimiterMXBean
+{
+  /**
+   * @return What requests are grouped by, LAYOUT or ROUTE. Each group has its own limit.
+   */
+  String getGroupBy();
+
+  /**
+   * @return The highest the limit of a group can go.
+   */
+  int getMaxLimit();
+
+  /**
+   * @return The current limit of each group.
+   */
+  Map<String, Integer> getLimits();
+
+  /**
+   * @return The current limit, requests in flight, requests queued and latencies each limit was picked from for each group.
+   */
+  Map<String, String> getGroups();
+
+  /**
+   * @return The number of requests currently queued waiting for their group to go under its limit.
+   */
+  int getQueueDepth();
+
+  /**
+   * @return The number of requests that have had to queue.
+   */
+  long getQueuedCount();
+
+  /**
+   * @return The number of requests that were rejected with a 503 because their group was at its limit.
+   */
+  long getShedCount();
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.layouts;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * A pool of fixed size, off-heap chunks shared by the direct view buffers of one LayoutsFilter. Chunks are returned explicitly
+ * when the request ends so they can be reused without waiting on the garbage collector. Up to maxPooledChunks are kept, any
+ * extra chunks are left for the garbage collector to free.
+ */
+class DirectBufferArena
+{
+  static final int CHUNK_SHIFT = 16;
+
+  static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+
+  static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+  private final ConcurrentLinkedQueue<ByteBuffer> chunks = new ConcurrentLinkedQueue<ByteBuffer>();
+
+  private final AtomicInteger pooledChunks = new AtomicInteger();
+
+  private final int maxPooledChunks;
+
+  DirectBufferArena(long maxPooledBytes)
+  {
+    maxPooledChunks = (int) Math.min(Integer.MAX_VALUE, maxPooledBytes / CHUNK_SIZE);
+  }
+
+  /*
+   * @return A cleared chunk or null if off-heap memory is exhausted.
+   */
+  ByteBuffer acquire()
+  {
+    ByteBuffer chunk = chunks.poll();
+    if (chunk != null)
+    {
+      pooledChunks.decrementAndGet();
+      return chunk;
+    }
+
+    try
+    {
+      return ByteBuffer.allocateDirect(CHUNK_SIZE);
+    }
+    catch (OutOfMemoryError e)
+    {
+      return null;
+    }
+  }
+
+  void release(ByteBuffer chunk)
+  {
+    if (pooledChunks.incrementAndGet() <= maxPooledChunks)
+    {
+      chunk.clear();
+      chunks.offer(chunk);
+    }
+    else
+    {
+      pooledChunks.decrementAndGet();
+    }
+  }
+
+  /*
+   * @return true if off-heap memory can be allocated in this JVM.
+   */
+  boolean available()
+  {
+    ByteBuffer chunk = acquire();
+    if (chunk == null)
+    {
+      return false;
+    }
+    else
+    {
+      release(chunk);
+      return true;
+    }
+  }
+}
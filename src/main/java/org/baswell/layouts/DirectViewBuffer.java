@@ -0,0 +1,180 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.layouts;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+import static org.baswell.layouts.DirectBufferArena.*;
+
+/*
+ * A view buffer backed by off-heap chunks from a DirectBufferArena. Growing never copies content, a chunk is just added. The chunks
+ * go back to the arena when the buffer is released.
+ */
+class DirectViewBuffer extends ViewBuffer
+{
+  private final DirectBufferArena arena;
+
+  private ByteBuffer[] chunks = new ByteBuffer[4];
+
+  private int chunkCount;
+
+  /*
+   * Used to copy content to streams that aren't channels.
+   */
+  private byte[] transferBuffer;
+
+  DirectViewBuffer(DirectBufferArena arena, BufferBudget budget, OverflowHandler overflowHandler)
+  {
+    super(budget, overflowHandler);
+    this.arena = arena;
+  }
+
+  @Override
+  byte byteAt(int index)
+  {
+    return chunks[index >>> CHUNK_SHIFT].get(index & CHUNK_MASK);
+  }
+
+  @Override
+  void writeTo(OutputStream out, int offset, int length) throws IOException
+  {
+    /*
+     * Hand the chunks straight to the container if it exposes a channel, otherwise they're copied through a small heap buffer.
+     */
+    OutputStream target = (out instanceof LayoutsOutputStream) ? ((LayoutsOutputStream) out).target() : out;
+    WritableByteChannel channel = (target instanceof WritableByteChannel) ? (WritableByteChannel) target : null;
+    if (channel == null && transferBuffer == null)
+    {
+      transferBuffer = new byte[Math.min(CHUNK_SIZE, Math.max(length, 1024))];
+    }
+
+    int end = offset + length;
+    while (offset < end)
+    {
+      ByteBuffer chunk = chunks[offset >>> CHUNK_SHIFT].duplicate();
+      int chunkOffset = offset & CHUNK_MASK;
+      int chunkLength = Math.min(CHUNK_SIZE - chunkOffset, end - offset);
+      chunk.limit(chunkOffset + chunkLength).position(chunkOffset);
+
+      if (channel != null)
+      {
+        while (chunk.hasRemaining())
+        {
+          channel.write(chunk);
+        }
+      }
+      else
+      {
+        while (chunk.hasRemaining())
+        {
+          int transferLength = Math.min(transferBuffer.length, chunk.remaining());
+          chunk.get(transferBuffer, 0, transferLength);
+          out.write(transferBuffer, 0, transferLength);
+        }
+      }
+
+      offset += chunkLength;
+    }
+  }
+
+  @Override
+  byte[] toByteArray(int offset, int length)
+  {
+    byte[] bytes = new byte[length];
+    int index = 0;
+    while (index < length)
+    {
+      ByteBuffer chunk = chunks[(offset + index) >>> CHUNK_SHIFT].duplicate();
+      int chunkOffset = (offset + index) & CHUNK_MASK;
+      int chunkLength = Math.min(CHUNK_SIZE - chunkOffset, length - index);
+      chunk.position(chunkOffset);
+      chunk.get(bytes, index, chunkLength);
+      index += chunkLength;
+    }
+    return bytes;
+  }
+
+  @Override
+  int capacity()
+  {
+    return chunkCount << CHUNK_SHIFT;
+  }
+
+  @Override
+  int nextCapacity(int minCapacity, boolean minimal)
+  {
+    return ((minCapacity + CHUNK_MASK) >>> CHUNK_SHIFT) << CHUNK_SHIFT;
+  }
+
+  @Override
+  boolean allocate(int newCapacity)
+  {
+    int newChunkCount = newCapacity >>> CHUNK_SHIFT;
+    if (newChunkCount > chunks.length)
+    {
+      chunks = Arrays.copyOf(chunks, Math.max(chunks.length << 1, newChunkCount));
+    }
+
+    while (chunkCount < newChunkCount)
+    {
+      ByteBuffer chunk = arena.acquire();
+      if (chunk == null)
+      {
+        return false;
+      }
+      chunks[chunkCount++] = chunk;
+    }
+    return true;
+  }
+
+  @Override
+  void put(byte b)
+  {
+    chunks[count >>> CHUNK_SHIFT].put(count & CHUNK_MASK, b);
+  }
+
+  @Override
+  void put(byte[] bytes, int offset, int length)
+  {
+    int position = count;
+    int end = offset + length;
+    while (offset < end)
+    {
+      ByteBuffer chunk = chunks[position >>> CHUNK_SHIFT];
+      int chunkOffset = position & CHUNK_MASK;
+      int chunkLength = Math.min(CHUNK_SIZE - chunkOffset, end - offset);
+      chunk.position(chunkOffset);
+      chunk.put(bytes, offset, chunkLength);
+      offset += chunkLength;
+      position += chunkLength;
+    }
+  }
+
+  @Override
+  void freeStorage()
+  {
+    for (int i = 0; i < chunkCount; i++)
+    {
+      arena.release(chunks[i]);
+      chunks[i] = null;
+    }
+    chunkCount = 0;
+  }
+}
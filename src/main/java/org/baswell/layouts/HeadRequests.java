@@ -0,0 +1,107 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.layouts;
+
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/*
+ * The fast path for HEAD requests (HEAD_REQUESTS=FAST). The view still runs, it sets the status and headers and picks the layout,
+ * but the layout is never rendered.
+ *
+ * The size and ETag of a page are only known without rendering it when the layout output is replayed from the layout cache and
+ * nothing changes the page on its way out (page transformers or fingerprinted assets). The cache entry is the layout output for the
+ * values the layout varies by, so then the page is just the entry with the view yielded into it. Those pages (GET and HEAD alike so
+ * the two agree) get a weak ETag made from the layout, the entry and the view content, and a HEAD gets the Content-Length of the
+ * entry replayed with the view into a counter. Any other page could have layout output that differs from one request to the next
+ * (per user menus, layout data, nonces) so it gets neither.
+ */
+class HeadRequests
+{
+  /*
+   * Sets the ETag of the composed page unless the view set its own.
+   *
+   * @param cached The layout cache entry the page is composed from.
+   */
+  static void setETag(HttpServletResponse response, Layout layout, LayoutCache.Entry cached, ViewBuffer content) throws IOException
+  {
+    if (response.getHeader(ETAG) == null)
+    {
+      CRC32 checksum = new CRC32();
+      content.writeTo(new CheckedOutputStream(OutputStream.nullOutputStream(), checksum), 0, content.size());
+      response.setHeader(ETAG, "W/\"" + layout.name + '-' + Long.toHexString(cached.checksum()) + '-' + Integer.toHexString(content.size()) + '-' +
+                               Long.toHexString(checksum.getValue()) + '"');
+    }
+  }
+
+  /*
+   * Counts the bytes written through it. With no stream to write to the bytes are only counted.
+   */
+  static class CountingOutputStream extends OutputStream
+  {
+    private final OutputStream out;
+
+    long count;
+
+    CountingOutputStream(OutputStream out)
+    {
+      this.out = out;
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+      if (out != null)
+      {
+        out.write(b);
+      }
+      ++count;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException
+    {
+      if (out != null)
+      {
+        out.write(bytes, offset, length);
+      }
+      count += length;
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+      if (out != null)
+      {
+        out.flush();
+      }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+      if (out != null)
+      {
+        out.close();
+      }
+    }
+  }
+
+  static final String ETAG = "ETag";
+}
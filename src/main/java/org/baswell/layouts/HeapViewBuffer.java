@@ -0,0 +1,113 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.layouts;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/*
+ * A view buffer backed by a single byte array that doubles in size as it grows.
+ */
+class HeapViewBuffer extends ViewBuffer
+{
+  private byte[] buffer;
+
+  HeapViewBuffer()
+  {
+    this(null, null);
+  }
+
+  HeapViewBuffer(BufferBudget budget, OverflowHandler overflowHandler)
+  {
+    super(budget, overflowHandler);
+  }
+
+  /*
+   * Wraps existing content without copying it.
+   */
+  HeapViewBuffer(byte[] content)
+  {
+    this(null, null);
+    buffer = content;
+    count = content.length;
+  }
+
+  @Override
+  byte byteAt(int index)
+  {
+    return buffer[index];
+  }
+
+  @Override
+  void writeTo(OutputStream out, int offset, int length) throws IOException
+  {
+    out.write(buffer, offset, length);
+  }
+
+  @Override
+  byte[] toByteArray(int offset, int length)
+  {
+    return (buffer == null) ? new byte[0] : Arrays.copyOfRange(buffer, offset, offset + length);
+  }
+
+  @Override
+  int capacity()
+  {
+    return (buffer == null) ? 0 : buffer.length;
+  }
+
+  @Override
+  int nextCapacity(int minCapacity, boolean minimal)
+  {
+    if (minimal)
+    {
+      return minCapacity;
+    }
+    else
+    {
+      int doubled = capacity() << 1;
+      return Math.max(Math.max(doubled < 0 ? Integer.MAX_VALUE - 8 : doubled, minCapacity), INITIAL_CAPACITY);
+    }
+  }
+
+  @Override
+  boolean allocate(int newCapacity)
+  {
+    buffer = (buffer == null) ? new byte[newCapacity] : Arrays.copyOf(buffer, newCapacity);
+    return true;
+  }
+
+  @Override
+  void put(byte b)
+  {
+    buffer[count] = b;
+  }
+
+  @Override
+  void put(byte[] bytes, int offset, int length)
+  {
+    System.arraycopy(bytes, offset, buffer, count, length);
+  }
+
+  @Override
+  void freeStorage()
+  {
+    buffer = null;
+  }
+
+  static final int INITIAL_CAPACITY = 1024;
+}
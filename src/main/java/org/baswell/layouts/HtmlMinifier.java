@@ -0,0 +1,142 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.layouts;
+
+import java.io.IOException;
+
+/*
+ * The MINIFY transformer. Collapses runs of whitespace in text to a single space (or new line if the run had one) and drops
+ * comments other than conditional comments (<!--[if ...]>) and comments starting with <!--! . Text in script, style, textarea and
+ * pre elements is left alone. Collapsed text is copied into one scratch buffer that's reused for the whole page.
+ */
+class HtmlMinifier implements PageTransformer
+{
+  private byte[] scratch = new byte[512];
+
+  private int preDepth;
+
+  private boolean inWhitespace;
+
+  private boolean newLine;
+
+  @Override
+  public void token(HtmlToken token, TokenWriter out) throws IOException
+  {
+    switch (token.getType())
+    {
+      case TEXT:
+        if (token.isRawText() || preDepth > 0)
+        {
+          writeWhitespace(out);
+          out.write(token);
+        }
+        else
+        {
+          collapse(token, out);
+        }
+        break;
+
+      case COMMENT:
+        if (keep(token))
+        {
+          writeWhitespace(out);
+          out.write(token);
+        }
+        break;
+
+      case START_TAG:
+        writeWhitespace(out);
+        if (token.isTag("pre") && !token.isSelfClosing())
+        {
+          ++preDepth;
+        }
+        out.write(token);
+        break;
+
+      case END_TAG:
+        writeWhitespace(out);
+        if (preDepth > 0 && token.isTag("pre"))
+        {
+          --preDepth;
+        }
+        out.write(token);
+        break;
+
+      default:
+        writeWhitespace(out);
+        out.write(token);
+        break;
+    }
+  }
+
+  @Override
+  public void end(TokenWriter out) throws IOException
+  {
+    writeWhitespace(out);
+  }
+
+  /*
+   * The trailing whitespace of a text token is held until the next token since the next text token might start with more whitespace.
+   */
+  private void collapse(HtmlToken token, TokenWriter out) throws IOException
+  {
+    int length = token.length();
+    if (scratch.length < length + 1)
+    {
+      scratch = new byte[Math.max(scratch.length * 2, length + 1)];
+    }
+
+    int count = 0;
+    for (int i = 0; i < length; i++)
+    {
+      byte b = token.byteAt(i);
+      if (HtmlToken.isSpace(b))
+      {
+        if (b == '\n')
+        {
+          newLine = true;
+        }
+        inWhitespace = true;
+      }
+      else
+      {
+        if (inWhitespace)
+        {
+          scratch[count++] = newLine ? (byte) '\n' : (byte) ' ';
+          inWhitespace = newLine = false;
+        }
+        scratch[count++] = b;
+      }
+    }
+
+    out.write(scratch, 0, count);
+  }
+
+  private void writeWhitespace(TokenWriter out) throws IOException
+  {
+    if (inWhitespace)
+    {
+      scratch[0] = newLine ? (byte) '\n' : (byte) ' ';
+      inWhitespace = newLine = false;
+      out.write(scratch, 0, 1);
+    }
+  }
+
+  static boolean keep(HtmlToken comment)
+  {
+    return comment.length() > 4 && (comment.byteAt(4) == '[' || comment.byteAt(4) == '!');
+  }
+}
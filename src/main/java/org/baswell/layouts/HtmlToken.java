@@ -0,0 +1,412 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.layouts;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * <p>
+ * A piece of a composed page given to {@link PageTransformer}s. Tokens are reused, so a token is only valid during the call it's
+ * given in.
+ * </p>
+ */
+public final class HtmlToken
+{
+  /**
+   * The kinds of tokens.
+   */
+  public enum Type
+  {
+    /**
+     * Text between tags. Long runs of text can be split into more than one token.
+     */
+    TEXT,
+
+    /**
+     * An opening tag like {@code <div class="nav">}.
+     */
+    START_TAG,
+
+    /**
+     * A closing tag like {@code </div>}.
+     */
+    END_TAG,
+
+    /**
+     * A comment like {@code <!-- nav -->}.
+     */
+    COMMENT,
+
+    /**
+     * Anything else in angle brackets like {@code <!DOCTYPE html>}.
+     */
+    OTHER
+  }
+
+  Type type;
+
+  byte[] bytes;
+
+  int offset;
+
+  int length;
+
+  boolean rawText;
+
+  HtmlToken()
+  {}
+
+  void set(Type type, byte[] bytes, int offset, int length, boolean rawText)
+  {
+    this.type = type;
+    this.bytes = bytes;
+    this.offset = offset;
+    this.length = length;
+    this.rawText = rawText;
+  }
+
+  /**
+   * @return The kind of token.
+   */
+  public Type getType()
+  {
+    return type;
+  }
+
+  /**
+   * @return true if this is the text content of a script, style or textarea element (which isn't HTML).
+   */
+  public boolean isRawText()
+  {
+    return rawText;
+  }
+
+  /**
+   * @return The number of bytes in this token.
+   */
+  public int length()
+  {
+    return length;
+  }
+
+  /**
+   * @param index From 0 to length() - 1.
+   * @return The byte of this token at index.
+   */
+  public byte byteAt(int index)
+  {
+    return bytes[offset + index];
+  }
+
+  /**
+   * Check the name of a tag without creating any objects.
+   *
+   * @param tagName The tag name to check for.
+   * @return true if this is a start or end tag with the given name (case insensitive).
+   */
+  public boolean isTag(String tagName)
+  {
+    int nameStart = nameStart();
+    if (nameStart < 0 || nameStart + tagName.length() > offset + length)
+    {
+      return false;
+    }
+
+    for (int i = 0; i < tagName.length(); i++)
+    {
+      if (Character.toLowerCase((char) bytes[nameStart + i]) != Character.toLowerCase(tagName.charAt(i)))
+      {
+        return false;
+      }
+    }
+
+    int next = nameStart + tagName.length();
+    return next >= offset + length || !isNameByte(bytes[next]);
+  }
+
+  /**
+   * @return The lower case name of a start or end tag, null for other tokens.
+   */
+  public String getTagName()
+  {
+    int nameStart = nameStart();
+    if (nameStart < 0)
+    {
+      return null;
+    }
+
+    int nameEnd = nameStart;
+    while (nameEnd < offset + length && isNameByte(bytes[nameEnd]))
+    {
+      ++nameEnd;
+    }
+    return new String(bytes, nameStart, nameEnd - nameStart, StandardCharsets.ISO_8859_1).toLowerCase();
+  }
+
+  /**
+   * @return true if this is a start tag that closes itself like {@code <br/>}.
+   */
+  public boolean isSelfClosing()
+  {
+    return type == Type.START_TAG && length > 2 && bytes[offset + length - 2] == '/';
+  }
+
+  /**
+   * @param name The attribute name (case insensitive).
+   * @return The value of the attribute of this start tag, an empty string if it has no value or null if the tag doesn't have it.
+   */
+  public String getAttribute(String name)
+  {
+    int[] range = findAttribute(name);
+    if (range == null)
+    {
+      return null;
+    }
+    else if (range[1] < 0)
+    {
+      return "";
+    }
+    else
+    {
+      return new String(bytes, range[1], range[2] - range[1], StandardCharsets.ISO_8859_1);
+    }
+  }
+
+  /**
+   * Add the attribute to this start tag, or replace its value if the tag already has it.
+   *
+   * @param name The attribute name.
+   * @param value The attribute value (quotes and ampersands are escaped).
+   */
+  public void setAttribute(String name, String value)
+  {
+    if (type != Type.START_TAG)
+    {
+      throw new IllegalStateException("Only start tags have attributes.");
+    }
+
+    byte[] attribute = (name + "=\"" + value.replace("&", "&amp;").replace("\"", "&quot;") + "\"").getBytes();
+    int[] range = findAttribute(name);
+
+    int replaceStart;
+    int replaceEnd;
+    boolean leadingSpace;
+    if (range == null)
+    {
+      replaceStart = replaceEnd = isSelfClosing() ? offset + length - 2 : offset + length - 1;
+      leadingSpace = !isSpace(bytes[replaceStart - 1]);
+    }
+    else
+    {
+      replaceStart = range[0];
+      replaceEnd = range[3];
+      leadingSpace = false;
+    }
+
+    int extra = leadingSpace ? 1 : 0;
+    byte[] changed = new byte[length - (replaceEnd - replaceStart) + attribute.length + extra];
+    int prefixLength = replaceStart - offset;
+    System.arraycopy(bytes, offset, changed, 0, prefixLength);
+    if (leadingSpace)
+    {
+      changed[prefixLength] = ' ';
+    }
+    System.arraycopy(attribute, 0, changed, prefixLength + extra, attribute.length);
+    System.arraycopy(bytes, replaceEnd, changed, prefixLength + extra + attribute.length, offset + length - replaceEnd);
+    set(type, changed, 0, changed.length, rawText);
+  }
+
+  /**
+   * Remove the attribute from this start tag.
+   *
+   * @param name The attribute name (case insensitive).
+   * @return True if the tag had the attribute.
+   */
+  public boolean removeAttribute(String name)
+  {
+    int[] range = findAttribute(name);
+    if (range == null)
+    {
+      return false;
+    }
+
+    int removeStart = range[0];
+    while (removeStart > offset && isSpace(bytes[removeStart - 1]))
+    {
+      --removeStart;
+    }
+    byte[] changed = new byte[length - (range[3] - removeStart)];
+    int prefixLength = removeStart - offset;
+    System.arraycopy(bytes, offset, changed, 0, prefixLength);
+    System.arraycopy(bytes, range[3], changed, prefixLength, offset + length - range[3]);
+    set(type, changed, 0, changed.length, rawText);
+    return true;
+  }
+
+  /**
+   * @param out Where the bytes of this token are written.
+   * @throws IOException If the bytes can't be written.
+   */
+  public void writeTo(OutputStream out) throws IOException
+  {
+    out.write(bytes, offset, length);
+  }
+
+  @Override
+  public String toString()
+  {
+    return new String(bytes, offset, length, StandardCharsets.ISO_8859_1);
+  }
+
+  /*
+   * @return Where the tag name starts or -1 if this isn't a start or end tag.
+   */
+  private int nameStart()
+  {
+    if (type == Type.START_TAG)
+    {
+      return offset + 1;
+    }
+    else if (type == Type.END_TAG)
+    {
+      return offset + 2;
+    }
+    else
+    {
+      return -1;
+    }
+  }
+
+  /*
+   * @return {name start, value start (-1 if no value), value end, attribute end} or null if this start tag doesn't have the attribute.
+   */
+  private int[] findAttribute(String name)
+  {
+    if (type != Type.START_TAG)
+    {
+      return null;
+    }
+
+    int end = offset + length - 1;
+    int i = nameStart();
+    while (i < end && isNameByte(bytes[i]))
+    {
+      ++i;
+    }
+
+    while (i < end)
+    {
+      while (i < end && (isSpace(bytes[i]) || bytes[i] == '/'))
+      {
+        ++i;
+      }
+      if (i >= end)
+      {
+        break;
+      }
+
+      int attributeStart = i;
+      while (i < end && !isSpace(bytes[i]) && bytes[i] != '=' && bytes[i] != '/')
+      {
+        ++i;
+      }
+      int attributeNameEnd = i;
+
+      int valueStart = -1;
+      int valueEnd = -1;
+      int next = i;
+      while (next < end && isSpace(bytes[next]))
+      {
+        ++next;
+      }
+      if (next < end && bytes[next] == '=')
+      {
+        i = next + 1;
+        while (i < end && isSpace(bytes[i]))
+        {
+          ++i;
+        }
+
+        if (i < end && (bytes[i] == '"' || bytes[i] == '\''))
+        {
+          byte quote = bytes[i++];
+          valueStart = i;
+          while (i < end && bytes[i] != quote)
+          {
+            ++i;
+          }
+          valueEnd = i;
+          if (i < end)
+          {
+            ++i;
+          }
+        }
+        else
+        {
+          valueStart = i;
+          while (i < end && !isSpace(bytes[i]))
+          {
+            ++i;
+          }
+          valueEnd = i;
+        }
+      }
+      else if (attributeNameEnd == attributeStart)
+      {
+        /*
+         * A stray character (like an = with no name), skip it.
+         */
+        ++i;
+        continue;
+      }
+
+      if (equalsIgnoreCase(attributeStart, attributeNameEnd, name))
+      {
+        return new int[]{attributeStart, valueStart, valueEnd, i};
+      }
+    }
+    return null;
+  }
+
+  private boolean equalsIgnoreCase(int start, int end, String name)
+  {
+    if (end - start != name.length())
+    {
+      return false;
+    }
+
+    for (int i = 0; i < name.length(); i++)
+    {
+      if (Character.toLowerCase((char) bytes[start + i]) != Character.toLowerCase(name.charAt(i)))
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  static boolean isSpace(byte b)
+  {
+    return b == ' ' || b == '\n' || b == '\r' || b == '\t' || b == '\f';
+  }
+
+  static boolean isNameByte(byte b)
+  {
+    return !isSpace(b) && b != '>' && b != '/';
+  }
+}
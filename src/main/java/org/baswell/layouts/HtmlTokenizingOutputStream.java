@@ -0,0 +1,342 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.layouts;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/*
+ * Splits a composed page into HtmlTokens as it's written and runs them through the page transformers. Text is handed to the
+ * transformers straight from the caller's array; only tags, comments and the content of script, style and textarea elements are
+ * buffered. Incomplete tags are held back on flush so transformers always see whole tags.
+ */
+class HtmlTokenizingOutputStream extends OutputStream
+{
+  private final OutputStream out;
+
+  private final PageTransformer[] transformers;
+
+  private final TokenWriter[] writers;
+
+  private final HtmlToken token = new HtmlToken();
+
+  private final byte[] single = new byte[1];
+
+  private byte[] pending = new byte[256];
+
+  private int pendingLength;
+
+  private State state = State.TEXT;
+
+  private HtmlToken.Type tagType;
+
+  private byte quote;
+
+  private byte[] rawEnd;
+
+  private boolean finished;
+
+  HtmlTokenizingOutputStream(OutputStream out, PageTransformer[] transformers)
+  {
+    this.out = out;
+    this.transformers = transformers;
+    writers = new TokenWriter[transformers.length + 1];
+    for (int i = 0; i < writers.length; i++)
+    {
+      writers[i] = new TokenWriter(this, i);
+    }
+  }
+
+  @Override
+  public void write(int b) throws IOException
+  {
+    single[0] = (byte) b;
+    write(single, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException
+  {
+    int end = off + len;
+    int i = off;
+    while (i < end)
+    {
+      if (state == State.TEXT)
+      {
+        int start = i;
+        while (i < end && b[i] != '<')
+        {
+          ++i;
+        }
+
+        if (i > start)
+        {
+          emit(HtmlToken.Type.TEXT, b, start, i - start, false);
+        }
+
+        if (i < end)
+        {
+          append(b[i++]);
+          state = State.TAG_OPEN;
+        }
+      }
+      else
+      {
+        process(b[i++]);
+      }
+    }
+  }
+
+  @Override
+  public void flush() throws IOException
+  {
+    out.flush();
+  }
+
+  /*
+   * Writes out anything held back and lets the transformers finish the page. Called once the page is complete.
+   */
+  void finish() throws IOException
+  {
+    if (!finished)
+    {
+      finished = true;
+      if (pendingLength > 0)
+      {
+        emitPending(HtmlToken.Type.TEXT, state == State.RAW);
+      }
+      state = State.TEXT;
+
+      for (int i = 0; i < transformers.length; i++)
+      {
+        transformers[i].end(writers[i + 1]);
+      }
+      out.flush();
+    }
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    finish();
+    out.close();
+  }
+
+  void dispatch(HtmlToken token, int stage) throws IOException
+  {
+    if (stage == transformers.length)
+    {
+      out.write(token.bytes, token.offset, token.length);
+    }
+    else
+    {
+      transformers[stage].token(token, writers[stage + 1]);
+    }
+  }
+
+  private void process(byte b) throws IOException
+  {
+    switch (state)
+    {
+      case TAG_OPEN:
+        if (b == '!')
+        {
+          append(b);
+          state = State.MARKUP;
+        }
+        else if (b == '/' || b == '?' || Character.isLetter(b))
+        {
+          append(b);
+          tagType = b == '/' ? HtmlToken.Type.END_TAG : b == '?' ? HtmlToken.Type.OTHER : HtmlToken.Type.START_TAG;
+          quote = 0;
+          state = State.TAG;
+        }
+        else if (b == '<')
+        {
+          emitPending(HtmlToken.Type.TEXT, false);
+          append(b);
+        }
+        else
+        {
+          /*
+           * A < that doesn't start a tag is just text.
+           */
+          append(b);
+          emitPending(HtmlToken.Type.TEXT, false);
+          state = State.TEXT;
+        }
+        break;
+
+      case MARKUP:
+        append(b);
+        if (pendingLength == 4 && pending[2] == '-' && pending[3] == '-')
+        {
+          state = State.COMMENT;
+        }
+        else if (b == '>')
+        {
+          emitPending(HtmlToken.Type.OTHER, false);
+          state = State.TEXT;
+        }
+        break;
+
+      case COMMENT:
+        append(b);
+        if (b == '>' && pendingLength >= 7 && pending[pendingLength - 2] == '-' && pending[pendingLength - 3] == '-')
+        {
+          emitPending(HtmlToken.Type.COMMENT, false);
+          state = State.TEXT;
+        }
+        break;
+
+      case TAG:
+        append(b);
+        if (quote != 0)
+        {
+          if (b == quote)
+          {
+            quote = 0;
+          }
+        }
+        else if (b == '"' || b == '\'')
+        {
+          quote = b;
+        }
+        else if (b == '>')
+        {
+          token.set(tagType, pending, 0, pendingLength, false);
+          rawEnd = tagType == HtmlToken.Type.START_TAG && !token.isSelfClosing() ? rawEnd(token) : null;
+          pendingLength = 0;
+          dispatch(token, 0);
+          state = rawEnd == null ? State.TEXT : State.RAW;
+        }
+        break;
+
+      case RAW:
+        append(b);
+        if (b == '>' && endsWithRawEnd())
+        {
+          int textLength = pendingLength - rawEnd.length;
+          if (textLength > 0)
+          {
+            emit(HtmlToken.Type.TEXT, pending, 0, textLength, true);
+          }
+          emit(HtmlToken.Type.END_TAG, pending, textLength, rawEnd.length, false);
+          pendingLength = 0;
+          state = State.TEXT;
+        }
+        else if (pendingLength >= RAW_CHUNK_SIZE && pending[pendingLength - 1] != '<')
+        {
+          /*
+           * Don't buffer large scripts, hand them on in pieces (keeping back anything that might be the start of the end tag).
+           */
+          int keep = 0;
+          while (keep < rawEnd.length && pending[pendingLength - 1 - keep] != '<')
+          {
+            ++keep;
+          }
+          keep = keep < rawEnd.length ? keep + 1 : 0;
+          emit(HtmlToken.Type.TEXT, pending, 0, pendingLength - keep, true);
+          System.arraycopy(pending, pendingLength - keep, pending, 0, keep);
+          pendingLength = keep;
+        }
+        break;
+
+      default:
+        break;
+    }
+  }
+
+  private boolean endsWithRawEnd()
+  {
+    if (pendingLength < rawEnd.length)
+    {
+      return false;
+    }
+
+    int start = pendingLength - rawEnd.length;
+    for (int i = 0; i < rawEnd.length - 1; i++)
+    {
+      if (Character.toLowerCase((char) pending[start + i]) != rawEnd[i])
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void append(byte b)
+  {
+    if (pendingLength == pending.length)
+    {
+      byte[] grown = new byte[pending.length * 2];
+      System.arraycopy(pending, 0, grown, 0, pendingLength);
+      pending = grown;
+    }
+    pending[pendingLength++] = b;
+  }
+
+  private void emitPending(HtmlToken.Type type, boolean rawText) throws IOException
+  {
+    int length = pendingLength;
+    pendingLength = 0;
+    emit(type, pending, 0, length, rawText);
+  }
+
+  private void emit(HtmlToken.Type type, byte[] bytes, int offset, int length, boolean rawText) throws IOException
+  {
+    token.set(type, bytes, offset, length, rawText);
+    dispatch(token, 0);
+  }
+
+  static byte[] rawEnd(HtmlToken startTag)
+  {
+    if (startTag.isTag("script"))
+    {
+      return SCRIPT_END;
+    }
+    else if (startTag.isTag("style"))
+    {
+      return STYLE_END;
+    }
+    else if (startTag.isTag("textarea"))
+    {
+      return TEXTAREA_END;
+    }
+    else
+    {
+      return null;
+    }
+  }
+
+  enum State
+  {
+    TEXT,
+    TAG_OPEN,
+    MARKUP,
+    COMMENT,
+    TAG,
+    RAW
+  }
+
+  static final byte[] SCRIPT_END = "</script>".getBytes();
+
+  static final byte[] STYLE_END = "</style>".getBytes();
+
+  static final byte[] TEXTAREA_END = "</textarea>".getBytes();
+
+  static final int RAW_CHUNK_SIZE = 8 * 1024;
+}
@@ -15,14 +15,11 @@
  */
 package org.baswell.layouts;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 
 import jakarta.servlet.ServletOutputStream;
-import jakarta.servlet.WriteListener;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import jakarta.servlet.http.HttpServletResponseWrapper;
@@ -30,29 +27,113 @@ import jakarta.servlet.http.HttpServletResponseWrapper;
 import static org.baswell.layouts.Layouts.*;
 import static org.baswell.layouts.SharedMethods.*;
 
-class HttpBufferedResponse extends HttpServletResponseWrapper
+class HttpBufferedResponse extends HttpServletResponseWrapper implements ViewBuffer.OverflowHandler
 {
   private final HttpServletRequest request;
 
-  private ByteArrayOutputStream buffer;
+  private final BufferBudget budget;
+
+  private final DirectBufferArena arena;
+
+  private ViewBuffer buffer;
 
   private PrintWriter printWriter;
 
   private ServletOutputStream outputStream;
 
+  private StreamingComposition streamingComposition;
+
+  private StreamingViewOutputStream streamingStream;
+
   private boolean nonHtmlContent;
 
   private Integer contentLength;
 
+  /*
+   * The view is writing straight to the client (non-HTML content or over budget).
+   */
+  private boolean writingThrough;
+
+  private boolean detached;
+
+  /*
+   * The view is running on another thread (RENDER_DEADLINE), see startView.
+   */
+  private boolean viewRunning;
+
+  /*
+   * release was called while the view was still running, the view thread releases the buffer when it's done.
+   */
+  private boolean releaseWhenViewDone;
+
+  private boolean released;
+
   public HttpBufferedResponse(HttpServletRequest request, HttpServletResponse response)
+  {
+    this(request, response, null, null);
+  }
+
+  /*
+   * @param arena If not null the view is buffered off-heap.
+   */
+  HttpBufferedResponse(HttpServletRequest request, HttpServletResponse response, BufferBudget budget, DirectBufferArena arena)
   {
     super(response);
     this.request = request;
+    this.budget = budget;
+    this.arena = arena;
   }
 
   boolean hasBufferedContent()
   {
-    return buffer != null && buffer.size() > 0;
+    /*
+     * The writer holds on to small views until it's flushed.
+     */
+    if (printWriter != null && buffer != null)
+    {
+      printWriter.flush();
+    }
+
+    return buffer != null && buffer.size() > 0 && !buffer.overflowed();
+  }
+
+  /*
+   * Stream the view with its layout once the head of the view is written. Must be called before the view writes anything.
+   */
+  void streamAfterHead(StreamingComposition streamingComposition)
+  {
+    this.streamingComposition = streamingComposition;
+  }
+
+  /*
+   * @return true if the view was streamed with its layout and so nothing is left to render.
+   */
+  boolean finishStreaming() throws IOException
+  {
+    if (streamingStream == null)
+    {
+      return false;
+    }
+
+    if (printWriter != null)
+    {
+      printWriter.flush();
+    }
+
+    return streamingStream.finish();
+  }
+
+  int bufferedSize()
+  {
+    return (buffer == null) ? 0 : buffer.size();
+  }
+
+  /*
+   * @return The number of bytes the view wrote (buffered or streamed).
+   */
+  long viewSize()
+  {
+    return (streamingStream == null) ? bufferedSize() : streamingStream.written();
   }
 
   boolean isHtmlContent()
@@ -60,7 +141,7 @@ class HttpBufferedResponse extends HttpServletResponseWrapper
     return !nonHtmlContent;
   }
 
-  byte[] getContent()
+  ViewBuffer getContent()
   {
     if (buffer != null)
     {
@@ -69,7 +150,7 @@ class HttpBufferedResponse extends HttpServletResponseWrapper
         printWriter.flush();
       }
 
-      return buffer.toByteArray();
+      return buffer;
     }
     else
     {
@@ -79,7 +160,17 @@ class HttpBufferedResponse extends HttpServletResponseWrapper
 
   void pushContent() throws IOException
   {
-    if (buffer != null)
+    if (buffer != null && buffer.overflowed())
+    {
+      /*
+       * The view has been streaming to the client since the buffer went over budget.
+       */
+      if (printWriter != null)
+      {
+        printWriter.flush();
+      }
+    }
+    else if (buffer != null)
     {
       if (contentLength != null)
       {
@@ -94,8 +185,99 @@ class HttpBufferedResponse extends HttpServletResponseWrapper
         printWriter.flush();
       }
 
-      super.getOutputStream().write(getContent());
+      buffer.writeTo(super.getOutputStream());
+    }
+  }
+
+  /*
+   * Give the memory reserved by the buffer back to the budget. Called once the request is done with the content. If the view is
+   * still running on another thread (the request thread was interrupted waiting for it) the buffer is released once the view is
+   * done instead, its storage can't go back to the budget or arena while the view may still be writing to it.
+   */
+  synchronized void release()
+  {
+    if (viewRunning)
+    {
+      releaseWhenViewDone = true;
+    }
+    else if (!released)
+    {
+      released = true;
+      if (buffer != null)
+      {
+        buffer.release();
+      }
+    }
+  }
+
+  /*
+   * Called on the thread the view runs on before it starts.
+   *
+   * @return false if the request is already done with the buffer and the view shouldn't run.
+   */
+  synchronized boolean startView()
+  {
+    if (released || releaseWhenViewDone)
+    {
+      return false;
+    }
+    viewRunning = true;
+    return true;
+  }
+
+  /*
+   * Called on the thread the view runs on once it's done.
+   */
+  synchronized void viewDone()
+  {
+    viewRunning = false;
+    if (releaseWhenViewDone)
+    {
+      release();
+    }
+  }
+
+  /*
+   * Called when the view missed its render deadline and the page is sent without it. Nothing the view writes from then on goes to
+   * the client.
+   *
+   * @return false if it's too late, the view is already writing straight to the client.
+   */
+  synchronized boolean detach()
+  {
+    if (writingThrough)
+    {
+      return false;
+    }
+    detached = true;
+    return true;
+  }
+
+  @Override
+  public synchronized OutputStream overflow(ViewBuffer content) throws IOException
+  {
+    if (detached)
+    {
+      return OutputStream.nullOutputStream();
+    }
+    writingThrough = true;
+
+    /*
+     * Out of budget (or off-heap memory). Push what has been buffered so far and stream the rest of the view straight through without a layout.
+     */
+    if (budget != null)
+    {
+      budget.passedThrough();
+    }
+
+    if (contentLength != null)
+    {
+      super.setContentLength(contentLength);
     }
+
+    OutputStream outputStream = super.getOutputStream();
+    content.writeTo(outputStream);
+    return outputStream;
   }
 
   @Override
@@ -115,21 +297,18 @@ class HttpBufferedResponse extends HttpServletResponseWrapper
   }
 
   @Override
-  public PrintWriter getWriter() throws IOException
+  public synchronized PrintWriter getWriter() throws IOException
   {
     if (printWriter == null)
     {
       if (inNonBufferState())
       {
-        printWriter = super.getWriter();
+        printWriter = detached ? new PrintWriter(OutputStream.nullOutputStream()) : super.getWriter();
+        writingThrough = !detached;
       }
       else
       {
-        if (buffer == null)
-        {
-          buffer = new ByteArrayOutputStream();
-        }
-        printWriter = new PrintWriter(new OutputStreamWriter(buffer));
+        printWriter = new LayoutsPrintWriter(viewStream());
       }
     }
     
@@ -137,61 +316,54 @@ class HttpBufferedResponse extends HttpServletResponseWrapper
   }
   
   @Override
-  public ServletOutputStream getOutputStream() throws IOException
+  public synchronized ServletOutputStream getOutputStream() throws IOException
   {
     if (outputStream == null)
     {
       if (inNonBufferState())
       {
-        outputStream = super.getOutputStream();
+        outputStream = detached ? new LayoutsOutputStream(OutputStream.nullOutputStream()) : super.getOutputStream();
+        writingThrough = !detached;
       }
       else
       {
-        buffer = new ByteArrayOutputStream();
-        outputStream = new LayoutsOutputStream(buffer);
+        outputStream = new LayoutsOutputStream(viewStream());
       }
     }
     return outputStream;
   }
 
-  private boolean inNonBufferState()
+  /*
+   * Where the view content is written, the writer and output stream share it.
+   */
+  private OutputStream viewStream()
   {
-    return nonHtmlContent || trueValue(request.getAttribute(NO_LAYOUT));
-  }
-
-  private static class LayoutsOutputStream extends ServletOutputStream
-  {
-    private OutputStream outStream;
-    
-    public LayoutsOutputStream(OutputStream outStream)
-    {
-      this.outStream = outStream;
-    }
-
-    @Override
-    public void write(int b) throws IOException
+    if (buffer == null)
     {
-      outStream.write(b);
+      buffer = newBuffer();
     }
 
-    @Override
-    public void write(byte[] buffer) throws IOException
+    if (streamingComposition == null)
     {
-      outStream.write(buffer);
+      return buffer;
     }
-
-    @Override
-    public void write(byte[] buffer, int offset, int length) throws IOException
+    else
     {
-      outStream.write(buffer, offset, length);
+      if (streamingStream == null)
+      {
+        streamingStream = new StreamingViewOutputStream(buffer, streamingComposition, this);
+      }
+      return streamingStream;
     }
+  }
 
-    @Override
-    public boolean isReady() {
-      return true;
-    }
+  private ViewBuffer newBuffer()
+  {
+    return (arena == null) ? new HeapViewBuffer(budget, this) : new DirectViewBuffer(arena, budget, this);
+  }
 
-    @Override
-    public void setWriteListener(WriteListener writeListener) {}
+  private boolean inNonBufferState()
+  {
+    return nonHtmlContent || trueValue(request.getAttribute(NO_LAYOUT));
   }
 }
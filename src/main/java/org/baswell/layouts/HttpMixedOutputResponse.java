@@ -15,16 +15,19 @@
  */
 package org.baswell.layouts;
 
+import jakarta.servlet.ServletOutputStream;
 import jakarta.servlet.http.HttpServletResponse;
 import jakarta.servlet.http.HttpServletResponseWrapper;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 
 /*
  * A HttpServletResponse that backs the PrintWriter with the ServletOutputStream. This allows the binary content of the view to be written to the output stream
  * and the JSP content of the layout to be written to the PrintWriter.
+ *
+ * Both the PrintWriter and the ServletOutputStream of this response write to the given composition stream so everything that makes up the composed page
+ * passes through one place on the way to the client.
  */
 class HttpMixedOutputResponse extends HttpServletResponseWrapper
 {
@@ -32,10 +35,17 @@ class HttpMixedOutputResponse extends HttpServletResponseWrapper
 
   private PrintWriter printWriter;
 
+  private ServletOutputStream servletOutputStream;
+
   HttpMixedOutputResponse(HttpServletResponse response) throws IOException
+  {
+    this(response, response.getOutputStream());
+  }
+
+  HttpMixedOutputResponse(HttpServletResponse response, OutputStream compositionStream)
   {
     super(response);
-    outputStream = response.getOutputStream();
+    outputStream = compositionStream;
   }
 
   @Override
@@ -43,9 +53,31 @@ class HttpMixedOutputResponse extends HttpServletResponseWrapper
   {
     if (printWriter == null)
     {
-      printWriter = new PrintWriter(new OutputStreamWriter(outputStream));
+      printWriter = new LayoutsPrintWriter(outputStream);
     }
 
     return printWriter;
   }
+
+  @Override
+  public ServletOutputStream getOutputStream()
+  {
+    if (servletOutputStream == null)
+    {
+      servletOutputStream = new LayoutsOutputStream(outputStream);
+    }
+
+    return servletOutputStream;
+  }
+
+  /*
+   * Pushes anything the layout left in the PrintWriter through to the composition stream.
+   */
+  void flushWriter()
+  {
+    if (printWriter != null)
+    {
+      printWriter.flush();
+    }
+  }
 }
@@ -15,12 +15,24 @@
  */
 package org.baswell.layouts;
 
+import java.util.Set;
+
 class Layout
 {
   final String name;
 
   final String jspPath;
 
+  /*
+   * The value of the Link header that preloads the stylesheets, scripts and fonts of this layout (null if there are none).
+   */
+  String preloadLinkHeader;
+
+  /*
+   * The stylesheet, script and font URLs written by this layout.
+   */
+  Set<String> assetUrls;
+
   Layout(String name, String jspPath)
   {
     this.name = name;
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.layouts;
+
+import jakarta.servlet.ServletContext;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+ * Pulls the stylesheet, script and font references out of the JSP source of a layout so they can be sent to the client
+ * (as Link preload headers or a 103 Early Hints response) before the view has been rendered.
+ */
+class LayoutAssets
+{
+  static final String STYLE = "style";
+
+  static final String SCRIPT = "script";
+
+  static final String FONT = "font";
+
+  /*
+   * Returns the asset URLs referenced by the layout (and any statically included files) mapped to the preload
+   * destination (style, script or font) of the asset. URLs that are built dynamically are skipped.
+   */
+  static Map<String, String> findAssets(ServletContext servletContext, String jspPath) throws IOException
+  {
+    Map<String, String> assets = new LinkedHashMap<String, String>();
+    findAssets(servletContext, jspPath, servletContext.getContextPath(), assets, 0);
+    return assets;
+  }
+
+  static Map<String, String> findAssets(String jspSource, String contextPath)
+  {
+    Map<String, String> assets = new LinkedHashMap<String, String>();
+    String source = replaceContextPathExpressions(jspSource, contextPath);
+
+    Matcher tagMatcher = ASSET_TAG.matcher(source);
+    while (tagMatcher.find())
+    {
+      String tagName = tagMatcher.group(1).toLowerCase();
+      Map<String, String> attributes = parseAttributes(tagMatcher.group(2));
+
+      if (tagName.equals("script"))
+      {
+        addAsset(assets, attributes.get("src"), SCRIPT);
+      }
+      else
+      {
+        String rel = attributes.get("rel");
+        String href = attributes.get("href");
+        if (rel != null && href != null)
+        {
+          rel = rel.toLowerCase();
+          if (rel.contains("stylesheet"))
+          {
+            addAsset(assets, href, STYLE);
+          }
+          else if (rel.contains("preload") && FONT.equalsIgnoreCase(attributes.get("as")))
+          {
+            addAsset(assets, href, FONT);
+          }
+          else if (isFontFile(href))
+          {
+            addAsset(assets, href, FONT);
+          }
+        }
+      }
+    }
+
+    return assets;
+  }
+
+  /*
+   * Builds the value of a single Link header that preloads all of the given assets. Relative URLs are left out, the client
+   * resolves them against the URL of each page (not the layout) so they can't be known ahead of time.
+   */
+  static String toPreloadLinkHeader(Map<String, String> assets)
+  {
+    StringBuilder header = new StringBuilder();
+    for (Map.Entry<String, String> asset : assets.entrySet())
+    {
+      if (!isAbsolute(asset.getKey()))
+      {
+        continue;
+      }
+
+      if (header.length() > 0)
+      {
+        header.append(", ");
+      }
+
+      header.append('<').append(asset.getKey()).append(">; rel=preload; as=").append(asset.getValue());
+      if (FONT.equals(asset.getValue()))
+      {
+        header.append("; crossorigin");
+      }
+    }
+
+    return (header.length() == 0) ? null : header.toString();
+  }
+
+  /*
+   * Containers that support 103 Early Hints (Tomcat 10.1.14+, Jetty 10+) send the headers set so far as an interim response
+   * when sendError(103) is called. Any other container sends an error response.
+   */
+  static boolean supportsEarlyHints(String serverInfo)
+  {
+    Matcher versionMatcher = SERVER_VERSION.matcher((serverInfo == null) ? "" : serverInfo);
+    if (!versionMatcher.find())
+    {
+      return false;
+    }
+
+    int major = Integer.parseInt(versionMatcher.group(2));
+    int minor = (versionMatcher.group(3) == null) ? 0 : Integer.parseInt(versionMatcher.group(3));
+    int patch = (versionMatcher.group(4) == null) ? 0 : Integer.parseInt(versionMatcher.group(4));
+    if (versionMatcher.group(1).equalsIgnoreCase("jetty"))
+    {
+      return major >= 10;
+    }
+    else
+    {
+      return major > 10 || (major == 10 && (minor > 1 || (minor == 1 && patch >= 14)));
+    }
+  }
+
+  static boolean isAbsolute(String url)
+  {
+    return url.startsWith("/") || URL_SCHEME.matcher(url).lookingAt();
+  }
+
+  static Map<String, String> parseAttributes(String attributesContent)
+  {
+    Map<String, String> attributes = new LinkedHashMap<String, String>();
+    Matcher attributeMatcher = ATTRIBUTE.matcher(attributesContent);
+    while (attributeMatcher.find())
+    {
+      String value = attributeMatcher.group(3);
+      if (value == null) value = attributeMatcher.group(4);
+      if (value == null) value = attributeMatcher.group(5);
+      attributes.put(attributeMatcher.group(1).toLowerCase(), value);
+    }
+    return attributes;
+  }
+
+  static String replaceContextPathExpressions(String jspSource, String contextPath)
+  {
+    return CONTEXT_PATH_EXPRESSION.matcher(jspSource).replaceAll(Matcher.quoteReplacement(contextPath));
+  }
+
+  static boolean isFontFile(String url)
+  {
+    String path = url.toLowerCase();
+    int queryIndex = path.indexOf('?');
+    if (queryIndex > -1)
+    {
+      path = path.substring(0, queryIndex);
+    }
+    return path.endsWith(".woff2") || path.endsWith(".woff") || path.endsWith(".ttf") || path.endsWith(".otf");
+  }
+
+  private static void addAsset(Map<String, String> assets, String url, String destination)
+  {
+    if (url != null)
+    {
+      url = url.trim();
+      if (!url.isEmpty() && !url.contains("<%") && !url.contains("${") && !url.contains("#{") && !url.startsWith("data:") && !assets.containsKey(url))
+      {
+        assets.put(url, destination);
+      }
+    }
+  }
+
+  private static void findAssets(ServletContext servletContext, String jspPath, String contextPath, Map<String, String> assets, int depth) throws IOException
+  {
+    String source = readResource(servletContext, jspPath);
+    if (source != null)
+    {
+      for (Map.Entry<String, String> asset : findAssets(source, contextPath).entrySet())
+      {
+        if (!assets.containsKey(asset.getKey()))
+        {
+          assets.put(asset.getKey(), asset.getValue());
+        }
+      }
+
+      if (depth < MAX_INCLUDE_DEPTH)
+      {
+        Matcher includeMatcher = STATIC_INCLUDE.matcher(source);
+        while (includeMatcher.find())
+        {
+          String includePath = includeMatcher.group(1).trim();
+          if (!includePath.startsWith("/"))
+          {
+            includePath = jspPath.substring(0, jspPath.lastIndexOf('/') + 1) + includePath;
+          }
+          findAssets(servletContext, includePath, contextPath, assets, depth + 1);
+        }
+      }
+    }
+  }
+
+  static String readResource(ServletContext servletContext, String path) throws IOException
+  {
+    InputStream inputStream = servletContext.getResourceAsStream(path);
+    if (inputStream == null)
+    {
+      return null;
+    }
+
+    try
+    {
+      ByteArrayOutputStream content = new ByteArrayOutputStream();
+      byte[] buffer = new byte[4096];
+      int read;
+      while ((read = inputStream.read(buffer)) != -1)
+      {
+        content.write(buffer, 0, read);
+      }
+
+      /*
+       * Only the ASCII markup matters here so ISO-8859-1 is used to decode the source without ever failing.
+       */
+      return new String(content.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+    finally
+    {
+      inputStream.close();
+    }
+  }
+
+  static final int MAX_INCLUDE_DEPTH = 4;
+
+  static final Pattern CONTEXT_PATH_EXPRESSION = Pattern.compile("<%=\\s*request\\.getContextPath\\(\\)\\s*%>|\\$\\{\\s*pageContext\\.request\\.contextPath\\s*\\}|\\$\\{\\s*pageContext\\.servletContext\\.contextPath\\s*\\}");
+
+  static final Pattern ASSET_TAG = Pattern.compile("<(link|script)\\b([^>]*)>", Pattern.CASE_INSENSITIVE);
+
+  static final Pattern ATTRIBUTE = Pattern.compile("([a-zA-Z_:][-a-zA-Z0-9_:.]*)\\s*=\\s*(\"([^\"]*)\"|'([^']*)'|([^\\s\"'>]+))");
+
+  static final Pattern URL_SCHEME = Pattern.compile("[a-zA-Z][a-zA-Z0-9+.-]*:");
+
+  static final Pattern SERVER_VERSION = Pattern.compile("(Apache Tomcat|jetty)/(\\d+)(?:\\.(\\d+))?(?:\\.(\\d+))?", Pattern.CASE_INSENSITIVE);
+
+  static final Pattern STATIC_INCLUDE = Pattern.compile("(?:<%@\\s*include|<jsp:directive\\.include)\\s+file\\s*=\\s*[\"']([^\"']+)[\"']");
+}
@@ -0,0 +1,552 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.layouts;
+
+import jakarta.servlet.ServletContext;
+import jakarta.servlet.ServletResponse;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.jsp.PageContext;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/*
+ * Caches the output of layouts so the layout JSP doesn't have to run on every request. The first time a layout is rendered for a
+ * vary key (the layout name and the values of its declared request attributes or headers) the bytes the layout writes between
+ * yields are recorded. Later requests with the same key replay these bytes with the sections of their own view yielded in between.
+ *
+ * A layout that calls View.contains while it's being recorded depends on the content of the view so it's never cached for that key.
+ * The least recently used entries are evicted once there are more than maxEntries. Entries expire ttlMillis after they're recorded
+ * (if not 0).
+ *
+ * With a cache file entries are also written to disk and entries not in memory are looked for there, so recorded layouts survive
+ * restarts. The keys then include a checksum of the layout JSP so entries recorded by a different version of a layout are never
+ * used.
+ */
+class LayoutCache implements LayoutCacheMXBean
+{
+  /*
+   * Layout name to the request attributes (or headers, prefixed with header:) the output of the layout varies by. Layouts not in
+   * here aren't cached.
+   */
+  private final Map<String, String[]> varyBy;
+
+  private final int maxEntries;
+
+  private final long ttlMillis;
+
+  /*
+   * Null if entries are only kept in memory.
+   */
+  private final LayoutCacheFile cacheFile;
+
+  private final ServletContext servletContext;
+
+  /*
+   * Layout JSP path to the checksum of its source, only used with a cache file.
+   */
+  private final Map<String, Long> layoutChecksums = new ConcurrentHashMap<String, Long>();
+
+  private final LinkedHashMap<String, Entry> entries;
+
+  private final AtomicLong hitCount = new AtomicLong();
+
+  private final AtomicLong missCount = new AtomicLong();
+
+  private final AtomicLong evictionCount = new AtomicLong();
+
+  private final AtomicLong uncacheableCount = new AtomicLong();
+
+  private final AtomicLong fileHitCount = new AtomicLong();
+
+  LayoutCache(Map<String, String[]> varyBy, int maxEntries)
+  {
+    this(varyBy, maxEntries, 0, null, null);
+  }
+
+  /*
+   * @param ttlMillis 0 if entries don't expire.
+   * @param cacheFile Null if entries are only kept in memory.
+   */
+  LayoutCache(Map<String, String[]> varyBy, final int maxEntries, long ttlMillis, LayoutCacheFile cacheFile, ServletContext servletContext)
+  {
+    this.varyBy = varyBy;
+    this.maxEntries = maxEntries;
+    this.ttlMillis = ttlMillis;
+    this.cacheFile = cacheFile;
+    this.servletContext = servletContext;
+    entries = new LinkedHashMap<String, Entry>(16, 0.75f, true)
+    {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest)
+      {
+        if (size() > maxEntries)
+        {
+          evictionCount.incrementAndGet();
+          return true;
+        }
+        else
+        {
+          return false;
+        }
+      }
+    };
+  }
+
+  /*
+   * Parses the LAYOUT_CACHE init parameter: a comma delimited list of layout names each optionally followed by = and a | delimited
+   * list of request attributes (or header:name) the layout output varies by. For example: application=locale|role,admin
+   */
+  static Map<String, String[]> parseVaryBy(String value)
+  {
+    Map<String, String[]> varyBy = new HashMap<String, String[]>();
+    for (String layout : value.split(","))
+    {
+      layout = layout.trim();
+      if (!layout.isEmpty())
+      {
+        int index = layout.indexOf('=');
+        if (index < 0)
+        {
+          varyBy.put(layout, new String[0]);
+        }
+        else
+        {
+          List<String> names = new ArrayList<String>();
+          for (String name : layout.substring(index + 1).split("\\|"))
+          {
+            if (!name.trim().isEmpty())
+            {
+              names.add(name.trim());
+            }
+          }
+          varyBy.put(layout.substring(0, index).trim(), names.toArray(new String[names.size()]));
+        }
+      }
+    }
+    return varyBy;
+  }
+
+  /*
+   * @return null if the layout isn't cached.
+   */
+  String key(Layout layout, HttpServletRequest request)
+  {
+    String[] names = varyBy.get(layout.name);
+    if (names == null)
+    {
+      return null;
+    }
+
+    StringBuilder key = new StringBuilder(layout.name);
+    if (cacheFile != null)
+    {
+      key.append('@').append(layoutChecksum(layout));
+    }
+    for (String name : names)
+    {
+      key.append('\u0000');
+      key.append(name.startsWith(HEADER_PREFIX) ? request.getHeader(name.substring(HEADER_PREFIX.length())) : request.getAttribute(name));
+    }
+    return key.toString();
+  }
+
+  Entry get(String key)
+  {
+    long now = System.currentTimeMillis();
+    Entry entry;
+    synchronized (entries)
+    {
+      entry = entries.get(key);
+      if (entry != null && entry.expired(now))
+      {
+        entries.remove(key);
+        entry = null;
+      }
+    }
+
+    if (entry == null && cacheFile != null)
+    {
+      entry = cacheFile.get(key, now);
+      if (entry != null)
+      {
+        fileHitCount.incrementAndGet();
+        synchronized (entries)
+        {
+          entries.put(key, entry);
+        }
+      }
+    }
+
+    if (entry != null && entry != UNCACHEABLE)
+    {
+      hitCount.incrementAndGet();
+    }
+    return entry;
+  }
+
+  void put(String key, Entry entry)
+  {
+    missCount.incrementAndGet();
+    if (entry == UNCACHEABLE)
+    {
+      uncacheableCount.incrementAndGet();
+    }
+    else if (ttlMillis > 0)
+    {
+      entry = new Entry(entry.segments, entry.yields, entry.contentType, System.currentTimeMillis() + ttlMillis);
+    }
+
+    synchronized (entries)
+    {
+      entries.put(key, entry);
+    }
+
+    if (cacheFile != null && entry != UNCACHEABLE)
+    {
+      cacheFile.put(key, entry);
+    }
+  }
+
+  void close()
+  {
+    if (cacheFile != null)
+    {
+      cacheFile.close();
+    }
+  }
+
+  @Override
+  public void invalidate()
+  {
+    synchronized (entries)
+    {
+      entries.clear();
+    }
+
+    if (cacheFile != null)
+    {
+      cacheFile.clear();
+      layoutChecksums.clear();
+    }
+  }
+
+  @Override
+  public int getMaxEntries()
+  {
+    return maxEntries;
+  }
+
+  @Override
+  public int getEntries()
+  {
+    synchronized (entries)
+    {
+      return entries.size();
+    }
+  }
+
+  @Override
+  public long getHitCount()
+  {
+    return hitCount.get();
+  }
+
+  @Override
+  public long getMissCount()
+  {
+    return missCount.get();
+  }
+
+  @Override
+  public long getEvictionCount()
+  {
+    return evictionCount.get();
+  }
+
+  @Override
+  public long getUncacheableCount()
+  {
+    return uncacheableCount.get();
+  }
+
+  @Override
+  public int getFileEntries()
+  {
+    return (cacheFile == null) ? 0 : cacheFile.entries();
+  }
+
+  @Override
+  public int getFileBytes()
+  {
+    return (cacheFile == null) ? 0 : cacheFile.bytes();
+  }
+
+  @Override
+  public long getFileHitCount()
+  {
+    return fileHitCount.get();
+  }
+
+  @Override
+  public long getFileCompactionCount()
+  {
+    return (cacheFile == null) ? 0 : cacheFile.compactionCount();
+  }
+
+  @Override
+  public long getFileDroppedCount()
+  {
+    return (cacheFile == null) ? 0 : cacheFile.droppedCount();
+  }
+
+  /*
+   * The CRC32 of the source of the layout JSP (0 if it can't be read).
+   */
+  long layoutChecksum(Layout layout)
+  {
+    Long checksum = layoutChecksums.get(layout.jspPath);
+    if (checksum == null)
+    {
+      CRC32 crc = new CRC32();
+      InputStream source = servletContext.getResourceAsStream(layout.jspPath);
+      if (source != null)
+      {
+        try
+        {
+          try
+          {
+            byte[] bytes = new byte[8192];
+            int read;
+            while ((read = source.read(bytes)) > 0)
+            {
+              crc.update(bytes, 0, read);
+            }
+          }
+          finally
+          {
+            source.close();
+          }
+        }
+        catch (IOException e)
+        {
+          crc.reset();
+        }
+      }
+      checksum = crc.getValue();
+      layoutChecksums.put(layout.jspPath, checksum);
+    }
+    return checksum;
+  }
+
+  /*
+   * The recorded output of a layout. The layout wrote segments[i] then yielded yields[i] (a tag name or null for the entire view)
+   * and so on, ending with the last segment.
+   */
+  static class Entry
+  {
+    final byte[][] segments;
+
+    final String[] yields;
+
+    final String contentType;
+
+    /*
+     * When this entry expires in milliseconds since the epoch, 0 if never.
+     */
+    final long expires;
+
+    /*
+     * CRC32 of the layout output, -1 until it's first asked for.
+     */
+    private volatile long checksum = -1;
+
+    Entry(byte[][] segments, String[] yields, String contentType, long expires)
+    {
+      this.segments = segments;
+      this.yields = yields;
+      this.contentType = contentType;
+      this.expires = expires;
+    }
+
+    boolean expired(long now)
+    {
+      return expires != 0 && expires <= now;
+    }
+
+    void replay(View view, OutputStream out) throws IOException
+    {
+      for (int i = 0; i < yields.length; i++)
+      {
+        out.write(segments[i]);
+        if (yields[i] == null)
+        {
+          view.yield(NO_FLUSH);
+        }
+        else
+        {
+          view.yield(yields[i], NO_FLUSH);
+        }
+      }
+      out.write(segments[yields.length]);
+    }
+
+    long checksum()
+    {
+      if (checksum < 0)
+      {
+        CRC32 crc = new CRC32();
+        for (int i = 0; i < segments.length; i++)
+        {
+          crc.update(segments[i]);
+          if (i < yields.length && yields[i] != null)
+          {
+            crc.update(yields[i].getBytes());
+          }
+        }
+        checksum = crc.getValue();
+      }
+      return checksum;
+    }
+  }
+
+  /*
+   * The view given to a layout that is being recorded. The layout output is written to content, where each yield starts and ends
+   * is recorded.
+   */
+  static class Recorder extends View
+  {
+    private final ViewBuffer layoutOutput;
+
+    private final List<String> yields = new ArrayList<String>();
+
+    private final List<int[]> yieldRanges = new ArrayList<int[]>();
+
+    private boolean containsCalled;
+
+    Recorder(ViewBuffer content, ServletResponse layoutResponse, ViewBuffer layoutOutput)
+    {
+      super(content, layoutResponse);
+      this.layoutOutput = layoutOutput;
+    }
+
+    @Override
+    void yield(Flushable layoutOut) throws IOException
+    {
+      layoutOut.flush();
+      int start = layoutOutput.size();
+      super.yield(layoutOut);
+      recordYield(null, start);
+    }
+
+    @Override
+    void yield(String tagName, Flushable layoutOut) throws IOException
+    {
+      layoutOut.flush();
+      int start = layoutOutput.size();
+      super.yield(tagName, layoutOut);
+      recordYield(tagName, start);
+    }
+
+    @Override
+    public boolean contains(String tagName, PageContext pageContext) throws IOException
+    {
+      containsCalled = true;
+      return super.contains(tagName, pageContext);
+    }
+
+    /*
+     * Called after the layout has been rendered. A layout that wrote the CSP nonce of the page can't be replayed for another page.
+     */
+    Entry record(String contentType, String nonce)
+    {
+      if (containsCalled)
+      {
+        return UNCACHEABLE;
+      }
+
+      byte[][] segments = new byte[yields.size() + 1][];
+      int segmentStart = 0;
+      for (int i = 0; i < yields.size(); i++)
+      {
+        int[] yieldRange = yieldRanges.get(i);
+        segments[i] = layoutOutput.toByteArray(segmentStart, yieldRange[0] - segmentStart);
+        segmentStart = yieldRange[1];
+      }
+      segments[yields.size()] = layoutOutput.toByteArray(segmentStart, layoutOutput.size() - segmentStart);
+
+      if (nonce != null)
+      {
+        byte[] nonceBytes = nonce.getBytes();
+        for (byte[] segment : segments)
+        {
+          if (contains(segment, nonceBytes))
+          {
+            return UNCACHEABLE;
+          }
+        }
+      }
+
+      return new Entry(segments, yields.toArray(new String[yields.size()]), contentType, 0);
+    }
+
+    private static boolean contains(byte[] bytes, byte[] find)
+    {
+      for (int i = 0; i <= bytes.length - find.length; i++)
+      {
+        int j = 0;
+        while (j < find.length && bytes[i + j] == find[j])
+        {
+          ++j;
+        }
+        if (j == find.length)
+        {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private void recordYield(String tagName, int start)
+    {
+      yields.add(tagName);
+      yieldRanges.add(new int[]{start, layoutOutput.size()});
+    }
+  }
+
+  /*
+   * Marks a key whose layout can't be cached.
+   */
+  static final Entry UNCACHEABLE = new Entry(new byte[0][], new String[0], null, 0);
+
+  static final Flushable NO_FLUSH = new Flushable()
+  {
+    @Override
+    public void flush()
+    {}
+  };
+
+  static final String HEADER_PREFIX = "header:";
+}
@@ -0,0 +1,525 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.layouts;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+
+/*
+ * The on-disk tier of the layout cache (LAYOUT_CACHE_FILE) so recorded layouts survive restarts. Entries are appended to a
+ * memory-mapped file as records:
+ *
+ *   magic (int) | payload length (int) | CRC32 of payload (int) | payload
+ *
+ * and the last record is followed by a zero int. When the file is opened it's scanned from the start until the zero int (or a
+ * record that's cut short or fails its checksum, which is where a crash mid-append leaves off). The last record for each key
+ * wins. Nothing is ever overwritten in place except by compaction, which slides the live records down over the dead ones (older
+ * records for the same key and expired records) in file order. Compaction runs on a background thread once the file fills up with
+dead or expired records.
+ */
+class LayoutCacheFile
+{
+  private final int capacity;
+
+  private final RandomAccessFile randomAccessFile;
+
+  private final MappedByteBuffer mapped;
+
+  /*
+   * Key to the offset of its record.
+   */
+  private final Map<String, Integer> index = new HashMap<String, Integer>();
+
+  private final ExecutorService compactor;
+
+  private int writePosition;
+
+  private long deadBytes;
+
+  private boolean compactionScheduled;
+
+  private long compactionCount;
+
+  private long droppedCount;
+
+  private boolean closed;
+
+  /*
+   * Earliest expiration of the records written (0 if none of them expire).
+   */
+  private long earliestExpires;
+
+  /*
+   * Bumped by clear() so a compaction running at the same time gives up.
+   */
+  private long generation;
+
+  LayoutCacheFile(File file, int capacity) throws IOException
+  {
+    this.capacity = capacity;
+
+    File parent = file.getAbsoluteFile().getParentFile();
+    if (parent != null && !parent.isDirectory() && !parent.mkdirs())
+    {
+      throw new IOException("Unable to create directory: " + parent);
+    }
+
+    randomAccessFile = new RandomAccessFile(file, "rw");
+    try
+    {
+      mapped = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+    catch (IOException e)
+    {
+      randomAccessFile.close();
+      throw e;
+    }
+
+    compactor = Executors.newSingleThreadExecutor(new ThreadFactory()
+    {
+      @Override
+      public Thread newThread(Runnable runnable)
+      {
+        Thread thread = new Thread(runnable, "LayoutCacheFile compactor");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+    scan(System.currentTimeMillis());
+  }
+
+  /*
+   * @return null if there's no record for the key or it has expired.
+   */
+  synchronized LayoutCache.Entry get(String key, long now)
+  {
+    if (closed)
+    {
+      return null;
+    }
+
+    Integer offset = index.get(key);
+    if (offset == null)
+    {
+      return null;
+    }
+
+    LayoutCache.Entry entry = decode(offset, true);
+    if (entry == null || entry.expired(now))
+    {
+      index.remove(key);
+      deadBytes += recordSize(offset);
+      return null;
+    }
+    return entry;
+  }
+
+  synchronized void put(String key, LayoutCache.Entry entry)
+  {
+    if (closed)
+    {
+      return;
+    }
+
+    byte[] payload = encode(key, entry);
+    int recordSize = HEADER_SIZE + payload.length;
+    if (writePosition + recordSize + TERMINATOR_SIZE > capacity)
+    {
+      /*
+       * Records that expired without being read again aren't counted as dead, so they're a reason to compact too.
+       */
+      boolean expiredRecords = earliestExpires != 0 && earliestExpires <= System.currentTimeMillis();
+      if ((deadBytes > 0 || expiredRecords) && !compactionScheduled)
+      {
+        compactionScheduled = true;
+        compactor.execute(new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            compact(System.currentTimeMillis());
+          }
+        });
+      }
+      ++droppedCount;
+      return;
+    }
+
+    int offset = writePosition;
+
+    /*
+     * The new terminator goes down first and the magic of the record last, so until the record is complete the scan still stops
+     * where it did before.
+     */
+    mapped.putInt(offset + recordSize, 0);
+    mapped.putInt(offset + 4, payload.length);
+    mapped.putInt(offset + 8, checksum(payload, 0, payload.length));
+    mapped.position(offset + HEADER_SIZE);
+    mapped.put(payload);
+    mapped.putInt(offset, MAGIC);
+    writePosition += recordSize;
+    earliestExpires = earliest(earliestExpires, entry.expires);
+
+    Integer previous = index.put(key, offset);
+    if (previous != null)
+    {
+      deadBytes += recordSize(previous);
+    }
+  }
+
+  synchronized void clear()
+  {
+    if (closed)
+    {
+      return;
+    }
+
+    mapped.putInt(0, 0);
+    writePosition = 0;
+    deadBytes = 0;
+    earliestExpires = 0;
+    index.clear();
+    ++generation;
+  }
+
+  synchronized int entries()
+  {
+    return index.size();
+  }
+
+  synchronized int bytes()
+  {
+    return writePosition;
+  }
+
+  synchronized long compactionCount()
+  {
+    return compactionCount;
+  }
+
+  synchronized long droppedCount()
+  {
+    return droppedCount;
+  }
+
+  void close()
+  {
+    /*
+     * Once closed nothing touches the file again, a compaction still queued or a put from a request still in flight would be
+     * rewriting the file under whoever opens it next.
+     */
+    synchronized (this)
+    {
+      if (closed)
+      {
+        return;
+      }
+      closed = true;
+    }
+    compactor.shutdownNow();
+    synchronized (this)
+    {
+      mapped.force();
+      try
+      {
+        randomAccessFile.close();
+      }
+      catch (IOException e)
+      {}
+    }
+  }
+
+  /*
+   * Slide the live records down over the dead ones (older records for the same key and expired records). Records only ever move
+   * toward the start of the file and stay in order, so a crash part way through leaves records the scan either reads correctly or
+   * stops at.
+   *
+   * The lock is only held to move one record at a time so gets and puts carry on while the file is compacted. Everything before
+   * source has already been moved down (or dropped) and the index points at the moved copies, so a get never sees a record
+   * that's half moved. Puts keep appending at writePosition and the pass just runs until it catches up with them.
+   */
+  void compact(long now)
+  {
+    long startGeneration;
+    synchronized (this)
+    {
+      compactionScheduled = false;
+      if (closed)
+      {
+        return;
+      }
+      startGeneration = generation;
+    }
+
+    int source = 0;
+    int destination = 0;
+    long earliestKept = 0;
+    byte[] record = new byte[0];
+    while (true)
+    {
+      synchronized (this)
+      {
+        if (closed || generation != startGeneration)
+        {
+          return;
+        }
+
+        if (source >= writePosition)
+        {
+          mapped.putInt(destination, 0);
+          mapped.force();
+          writePosition = destination;
+          earliestExpires = earliestKept;
+          ++compactionCount;
+          return;
+        }
+
+        int recordSize = recordSize(source);
+        if (record.length < recordSize)
+        {
+          record = new byte[recordSize];
+        }
+        mapped.position(source);
+        mapped.get(record, 0, recordSize);
+
+        ByteBuffer payload = ByteBuffer.wrap(record, HEADER_SIZE, recordSize - HEADER_SIZE);
+        String key = readString(payload);
+        long expires = payload.getLong();
+
+        Integer offset = index.get(key);
+        if (offset == null || offset != source)
+        {
+          /*
+           * Counted as dead when it was replaced (or found expired by a get).
+           */
+          deadBytes = Math.max(0, deadBytes - recordSize);
+        }
+        else if (expires != 0 && expires <= now)
+        {
+          index.remove(key);
+        }
+        else
+        {
+          if (source != destination)
+          {
+            mapped.position(destination);
+            mapped.put(record, 0, recordSize);
+            index.put(key, destination);
+          }
+          destination += recordSize;
+          earliestKept = earliest(earliestKept, expires);
+        }
+        source += recordSize;
+      }
+    }
+  }
+
+  private void scan(long now)
+  {
+    int offset = 0;
+    while (offset + HEADER_SIZE + TERMINATOR_SIZE <= capacity && mapped.getInt(offset) == MAGIC)
+    {
+      int payloadLength = mapped.getInt(offset + 4);
+      if (payloadLength <= 0 || offset + HEADER_SIZE + payloadLength + TERMINATOR_SIZE > capacity)
+      {
+        break;
+      }
+
+      byte[] payload = new byte[payloadLength];
+      mapped.position(offset + HEADER_SIZE);
+      mapped.get(payload);
+      if (checksum(payload, 0, payloadLength) != mapped.getInt(offset + 8))
+      {
+        break;
+      }
+
+      ByteBuffer buffer = ByteBuffer.wrap(payload);
+      String key = readString(buffer);
+      long expires = buffer.getLong();
+
+      Integer previous = index.put(key, offset);
+      if (previous != null)
+      {
+        deadBytes += recordSize(previous);
+      }
+
+      if (expires != 0 && expires <= now)
+      {
+        index.remove(key);
+        deadBytes += HEADER_SIZE + payloadLength;
+      }
+      else
+      {
+        earliestExpires = earliest(earliestExpires, expires);
+      }
+
+      offset += HEADER_SIZE + payloadLength;
+    }
+
+    /*
+     * Whatever follows the last good record is dropped.
+     */
+    if (offset + TERMINATOR_SIZE <= capacity)
+    {
+      mapped.putInt(offset, 0);
+    }
+    writePosition = offset;
+  }
+
+  /*
+   * @return The earlier of the two expirations where 0 means never.
+   */
+  static long earliest(long expires, long otherExpires)
+  {
+    if (expires == 0)
+    {
+      return otherExpires;
+    }
+    return (otherExpires == 0) ? expires : Math.min(expires, otherExpires);
+  }
+
+  private int recordSize(int offset)
+  {
+    return HEADER_SIZE + mapped.getInt(offset + 4);
+  }
+
+  /*
+   * @param verify Check the payload against its checksum.
+   * @return null if the record can't be read.
+   */
+  private LayoutCache.Entry decode(int offset, boolean verify)
+  {
+    int payloadLength = mapped.getInt(offset + 4);
+    byte[] payload = new byte[payloadLength];
+    mapped.position(offset + HEADER_SIZE);
+    mapped.get(payload);
+    if (verify && checksum(payload, 0, payloadLength) != mapped.getInt(offset + 8))
+    {
+      return null;
+    }
+
+    try
+    {
+      ByteBuffer buffer = ByteBuffer.wrap(payload);
+      readString(buffer);
+      long expires = buffer.getLong();
+      String contentType = buffer.get() == 0 ? null : readString(buffer);
+
+      String[] yields = new String[buffer.getInt()];
+      for (int i = 0; i < yields.length; i++)
+      {
+        yields[i] = buffer.get() == 0 ? null : readString(buffer);
+      }
+
+      byte[][] segments = new byte[yields.length + 1][];
+      for (int i = 0; i < segments.length; i++)
+      {
+        segments[i] = new byte[buffer.getInt()];
+        buffer.get(segments[i]);
+      }
+
+      return new LayoutCache.Entry(segments, yields, contentType, expires);
+    }
+    catch (BufferUnderflowException e)
+    {
+      return null;
+    }
+    catch (NegativeArraySizeException e)
+    {
+      return null;
+    }
+  }
+
+  static byte[] encode(String key, LayoutCache.Entry entry)
+  {
+    try
+    {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      writeString(out, key);
+      out.writeLong(entry.expires);
+      out.writeBoolean(entry.contentType != null);
+      if (entry.contentType != null)
+      {
+        writeString(out, entry.contentType);
+      }
+
+      out.writeInt(entry.yields.length);
+      for (String yield : entry.yields)
+      {
+        out.writeBoolean(yield != null);
+        if (yield != null)
+        {
+          writeString(out, yield);
+        }
+      }
+
+      for (byte[] segment : entry.segments)
+      {
+        out.writeInt(segment.length);
+        out.write(segment);
+      }
+      out.flush();
+      return bytes.toByteArray();
+    }
+    catch (IOException e)
+    {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  static void writeString(DataOutputStream out, String value) throws IOException
+  {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  static String readString(ByteBuffer buffer)
+  {
+    byte[] bytes = new byte[buffer.getInt()];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  static int checksum(byte[] bytes, int offset, int length)
+  {
+    CRC32 crc = new CRC32();
+    crc.update(bytes, offset, length);
+    return (int) crc.getValue();
+  }
+
+  static final int MAGIC = 0x4C434631;
+
+  static final int HEADER_SIZE = 12;
+
+  static final int TERMINATOR_SIZE = 4;
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.layouts;
+
+/**
+ * <p>
+ * The cache of rendered layouts of a {@link LayoutsFilter}. Registered with the platform MBean server under
+ * {@code org.baswell.layouts:type=LayoutCache} when the <i>LAYOUT_CACHE</i> init parameter is set.
+ * </p>
+ */
+public interface LayoutCacheMXBean
+{
+  /**
+   * @return The maximum number of rendered layouts kept.
+   */
+  int getMaxEntries();
+
+  /**
+   * @return The number of rendered layouts currently cached.
+   */
+  int getEntries();
+
+  /**
+   * @return The number of times a cached layout was replayed.
+   */
+  long getHitCount();
+
+  /**
+   * @return The number of times a layout was rendered and recorded.
+   */
+  long getMissCount();
+
+  /**
+   * @return The number of rendered layouts dropped to make room for others.
+   */
+  long getEvictionCount();
+
+  /**
+   * @return The number of recorded layouts that couldn't be cached because they check the content of the view.
+   */
+  long getUncacheableCount();
+
+  /**
+   * @return The number of rendered layouts in the cache file (0 without <i>LAYOUT_CACHE_FILE</i>).
+   */
+  int getFileEntries();
+
+  /**
+   * @return The number of bytes used in the cache file.
+   */
+  int getFileBytes();
+
+  /**
+   * @return The number of times a rendered layout not in memory was found in the cache file.
+   */
+  long getFileHitCount();
+
+  /**
+   * @return The number of times the cache file has been compacted.
+   */
+  long getFileCompactionCount();
+
+  /**
+   * @return The number of rendered layouts not written to the cache file because it was full.
+   */
+  long getFileDroppedCount();
+
+  /**
+   * Drop all cached layouts (including the cache file). They are rendered again on the next request.
+   */
+  void invalidate();
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.layouts;
+
+import jakarta.servlet.ServletContext;
+import jakarta.servlet.http.HttpServletRequest;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.baswell.layouts.Layouts.*;
+import static org.baswell.layouts.SharedMethods.*;
+
+/*
+ * Runs the LayoutDataProviders of layouts concurrently with the view. The fetch for the layout known before the view runs (the
+ * LAYOUT request attribute if already set, otherwise the default layout) is started before the filter chain and picked up right
+ * before the layout is rendered. If the view picks a different layout the provider of that layout is run on the request thread.
+ *
+ * Fetches run on a bounded pool of virtual threads when the JVM has them (Java 21+), otherwise daemon threads, and are given a copy
+ * of the request (see LayoutDataRequest). When every thread is busy the fetch isn't started and the provider is run on the request
+ * thread right before the layout is rendered.
+ */
+class LayoutDataPrefetch
+{
+  private final Map<String, LayoutDataProvider> providers;
+
+  private final long timeoutMillis;
+
+  private final ServletContext servletContext;
+
+  private final ExecutorService executor;
+
+  LayoutDataPrefetch(Map<String, LayoutDataProvider> providers, long timeoutMillis, int maxThreads, ServletContext servletContext)
+  {
+    this.providers = providers;
+    this.timeoutMillis = timeoutMillis;
+    this.servletContext = servletContext;
+    executor = newExecutor("LayoutDataPrefetch", maxThreads);
+  }
+
+  /*
+   * Called before the filter chain.
+   */
+  void start(HttpServletRequest httpRequest, Layout layout)
+  {
+    final LayoutDataProvider provider = (layout == null) ? null : providers.get(layout.name);
+    if (provider != null)
+    {
+      /*
+       * The provider only ever sees a copy, the live request is being used by the view and is recycled once the request is done.
+       */
+      final HttpServletRequest snapshot = LayoutDataRequest.snapshot(httpRequest);
+      Future<Object> future;
+      try
+      {
+        future = executor.submit(new Callable<Object>()
+        {
+          @Override
+          public Object call() throws Exception
+          {
+            return provider.fetch(snapshot);
+          }
+        });
+      }
+      catch (RejectedExecutionException e)
+      {
+        /*
+         * Every fetch thread is busy, resolve runs the provider on the request thread.
+         */
+        return;
+      }
+      httpRequest.setAttribute(FETCH_ATTRIBUTE, new Fetch(layout.name, future));
+    }
+  }
+
+  /*
+   * Called right before the layout is rendered. Sets the LAYOUT_DATA request attribute if the layout has a provider.
+   */
+  void resolve(HttpServletRequest httpRequest, Layout layout)
+  {
+    Fetch fetch = takeFetch(httpRequest);
+    LayoutDataProvider provider = providers.get(layout.name);
+    if (provider == null)
+    {
+      if (fetch != null)
+      {
+        fetch.future.cancel(true);
+      }
+      return;
+    }
+
+    Object data;
+    if (fetch != null && fetch.layoutName.equals(layout.name))
+    {
+      try
+      {
+        data = fetch.future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+      }
+      catch (TimeoutException e)
+      {
+        fetch.future.cancel(true);
+        data = provider.getFallback(httpRequest);
+      }
+      catch (ExecutionException e)
+      {
+        servletContext.log("LayoutsFilter: layout data provider for " + layout.name + " failed.", e.getCause());
+        data = provider.getFallback(httpRequest);
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+        fetch.future.cancel(true);
+        data = provider.getFallback(httpRequest);
+      }
+    }
+    else
+    {
+      if (fetch != null)
+      {
+        fetch.future.cancel(true);
+      }
+
+      try
+      {
+        data = provider.fetch(httpRequest);
+      }
+      catch (Exception e)
+      {
+        servletContext.log("LayoutsFilter: layout data provider for " + layout.name + " failed.", e);
+        data = provider.getFallback(httpRequest);
+      }
+    }
+    httpRequest.setAttribute(LAYOUT_DATA, data);
+  }
+
+  /*
+   * Called once the request is done. Cancels the fetch if no layout was rendered.
+   */
+  void cancel(HttpServletRequest httpRequest)
+  {
+    Fetch fetch = takeFetch(httpRequest);
+    if (fetch != null)
+    {
+      fetch.future.cancel(true);
+    }
+  }
+
+  void shutdown()
+  {
+    executor.shutdownNow();
+  }
+
+  private Fetch takeFetch(HttpServletRequest httpRequest)
+  {
+    Fetch fetch = (Fetch) httpRequest.getAttribute(FETCH_ATTRIBUTE);
+    if (fetch != null)
+    {
+      httpRequest.removeAttribute(FETCH_ATTRIBUTE);
+    }
+    return fetch;
+  }
+
+  static class Fetch
+  {
+    final String layoutName;
+
+    final Future<Object> future;
+
+    Fetch(String layoutName, Future<Object> future)
+    {
+      this.layoutName = layoutName;
+      this.future = future;
+    }
+  }
+
+  static final String FETCH_ATTRIBUTE = LayoutDataPrefetch.class.getName();
+}
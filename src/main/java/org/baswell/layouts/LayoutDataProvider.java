@@ -0,0 +1,56 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.layouts;
+
+import jakarta.servlet.http.HttpServletRequest;
+
+/**
+ * <p>
+ * Fetches the data a layout needs (user menu, notification count, cart size) while the view is still running. Providers are
+ * registered per layout with the <i>LAYOUT_DATA</i> init parameter of the {@link LayoutsFilter}, for example
+ * {@code application=com.example.MenuDataProvider,admin=com.example.AdminDataProvider}. One instance of each provider (created
+ * with its public no-argument constructor) is shared by all requests so providers must be thread safe.
+ * </p>
+ *
+ * <p>
+ * The fetch is started on another thread before the view runs and its result is available to the layout as the request attribute
+ * {@link Layouts#LAYOUT_DATA}. If the fetch hasn't finished within <i>LAYOUT_DATA_TIMEOUT</i> milliseconds of the layout being
+ * rendered, or it fails, the fallback is used instead.
+ * </p>
+ */
+public interface LayoutDataProvider
+{
+  /**
+   * Called on a thread other than the request thread while the view is running, or on the request thread when the view picked a
+   * different layout. The request given on another thread is a copy taken before the view runs of the request line (method, URI,
+   * context path and query string), headers, attributes, session and user. Everything else (parameters, cookies, the body)
+   * throws UnsupportedOperationException since the live request isn't safe to use from another thread.
+   *
+   * @param httpRequest The HTTP request (or the copy of it).
+   * @return The data for the layout.
+   * @throws Exception If the data can't be fetched (the fallback is used).
+   */
+  Object fetch(HttpServletRequest httpRequest) throws Exception;
+
+  /**
+   * @param httpRequest The HTTP request.
+   * @return The data for the layout when the fetch times out or fails.
+   */
+  default Object getFallback(HttpServletRequest httpRequest)
+  {
+    return null;
+  }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.layouts;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpSession;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+ * The request a LayoutDataProvider reads from while the view is running: a copy of the request line, headers, attributes, session
+ * and user taken on the request thread before the filter chain. Containers don't make requests thread safe (Tomcat parses
+ * parameters, cookies and the session lazily) and recycle them once the response is sent, so a provider on another thread never
+ * touches the live request, not even one that's still blocked in I/O after the request is done. The session itself is shared,
+ * the container already has to allow concurrent requests to use it. Anything else throws UnsupportedOperationException.
+ */
+class LayoutDataRequest implements InvocationHandler
+{
+  private final String method;
+
+  private final String requestURI;
+
+  private final String contextPath;
+
+  private final String queryString;
+
+  /*
+   * Header names are case insensitive.
+   */
+  private final Map<String, List<String>> headers = new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
+
+  private final Map<String, Object> attributes = new LinkedHashMap<String, Object>();
+
+  private final String requestedSessionId;
+
+  private final HttpSession session;
+
+  private final Principal userPrincipal;
+
+  private final String remoteUser;
+
+  private final String authType;
+
+  /*
+   * @return A copy of the request, must be called on the request thread.
+   */
+  static HttpServletRequest snapshot(HttpServletRequest httpRequest)
+  {
+    return (HttpServletRequest) Proxy.newProxyInstance(LayoutDataRequest.class.getClassLoader(), new Class<?>[]{HttpServletRequest.class}, new LayoutDataRequest(httpRequest));
+  }
+
+  private LayoutDataRequest(HttpServletRequest httpRequest)
+  {
+    method = httpRequest.getMethod();
+    requestURI = httpRequest.getRequestURI();
+    contextPath = httpRequest.getContextPath();
+    queryString = httpRequest.getQueryString();
+
+    Enumeration<String> headerNames = httpRequest.getHeaderNames();
+    while (headerNames != null && headerNames.hasMoreElements())
+    {
+      String name = headerNames.nextElement();
+      List<String> values = headers.get(name);
+      if (values == null)
+      {
+        values = new ArrayList<String>(1);
+        headers.put(name, values);
+      }
+      values.addAll(Collections.list(httpRequest.getHeaders(name)));
+    }
+
+    Enumeration<String> attributeNames = httpRequest.getAttributeNames();
+    while (attributeNames != null && attributeNames.hasMoreElements())
+    {
+      String name = attributeNames.nextElement();
+      attributes.put(name, httpRequest.getAttribute(name));
+    }
+
+    requestedSessionId = httpRequest.getRequestedSessionId();
+    session = httpRequest.getSession(false);
+    userPrincipal = httpRequest.getUserPrincipal();
+    remoteUser = httpRequest.getRemoteUser();
+    authType = httpRequest.getAuthType();
+  }
+
+  @Override
+  public Object invoke(Object proxy, Method invoked, Object[] args)
+  {
+    String name = invoked.getName();
+    switch (name)
+    {
+      case "getMethod":
+        return method;
+
+      case "getRequestURI":
+        return requestURI;
+
+      case "getContextPath":
+        return contextPath;
+
+      case "getQueryString":
+        return queryString;
+
+      case "getHeader":
+        List<String> values = headers.get((String) args[0]);
+        return (values == null || values.isEmpty()) ? null : values.get(0);
+
+      case "getHeaders":
+        values = headers.get((String) args[0]);
+        return Collections.enumeration((values == null) ? Collections.<String>emptyList() : values);
+
+      case "getHeaderNames":
+        return Collections.enumeration(headers.keySet());
+
+      case "getIntHeader":
+        values = headers.get((String) args[0]);
+        return (values == null || values.isEmpty()) ? -1 : Integer.parseInt(values.get(0));
+
+      case "getAttribute":
+        return attributes.get((String) args[0]);
+
+      case "getAttributeNames":
+        return Collections.enumeration(attributes.keySet());
+
+      case "getRequestedSessionId":
+        return requestedSessionId;
+
+      case "getSession":
+        if (session == null && (args == null || (Boolean) args[0]))
+        {
+          throw new UnsupportedOperationException("A LayoutDataProvider can't create a session.");
+        }
+        return session;
+
+      case "getUserPrincipal":
+        return userPrincipal;
+
+      case "getRemoteUser":
+        return remoteUser;
+
+      case "getAuthType":
+        return authType;
+
+      case "equals":
+        return proxy == args[0];
+
+      case "hashCode":
+        return System.identityHashCode(proxy);
+
+      case "toString":
+        return "LayoutDataRequest " + method + " " + requestURI;
+
+      default:
+        throw new UnsupportedOperationException("HttpServletRequest." + name + " isn't available to a LayoutDataProvider, it only gets a copy of the " +
+                                                "request line, headers, attributes, session and user of the request.");
+    }
+  }
+}
@@ -0,0 +1,479 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.layouts;
+
+import jakarta.servlet.DispatcherType;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.RequestDispatcher;
+import jakarta.servlet.ServletContext;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.ServletResponse;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletRequestWrapper;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+import jakarta.servlet.http.HttpSession;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import static org.baswell.layouts.Layouts.*;
+
+/*
+ * Gets the layouts hot before the first real request. Each layout JSP is compiled (the jsp_precompile request parameter) and then
+ * composed a number of times with a synthetic view through the same buffer, View and forward path real requests take, so class
+ * loading and JIT compilation of that path happen at startup.
+ *
+ * The requests and responses used are synthetic. Anything a layout asks for that isn't supported gets an empty value (null, 0, false
+ * or an empty collection). A layout that can't be rendered this way (for example it needs a logged in user) is logged and skipped.
+ */
+class LayoutWarmUp
+{
+  private final ServletContext servletContext;
+
+  private final LayoutsFilter layoutsFilter;
+
+  LayoutWarmUp(ServletContext servletContext, LayoutsFilter layoutsFilter)
+  {
+    this.servletContext = servletContext;
+    this.layoutsFilter = layoutsFilter;
+  }
+
+  /*
+   * @return The number of layouts successfully warmed up.
+   */
+  int warmUp(Collection<Layout> layouts, int composePasses)
+  {
+    int warmedUp = 0;
+    for (Layout layout : layouts)
+    {
+      try
+      {
+        precompile(layout);
+        for (int i = 0; i < composePasses; i++)
+        {
+          compose(layout);
+        }
+        ++warmedUp;
+      }
+      catch (Exception e)
+      {
+        servletContext.log("LayoutsFilter: unable to warm up layout " + layout.jspPath + ".", e);
+      }
+    }
+    return warmedUp;
+  }
+
+  void precompile(Layout layout) throws Exception
+  {
+    SyntheticRequest request = new SyntheticRequest(servletContext, layout.jspPath, "jsp_precompile=true");
+    RequestDispatcher dispatcher = request.getRequestDispatcher(layout.jspPath);
+    if (dispatcher == null)
+    {
+      throw new IllegalStateException("No request dispatcher for layout " + layout.jspPath);
+    }
+    dispatcher.forward(request.dispatchable(), new SyntheticResponse());
+  }
+
+  void compose(Layout layout) throws Exception
+  {
+    SyntheticRequest request = new SyntheticRequest(servletContext, layout.jspPath, null);
+    request.setAttribute(LAYOUT, layout.name);
+    SyntheticResponse response = new SyntheticResponse();
+
+    layoutsFilter.composeWithLayout(request.dispatchable(), response, new FilterChain()
+    {
+      @Override
+      public void doFilter(ServletRequest request, ServletResponse response) throws IOException
+      {
+        response.setContentType("text/html");
+        response.getWriter().write(VIEW_CONTENT);
+      }
+    }, null);
+  }
+
+  static class SyntheticRequest extends HttpServletRequestWrapper
+  {
+    final ServletContext servletContext;
+
+    final String requestURI;
+
+    final String queryString;
+
+    final Map<String, Object> attributes = new HashMap<String, Object>();
+
+    HttpSession session;
+
+    SyntheticRequest(ServletContext servletContext, String path, String queryString)
+    {
+      super(emptyValued(HttpServletRequest.class));
+      this.servletContext = servletContext;
+      this.requestURI = servletContext.getContextPath() + path;
+      this.queryString = queryString;
+
+      /*
+       * Tomcat only runs the target of a dispatch when the request carries the dispatcher type it gives every request it receives.
+       */
+      attributes.put("org.apache.catalina.core.DISPATCHER_TYPE", DispatcherType.REQUEST);
+    }
+
+    /*
+     * Tomcat slips its dispatch wrapper in under the innermost request wrapper, which would put it beneath the overrides of this
+     * request (so the container never sees the dispatch). Requests given to dispatchers go through this proxy instead, which
+     * isn't a wrapper.
+     */
+    HttpServletRequest dispatchable()
+    {
+      final SyntheticRequest request = this;
+      return (HttpServletRequest) Proxy.newProxyInstance(LayoutWarmUp.class.getClassLoader(), new Class<?>[]{HttpServletRequest.class}, new InvocationHandler()
+      {
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+        {
+          try
+          {
+            return method.invoke(request, args);
+          }
+          catch (InvocationTargetException e)
+          {
+            throw e.getCause();
+          }
+        }
+      });
+    }
+
+    @Override
+    public ServletContext getServletContext()
+    {
+      return servletContext;
+    }
+
+    @Override
+    public DispatcherType getDispatcherType()
+    {
+      return DispatcherType.REQUEST;
+    }
+
+    @Override
+    public String getMethod()
+    {
+      return "GET";
+    }
+
+    @Override
+    public String getProtocol()
+    {
+      return "HTTP/1.1";
+    }
+
+    @Override
+    public String getScheme()
+    {
+      return "http";
+    }
+
+    @Override
+    public String getServerName()
+    {
+      return "localhost";
+    }
+
+    @Override
+    public String getContextPath()
+    {
+      return servletContext.getContextPath();
+    }
+
+    @Override
+    public String getRequestURI()
+    {
+      return requestURI;
+    }
+
+    @Override
+    public StringBuffer getRequestURL()
+    {
+      return new StringBuffer("http://localhost").append(requestURI);
+    }
+
+    @Override
+    public String getServletPath()
+    {
+      return requestURI.substring(getContextPath().length());
+    }
+
+    @Override
+    public String getQueryString()
+    {
+      return queryString;
+    }
+
+    @Override
+    public String getParameter(String name)
+    {
+      return (queryString != null && queryString.startsWith(name + "=")) ? queryString.substring(name.length() + 1) : null;
+    }
+
+    @Override
+    public Locale getLocale()
+    {
+      return Locale.getDefault();
+    }
+
+    @Override
+    public Enumeration<Locale> getLocales()
+    {
+      return Collections.enumeration(Collections.singletonList(Locale.getDefault()));
+    }
+
+    @Override
+    public Object getAttribute(String name)
+    {
+      return attributes.get(name);
+    }
+
+    @Override
+    public Enumeration<String> getAttributeNames()
+    {
+      return Collections.enumeration(new ArrayList<String>(attributes.keySet()));
+    }
+
+    @Override
+    public void setAttribute(String name, Object value)
+    {
+      if (value == null)
+      {
+        attributes.remove(name);
+      }
+      else
+      {
+        attributes.put(name, value);
+      }
+    }
+
+    @Override
+    public void removeAttribute(String name)
+    {
+      attributes.remove(name);
+    }
+
+    /*
+     * Filters are initialized before the container maps requests to the web application (Tomcat registers the context with its
+     * mapper after it has started) so path based dispatchers aren't available yet. The JSP servlet (named "jsp" by convention in
+     * Tomcat and Jetty) is dispatched to directly instead, it finds the JSP to run from the servlet path of the request.
+     */
+    @Override
+    public RequestDispatcher getRequestDispatcher(String path)
+    {
+      RequestDispatcher dispatcher = path.equals(getServletPath()) ? servletContext.getNamedDispatcher("jsp") : null;
+      return (dispatcher == null) ? servletContext.getRequestDispatcher(path) : dispatcher;
+    }
+
+    @Override
+    public HttpSession getSession()
+    {
+      return getSession(true);
+    }
+
+    @Override
+    public HttpSession getSession(boolean create)
+    {
+      if (session == null && create)
+      {
+        session = emptyValued(HttpSession.class);
+      }
+      return session;
+    }
+  }
+
+  /*
+   * Throws away everything written to it.
+   */
+  static class SyntheticResponse extends HttpServletResponseWrapper
+  {
+    final ServletOutputStream outputStream = new ServletOutputStream()
+    {
+      @Override
+      public boolean isReady()
+      {
+        return true;
+      }
+
+      @Override
+      public void setWriteListener(WriteListener writeListener)
+      {}
+
+      @Override
+      public void write(int b)
+      {}
+
+      @Override
+      public void write(byte[] bytes, int offset, int length)
+      {}
+    };
+
+    PrintWriter writer;
+
+    String contentType;
+
+    int status = SC_OK;
+
+    SyntheticResponse()
+    {
+      super(emptyValued(HttpServletResponse.class));
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream()
+    {
+      return outputStream;
+    }
+
+    @Override
+    public PrintWriter getWriter()
+    {
+      if (writer == null)
+      {
+        writer = new LayoutsPrintWriter(outputStream);
+      }
+      return writer;
+    }
+
+    @Override
+    public String getCharacterEncoding()
+    {
+      return "ISO-8859-1";
+    }
+
+    @Override
+    public void setContentType(String contentType)
+    {
+      this.contentType = contentType;
+    }
+
+    @Override
+    public String getContentType()
+    {
+      return contentType;
+    }
+
+    @Override
+    public void setStatus(int status)
+    {
+      this.status = status;
+    }
+
+    @Override
+    public int getStatus()
+    {
+      return status;
+    }
+
+    @Override
+    public void sendError(int status)
+    {
+      this.status = status;
+    }
+
+    @Override
+    public void sendError(int status, String message)
+    {
+      this.status = status;
+    }
+
+    @Override
+    public Locale getLocale()
+    {
+      return Locale.getDefault();
+    }
+
+    @Override
+    public Collection<String> getHeaderNames()
+    {
+      return Collections.emptyList();
+    }
+  }
+
+  /*
+   * An implementation of the given interface where every method returns an empty value.
+   */
+  @SuppressWarnings("unchecked")
+  static <T> T emptyValued(final Class<T> type)
+  {
+    return (T) Proxy.newProxyInstance(LayoutWarmUp.class.getClassLoader(), new Class<?>[]{type}, new InvocationHandler()
+    {
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args)
+      {
+        Class<?> returnType = method.getReturnType();
+        if (method.getName().equals("toString"))
+        {
+          return "Synthetic " + type.getSimpleName();
+        }
+        else if (method.getName().equals("equals"))
+        {
+          return proxy == args[0];
+        }
+        else if (method.getName().equals("hashCode"))
+        {
+          return System.identityHashCode(proxy);
+        }
+        else if (returnType == boolean.class)
+        {
+          return false;
+        }
+        else if (returnType == int.class)
+        {
+          return 0;
+        }
+        else if (returnType == long.class)
+        {
+          return 0L;
+        }
+        else if (returnType == Enumeration.class)
+        {
+          return Collections.emptyEnumeration();
+        }
+        else if (returnType == Map.class)
+        {
+          return Collections.emptyMap();
+        }
+        else if (Collection.class.isAssignableFrom(returnType))
+        {
+          return Collections.emptyList();
+        }
+        else
+        {
+          return null;
+        }
+      }
+    });
+  }
+
+  static final String VIEW_CONTENT = "<html><head><title>Warm Up</title></head><body><p>Warm up.</p></body></html>";
+}
@@ -51,4 +51,22 @@ public class
    * </pre>
    */
   static public final String VIEW = "view";
+
+  /**
+   * <p>When the <i>NONCE</i> page transformer is enabled the CSP nonce of the current request is available to views and layouts with:</p>
+   * <code>
+   *   httpServletRequest.getAttribute(Layouts.CSP_NONCE);
+   * </code>
+   *
+   * <p>Only script and style tags that are written with this nonce get one, a nonce attribute with any other value is removed.</p>
+   */
+  static public final String CSP_NONCE = "cspNonce";
+
+  /**
+   * <p>The data fetched by the {@link LayoutDataProvider} of the layout is available to the layout with:</p>
+   * <code>
+   *   httpServletRequest.getAttribute(Layouts.LAYOUT_DATA);
+   * </code>
+   */
+  static public final String LAYOUT_DATA = "layoutData";
 }
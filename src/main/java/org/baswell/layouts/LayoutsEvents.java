@@ -0,0 +1,281 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.layouts;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/*
+ * Java Flight Recorder events for the phases of the LayoutsFilter, so layouts show up by name in a recording next to GC, lock and
+ * I/O events instead of as anonymous time inside doFilter.
+ *
+ * The events are off unless a recording turns them on. The static methods return a started event, or null when the event type
+ * isn't enabled in any running recording. Nothing is allocated and no fields (like the URI) are computed unless a recording wants
+ * the event:
+ *
+ *   LayoutsEvents.ViewEvent viewEvent = LayoutsEvents.view();
+ *   ...
+ *   if (viewEvent != null) viewEvent.finish(...);
+ */
+class LayoutsEvents
+{
+  static PatternsEvent patterns()
+  {
+    return PATTERNS.isEnabled() ? begin(new PatternsEvent()) : null;
+  }
+
+  static DeciderEvent decider()
+  {
+    return DECIDER.isEnabled() ? begin(new DeciderEvent()) : null;
+  }
+
+  static ViewEvent view()
+  {
+    return VIEW.isEnabled() ? begin(new ViewEvent()) : null;
+  }
+
+  static BufferGrowthEvent bufferGrowth()
+  {
+    return BUFFER_GROWTH.isEnabled() ? begin(new BufferGrowthEvent()) : null;
+  }
+
+  static YieldEvent yield()
+  {
+    return YIELD.isEnabled() ? begin(new YieldEvent()) : null;
+  }
+
+  static LayoutEvent layout()
+  {
+    return LAYOUT.isEnabled() ? begin(new LayoutEvent()) : null;
+  }
+
+  private static <E extends Event> E begin(E event)
+  {
+    event.begin();
+    return event;
+  }
+
+  @Name("org.baswell.layouts.Patterns")
+  @Label("Layouts Pattern Exclusion")
+  @Description("Matching the request against the ONLY and EXCEPT patterns.")
+  @Category(CATEGORY)
+  @Enabled(false)
+  @StackTrace(false)
+  static class PatternsEvent extends Event
+  {
+    @Label("URI")
+    String uri;
+
+    @Label("Excluded")
+    boolean excluded;
+
+    void finish(HttpServletRequest httpRequest, boolean excluded)
+    {
+      end();
+      if (shouldCommit())
+      {
+        uri = httpRequest.getRequestURI();
+        this.excluded = excluded;
+        commit();
+      }
+    }
+  }
+
+  @Name("org.baswell.layouts.Decider")
+  @Label("Layouts Decider")
+  @Description("Running the UseLayoutDecider.")
+  @Category(CATEGORY)
+  @Enabled(false)
+  @StackTrace(false)
+  static class DeciderEvent extends Event
+  {
+    @Label("URI")
+    String uri;
+
+    @Label("Candidate")
+    boolean candidate;
+
+    void finish(HttpServletRequest httpRequest, boolean candidate)
+    {
+      end();
+      if (shouldCommit())
+      {
+        uri = httpRequest.getRequestURI();
+        this.candidate = candidate;
+        commit();
+      }
+    }
+  }
+
+  @Name("org.baswell.layouts.View")
+  @Label("Layouts View")
+  @Description("Running the view (the rest of the filter chain) into the buffer.")
+  @Category(CATEGORY)
+  @Enabled(false)
+  @StackTrace(false)
+  static class ViewEvent extends Event
+  {
+    @Label("URI")
+    String uri;
+
+    @Label("Layout")
+    String layout;
+
+    @Label("View Size")
+    @DataAmount
+    long bytes;
+
+    @Label("Streaming")
+    boolean streaming;
+
+    void finish(HttpServletRequest httpRequest, Layout layout, long bytes, boolean streaming)
+    {
+      end();
+      if (shouldCommit())
+      {
+        uri = httpRequest.getRequestURI();
+        this.layout = (layout == null) ? null : layout.name;
+        this.bytes = bytes;
+        this.streaming = streaming;
+        commit();
+      }
+    }
+  }
+
+  @Name("org.baswell.layouts.BufferGrowth")
+  @Label("Layouts Buffer Growth")
+  @Description("Growing the buffer of a view.")
+  @Category(CATEGORY)
+  @Enabled(false)
+  static class BufferGrowthEvent extends Event
+  {
+    @Label("From")
+    @DataAmount
+    long from;
+
+    @Label("To")
+    @DataAmount
+    long to;
+
+    @Label("Off-Heap")
+    boolean direct;
+
+    @Label("Allocated")
+    boolean allocated;
+
+    void finish(long from, long to, boolean direct, boolean allocated)
+    {
+      end();
+      if (shouldCommit())
+      {
+        this.from = from;
+        this.to = to;
+        this.direct = direct;
+        this.allocated = allocated;
+        commit();
+      }
+    }
+  }
+
+  @Name("org.baswell.layouts.Yield")
+  @Label("Layouts Yield")
+  @Description("Finding a section of the view and writing it into the layout.")
+  @Category(CATEGORY)
+  @Enabled(false)
+  @StackTrace(false)
+  static class YieldEvent extends Event
+  {
+    @Label("Section")
+    @Description("The tag name of the section, null when the entire view is yielded.")
+    String section;
+
+    @Label("Found")
+    boolean found;
+
+    @Label("Size")
+    @DataAmount
+    long bytes;
+
+    void finish(String section, boolean found, long bytes)
+    {
+      end();
+      if (shouldCommit())
+      {
+        this.section = section;
+        this.found = found;
+        this.bytes = bytes;
+        commit();
+      }
+    }
+  }
+
+  @Name("org.baswell.layouts.Layout")
+  @Label("Layouts Layout")
+  @Description("Forwarding to the layout (or replaying it from the layout cache).")
+  @Category(CATEGORY)
+  @Enabled(false)
+  @StackTrace(false)
+  static class LayoutEvent extends Event
+  {
+    @Label("URI")
+    String uri;
+
+    @Label("Layout")
+    String layout;
+
+    @Label("View Size")
+    @DataAmount
+    long bytes;
+
+    @Label("Cached")
+    boolean cached;
+
+    void finish(HttpServletRequest httpRequest, Layout layout, long bytes, boolean cached)
+    {
+      end();
+      if (shouldCommit())
+      {
+        uri = httpRequest.getRequestURI();
+        this.layout = layout.name;
+        this.bytes = bytes;
+        this.cached = cached;
+        commit();
+      }
+    }
+  }
+
+  static final String CATEGORY = "Layouts";
+
+  static final EventType PATTERNS = EventType.getEventType(PatternsEvent.class);
+
+  static final EventType DECIDER = EventType.getEventType(DeciderEvent.class);
+
+  static final EventType VIEW = EventType.getEventType(ViewEvent.class);
+
+  static final EventType BUFFER_GROWTH = EventType.getEventType(BufferGrowthEvent.class);
+
+  static final EventType YIELD = EventType.getEventType(YieldEvent.class);
+
+  static final EventType LAYOUT = EventType.getEventType(LayoutEvent.class);
+}
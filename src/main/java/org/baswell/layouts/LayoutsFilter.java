@@ -18,6 +18,7 @@ package org.baswell.layouts;
 import jakarta.servlet.Filter;
 import jakarta.servlet.FilterChain;
 import jakarta.servlet.FilterConfig;
+import jakarta.servlet.ServletContext;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.ServletRequest;
 import jakarta.servlet.ServletResponse;
@@ -25,11 +26,19 @@ import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
 import java.util.regex.Pattern;
+import javax.management.ObjectName;
 
 import static org.baswell.layouts.Layouts.*;
 import static org.baswell.layouts.SharedMethods.*;
@@ -88,9 +97,62 @@ public class LayoutsFilter implements Filter
 
   private UseLayoutDecider layoutDecider;
 
-  private Layout defaultLayout;
+  private FilterConfig filterConfig;
 
-  private Map<String, Layout> layouts;
+  private volatile Layout defaultLayout;
+
+  private volatile Map<String, Layout> layouts;
+
+  private boolean preloadAssets;
+
+  private boolean sendEarlyHints;
+
+  private AssetManifest assetManifest;
+
+  private boolean deduplicateAssets;
+
+  private BufferBudget bufferBudget;
+
+  private ObjectName bufferBudgetName;
+
+  private DirectBufferArena directBufferArena;
+
+  private boolean streamingComposition;
+
+  private AdaptiveComposition adaptiveComposition;
+
+  private ObjectName adaptiveCompositionName;
+
+  private double serverTimingSampleRate;
+
+  private String serverTimingRequestHeader;
+
+  private LayoutCache layoutCache;
+
+  private ObjectName layoutCacheName;
+
+  private List<Constructor<? extends PageTransformer>> pageTransformers;
+
+  private boolean cspNonces;
+
+  private LayoutDataPrefetch layoutDataPrefetch;
+
+  private RenderDeadline renderDeadline;
+
+  /*
+   * HEAD_REQUESTS=FAST, see HeadRequests.
+   */
+  private boolean fastHeadRequests;
+
+  private SectionDeltas sectionDeltas;
+
+  private ConcurrencyLimiter concurrencyLimiter;
+
+  private ObjectName concurrencyLimiterName;
+
+  private SlowRequestRing slowRequests;
+
+  private ObjectName slowRequestsName;
 
   @Override
   public void init(FilterConfig filterConfig) throws ServletException
@@ -104,186 +166,1380 @@ public class LayoutsFilter implements Filter
       {
         if (!pattern.trim().isEmpty())
         {
-          onlyPatterns.add(Pattern.compile(pattern));
+          onlyPatterns.add(Pattern.compile(pattern));
+        }
+      }
+
+      if (!onlyPatterns.isEmpty()) this.onlyPatterns = onlyPatterns;
+    }
+
+    String exceptInitParam = filterConfig.getInitParameter("EXCEPT");
+    if (exceptInitParam != null)
+    {
+      List<Pattern> exceptPatterns = new ArrayList<Pattern>();
+      String[] exceptInitParams = exceptInitParam.split(",");
+      for (String pattern : exceptInitParams)
+      {
+        if (!pattern.trim().isEmpty())
+        {
+          exceptPatterns.add(Pattern.compile(pattern));
+        }
+      }
+
+      if (!exceptPatterns.isEmpty()) this.exceptPatterns = exceptPatterns;
+    }
+
+    String useLayoutDeciderClass = filterConfig.getInitParameter("USE_LAYOUT_DECIDER");
+    if (useLayoutDeciderClass == null)
+    {
+      layoutDecider = new DefaultHtmlPageDecider();
+    }
+    else
+    {
+      try
+      {
+        layoutDecider = (UseLayoutDecider) Class.forName(useLayoutDeciderClass).getConstructor().newInstance();
+      }
+      catch (Exception e)
+      {
+        throw new ServletException(e);
+      }
+    }
+
+    String fingerprintAssetsParameter = filterConfig.getInitParameter("FINGERPRINT_ASSETS");
+    if (fingerprintAssetsParameter != null && !fingerprintAssetsParameter.trim().isEmpty())
+    {
+      assetManifest = new AssetManifest(filterConfig.getServletContext(), fingerprintAssetsParameter.split(","));
+    }
+
+    String transformersParameter = filterConfig.getInitParameter("TRANSFORMERS");
+    if (transformersParameter != null && !transformersParameter.trim().isEmpty())
+    {
+      pageTransformers = new ArrayList<Constructor<? extends PageTransformer>>();
+      for (String transformer : transformersParameter.split(","))
+      {
+        transformer = transformer.trim();
+        try
+        {
+          Class<? extends PageTransformer> transformerClass;
+          if (transformer.equalsIgnoreCase("MINIFY"))
+          {
+            transformerClass = HtmlMinifier.class;
+          }
+          else if (transformer.equalsIgnoreCase("NONCE"))
+          {
+            transformerClass = NonceInjector.class;
+            cspNonces = true;
+          }
+          else
+          {
+            transformerClass = Class.forName(transformer).asSubclass(PageTransformer.class);
+          }
+          pageTransformers.add(transformerClass.getDeclaredConstructor());
+        }
+        catch (Exception e)
+        {
+          throw new ServletException("Invalid TRANSFORMERS entry: " + transformer, e);
+        }
+      }
+    }
+
+    String layoutDataParameter = filterConfig.getInitParameter("LAYOUT_DATA");
+    if (layoutDataParameter != null && !layoutDataParameter.trim().isEmpty())
+    {
+      Map<String, LayoutDataProvider> providers = new HashMap<String, LayoutDataProvider>();
+      for (String layoutProvider : layoutDataParameter.split(","))
+      {
+        int index = layoutProvider.indexOf('=');
+        if (index < 1)
+        {
+          throw new ServletException("Invalid LAYOUT_DATA entry: " + layoutProvider + ". Must be layout=class.");
+        }
+
+        String providerClass = layoutProvider.substring(index + 1).trim();
+        try
+        {
+          providers.put(layoutProvider.substring(0, index).trim(), Class.forName(providerClass).asSubclass(LayoutDataProvider.class).getConstructor().newInstance());
+        }
+        catch (Exception e)
+        {
+          throw new ServletException("Invalid LAYOUT_DATA entry: " + layoutProvider, e);
+        }
+      }
+
+      String timeoutParameter = filterConfig.getInitParameter("LAYOUT_DATA_TIMEOUT");
+      long timeoutMillis;
+      try
+      {
+        timeoutMillis = (timeoutParameter == null || timeoutParameter.trim().isEmpty()) ? 100 : Long.parseLong(timeoutParameter.trim());
+      }
+      catch (NumberFormatException e)
+      {
+        throw new ServletException("Invalid LAYOUT_DATA_TIMEOUT value: " + timeoutParameter, e);
+      }
+      layoutDataPrefetch = new LayoutDataPrefetch(providers, timeoutMillis, parseThreads(filterConfig, "LAYOUT_DATA_THREADS"), filterConfig.getServletContext());
+    }
+
+    String renderDeadlineParameter = filterConfig.getInitParameter("RENDER_DEADLINE");
+    String deadlineRoutesParameter = filterConfig.getInitParameter("RENDER_DEADLINE_ROUTES");
+    if ((renderDeadlineParameter != null && !renderDeadlineParameter.trim().isEmpty()) || (deadlineRoutesParameter != null && !deadlineRoutesParameter.trim().isEmpty()))
+    {
+      long defaultMillis;
+      Map<Pattern, Long> routes = new LinkedHashMap<Pattern, Long>();
+      RenderDeadline.LateContent lateContent;
+      String lateParameter = filterConfig.getInitParameter("RENDER_DEADLINE_LATE");
+      try
+      {
+        defaultMillis = (renderDeadlineParameter == null || renderDeadlineParameter.trim().isEmpty()) ? 0 : Long.parseLong(renderDeadlineParameter.trim());
+        if (deadlineRoutesParameter != null && !deadlineRoutesParameter.trim().isEmpty())
+        {
+          for (String route : deadlineRoutesParameter.split(","))
+          {
+            int index = route.lastIndexOf('=');
+            routes.put(Pattern.compile(route.substring(0, index).trim()), Long.parseLong(route.substring(index + 1).trim()));
+          }
+        }
+        lateContent = (lateParameter == null || lateParameter.trim().isEmpty()) ? RenderDeadline.LateContent.STREAM : RenderDeadline.LateContent.valueOf(lateParameter.trim().toUpperCase());
+      }
+      catch (RuntimeException e)
+      {
+        throw new ServletException("Invalid render deadline configuration.", e);
+      }
+
+      String placeholder = filterConfig.getInitParameter("RENDER_DEADLINE_PLACEHOLDER");
+      renderDeadline = new RenderDeadline(defaultMillis, routes, filterConfig.getInitParameter("RENDER_DEADLINE_LAYOUT"), (placeholder == null) ? "" : placeholder,
+                                          lateContent, parseThreads(filterConfig, "RENDER_DEADLINE_THREADS"), filterConfig.getServletContext());
+    }
+
+    String headParameter = filterConfig.getInitParameter("HEAD_REQUESTS");
+    if (headParameter != null && headParameter.trim().equalsIgnoreCase("FAST"))
+    {
+      fastHeadRequests = true;
+    }
+    else if (headParameter != null && !headParameter.trim().isEmpty() && !headParameter.trim().equalsIgnoreCase("COMPOSE"))
+    {
+      throw new ServletException("Invalid HEAD_REQUESTS value: " + headParameter + ". Must be COMPOSE or FAST.");
+    }
+
+    String sectionDeltasParameter = filterConfig.getInitParameter("SECTION_DELTAS");
+    if (sectionDeltasParameter != null && !sectionDeltasParameter.trim().isEmpty())
+    {
+      List<String> sections = new ArrayList<String>();
+      for (String section : sectionDeltasParameter.split(","))
+      {
+        if (!section.trim().isEmpty())
+        {
+          sections.add(section.trim());
+        }
+      }
+      sectionDeltas = new SectionDeltas(sections.toArray(new String[sections.size()]));
+    }
+
+    String concurrencyLimitParameter = filterConfig.getInitParameter("CONCURRENCY_LIMIT");
+    if (concurrencyLimitParameter != null && !concurrencyLimitParameter.trim().isEmpty())
+    {
+      String maxParameter = filterConfig.getInitParameter("CONCURRENCY_LIMIT_MAX");
+      String groupByParameter = filterConfig.getInitParameter("CONCURRENCY_LIMIT_BY");
+      String waitParameter = filterConfig.getInitParameter("CONCURRENCY_LIMIT_WAIT");
+      try
+      {
+        int initialLimit = Integer.parseInt(concurrencyLimitParameter.trim());
+        int maxLimit = (maxParameter == null || maxParameter.trim().isEmpty()) ? initialLimit * 10 : Integer.parseInt(maxParameter.trim());
+        ConcurrencyLimiter.GroupBy groupBy = (groupByParameter == null || groupByParameter.trim().isEmpty()) ? ConcurrencyLimiter.GroupBy.LAYOUT : ConcurrencyLimiter.GroupBy.valueOf(groupByParameter.trim().toUpperCase());
+        long waitMillis = (waitParameter == null || waitParameter.trim().isEmpty()) ? 100 : Long.parseLong(waitParameter.trim());
+        if (initialLimit < 1 || maxLimit < initialLimit || waitMillis < 0)
+        {
+          throw new IllegalArgumentException("CONCURRENCY_LIMIT must be at least 1, CONCURRENCY_LIMIT_MAX at least CONCURRENCY_LIMIT and CONCURRENCY_LIMIT_WAIT zero or more.");
+        }
+        concurrencyLimiter = new ConcurrencyLimiter(groupBy, initialLimit, maxLimit, waitMillis);
+      }
+      catch (IllegalArgumentException e)
+      {
+        throw new ServletException("Invalid concurrency limit configuration.", e);
+      }
+      concurrencyLimiterName = registerMBean(concurrencyLimiter, "ConcurrencyLimiter", filterConfig);
+    }
+
+    String slowThresholdParameter = filterConfig.getInitParameter("SLOW_REQUEST_THRESHOLD");
+    if (slowThresholdParameter != null && !slowThresholdParameter.trim().isEmpty())
+    {
+      String ringParameter = filterConfig.getInitParameter("SLOW_REQUEST_RING");
+      long thresholdMillis;
+      int capacity;
+      try
+      {
+        thresholdMillis = Long.parseLong(slowThresholdParameter.trim());
+        capacity = (ringParameter == null || ringParameter.trim().isEmpty()) ? 128 : Integer.parseInt(ringParameter.trim());
+      }
+      catch (NumberFormatException e)
+      {
+        thresholdMillis = capacity = -1;
+      }
+
+      if (thresholdMillis < 0 || capacity <= 0)
+      {
+        throw new ServletException("Invalid SLOW_REQUEST_THRESHOLD or SLOW_REQUEST_RING value: " + slowThresholdParameter + ", " + ringParameter + ". Must be zero or more milliseconds and a positive ring size.");
+      }
+
+      slowRequests = new SlowRequestRing(thresholdMillis, capacity);
+      slowRequestsName = registerMBean(slowRequests, "SlowRequestRing", filterConfig);
+    }
+
+    String bufferBudgetParameter = filterConfig.getInitParameter("BUFFER_BUDGET");
+    if (bufferBudgetParameter != null && !bufferBudgetParameter.trim().isEmpty())
+    {
+      BufferBudget.ExhaustedPolicy exhaustedPolicy = BufferBudget.ExhaustedPolicy.PASSTHROUGH;
+      String policyParameter = filterConfig.getInitParameter("BUFFER_BUDGET_POLICY");
+      String waitParameter = filterConfig.getInitParameter("BUFFER_BUDGET_WAIT");
+      try
+      {
+        if (policyParameter != null && !policyParameter.trim().isEmpty())
+        {
+          exhaustedPolicy = BufferBudget.ExhaustedPolicy.valueOf(policyParameter.trim().toUpperCase());
+        }
+
+        long waitMillis = (waitParameter == null || waitParameter.trim().isEmpty()) ? 100 : Long.parseLong(waitParameter.trim());
+        bufferBudget = new BufferBudget(parseByteSize(bufferBudgetParameter), exhaustedPolicy, waitMillis);
+      }
+      catch (IllegalArgumentException e)
+      {
+        throw new ServletException("Invalid buffer budget configuration.", e);
+      }
+
+      bufferBudgetName = registerMBean(bufferBudget, "BufferBudget", filterConfig);
+    }
+
+    String bufferModeParameter = filterConfig.getInitParameter("BUFFER_MODE");
+    if (bufferModeParameter != null && bufferModeParameter.trim().equalsIgnoreCase("DIRECT"))
+    {
+      String arenaParameter = filterConfig.getInitParameter("DIRECT_BUFFER_ARENA");
+      directBufferArena = new DirectBufferArena((arenaParameter == null || arenaParameter.trim().isEmpty()) ? 64L * 1024 * 1024 : parseByteSize(arenaParameter));
+      if (!directBufferArena.available())
+      {
+        /*
+         * No off-heap memory to be had in this JVM so stick with the heap.
+         */
+        filterConfig.getServletContext().log("LayoutsFilter: off-heap buffers are not available, falling back to BUFFER_MODE HEAP.");
+        directBufferArena = null;
+      }
+    }
+    else if (bufferModeParameter != null && !bufferModeParameter.trim().isEmpty() && !bufferModeParameter.trim().equalsIgnoreCase("HEAP"))
+    {
+      throw new ServletException("Invalid BUFFER_MODE value: " + bufferModeParameter + ". Must be HEAP or DIRECT.");
+    }
+
+    String compositionParameter = filterConfig.getInitParameter("COMPOSITION");
+    if (compositionParameter != null && compositionParameter.trim().equalsIgnoreCase("STREAMING"))
+    {
+      streamingComposition = true;
+    }
+    else if (compositionParameter != null && compositionParameter.trim().equalsIgnoreCase("ADAPTIVE"))
+    {
+      String routesParameter = filterConfig.getInitParameter("ADAPTIVE_ROUTES");
+      String streamSizeParameter = filterConfig.getInitParameter("ADAPTIVE_STREAM_SIZE");
+      String streamViewTimeParameter = filterConfig.getInitParameter("ADAPTIVE_STREAM_VIEW_TIME");
+      int maxRoutes;
+      long streamSize;
+      long streamViewMillis;
+      try
+      {
+        maxRoutes = (routesParameter == null || routesParameter.trim().isEmpty()) ? 1000 : Integer.parseInt(routesParameter.trim());
+        streamSize = (streamSizeParameter == null || streamSizeParameter.trim().isEmpty()) ? 128 * 1024 : parseByteSize(streamSizeParameter);
+        streamViewMillis = (streamViewTimeParameter == null || streamViewTimeParameter.trim().isEmpty()) ? 200 : Long.parseLong(streamViewTimeParameter.trim());
+      }
+      catch (IllegalArgumentException e)
+      {
+        throw new ServletException("Invalid adaptive composition configuration.", e);
+      }
+
+      Map<Pattern, AdaptiveComposition.Mode> pins = new LinkedHashMap<Pattern, AdaptiveComposition.Mode>();
+      String pinsParameter = filterConfig.getInitParameter("ADAPTIVE_PINS");
+      if (pinsParameter != null && !pinsParameter.trim().isEmpty())
+      {
+        for (String pin : pinsParameter.split(","))
+        {
+          int index = pin.lastIndexOf('=');
+          try
+          {
+            pins.put(Pattern.compile(pin.substring(0, index).trim()), AdaptiveComposition.Mode.valueOf(pin.substring(index + 1).trim().toUpperCase()));
+          }
+          catch (RuntimeException e)
+          {
+            throw new ServletException("Invalid ADAPTIVE_PINS entry: " + pin + ". Must be pattern=BUFFERED, pattern=STREAMING or pattern=PASSTHROUGH.", e);
+          }
+        }
+      }
+
+      adaptiveComposition = new AdaptiveComposition(maxRoutes, streamSize, streamViewMillis, pins);
+      adaptiveCompositionName = registerMBean(adaptiveComposition, "AdaptiveComposition", filterConfig);
+    }
+    else if (compositionParameter != null && !compositionParameter.trim().isEmpty() && !compositionParameter.trim().equalsIgnoreCase("BUFFERED"))
+    {
+      throw new ServletException("Invalid COMPOSITION value: " + compositionParameter + ". Must be BUFFERED, STREAMING or ADAPTIVE.");
+    }
+
+    String sampleRateParameter = filterConfig.getInitParameter("SERVER_TIMING_SAMPLE_RATE");
+    if (sampleRateParameter != null && !sampleRateParameter.trim().isEmpty())
+    {
+      try
+      {
+        serverTimingSampleRate = Double.parseDouble(sampleRateParameter.trim());
+      }
+      catch (NumberFormatException e)
+      {
+        serverTimingSampleRate = -1;
+      }
+
+      if (serverTimingSampleRate < 0 || serverTimingSampleRate > 1)
+      {
+        throw new ServletException("Invalid SERVER_TIMING_SAMPLE_RATE value: " + sampleRateParameter + ". Must be between 0 and 1.");
+      }
+    }
+
+    String requestHeaderParameter = filterConfig.getInitParameter("SERVER_TIMING_REQUEST_HEADER");
+    if (requestHeaderParameter != null && !requestHeaderParameter.trim().isEmpty())
+    {
+      serverTimingRequestHeader = requestHeaderParameter.trim();
+    }
+
+    deduplicateAssets = Boolean.parseBoolean(filterConfig.getInitParameter("DEDUPLICATE_ASSETS"));
+
+    String preloadParameter = filterConfig.getInitParameter("PRELOAD");
+    if (preloadParameter != null && !preloadParameter.trim().isEmpty())
+    {
+      preloadParameter = preloadParameter.trim().toUpperCase();
+      if (preloadParameter.equals("EARLY_HINTS"))
+      {
+        String serverInfo = filterConfig.getServletContext().getServerInfo();
+        sendEarlyHints = LayoutAssets.supportsEarlyHints(serverInfo);
+        if (!sendEarlyHints)
+        {
+          filterConfig.getServletContext().log("LayoutsFilter: " + serverInfo + " doesn't support 103 Early Hints, preload hints are only sent as Link headers.");
+        }
+      }
+      else if (!preloadParameter.equals("LINK"))
+      {
+        throw new ServletException("Invalid PRELOAD value: " + preloadParameter + ". Must be LINK or EARLY_HINTS.");
+      }
+
+      preloadAssets = true;
+    }
+
+    this.filterConfig = filterConfig;
+    loadLayouts();
+
+    String layoutCacheParameter = filterConfig.getInitParameter("LAYOUT_CACHE");
+    if (layoutCacheParameter != null && !layoutCacheParameter.trim().isEmpty())
+    {
+      String cacheSizeParameter = filterConfig.getInitParameter("LAYOUT_CACHE_SIZE");
+      int maxEntries;
+      try
+      {
+        maxEntries = (cacheSizeParameter == null || cacheSizeParameter.trim().isEmpty()) ? 1000 : Integer.parseInt(cacheSizeParameter.trim());
+      }
+      catch (NumberFormatException e)
+      {
+        throw new ServletException("Invalid LAYOUT_CACHE_SIZE value: " + cacheSizeParameter, e);
+      }
+
+      String ttlParameter = filterConfig.getInitParameter("LAYOUT_CACHE_TTL");
+      long ttlMillis;
+      try
+      {
+        ttlMillis = (ttlParameter == null || ttlParameter.trim().isEmpty()) ? 0 : Long.parseLong(ttlParameter.trim()) * 1000;
+      }
+      catch (NumberFormatException e)
+      {
+        throw new ServletException("Invalid LAYOUT_CACHE_TTL value: " + ttlParameter, e);
+      }
+
+      LayoutCacheFile cacheFile = null;
+      String cacheFileParameter = filterConfig.getInitParameter("LAYOUT_CACHE_FILE");
+      if (cacheFileParameter != null && !cacheFileParameter.trim().isEmpty())
+      {
+        String fileSizeParameter = filterConfig.getInitParameter("LAYOUT_CACHE_FILE_SIZE");
+        long fileSize;
+        try
+        {
+          fileSize = (fileSizeParameter == null || fileSizeParameter.trim().isEmpty()) ? 64L * 1024 * 1024 : parseByteSize(fileSizeParameter);
+        }
+        catch (NumberFormatException e)
+        {
+          throw new ServletException("Invalid LAYOUT_CACHE_FILE_SIZE value: " + fileSizeParameter, e);
+        }
+
+        if (fileSize < 4096 || fileSize > Integer.MAX_VALUE)
+        {
+          throw new ServletException("Invalid LAYOUT_CACHE_FILE_SIZE value: " + fileSizeParameter + ". Must be between 4K and 2G.");
+        }
+
+        /*
+         * Relative paths are relative to the temporary directory of the web application.
+         */
+        File file = new File(cacheFileParameter.trim());
+        Object tempDir = filterConfig.getServletContext().getAttribute(ServletContext.TEMPDIR);
+        if (!file.isAbsolute() && tempDir instanceof File)
+        {
+          file = new File((File) tempDir, file.getPath());
+        }
+
+        try
+        {
+          cacheFile = new LayoutCacheFile(file, (int) fileSize);
+        }
+        catch (IOException e)
+        {
+          throw new ServletException("Unable to open layout cache file: " + file, e);
+        }
+      }
+
+      layoutCache = new LayoutCache(LayoutCache.parseVaryBy(layoutCacheParameter), maxEntries, ttlMillis, cacheFile, filterConfig.getServletContext());
+      layoutCacheName = registerMBean(layoutCache, "LayoutCache", filterConfig);
+    }
+
+    String warmUpParameter = filterConfig.getInitParameter("WARM_UP");
+    if (warmUpParameter != null && !warmUpParameter.trim().isEmpty() && !warmUpParameter.trim().equalsIgnoreCase("NONE"))
+    {
+      warmUpParameter = warmUpParameter.trim().toUpperCase();
+      int composePasses;
+      if (warmUpParameter.equals("COMPILE"))
+      {
+        composePasses = 0;
+      }
+      else if (warmUpParameter.equals("COMPOSE"))
+      {
+        String passesParameter = filterConfig.getInitParameter("WARM_UP_PASSES");
+        try
+        {
+          composePasses = (passesParameter == null || passesParameter.trim().isEmpty()) ? 200 : Integer.parseInt(passesParameter.trim());
+        }
+        catch (NumberFormatException e)
+        {
+          throw new ServletException("Invalid WARM_UP_PASSES value: " + passesParameter, e);
+        }
+      }
+      else
+      {
+        throw new ServletException("Invalid WARM_UP value: " + warmUpParameter + ". Must be NONE, COMPILE or COMPOSE.");
+      }
+
+      /*
+       * The pages composed during warm up are synthetic. They must not be recorded in the layout cache (or its file), run the
+       * layout data providers or be held to a render deadline so those are left off until warm up is done.
+       */
+      LayoutCache configuredLayoutCache = layoutCache;
+      LayoutDataPrefetch configuredLayoutDataPrefetch = layoutDataPrefetch;
+      RenderDeadline configuredRenderDeadline = renderDeadline;
+      layoutCache = null;
+      layoutDataPrefetch = null;
+      renderDeadline = null;
+
+      long start = System.currentTimeMillis();
+      int warmedUp;
+      try
+      {
+        warmedUp = new LayoutWarmUp(filterConfig.getServletContext(), this).warmUp(layouts.values(), composePasses);
+      }
+      finally
+      {
+        layoutCache = configuredLayoutCache;
+        layoutDataPrefetch = configuredLayoutDataPrefetch;
+        renderDeadline = configuredRenderDeadline;
+      }
+      filterConfig.getServletContext().log("LayoutsFilter: warmed up " + warmedUp + " of " + layouts.size() + " layouts in " + (System.currentTimeMillis() - start) + " ms.");
+    }
+  }
+
+  /*
+   * @return The maximum number of threads of a pool (default 200).
+   */
+  static int parseThreads(FilterConfig filterConfig, String parameterName) throws ServletException
+  {
+    String threadsParameter = filterConfig.getInitParameter(parameterName);
+    int threads;
+    try
+    {
+      threads = (threadsParameter == null || threadsParameter.trim().isEmpty()) ? 200 : Integer.parseInt(threadsParameter.trim());
+    }
+    catch (NumberFormatException e)
+    {
+      throw new ServletException("Invalid " + parameterName + " value: " + threadsParameter, e);
+    }
+
+    if (threads < 1)
+    {
+      throw new ServletException("Invalid " + parameterName + " value: " + threadsParameter + ". Must be at least 1.");
+    }
+    return threads;
+  }
+
+  /**
+   * Find the layouts again. Use this after layouts have been added, removed or changed in a running application. Cached layout
+   * output (see the <i>LAYOUT_CACHE</i> init parameter) is dropped.
+   *
+   * @throws ServletException If the layouts can't be found.
+   */
+  public void reloadLayouts() throws ServletException
+  {
+    loadLayouts();
+    if (layoutCache != null)
+    {
+      layoutCache.invalidate();
+    }
+  }
+
+  private void loadLayouts() throws ServletException
+  {
+    Map<String, Layout> layouts = new HashMap<String, Layout>();
+
+    String layoutsDirPath = filterConfig.getInitParameter("LAYOUTS_DIRECTORY");
+    if (layoutsDirPath == null)
+    {
+      layoutsDirPath = "/WEB-INF/jsps/layouts";
+    }
+    else if (!layoutsDirPath.startsWith("/"))
+    {
+      layoutsDirPath = "/" + layoutsDirPath;
+    }
+
+    if (!layoutsDirPath.endsWith("/"))
+    {
+      layoutsDirPath += "/";
+    }
+
+    String layoutsParameter = filterConfig.getInitParameter("LAYOUTS");
+    if (layoutsParameter == null || layoutsParameter.trim().isEmpty())
+    {
+      String layoutsDirRealPath = filterConfig.getServletContext().getRealPath(layoutsDirPath);
+      if (layoutsDirRealPath != null)
+      {
+        File layoutsDir = new File(layoutsDirRealPath);
+        if (!layoutsDir.isDirectory())
+        {
+          throw new ServletException("Layouts directory: " + layoutsDirPath + " does not exists");
+        }
+        else
+        {
+          File[] layoutFiles = layoutsDir.listFiles();
+          if (layoutFiles != null)
+          {
+            for (File layoutFile : layoutFiles)
+            {
+              if (layoutFile.isFile())
+              {
+                addLayoutFile(layouts, layoutsDirPath, layoutFile.getName());
+              }
+            }
+          }
+        }
+      }
+      else
+      {
+        /*
+         * Packed WARs don't have a real path. Directories in the resource paths end with a slash.
+         */
+        Set<String> resourcePaths = filterConfig.getServletContext().getResourcePaths(layoutsDirPath);
+        if (resourcePaths == null)
+        {
+          throw new ServletException("Layouts directory: " + layoutsDirPath + " does not exists");
+        }
+
+        for (String resourcePath : resourcePaths)
+        {
+          if (!resourcePath.endsWith("/"))
+          {
+            addLayoutFile(layouts, layoutsDirPath, resourcePath.substring(resourcePath.lastIndexOf('/') + 1));
+          }
+        }
+      }
+    }
+    else
+    {
+      String[] layoutParameterValues = layoutsParameter.split(",");
+      for (String layoutParameterValue : layoutParameterValues)
+      {
+        if (!layoutParameterValue.trim().isEmpty())
+        {
+          String layoutPath = layoutParameterValue.trim();
+          if (!layoutPath.startsWith("/"))
+          {
+            layoutPath = layoutsDirPath + layoutPath;
+          }
+
+
+          String layoutName = layoutPath;
+
+          int index = layoutPath.lastIndexOf('/');
+          layoutName = layoutName.substring(index + 1, layoutName.length());
+          index = layoutName.indexOf('.');
+          if (index > -1)
+          {
+            layoutName = layoutName.substring(0, index);
+          }
+          layouts.put(layoutName, new Layout(layoutName, layoutPath));
+
+        }
+      }
+
+    }
+
+    Layout defaultLayout;
+    String defaultLayoutName = filterConfig.getInitParameter("DEFAULT_LAYOUT");
+    if (defaultLayoutName != null)
+    {
+      if (layouts.containsKey(defaultLayoutName))
+      {
+        defaultLayout = layouts.get(defaultLayoutName);
+      }
+      else
+      {
+        throw new ServletException("Default layout: " + defaultLayoutName + " not found.");
+      }
+    }
+    else
+    {
+      defaultLayout = layouts.get("application");
+    }
+
+    if (preloadAssets || deduplicateAssets)
+    {
+      for (Layout layout : layouts.values())
+      {
+        Map<String, String> assets;
+        try
+        {
+          assets = LayoutAssets.findAssets(filterConfig.getServletContext(), layout.jspPath);
+        }
+        catch (IOException e)
+        {
+          throw new ServletException("Unable to read layout: " + layout.jspPath, e);
+        }
+
+        layout.assetUrls = assets.keySet();
+
+        if (preloadAssets)
+        {
+          if (assetManifest != null)
+          {
+            Map<String, String> fingerprintedAssets = new LinkedHashMap<String, String>();
+            for (Map.Entry<String, String> asset : assets.entrySet())
+            {
+              fingerprintedAssets.put(assetManifest.fingerprintedUrl(asset.getKey()), asset.getValue());
+            }
+            assets = fingerprintedAssets;
+          }
+
+          layout.preloadLinkHeader = LayoutAssets.toPreloadLinkHeader(assets);
+        }
+      }
+    }
+
+    this.layouts = layouts;
+    this.defaultLayout = defaultLayout;
+  }
+
+  private void addLayoutFile(Map<String, Layout> layouts, String layoutsDirPath, String layoutFileName)
+  {
+    if (layoutFileName.toLowerCase().endsWith("jsp") || layoutFileName.toLowerCase().endsWith("jspx"))
+    {
+      String layoutName = layoutFileName;
+      int index = layoutName.indexOf('.');
+      if (index > -1)
+      {
+        layoutName = layoutName.substring(0, index);
+      }
+      layouts.put(layoutName, new Layout(layoutName, layoutsDirPath + layoutFileName));
+    }
+  }
+
+  @Override
+  public void doFilter(ServletRequest servletRequest, ServletResponse servletResponse, FilterChain chain) throws IOException, ServletException
+  {
+    HttpServletRequest httpRequest = (HttpServletRequest)servletRequest;
+    HttpServletResponse httpResponse = (HttpServletResponse)servletResponse;
+
+    if (slowRequests == null)
+    {
+      filter(httpRequest, httpResponse, chain, null);
+    }
+    else
+    {
+      SlowRequestRing.Timing slowTiming = slowRequests.start(httpRequest);
+      try
+      {
+        filter(httpRequest, httpResponse, chain, slowTiming);
+      }
+      finally
+      {
+        slowRequests.finish(slowTiming, this, httpRequest);
+      }
+    }
+  }
+
+  /*
+   * @param slowTiming Null unless slow requests are being recorded and this is the first pass of the filter over the request.
+   */
+  void filter(HttpServletRequest httpRequest, HttpServletResponse httpResponse, FilterChain chain, SlowRequestRing.Timing slowTiming) throws IOException, ServletException
+  {
+    if (assetManifest != null && assetManifest.serve(httpRequest, httpResponse))
+    {
+      return;
+    }
+
+    ServerTiming serverTiming = sampleServerTiming(httpRequest);
+    LayoutsEvents.PatternsEvent patternsEvent = LayoutsEvents.patterns();
+    boolean candidateForLayout = !requestExcludedFromPatterns(httpRequest);
+    if (patternsEvent != null)
+    {
+      patternsEvent.finish(httpRequest, !candidateForLayout);
+    }
+
+    if (candidateForLayout)
+    {
+      LayoutsEvents.DeciderEvent deciderEvent = LayoutsEvents.decider();
+      candidateForLayout = layoutDecider.isCandidateForLayout(httpRequest);
+      if (deciderEvent != null)
+      {
+        deciderEvent.finish(httpRequest, candidateForLayout);
+      }
+    }
+    if (serverTiming != null)
+    {
+      serverTiming.deciderNanos = serverTiming.lap();
+    }
+    if (slowTiming != null)
+    {
+      slowTiming.deciderNanos = slowTiming.lap();
+    }
+
+    if (candidateForLayout)
+    {
+      if (bufferBudget != null && bufferBudget.isExhausted())
+      {
+        if (bufferBudget.exhaustedPolicy == BufferBudget.ExhaustedPolicy.REJECT)
+        {
+          bufferBudget.rejected();
+          httpResponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+          return;
+        }
+        else if (bufferBudget.exhaustedPolicy == BufferBudget.ExhaustedPolicy.PASSTHROUGH || !bufferBudget.awaitAvailable())
+        {
+          bufferBudget.passedThrough();
+          chain.doFilter(httpRequest, httpResponse);
+          return;
+        }
+      }
+
+      AdaptiveComposition.Route route = null;
+      boolean streaming = streamingComposition;
+      if (adaptiveComposition != null)
+      {
+        route = adaptiveComposition.route(httpRequest);
+        AdaptiveComposition.Mode mode = route.mode();
+        if (mode == AdaptiveComposition.Mode.PASSTHROUGH)
+        {
+          chain.doFilter(httpRequest, httpResponse);
+          return;
         }
+        streaming = (mode == AdaptiveComposition.Mode.STREAMING);
       }
 
-      if (!onlyPatterns.isEmpty()) this.onlyPatterns = onlyPatterns;
-    }
-
-    String exceptInitParam = filterConfig.getInitParameter("EXCEPT");
-    if (exceptInitParam != null)
-    {
-      List<Pattern> exceptPatterns = new ArrayList<Pattern>();
-      String[] exceptInitParams = exceptInitParam.split(",");
-      for (String pattern : exceptInitParams)
+      ConcurrencyLimiter.Group limiterGroup = null;
+      if (concurrencyLimiter != null)
       {
-        if (!pattern.trim().isEmpty())
+        limiterGroup = concurrencyLimiter.group(concurrencyGroup(httpRequest));
+        if (!limiterGroup.acquire())
         {
-          exceptPatterns.add(Pattern.compile(pattern));
+          concurrencyLimiter.shed();
+          httpResponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+          return;
         }
       }
 
-      if (!exceptPatterns.isEmpty()) this.exceptPatterns = exceptPatterns;
-    }
+      /*
+       * Everything after acquiring goes in the try so the permit can't leak (to a failed preload hint or anything else).
+       */
+      long start = System.nanoTime();
+      boolean completed = false;
+      try
+      {
+        if (preloadAssets)
+        {
+          sendPreloadHints(httpRequest, httpResponse);
+        }
 
-    String useLayoutDeciderClass = filterConfig.getInitParameter("USE_LAYOUT_DECIDER");
-    if (useLayoutDeciderClass == null)
-    {
-      layoutDecider = new DefaultHtmlPageDecider();
+        composeWithLayout(httpRequest, httpResponse, chain, serverTiming, streaming, route);
+        completed = true;
+      }
+      finally
+      {
+        if (limiterGroup != null)
+        {
+          limiterGroup.release(completed ? System.nanoTime() - start : -1);
+        }
+      }
     }
     else
     {
-      try
-      {
-        layoutDecider = (UseLayoutDecider) Class.forName(useLayoutDeciderClass).getConstructor().newInstance();
-      }
-      catch (Exception e)
+      if (serverTiming != null)
       {
-        throw new ServletException(e);
+        httpResponse.setHeader(ServerTiming.HEADER, serverTiming.toString());
       }
+      chain.doFilter(httpRequest, httpResponse);
     }
+  }
 
-    String layoutsDirPath = filterConfig.getInitParameter("LAYOUTS_DIRECTORY");
-    if (layoutsDirPath == null)
+  /*
+   * @param serverTiming Null if the request isn't sampled.
+   */
+  void composeWithLayout(HttpServletRequest httpRequest, HttpServletResponse httpResponse, FilterChain chain, ServerTiming serverTiming) throws IOException, ServletException
+  {
+    composeWithLayout(httpRequest, httpResponse, chain, serverTiming, streamingComposition, null);
+  }
+
+  /*
+   * @param route Null unless composition is adaptive, the statistics of the route are updated once the page is composed.
+   */
+  void composeWithLayout(HttpServletRequest httpRequest, HttpServletResponse httpResponse, FilterChain chain, ServerTiming serverTiming, boolean streaming, AdaptiveComposition.Route route) throws IOException, ServletException
+  {
+    boolean head = (fastHeadRequests && httpRequest.getMethod().equals("HEAD"));
+    boolean delta = (sectionDeltas != null && !head && httpRequest.getHeader(SectionDeltas.HEADER) != null);
+    if (head || delta)
     {
-      layoutsDirPath = "/WEB-INF/jsps/layouts";
+      streaming = false;
     }
-    else if (!layoutsDirPath.startsWith("/"))
+
+    HttpBufferedResponse httpResponseBuffer = new HttpBufferedResponse(httpRequest, httpResponse, bufferBudget, directBufferArena);
+    if (streaming)
     {
-      layoutsDirPath = "/" + layoutsDirPath;
+      if (serverTiming != null)
+      {
+        serverTiming = sendServerTimingAsTrailer(httpResponse, serverTiming);
+      }
+      httpResponseBuffer.streamAfterHead(new StreamingComposition(this, httpRequest, httpResponse, serverTiming));
     }
 
-    if (!layoutsDirPath.endsWith("/"))
+    if (cspNonces && httpRequest.getAttribute(CSP_NONCE) == null)
     {
-      layoutsDirPath += "/";
+      httpRequest.setAttribute(CSP_NONCE, NonceInjector.newNonce());
     }
 
-    String layoutsParameter = filterConfig.getInitParameter("LAYOUTS");
-    if (layoutsParameter == null || layoutsParameter.trim().isEmpty())
+    if (layoutDataPrefetch != null)
+    {
+      layoutDataPrefetch.start(httpRequest, layoutFor(httpRequest));
+    }
+
+    SlowRequestRing.Timing slowTiming = (slowRequests == null) ? null : slowRequests.timing(httpRequest);
+    try
     {
-      File layoutsDir = new File(filterConfig.getServletContext().getRealPath(layoutsDirPath));
-      if (!layoutsDir.isDirectory())
+      if (serverTiming != null)
+      {
+        serverTiming.lap();
+      }
+      if (slowTiming != null)
+      {
+        slowTiming.lap();
+      }
+
+      long viewStart = (route == null) ? 0 : System.nanoTime();
+      LayoutsEvents.ViewEvent viewEvent = LayoutsEvents.view();
+      long deadlineMillis = (renderDeadline == null || streaming || head || delta) ? 0 : renderDeadline.deadlineMillis(httpRequest);
+      if (deadlineMillis <= 0)
+      {
+        chain.doFilter(httpRequest, httpResponseBuffer);
+      }
+      else if (!renderDeadline.runView(this, httpRequest, httpResponse, httpResponseBuffer, chain, deadlineMillis))
+      {
+        /*
+         * The view missed its deadline, the page has been sent without it.
+         */
+        if (slowTiming != null)
+        {
+          slowTiming.viewNanos = slowTiming.lap();
+          slowTiming.composed = true;
+        }
+        return;
+      }
+      if (viewEvent != null)
+      {
+        viewEvent.finish(httpRequest, layoutFor(httpRequest), httpResponseBuffer.viewSize(), streaming);
+      }
+      long viewNanos = (route == null) ? 0 : System.nanoTime() - viewStart;
+
+      if (serverTiming != null)
+      {
+        serverTiming.viewNanos = serverTiming.lap();
+      }
+      if (slowTiming != null)
+      {
+        slowTiming.viewNanos = slowTiming.lap();
+      }
+
+      int composition;
+      if (head)
+      {
+        composition = renderHead(httpRequest, httpResponse, httpResponseBuffer);
+      }
+      else if (delta)
+      {
+        composition = renderSectionDeltas(httpRequest, httpResponse, httpResponseBuffer);
+      }
+      else if (!httpResponseBuffer.finishStreaming())
       {
-        throw new ServletException("Layouts directory: " + layoutsDirPath + " does not exists");
+        composition = renderLayout(httpRequest, httpResponse, httpResponseBuffer, serverTiming);
       }
       else
       {
-        layouts = new HashMap<String, Layout>();
-        File[] layoutFiles = layoutsDir.listFiles();
-        if (layoutFiles != null)
+        composition = COMPOSED;
+        if (serverTiming != null)
         {
-          for (File layoutFile : layoutFiles)
-          {
-            if (layoutFile.isFile())
-            {
-              String layoutFileName = layoutFile.getName();
-              if (layoutFileName.toLowerCase().endsWith("jsp") || layoutFileName.toLowerCase().endsWith("jspx"))
-              {
-                String layoutName = layoutFileName;
-                int index = layoutName.indexOf('.');
-                if (index > -1)
-                {
-                  layoutName = layoutName.substring(0, index);
-                }
-                layouts.put(layoutName, new Layout(layoutName, layoutsDirPath + layoutFileName));
-              }
-            }
-          }
+          /*
+           * The layout was rendered while the view was running.
+           */
+          serverTiming.viewNanos -= serverTiming.layoutNanos;
         }
       }
+
+      if (slowTiming != null)
+      {
+        slowTiming.layoutNanos = slowTiming.lap();
+        slowTiming.composed = (composition != NOT_COMPOSED);
+        slowTiming.viewBytes = httpResponseBuffer.viewSize();
+      }
+
+      if (route != null && !head && !delta)
+      {
+        Boolean cacheHit = (layoutCache == null || composition == NOT_COMPOSED || streaming) ? null : composition == COMPOSED_FROM_CACHE;
+        route.record(httpResponseBuffer.viewSize(), viewNanos, composition != NOT_COMPOSED, cacheHit);
+      }
     }
-    else
+    finally
     {
-      layouts = new HashMap<String, Layout>();
-      String[] layoutParameterValues = layoutsParameter.split(",");
-      for (String layoutParameterValue : layoutParameterValues)
+      httpResponseBuffer.release();
+      if (layoutDataPrefetch != null)
       {
-        if (!layoutParameterValue.trim().isEmpty())
+        layoutDataPrefetch.cancel(httpRequest);
+      }
+    }
+  }
+
+  /*
+   * @param serverTiming Null if the request isn't sampled.
+   * @return NOT_COMPOSED, COMPOSED or COMPOSED_FROM_CACHE.
+   */
+  int renderLayout(HttpServletRequest httpRequest, HttpServletResponse httpResponse, HttpBufferedResponse httpResponseBuffer, ServerTiming serverTiming) throws IOException, ServletException
+  {
+    boolean compose = httpResponseBuffer.hasBufferedContent() && httpResponseBuffer.isHtmlContent() && !trueValue(httpRequest.getAttribute(NO_LAYOUT));
+    if (serverTiming != null)
+    {
+      serverTiming.bufferNanos = serverTiming.lap();
+      serverTiming.bufferedBytes = httpResponseBuffer.bufferedSize();
+    }
+
+    if (compose)
+    {
+      Layout layout = layoutFor(httpRequest);
+      if (layout != null && sectionDeltas != null)
+      {
+        httpResponse.addHeader("Vary", SectionDeltas.HEADER);
+      }
+      String cacheKey = (layout == null || layoutCache == null) ? null : layoutCache.key(layout, httpRequest);
+      LayoutCache.Entry cached = (cacheKey == null) ? null : layoutCache.get(cacheKey);
+      if (cached == LayoutCache.UNCACHEABLE)
+      {
+        cached = null;
+        cacheKey = null;
+      }
+
+      if (cached != null && fastHeadRequests && pageTransformers == null && assetManifest == null)
+      {
+        HeadRequests.setETag(httpResponse, layout, cached, httpResponseBuffer.getContent());
+      }
+
+      if (layout != null && (cached != null || cacheKey != null || serverTiming != null))
+      {
+        /*
+         * Sampled requests have the layout rendered into memory so the timing of the layout can go in a header before the page.
+         * Layouts being recorded for the cache are rendered into memory so the layout output can be picked out of it.
+         */
+        HeapViewBuffer page = (serverTiming != null || cached == null) ? new HeapViewBuffer() : null;
+        try
         {
-          String layoutPath = layoutParameterValue.trim();
-          if (!layoutPath.startsWith("/"))
+          OutputStream layoutOutput = (page == null) ? compositionStream(httpRequest, httpResponse) : page;
+          HttpMixedOutputResponse layoutResponse = new HttpMixedOutputResponse(httpResponse, layoutOutput);
+          LayoutsEvents.LayoutEvent layoutEvent = LayoutsEvents.layout();
+          if (cached != null)
           {
-            layoutPath = layoutsDirPath + layoutPath;
+            if (cached.contentType != null)
+            {
+              httpResponse.setContentType(cached.contentType);
+            }
+            cached.replay(newView(httpRequest, layout, new View(httpResponseBuffer.getContent(), layoutResponse)), layoutOutput);
           }
+          else
+          {
+            View view = (cacheKey == null) ? new View(httpResponseBuffer.getContent(), layoutResponse) : new LayoutCache.Recorder(httpResponseBuffer.getContent(), layoutResponse, page);
+            httpRequest.setAttribute(VIEW, newView(httpRequest, layout, view));
+            resolveLayoutData(httpRequest, layout);
+            httpRequest.getRequestDispatcher(layout.jspPath).forward(httpRequest, layoutResponse);
 
+            if (cacheKey != null)
+            {
+              layoutCache.put(cacheKey, ((LayoutCache.Recorder) view).record(httpResponse.getContentType(), cspNonces ? String.valueOf(httpRequest.getAttribute(CSP_NONCE)) : null));
+            }
+          }
 
-          String layoutName = layoutPath;
+          if (layoutEvent != null)
+          {
+            layoutEvent.finish(httpRequest, layout, httpResponseBuffer.bufferedSize(), cached != null);
+          }
 
-          int index = layoutPath.lastIndexOf('/');
-          layoutName = layoutName.substring(index + 1, layoutName.length());
-          index = layoutName.indexOf('.');
-          if (index > -1)
+          if (serverTiming != null)
           {
-            layoutName = layoutName.substring(0, index);
+            serverTiming.layoutNanos = serverTiming.lap();
+            serverTiming.layoutCached = (cached != null);
+            httpResponse.setHeader(ServerTiming.HEADER, serverTiming.toString());
           }
-          layouts.put(layoutName, new Layout(layoutName, layoutPath));
 
+          if (page == null)
+          {
+            finishComposition(layoutOutput);
+          }
+          else
+          {
+            OutputStream compositionStream = compositionStream(httpRequest, httpResponse);
+            page.writeTo(compositionStream);
+            finishComposition(compositionStream);
+          }
+        }
+        finally
+        {
+          if (page != null)
+          {
+            page.release();
+          }
+        }
+        return (cached == null) ? COMPOSED : COMPOSED_FROM_CACHE;
+      }
+      else if (layout != null)
+      {
+        OutputStream compositionStream = compositionStream(httpRequest, httpResponse);
+        HttpMixedOutputResponse layoutResponse = new HttpMixedOutputResponse(httpResponse, compositionStream);
+        View view = newView(httpRequest, layout, new View(httpResponseBuffer.getContent(), layoutResponse));
+        httpRequest.setAttribute(VIEW, view);
+        resolveLayoutData(httpRequest, layout);
+        LayoutsEvents.LayoutEvent layoutEvent = LayoutsEvents.layout();
+        httpRequest.getRequestDispatcher(layout.jspPath).forward(httpRequest, layoutResponse);
+        if (layoutEvent != null)
+        {
+          layoutEvent.finish(httpRequest, layout, httpResponseBuffer.bufferedSize(), false);
+        }
+        layoutResponse.flushWriter();
+        finishComposition(compositionStream);
+        return COMPOSED;
+      }
+      else
+      {
+        if (serverTiming != null)
+        {
+          httpResponse.setHeader(ServerTiming.HEADER, serverTiming.toString());
         }
+        httpResponse.setStatus(500);
+        httpResponse.getWriter().write("<html><body>No layout defined with named: <i>" + httpRequest.getAttribute(LAYOUT) + "</i></body></html>");
+        return NOT_COMPOSED;
+      }
+    }
+    else
+    {
+      if (serverTiming != null)
+      {
+        httpResponse.setHeader(ServerTiming.HEADER, serverTiming.toString());
       }
+      httpResponseBuffer.pushContent();
+      return NOT_COMPOSED;
+    }
+  }
 
+  /*
+   * HEAD_REQUESTS=FAST: sets the headers the composed page would have without rendering the layout. The ETag and Content-Length are
+   * only set when the page is known without rendering it (see HeadRequests).
+   *
+   * @return NOT_COMPOSED, COMPOSED or COMPOSED_FROM_CACHE.
+   */
+  int renderHead(HttpServletRequest httpRequest, HttpServletResponse httpResponse, HttpBufferedResponse httpResponseBuffer) throws IOException, ServletException
+  {
+    Layout layout = layoutFor(httpRequest);
+    if (layout == null || !httpResponseBuffer.hasBufferedContent() || !httpResponseBuffer.isHtmlContent() || trueValue(httpRequest.getAttribute(NO_LAYOUT)))
+    {
+      /*
+       * Not composed (or no such layout), the container drops the body.
+       */
+      return renderLayout(httpRequest, httpResponse, httpResponseBuffer, null);
     }
 
-    String defaultLayoutName = filterConfig.getInitParameter("DEFAULT_LAYOUT");
-    if (defaultLayoutName != null)
+    long contentLength = -1;
+    String cacheKey = (layoutCache == null) ? null : layoutCache.key(layout, httpRequest);
+    LayoutCache.Entry cached = (cacheKey == null) ? null : layoutCache.get(cacheKey);
+    if (cached == LayoutCache.UNCACHEABLE)
     {
-      if (layouts.containsKey(defaultLayoutName))
+      cached = null;
+    }
+
+    if (cached != null)
+    {
+      if (cached.contentType != null)
       {
-        defaultLayout = layouts.get(defaultLayoutName);
+        httpResponse.setContentType(cached.contentType);
       }
-      else
+
+      if (pageTransformers == null && assetManifest == null)
       {
-        throw new ServletException("Default layout: " + defaultLayoutName + " not found.");
+        /*
+         * Nothing changes the page on its way out so its size is the cached layout output plus what it yields of the view.
+         */
+        HeadRequests.setETag(httpResponse, layout, cached, httpResponseBuffer.getContent());
+        HeadRequests.CountingOutputStream counter = new HeadRequests.CountingOutputStream(null);
+        cached.replay(newView(httpRequest, layout, new View(httpResponseBuffer.getContent(), new HttpMixedOutputResponse(httpResponse, counter))), counter);
+        contentLength = counter.count;
       }
     }
+
+    if (contentLength >= 0)
+    {
+      httpResponse.setContentLengthLong(contentLength);
+    }
     else
     {
-      defaultLayout = layouts.get("application");
+      /*
+       * Committing the headers now keeps the container from sending a Content-Length of what was written (nothing).
+       */
+      httpResponse.flushBuffer();
+    }
+    return (cached == null) ? COMPOSED : COMPOSED_FROM_CACHE;
+  }
+
+  /*
+   * SECTION_DELTAS: the page is refreshing itself, only the sections of the view that changed from the hashes the page sent are sent
+   * back (see SectionDeltas). The layout isn't rendered.
+   *
+   * @return NOT_COMPOSED or COMPOSED.
+   */
+  int renderSectionDeltas(HttpServletRequest httpRequest, HttpServletResponse httpResponse, HttpBufferedResponse httpResponseBuffer) throws IOException, ServletException
+  {
+    Layout layout = layoutFor(httpRequest);
+    if (layout == null || !httpResponseBuffer.hasBufferedContent() || !httpResponseBuffer.isHtmlContent() || trueValue(httpRequest.getAttribute(NO_LAYOUT)))
+    {
+      /*
+       * Nothing to take sections from, the script reloads the page when it doesn't get JSON back.
+       */
+      return renderLayout(httpRequest, httpResponse, httpResponseBuffer, null);
     }
 
+    sectionDeltas.respond(httpResponse, newView(httpRequest, layout, new View(httpResponseBuffer.getContent(), httpResponse)), layout.name, httpRequest.getHeader(SectionDeltas.HEADER));
+    return COMPOSED;
   }
 
-  @Override
-  public void doFilter(ServletRequest servletRequest, ServletResponse servletResponse, FilterChain chain) throws IOException, ServletException
+  /*
+   * The concurrency limit group of the request, its layout as known before the view runs (see sendPreloadHints) or its route.
+   */
+  String concurrencyGroup(HttpServletRequest httpRequest)
   {
-    HttpServletRequest httpRequest = (HttpServletRequest)servletRequest;
-    HttpServletResponse httpResponse = (HttpServletResponse)servletResponse;
+    if (concurrencyLimiter.groupBy == ConcurrencyLimiter.GroupBy.ROUTE)
+    {
+      return AdaptiveComposition.routeKey(httpRequest.getRequestURI().substring(httpRequest.getContextPath().length()));
+    }
+    else
+    {
+      Layout layout = layoutFor(httpRequest);
+      return (layout == null) ? "" : layout.name;
+    }
+  }
+
+  /*
+   * @return null if the request isn't sampled for the Server-Timing header.
+   */
+  ServerTiming sampleServerTiming(HttpServletRequest httpRequest)
+  {
+    if ((serverTimingRequestHeader != null && httpRequest.getHeader(serverTimingRequestHeader) != null)
+        || (serverTimingSampleRate > 0 && ThreadLocalRandom.current().nextDouble() < serverTimingSampleRate))
+    {
+      return new ServerTiming();
+    }
+    else
+    {
+      return null;
+    }
+  }
 
-    if (!requestExcludedFromPatterns(httpRequest) && layoutDecider.isCandidateForLayout(httpRequest))
+  /*
+   * The page is sent while the view is running in streaming composition so the timings can only go in a trailer.
+   *
+   * @return null if the container (or client) doesn't support trailers.
+   */
+  ServerTiming sendServerTimingAsTrailer(HttpServletResponse httpResponse, final ServerTiming serverTiming)
+  {
+    try
+    {
+      httpResponse.setTrailerFields(new Supplier<Map<String, String>>()
+      {
+        @Override
+        public Map<String, String> get()
+        {
+          return Collections.singletonMap(ServerTiming.HEADER, serverTiming.toString());
+        }
+      });
+      httpResponse.addHeader("Trailer", ServerTiming.HEADER);
+      return serverTiming;
+    }
+    catch (IllegalStateException e)
+    {
+      return null;
+    }
+  }
+
+  /*
+   * @return null if the filter hasn't been initialized.
+   */
+  ServletContext servletContext()
+  {
+    return (filterConfig == null) ? null : filterConfig.getServletContext();
+  }
+
+  /*
+   * The layout named by the LAYOUT request attribute or the default layout if not set. Null if there isn't one.
+   */
+  Layout layoutFor(HttpServletRequest httpRequest)
+  {
+    String layoutName = (String) httpRequest.getAttribute(LAYOUT);
+    return (layoutName == null) ? defaultLayout : layouts.get(layoutName);
+  }
+
+  /*
+   * @return null if there's no layout with the name.
+   */
+  Layout layout(String name)
+  {
+    return layouts.get(name);
+  }
+
+  /*
+   * Called right before the layout is forwarded to.
+   */
+  void resolveLayoutData(HttpServletRequest httpRequest, Layout layout)
+  {
+    if (layoutDataPrefetch != null)
+    {
+      layoutDataPrefetch.resolve(httpRequest, layout);
+    }
+  }
+
+  View newView(HttpServletRequest httpRequest, Layout layout, View view)
+  {
+    if (deduplicateAssets)
+    {
+      view.duplicateAssets = layout.assetUrls;
+    }
+    if (sectionDeltas != null)
+    {
+      view.sectionDeltas = sectionDeltas;
+      view.layoutName = layout.name;
+    }
+    SlowRequestRing.Timing slowTiming = (slowRequests == null) ? null : slowRequests.timing(httpRequest);
+    if (slowTiming != null)
+    {
+      slowTiming.view = view;
+    }
+    return view;
+  }
+
+  /*
+   * Everything that makes up the composed page is written to this stream.
+   */
+  OutputStream compositionStream(HttpServletRequest httpRequest, HttpServletResponse httpResponse) throws IOException
+  {
+    OutputStream compositionStream = httpResponse.getOutputStream();
+    if (assetManifest != null)
     {
-      HttpBufferedResponse httpResponseBuffer = new HttpBufferedResponse(httpRequest, httpResponse);
-      chain.doFilter(httpRequest, httpResponseBuffer);
+      compositionStream = assetManifest.rewrite(compositionStream);
+    }
 
-      if (httpResponseBuffer.hasBufferedContent() && httpResponseBuffer.isHtmlContent() && !trueValue(httpRequest.getAttribute(NO_LAYOUT)))
+    if (pageTransformers != null)
+    {
+      PageTransformer[] transformers = new PageTransformer[pageTransformers.size()];
+      for (int i = 0; i < transformers.length; i++)
       {
-        String layoutName = (String) httpRequest.getAttribute(LAYOUT);
-        Layout layout = (layoutName == null) ? defaultLayout : layouts.get(layoutName);
-        if (layout != null)
+        try
         {
-          httpResponse = new HttpMixedOutputResponse(httpResponse);
-          httpRequest.setAttribute(VIEW, new View(httpResponseBuffer.getContent(), httpResponse));
-          httpRequest.getRequestDispatcher(layout.jspPath).forward(httpRequest, httpResponse);
+          transformers[i] = pageTransformers.get(i).newInstance();
         }
-        else
+        catch (ReflectiveOperationException e)
         {
-          httpResponse.setStatus(500);
-          httpResponse.getWriter().write("<html><body>No layout defined with named: <i>" + layoutName + "</i></body></html>");
+          throw new IOException(e);
         }
+        transformers[i].begin(httpRequest, httpResponse);
       }
-      else
-      {
-        httpResponseBuffer.pushContent();
-      }
+      compositionStream = new HtmlTokenizingOutputStream(compositionStream, transformers);
+    }
+    return compositionStream;
+  }
+
+  /*
+   * Called once everything that makes up the composed page has been written to the composition stream.
+   */
+  void finishComposition(OutputStream compositionStream) throws IOException
+  {
+    if (compositionStream instanceof HtmlTokenizingOutputStream)
+    {
+      ((HtmlTokenizingOutputStream) compositionStream).finish();
     }
     else
     {
-      chain.doFilter(httpRequest, httpResponse);
+      compositionStream.flush();
     }
   }
 
   @Override
   public void destroy()
-  {}
+  {
+    unregisterMBean(bufferBudgetName);
+    unregisterMBean(layoutCacheName);
+    unregisterMBean(adaptiveCompositionName);
+    unregisterMBean(slowRequestsName);
+    unregisterMBean(concurrencyLimiterName);
+    if (layoutCache != null)
+    {
+      layoutCache.close();
+    }
+    if (layoutDataPrefetch != null)
+    {
+      layoutDataPrefetch.shutdown();
+    }
+    if (renderDeadline != null)
+    {
+      renderDeadline.shutdown();
+    }
+  }
+
+  /*
+   * Let the client start fetching the assets of the layout while the view is still being rendered. The layout used is the one
+   * known before the view runs (the LAYOUT request attribute if already set, otherwise the default layout).
+   */
+  void sendPreloadHints(HttpServletRequest httpRequest, HttpServletResponse httpResponse) throws IOException
+  {
+    Layout layout = layoutFor(httpRequest);
+    if (layout != null && layout.preloadLinkHeader != null)
+    {
+      httpResponse.addHeader("Link", layout.preloadLinkHeader);
+      if (sendEarlyHints)
+      {
+        /*
+         * Only set when the container supports 103 Early Hints (see LayoutAssets.supportsEarlyHints). The final response still
+         * carries the Link header.
+         */
+        httpResponse.sendError(103);
+      }
+    }
+  }
 
   boolean requestExcludedFromPatterns(HttpServletRequest httpRequest)
   {
@@ -323,4 +1579,10 @@ public class LayoutsFilter implements Filter
 
     return false;
   }
+
+  static final int NOT_COMPOSED = 0;
+
+  static final int COMPOSED = 1;
+
+  static final int COMPOSED_FROM_CACHE = 2;
 }
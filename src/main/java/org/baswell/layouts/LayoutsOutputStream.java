@@ -0,0 +1,74 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.layouts;
+
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import java.io.IOException;
+import java.io.OutputStream;
+
+class LayoutsOutputStream extends ServletOutputStream
+{
+  private OutputStream outStream;
+  
+  public LayoutsOutputStream(OutputStream outStream)
+  {
+    this.outStream = outStream;
+  }
+
+  OutputStream target()
+  {
+    return outStream;
+  }
+
+  @Override
+  public void write(int b) throws IOException
+  {
+    outStream.write(b);
+  }
+
+  @Override
+  public void write(byte[] buffer) throws IOException
+  {
+    outStream.write(buffer);
+  }
+
+  @Override
+  public void write(byte[] buffer, int offset, int length) throws IOException
+  {
+    outStream.write(buffer, offset, length);
+  }
+
+  @Override
+  public void flush() throws IOException
+  {
+    outStream.flush();
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    outStream.close();
+  }
+
+  @Override
+  public boolean isReady() {
+    return true;
+  }
+
+  @Override
+  public void setWriteListener(WriteListener writeListener) {}
+}
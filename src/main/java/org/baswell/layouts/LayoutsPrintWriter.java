@@ -0,0 +1,319 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.layouts;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/*
+ * The PrintWriter given to views and layouts. A PrintWriter over an OutputStreamWriter takes a lock (PrintWriter, then the
+ * StreamEncoder) on every write and copies long strings before encoding them. This writer is confined to the request thread so
+ * it takes no locks: characters are copied into a fixed char buffer and encoded with one CharsetEncoder into a fixed byte buffer
+ * that is written to the stream when full or flushed.
+ *
+ * Same as PrintWriter it never throws an IOException, a failed write sets the error returned by checkError.
+ */
+class LayoutsPrintWriter extends PrintWriter
+{
+  private final OutputStream outStream;
+
+  private final CharsetEncoder encoder;
+
+  private final char[] chars = new char[CHAR_BUFFER_SIZE];
+
+  private final CharBuffer charBuffer = CharBuffer.wrap(chars);
+
+  private final byte[] bytes = new byte[BYTE_BUFFER_SIZE];
+
+  private final ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
+
+  private boolean closed;
+
+  LayoutsPrintWriter(OutputStream outStream)
+  {
+    this(outStream, Charset.defaultCharset());
+  }
+
+  LayoutsPrintWriter(OutputStream outStream, Charset charset)
+  {
+    super(Writer.nullWriter(), false);
+    this.outStream = outStream;
+    encoder = charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+  }
+
+  @Override
+  public void write(int c)
+  {
+    if (ensureOpen())
+    {
+      if (!charBuffer.hasRemaining() && !encodeChars(false))
+      {
+        return;
+      }
+      charBuffer.put((char) c);
+    }
+  }
+
+  @Override
+  public void write(char[] buffer, int offset, int length)
+  {
+    if (ensureOpen())
+    {
+      while (length > 0)
+      {
+        if (!charBuffer.hasRemaining() && !encodeChars(false))
+        {
+          return;
+        }
+        int copy = Math.min(length, charBuffer.remaining());
+        charBuffer.put(buffer, offset, copy);
+        offset += copy;
+        length -= copy;
+      }
+    }
+  }
+
+  @Override
+  public void write(char[] buffer)
+  {
+    write(buffer, 0, buffer.length);
+  }
+
+  @Override
+  public void write(String string, int offset, int length)
+  {
+    if (ensureOpen())
+    {
+      while (length > 0)
+      {
+        if (!charBuffer.hasRemaining() && !encodeChars(false))
+        {
+          return;
+        }
+        int position = charBuffer.position();
+        int copy = Math.min(length, charBuffer.remaining());
+        string.getChars(offset, offset + copy, chars, position);
+        charBuffer.position(position + copy);
+        offset += copy;
+        length -= copy;
+      }
+    }
+  }
+
+  @Override
+  public void write(String string)
+  {
+    write(string, 0, string.length());
+  }
+
+  @Override
+  public void println()
+  {
+    write(LINE_SEPARATOR);
+  }
+
+  @Override
+  public void println(boolean x)
+  {
+    print(x);
+    println();
+  }
+
+  @Override
+  public void println(char x)
+  {
+    print(x);
+    println();
+  }
+
+  @Override
+  public void println(int x)
+  {
+    print(x);
+    println();
+  }
+
+  @Override
+  public void println(long x)
+  {
+    print(x);
+    println();
+  }
+
+  @Override
+  public void println(float x)
+  {
+    print(x);
+    println();
+  }
+
+  @Override
+  public void println(double x)
+  {
+    print(x);
+    println();
+  }
+
+  @Override
+  public void println(char[] x)
+  {
+    print(x);
+    println();
+  }
+
+  @Override
+  public void println(String x)
+  {
+    print(x);
+    println();
+  }
+
+  @Override
+  public void println(Object x)
+  {
+    print(String.valueOf(x));
+    println();
+  }
+
+  @Override
+  public void flush()
+  {
+    if (!closed && encodeChars(false) && writeBytes())
+    {
+      try
+      {
+        outStream.flush();
+      }
+      catch (IOException e)
+      {
+        failed(e);
+      }
+    }
+  }
+
+  @Override
+  public void close()
+  {
+    if (!closed)
+    {
+      if (encodeChars(true))
+      {
+        encoder.flush(byteBuffer);
+        writeBytes();
+      }
+      closed = true;
+      try
+      {
+        outStream.close();
+      }
+      catch (IOException e)
+      {
+        failed(e);
+      }
+      super.close();
+    }
+  }
+
+  private boolean ensureOpen()
+  {
+    if (closed)
+    {
+      setError();
+    }
+    return !closed;
+  }
+
+  /*
+   * Encodes the characters in the char buffer into the byte buffer, writing the byte buffer out each time it fills. A high surrogate
+   * at the end is left in the char buffer for the next write unless this is the end of input.
+   *
+   * @return false if writing failed.
+   */
+  private boolean encodeChars(boolean endOfInput)
+  {
+    charBuffer.flip();
+    try
+    {
+      while (true)
+      {
+        CoderResult result = encoder.encode(charBuffer, byteBuffer, endOfInput);
+        if (result.isOverflow())
+        {
+          if (!writeBytes())
+          {
+            return false;
+          }
+        }
+        else
+        {
+          return true;
+        }
+      }
+    }
+    finally
+    {
+      charBuffer.compact();
+    }
+  }
+
+  /*
+   * @return false if writing failed.
+   */
+  private boolean writeBytes()
+  {
+    if (byteBuffer.position() > 0)
+    {
+      try
+      {
+        outStream.write(bytes, 0, byteBuffer.position());
+      }
+      catch (IOException e)
+      {
+        failed(e);
+        return false;
+      }
+      finally
+      {
+        byteBuffer.clear();
+      }
+    }
+    return true;
+  }
+
+  private void failed(IOException e)
+  {
+    if (e instanceof InterruptedIOException)
+    {
+      Thread.currentThread().interrupt();
+    }
+    setError();
+  }
+
+  static final int CHAR_BUFFER_SIZE = 1024;
+
+  static final int BYTE_BUFFER_SIZE = 2048;
+
+  static final String LINE_SEPARATOR = System.lineSeparator();
+}
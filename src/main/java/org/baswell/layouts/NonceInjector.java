@@ -0,0 +1,86 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.layouts;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/*
+ * The NONCE transformer. The filter sets a random nonce as the request attribute Layouts.CSP_NONCE before the view runs, layouts
+ * and views opt a script or style in by writing that nonce into it. Since the view may contain content the application didn't write,
+ * tags are never given a nonce here. Any nonce attribute that isn't the nonce of this page is removed and {nonce} is replaced in any
+ * Content-Security-Policy header already set on the response.
+ */
+class NonceInjector implements PageTransformer
+{
+  private String nonce;
+
+  @Override
+  public void begin(HttpServletRequest request, HttpServletResponse response)
+  {
+    Object existing = request.getAttribute(Layouts.CSP_NONCE);
+    if (existing instanceof String)
+    {
+      nonce = (String) existing;
+    }
+    else
+    {
+      nonce = newNonce();
+      request.setAttribute(Layouts.CSP_NONCE, nonce);
+    }
+
+    for (String header : CSP_HEADERS)
+    {
+      String policy = response.getHeader(header);
+      if (policy != null && policy.contains(NONCE_PLACEHOLDER))
+      {
+        response.setHeader(header, policy.replace(NONCE_PLACEHOLDER, nonce));
+      }
+    }
+  }
+
+  @Override
+  public void token(HtmlToken token, TokenWriter out) throws IOException
+  {
+    if (token.getType() == HtmlToken.Type.START_TAG)
+    {
+      String value;
+      while ((value = token.getAttribute("nonce")) != null && !value.equals(nonce))
+      {
+        token.removeAttribute("nonce");
+      }
+    }
+    out.write(token);
+  }
+
+  static String newNonce()
+  {
+    byte[] bytes = new byte[NONCE_SIZE];
+    RANDOM.nextBytes(bytes);
+    return Base64.getEncoder().encodeToString(bytes);
+  }
+
+  static final String NONCE_PLACEHOLDER = "{nonce}";
+
+  static final String[] CSP_HEADERS = new String[]{"Content-Security-Policy", "Content-Security-Policy-Report-Only"};
+
+  static final int NONCE_SIZE = 16;
+
+  static final SecureRandom RANDOM = new SecureRandom();
+}
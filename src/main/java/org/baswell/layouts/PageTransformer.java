@@ -0,0 +1,65 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.layouts;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * <p>
+ * Rewrites composed pages as they are written to the client. List transformers in the <i>TRANSFORMERS</i> init parameter of the
+ * {@link LayoutsFilter} (comma delimited, applied in order). Besides the class names of your own transformers the built-in
+ * transformers <i>MINIFY</i> (collapses whitespace and drops comments) and <i>NONCE</i> (removes CSP nonces the page wasn't given)
+ * can be listed.
+ * </p>
+ *
+ * <p>
+ * The composed page is tokenized once as it streams out and every transformer sees each {@link HtmlToken} in turn. A transformer
+ * passes a token on (changed or not) by writing it to the given {@link TokenWriter}, drops it by not writing it, or adds content by
+ * writing text. A new instance is created for each page (so transformers must have a public no-argument constructor) which means
+ * transformers can keep state from token to token.
+ * </p>
+ */
+public interface PageTransformer
+{
+  /**
+   * Called before the first token of the page, while headers can still be set.
+   *
+   * @param request The HTTP request.
+   * @param response The HTTP response.
+   */
+  default void begin(HttpServletRequest request, HttpServletResponse response)
+  {}
+
+  /**
+   * Called for each token of the page in order. The token is only valid during this call.
+   *
+   * @param token The next token of the page.
+   * @param out Where tokens are passed on to the next transformer (or the client).
+   * @throws IOException If the token can't be written.
+   */
+  void token(HtmlToken token, TokenWriter out) throws IOException;
+
+  /**
+   * Called after the last token of the page.
+   *
+   * @param out Where anything left is written.
+   * @throws IOException If the content can't be written.
+   */
+  default void end(TokenWriter out) throws IOException
+  {}
+}
@@ -0,0 +1,360 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.layouts;
+
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletContext;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Pattern;
+
+import static org.baswell.layouts.Layouts.*;
+import static org.baswell.layouts.SharedMethods.*;
+
+/*
+ * Keeps a slow view from holding the page hostage (RENDER_DEADLINE). The view runs on another thread while the request thread
+ * waits up to the deadline of the route. If the view misses it the page is sent right away: the fallback layout is rendered
+ * around a placeholder in place of the view. The request thread then waits for the view to finish (the request and response
+ * can't be handed back to the container while the view is still using them) and either drops the late content or sends the body
+ * of the view after the page in a template with a script that swaps it in for the placeholder.
+ *
+ * Views run on a bounded pool (RENDER_DEADLINE_THREADS). When every thread is busy the view runs on the request thread without a
+ * deadline.
+ */
+class RenderDeadline
+{
+  enum LateContent
+  {
+    DROP,
+    STREAM
+  }
+
+  final long defaultMillis;
+
+  final String fallbackLayoutName;
+
+  final LateContent lateContent;
+
+  private final List<Pattern> routePatterns;
+
+  private final List<Long> routeMillis;
+
+  private final byte[] placeholder;
+
+  private final ServletContext servletContext;
+
+  private final ExecutorService executor;
+
+  RenderDeadline(long defaultMillis, Map<Pattern, Long> routes, String fallbackLayoutName, String placeholder, LateContent lateContent, int maxThreads, ServletContext servletContext)
+  {
+    this.defaultMillis = defaultMillis;
+    this.fallbackLayoutName = fallbackLayoutName;
+    this.lateContent = lateContent;
+    this.servletContext = servletContext;
+    routePatterns = new ArrayList<Pattern>(routes.keySet());
+    routeMillis = new ArrayList<Long>(routes.values());
+    this.placeholder = ("<head></head><body><div id=\"" + PLACEHOLDER_ID + "\">" + placeholder + "</div></body>").getBytes();
+    executor = newExecutor("RenderDeadline", maxThreads);
+  }
+
+  /*
+   * @return The deadline of the route in milliseconds, 0 for none.
+   */
+  long deadlineMillis(HttpServletRequest httpRequest)
+  {
+    if (!routePatterns.isEmpty())
+    {
+      String requestPath = httpRequest.getRequestURI().substring(httpRequest.getContextPath().length());
+      for (int i = 0; i < routePatterns.size(); i++)
+      {
+        if (routePatterns.get(i).matcher(requestPath).matches())
+        {
+          return routeMillis.get(i);
+        }
+      }
+    }
+    return defaultMillis;
+  }
+
+  /*
+   * @return true if the view finished in time and the page still needs its layout, false if the view missed its deadline and the
+   *         page has been sent without it.
+   */
+  boolean runView(LayoutsFilter layoutsFilter, final HttpServletRequest httpRequest, HttpServletResponse httpResponse, final HttpBufferedResponse httpResponseBuffer, final FilterChain chain, long deadlineMillis) throws IOException, ServletException
+  {
+    Future<Void> view;
+    try
+    {
+      view = executor.submit(new Callable<Void>()
+      {
+        @Override
+        public Void call() throws Exception
+        {
+          if (httpResponseBuffer.startView())
+          {
+            try
+            {
+              chain.doFilter(httpRequest, httpResponseBuffer);
+            }
+            finally
+            {
+              httpResponseBuffer.viewDone();
+            }
+          }
+          return null;
+        }
+      });
+    }
+    catch (RejectedExecutionException e)
+    {
+      chain.doFilter(httpRequest, httpResponseBuffer);
+      return true;
+    }
+
+    try
+    {
+      view.get(deadlineMillis, TimeUnit.MILLISECONDS);
+      return true;
+    }
+    catch (TimeoutException e)
+    {
+      Layout layout = (fallbackLayoutName == null) ? layoutsFilter.layoutFor(httpRequest) : layoutsFilter.layout(fallbackLayoutName);
+      if (layout == null || !httpResponseBuffer.detach())
+      {
+        /*
+         * Nothing to send in place of the view, or the view is already writing straight to the client.
+         */
+        await(view, httpResponseBuffer);
+        return true;
+      }
+    }
+    catch (InterruptedException e)
+    {
+      throw abandon(view, httpResponseBuffer, e);
+    }
+    catch (ExecutionException e)
+    {
+      throw rethrow(e.getCause());
+    }
+
+    missed(layoutsFilter, httpRequest, httpResponse, httpResponseBuffer, view);
+    return false;
+  }
+
+  void shutdown()
+  {
+    executor.shutdownNow();
+  }
+
+  private void missed(LayoutsFilter layoutsFilter, HttpServletRequest httpRequest, HttpServletResponse httpResponse, HttpBufferedResponse httpResponseBuffer, Future<Void> view) throws IOException, ServletException
+  {
+    Layout layout = (fallbackLayoutName == null) ? layoutsFilter.layoutFor(httpRequest) : layoutsFilter.layout(fallbackLayoutName);
+    HttpServletRequest shellRequest = overlay(httpRequest);
+    if (httpResponse.getContentType() == null)
+    {
+      httpResponse.setContentType("text/html");
+    }
+
+    /*
+     * The layout is rendered into memory since containers close the response when a forward is done, the late content has to come
+     * after it.
+     */
+    HeapViewBuffer page = new HeapViewBuffer();
+    HeapViewBuffer placeholderContent = new HeapViewBuffer();
+    try
+    {
+      placeholderContent.write(placeholder, 0, placeholder.length);
+      HttpMixedOutputResponse layoutResponse = new HttpMixedOutputResponse(httpResponse, page);
+      shellRequest.setAttribute(VIEW, layoutsFilter.newView(shellRequest, layout, new View(placeholderContent, layoutResponse)));
+      layoutsFilter.resolveLayoutData(shellRequest, layout);
+      shellRequest.getRequestDispatcher(layout.jspPath).forward(shellRequest, layoutResponse);
+      layoutResponse.flushWriter();
+
+      OutputStream compositionStream = layoutsFilter.compositionStream(shellRequest, httpResponse);
+      page.writeTo(compositionStream);
+      compositionStream.flush();
+      httpResponse.flushBuffer();
+
+      boolean viewDone = await(view, httpResponseBuffer);
+      if (viewDone && lateContent == LateContent.STREAM && httpResponseBuffer.hasBufferedContent() && httpResponseBuffer.isHtmlContent())
+      {
+        HttpMixedOutputResponse lateResponse = new HttpMixedOutputResponse(httpResponse, compositionStream);
+        View lateView = new View(httpResponseBuffer.getContent(), lateResponse);
+        compositionStream.write(LATE_OPEN);
+        if (lateView.contains("body", null))
+        {
+          lateView.yield("body", compositionStream);
+        }
+        else
+        {
+          lateView.yield(compositionStream);
+        }
+        compositionStream.write(LATE_CLOSE);
+      }
+      layoutsFilter.finishComposition(compositionStream);
+    }
+    finally
+    {
+      page.release();
+      placeholderContent.release();
+    }
+  }
+
+  /*
+   * @return false if the view failed.
+   */
+  private boolean await(Future<Void> view, HttpBufferedResponse httpResponseBuffer) throws ServletException
+  {
+    try
+    {
+      view.get();
+      return true;
+    }
+    catch (InterruptedException e)
+    {
+      throw abandon(view, httpResponseBuffer, e);
+    }
+    catch (ExecutionException e)
+    {
+      servletContext.log("LayoutsFilter: view failed after missing its render deadline.", e.getCause());
+      return false;
+    }
+  }
+
+  /*
+   * The request thread was interrupted waiting for the view. Cancelling only interrupts the view, it may keep writing for a while, so
+   * nothing it writes from now on goes to the client and its buffer is only released once it's done (see
+   * HttpBufferedResponse.release).
+   */
+  static ServletException abandon(Future<Void> view, HttpBufferedResponse httpResponseBuffer, InterruptedException e)
+  {
+    httpResponseBuffer.detach();
+    view.cancel(true);
+    Thread.currentThread().interrupt();
+    return new ServletException("Interrupted waiting for the view.", e);
+  }
+
+  static RuntimeException rethrow(Throwable cause) throws IOException, ServletException
+  {
+    if (cause instanceof IOException)
+    {
+      throw (IOException) cause;
+    }
+    else if (cause instanceof ServletException)
+    {
+      throw (ServletException) cause;
+    }
+    else if (cause instanceof RuntimeException)
+    {
+      throw (RuntimeException) cause;
+    }
+    else if (cause instanceof Error)
+    {
+      throw (Error) cause;
+    }
+    else
+    {
+      throw new ServletException(cause);
+    }
+  }
+
+  /*
+   * The view is still using the request while the page is sent without it. The layout gets this request instead, which keeps its
+   * own attributes (VIEW, LAYOUT_DATA) so they don't change under the view. It isn't a request wrapper so dispatchers wrap it
+   * rather than slipping in under a wrapper the view is using.
+   */
+  static HttpServletRequest overlay(final HttpServletRequest httpRequest)
+  {
+    final Map<String, Object> attributes = new HashMap<String, Object>();
+    return (HttpServletRequest) Proxy.newProxyInstance(RenderDeadline.class.getClassLoader(), new Class<?>[]{HttpServletRequest.class}, new InvocationHandler()
+    {
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+      {
+        String name = method.getName();
+        if (name.equals("getAttribute"))
+        {
+          return attributes.containsKey(args[0]) ? attributes.get(args[0]) : httpRequest.getAttribute((String) args[0]);
+        }
+        else if (name.equals("setAttribute"))
+        {
+          attributes.put((String) args[0], args[1]);
+          return null;
+        }
+        else if (name.equals("removeAttribute"))
+        {
+          attributes.put((String) args[0], null);
+          return null;
+        }
+        else if (name.equals("getAttributeNames"))
+        {
+          Set<String> names = new LinkedHashSet<String>(Collections.list(httpRequest.getAttributeNames()));
+          for (Map.Entry<String, Object> attribute : attributes.entrySet())
+          {
+            if (attribute.getValue() == null)
+            {
+              names.remove(attribute.getKey());
+            }
+            else
+            {
+              names.add(attribute.getKey());
+            }
+          }
+          return Collections.enumeration(names);
+        }
+
+        try
+        {
+          return method.invoke(httpRequest, args);
+        }
+        catch (InvocationTargetException e)
+        {
+          throw e.getCause();
+        }
+      }
+    });
+  }
+
+  static final String PLACEHOLDER_ID = "layouts-deadline";
+
+  static final String TEMPLATE_ID = "layouts-late";
+
+  static final byte[] LATE_OPEN = ("<template id=\"" + TEMPLATE_ID + "\">").getBytes();
+
+  static final byte[] LATE_CLOSE = ("</template><script>(function(){var t=document.getElementById(\"" + TEMPLATE_ID + "\"),p=document.getElementById(\"" +
+                                    PLACEHOLDER_ID + "\");if(t&&p){p.parentNode.replaceChild(t.content,p);t.parentNode.removeChild(t);}})();</script>").getBytes();
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.layouts;
+
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Section deltas (SECTION_DELTAS). A page refreshing itself sends the hashes of the sections it has in the Layouts-Sections request
+ * header (name=hash,...) and gets back only the sections that changed, without the layout being rendered:
+ *
+ *   {"layout":"application","sections":{"main":"<p>...</p>"},"hashes":{"head":"1c291ca3","main":"8d0e3b1f"}}
+ *
+ * A section the page has but the view no longer does comes back as null. The script the layout yields (View.yieldSectionDeltas)
+ * starts out with the hashes of the page it's in and does the refreshing. It's written through a yield so the layout cache replays
+ * it with the hashes of each view.
+ */
+class SectionDeltas
+{
+  final String[] sections;
+
+  SectionDeltas(String[] sections)
+  {
+    this.sections = sections;
+  }
+
+  void writeScript(View view, String layoutName, OutputStream out) throws IOException
+  {
+    StringBuilder script = new StringBuilder("<script>(function(){var layout=");
+    appendString(script, layoutName);
+    script.append(",hashes=");
+    appendHashes(script, view);
+    script.append(SCRIPT);
+    out.write(script.toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+  /*
+   * Sends the sections of the view that changed from the hashes in the request header.
+   */
+  void respond(HttpServletResponse response, View view, String layoutName, String requestHeader) throws IOException
+  {
+    Map<String, String> clientHashes = new HashMap<String, String>();
+    for (String sectionHash : requestHeader.split(","))
+    {
+      int index = sectionHash.indexOf('=');
+      if (index > 0)
+      {
+        clientHashes.put(sectionHash.substring(0, index).trim(), sectionHash.substring(index + 1).trim());
+      }
+    }
+
+    StringBuilder delta = new StringBuilder("{\"layout\":");
+    appendString(delta, layoutName);
+    delta.append(",\"sections\":{");
+    boolean first = true;
+    for (String section : sections)
+    {
+      String hash = view.sectionHash(section);
+      String clientHash = clientHashes.get(section);
+      if ((hash == null) ? clientHash != null : !hash.equals(clientHash))
+      {
+        if (!first)
+        {
+          delta.append(',');
+        }
+        first = false;
+        appendString(delta, section);
+        delta.append(':');
+        byte[] content = view.sectionContent(section);
+        if (content == null)
+        {
+          delta.append("null");
+        }
+        else
+        {
+          /*
+           * The view content is in the encoding the view was written with (see LayoutsPrintWriter).
+           */
+          appendString(delta, new String(content, Charset.defaultCharset()));
+        }
+      }
+    }
+    delta.append("},\"hashes\":");
+    appendHashes(delta, view);
+    delta.append('}');
+
+    byte[] bytes = delta.toString().getBytes(StandardCharsets.UTF_8);
+    response.setContentType("application/json;charset=UTF-8");
+    response.addHeader("Vary", HEADER);
+    response.setContentLength(bytes.length);
+    response.getOutputStream().write(bytes);
+  }
+
+  private void appendHashes(StringBuilder json, View view)
+  {
+    json.append('{');
+    boolean first = true;
+    for (String section : sections)
+    {
+      String hash = view.sectionHash(section);
+      if (hash != null)
+      {
+        if (!first)
+        {
+          json.append(',');
+        }
+        first = false;
+        appendString(json, section);
+        json.append(':');
+        appendString(json, hash);
+      }
+    }
+    json.append('}');
+  }
+
+  /*
+   * Appends the value as a JSON string. The < is escaped too so the string can't end a script tag it's in.
+   */
+  static void appendString(StringBuilder json, String value)
+  {
+    json.append('"');
+    for (int i = 0; i < value.length(); i++)
+    {
+      char c = value.charAt(i);
+      switch (c)
+      {
+        case '"':
+          json.append("\\\"");
+          break;
+        case '\\':
+          json.append("\\\\");
+          break;
+        case '\n':
+          json.append("\\n");
+          break;
+        case '\r':
+          json.append("\\r");
+          break;
+        case '\t':
+          json.append("\\t");
+          break;
+        default:
+          if (c < 0x20 || c == '<' || c == '\u2028' || c == '\u2029')
+          {
+            json.append(String.format("\\u%04x", (int) c));
+          }
+          else
+          {
+            json.append(c);
+          }
+      }
+    }
+    json.append('"');
+  }
+
+  static final String HEADER = "Layouts-Sections";
+
+  /*
+   * The rest of the script after the layout name and hashes of the page. Anything it can't apply (not JSON, another layout, a
+   * section the page doesn't have a data-layouts-section element for) reloads the page instead.
+   */
+  static final String SCRIPT = ";window.layoutsRefresh=function(){var have=[];for(var name in hashes){have.push(name+\"=\"+hashes[name]);}" +
+      "return fetch(location.href,{headers:{\"" + HEADER + "\":have.join(\",\")},credentials:\"same-origin\"}).then(function(response){" +
+      "if(!response.ok||(response.headers.get(\"Content-Type\")||\"\").indexOf(\"application/json\")!=0){location.reload();return;}" +
+      "return response.json().then(function(delta){if(delta.layout!=layout){location.reload();return;}" +
+      "for(var name in delta.sections){var element=document.querySelector('[data-layouts-section=\"'+name+'\"]');" +
+      "if(element==null||delta.sections[name]==null){location.reload();return;}element.innerHTML=delta.sections[name];}" +
+      "hashes=delta.hashes;});});};})();</script>";
+}
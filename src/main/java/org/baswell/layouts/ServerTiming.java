@@ -0,0 +1,86 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.layouts;
+
+/*
+ * The phase durations of a sampled request, sent to the client in the Server-Timing header (or trailer). Only created for sampled
+ * requests so requests that aren't sampled don't pay anything.
+ */
+class ServerTiming
+{
+  private long lapStart = System.nanoTime();
+
+  long deciderNanos = -1;
+
+  long viewNanos = -1;
+
+  long bufferNanos = -1;
+
+  long bufferedBytes = -1;
+
+  long layoutNanos = -1;
+
+  /*
+   * The layout output was replayed from the layout cache.
+   */
+  boolean layoutCached;
+
+  /*
+   * @return The nanoseconds since the last lap (or since this was created).
+   */
+  long lap()
+  {
+    long now = System.nanoTime();
+    long lap = now - lapStart;
+    lapStart = now;
+    return lap;
+  }
+
+  @Override
+  public String toString()
+  {
+    StringBuilder value = new StringBuilder();
+    append(value, "decider", deciderNanos, null);
+    append(value, "view", viewNanos, null);
+    append(value, "buffer", bufferNanos, (bufferedBytes < 0) ? null : bufferedBytes + " bytes");
+    append(value, "layout", layoutNanos, layoutCached ? "cached" : null);
+    return value.toString();
+  }
+
+  static void append(StringBuilder value, String name, long nanos, String description)
+  {
+    if (nanos >= 0)
+    {
+      if (value.length() > 0)
+      {
+        value.append(", ");
+      }
+
+      value.append(name).append(";dur=").append(nanos / 1000000).append('.');
+      long micros = (nanos / 1000) % 1000;
+      if (micros < 100) value.append('0');
+      if (micros < 10) value.append('0');
+      value.append(micros);
+
+      if (description != null)
+      {
+        value.append(";desc=\"").append(description).append('"');
+      }
+    }
+  }
+
+  static final String HEADER = "Server-Timing";
+}
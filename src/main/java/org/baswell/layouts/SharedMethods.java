@@ -15,6 +15,18 @@
  */
 package org.baswell.layouts;
 
+import jakarta.servlet.FilterConfig;
+import jakarta.servlet.ServletException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 class SharedMethods
 {
   static boolean isHtmlContent(String mimeType)
@@ -41,4 +53,105 @@ class SharedMethods
       return false;
     }
   }
+
+  /*
+   * Parses a number of bytes with an optional K, M or G suffix (1024 based).
+   */
+  static long parseByteSize(String value)
+  {
+    String size = value.trim().toUpperCase();
+    long multiplier = 1;
+    if (size.endsWith("B"))
+    {
+      size = size.substring(0, size.length() - 1);
+    }
+
+    if (size.endsWith("K"))
+    {
+      multiplier = 1024L;
+    }
+    else if (size.endsWith("M"))
+    {
+      multiplier = 1024L * 1024;
+    }
+    else if (size.endsWith("G"))
+    {
+      multiplier = 1024L * 1024 * 1024;
+    }
+
+    if (multiplier > 1)
+    {
+      size = size.substring(0, size.length() - 1).trim();
+    }
+
+    return Long.parseLong(size) * multiplier;
+  }
+
+  /*
+   * Registers the MBean with the platform MBean server under org.baswell.layouts:type=[type] qualified by the context path and
+   * filter name so multiple applications in the same JVM don't collide.
+   */
+  static ObjectName registerMBean(Object mbean, String type, FilterConfig filterConfig) throws ServletException
+  {
+    try
+    {
+      String contextPath = filterConfig.getServletContext().getContextPath();
+      ObjectName objectName = new ObjectName("org.baswell.layouts:type=" + type + ",context=" + ObjectName.quote(contextPath.isEmpty() ? "/" : contextPath) + ",filter=" + ObjectName.quote(String.valueOf(filterConfig.getFilterName())));
+      MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+      if (mbeanServer.isRegistered(objectName))
+      {
+        mbeanServer.unregisterMBean(objectName);
+      }
+      mbeanServer.registerMBean(mbean, objectName);
+      return objectName;
+    }
+    catch (JMException e)
+    {
+      throw new ServletException("Unable to register " + type + " MBean.", e);
+    }
+  }
+
+  static void unregisterMBean(ObjectName objectName)
+  {
+    if (objectName != null)
+    {
+      try
+      {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+      }
+      catch (JMException e)
+      {}
+    }
+  }
+
+  /*
+   * An executor of at most maxThreads threads that doesn't queue. A task submitted while every thread is busy is rejected
+   * (RejectedExecutionException) so the caller can run it some other way. The threads are virtual when the JVM has them (Java 21+),
+   * otherwise daemon threads.
+   */
+  static ExecutorService newExecutor(final String threadName, int maxThreads)
+  {
+    ThreadFactory threadFactory;
+    try
+    {
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      builder = builderClass.getMethod("name", String.class).invoke(builder, threadName);
+      threadFactory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+    }
+    catch (ReflectiveOperationException e)
+    {
+      threadFactory = new ThreadFactory()
+      {
+        @Override
+        public Thread newThread(Runnable runnable)
+        {
+          Thread thread = new Thread(runnable, threadName);
+          thread.setDaemon(true);
+          return thread;
+        }
+      };
+    }
+    return new ThreadPoolExecutor(0, maxThreads, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), threadFactory);
+  }
 }
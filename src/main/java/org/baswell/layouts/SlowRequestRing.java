@@ -0,0 +1,302 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.layouts;
+
+import jakarta.servlet.http.HttpServletRequest;
+import java.lang.reflect.Method;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+ * Keeps a record of the last capacity requests that took at least the threshold (SLOW_REQUEST_THRESHOLD). Each request times its
+ * phases into a Timing taken from a pool and carried as a request attribute, so requests under the threshold allocate nothing once
+ * the pool has as many Timings as there are concurrent requests (whether they run on pooled or virtual threads). Only a slow
+ * request creates a Record, which claims the next sequence number and is set into its slot of the ring (overwriting the oldest).
+ * There are no locks, a dump just reads whatever is in the slots and orders it by sequence.
+ */
+class SlowRequestRing implements SlowRequestRingMXBean
+{
+  final long thresholdNanos;
+
+  private final AtomicReferenceArray<Record> slots;
+
+  private final AtomicLong sequence = new AtomicLong();
+
+  private final ConcurrentLinkedQueue<Timing> timings = new ConcurrentLinkedQueue<Timing>();
+
+  SlowRequestRing(long thresholdMillis, int capacity)
+  {
+    thresholdNanos = thresholdMillis * 1000000L;
+    slots = new AtomicReferenceArray<Record>(capacity);
+  }
+
+  /*
+   * Starts timing the request. Only the first pass of the filter over a request is timed, when the filter is run again for a
+   * forward or include of the request null is returned and the timing of the first pass is left alone.
+   */
+  Timing start(HttpServletRequest request)
+  {
+    Object current = request.getAttribute(TIMING_ATTRIBUTE);
+    if (current instanceof Timing)
+    {
+      ++((Timing) current).depth;
+      return null;
+    }
+
+    Timing timing;
+    timing = timings.poll();
+    if (timing == null)
+    {
+      timing = new Timing();
+    }
+    timing.startNanos = timing.lapStart = System.nanoTime();
+    timing.deciderNanos = timing.viewNanos = timing.layoutNanos = timing.viewBytes = -1;
+    timing.composed = false;
+    timing.view = null;
+    timing.depth = 0;
+    request.setAttribute(TIMING_ATTRIBUTE, timing);
+    return timing;
+  }
+
+  /*
+   * @return The timing of the request, null if it isn't being timed (batch rendering and warm up) or the filter is running for
+   * a forward or include of it.
+   */
+  Timing timing(HttpServletRequest request)
+  {
+    Object timing = request.getAttribute(TIMING_ATTRIBUTE);
+    return (timing instanceof Timing && ((Timing) timing).depth == 0) ? (Timing) timing : null;
+  }
+
+  /*
+   * Records the request if it took at least the threshold.
+   *
+   * @param timing What start returned.
+   */
+  void finish(Timing timing, LayoutsFilter layoutsFilter, HttpServletRequest request)
+  {
+    if (timing == null)
+    {
+      Object current = request.getAttribute(TIMING_ATTRIBUTE);
+      if (current instanceof Timing)
+      {
+        --((Timing) current).depth;
+      }
+      return;
+    }
+
+    long totalNanos = System.nanoTime() - timing.startNanos;
+    if (totalNanos >= thresholdNanos)
+    {
+      Layout layout = timing.composed ? layoutsFilter.layoutFor(request) : null;
+      long recordSequence = sequence.getAndIncrement();
+      slots.set((int) (recordSequence % slots.length()), new Record(recordSequence, System.currentTimeMillis(), request.getRequestURI(),
+          (layout == null) ? null : layout.name, totalNanos, timing, isVirtual(Thread.currentThread())));
+    }
+    request.removeAttribute(TIMING_ATTRIBUTE);
+    timing.view = null;
+    timings.offer(timing);
+  }
+
+  @Override
+  public long getThresholdMillis()
+  {
+    return thresholdNanos / 1000000L;
+  }
+
+  @Override
+  public int getCapacity()
+  {
+    return slots.length();
+  }
+
+  @Override
+  public long getRecordedCount()
+  {
+    return sequence.get();
+  }
+
+  @Override
+  public List<String> dump()
+  {
+    List<Record> records = new ArrayList<Record>(slots.length());
+    for (int i = 0; i < slots.length(); i++)
+    {
+      Record record = slots.get(i);
+      if (record != null)
+      {
+        records.add(record);
+      }
+    }
+
+    records.sort(new Comparator<Record>()
+    {
+      @Override
+      public int compare(Record record1, Record record2)
+      {
+        return Long.compare(record1.sequence, record2.sequence);
+      }
+    });
+
+    List<String> dump = new ArrayList<String>(records.size());
+    for (Record record : records)
+    {
+      dump.add(record.toString());
+    }
+    return dump;
+  }
+
+  static boolean isVirtual(Thread thread)
+  {
+    try
+    {
+      return IS_VIRTUAL != null && (Boolean) IS_VIRTUAL.invoke(thread);
+    }
+    catch (ReflectiveOperationException e)
+    {
+      return false;
+    }
+  }
+
+  /*
+   * The phases of a request. Durations are -1 for phases the request didn't get to.
+   */
+  static class Timing
+  {
+    /*
+     * The number of forwards and includes of the request the filter is running for.
+     */
+    int depth;
+
+    long startNanos;
+
+    long lapStart;
+
+    long deciderNanos;
+
+    long viewNanos;
+
+    long layoutNanos;
+
+    long viewBytes;
+
+    boolean composed;
+
+    /*
+     * The view given to the layout, for the number of sections it yielded.
+     */
+    View view;
+
+    /*
+     * @return The nanoseconds since the last lap (or since the request started).
+     */
+    long lap()
+    {
+      long now = System.nanoTime();
+      long lap = now - lapStart;
+      lapStart = now;
+      return lap;
+    }
+  }
+
+  static class Record
+  {
+    final long sequence;
+
+    final long time;
+
+    final String uri;
+
+    final String layout;
+
+    final long totalNanos;
+
+    final long deciderNanos;
+
+    final long viewNanos;
+
+    final long layoutNanos;
+
+    final long viewBytes;
+
+    final int sections;
+
+    final boolean virtualThread;
+
+    Record(long sequence, long time, String uri, String layout, long totalNanos, Timing timing, boolean virtualThread)
+    {
+      this.sequence = sequence;
+      this.time = time;
+      this.uri = uri;
+      this.layout = layout;
+      this.totalNanos = totalNanos;
+      deciderNanos = timing.deciderNanos;
+      viewNanos = timing.viewNanos;
+      layoutNanos = timing.layoutNanos;
+      viewBytes = timing.viewBytes;
+      sections = (timing.view == null) ? 0 : timing.view.sectionsYielded;
+      this.virtualThread = virtualThread;
+    }
+
+    @Override
+    public String toString()
+    {
+      StringBuilder value = new StringBuilder();
+      value.append(Instant.ofEpochMilli(time)).append(' ').append(uri);
+      value.append(" layout=").append((layout == null) ? "none" : layout);
+      appendMillis(value, "total", totalNanos);
+      appendMillis(value, "decider", deciderNanos);
+      appendMillis(value, "view", viewNanos);
+      appendMillis(value, "layout", layoutNanos);
+      if (viewBytes >= 0)
+      {
+        value.append(" bytes=").append(viewBytes);
+      }
+      value.append(" sections=").append(sections);
+      value.append(" thread=").append(virtualThread ? "virtual" : "platform");
+      return value.toString();
+    }
+
+    static void appendMillis(StringBuilder value, String name, long nanos)
+    {
+      if (nanos >= 0)
+      {
+        value.append(' ').append(name).append('=').append(nanos / 1000000).append('.').append((nanos / 100000) % 10).append("ms");
+      }
+    }
+  }
+
+  static final String TIMING_ATTRIBUTE = SlowRequestRing.class.getName();
+
+  static final Method IS_VIRTUAL = isVirtualMethod();
+
+  static Method isVirtualMethod()
+  {
+    try
+    {
+      return Thread.class.getMethod("isVirtual");
+    }
+    catch (NoSuchMethodException e)
+    {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.layouts;
+
+import java.util.List;
+
+/**
+ * <p>
+ * The most recent slow requests when the <i>SLOW_REQUEST_THRESHOLD</i> init parameter of the {@link LayoutsFilter} is set. Registered
+ * with the platform MBean server under {@code org.baswell.layouts:type=SlowRequestRing}.
+ * </p>
+ */
+public interface SlowRequestRingMXBean
+{
+  /**
+   * @return The number of milliseconds a request must take to be recorded.
+   */
+  long getThresholdMillis();
+
+  /**
+   * @return The maximum number of slow requests kept (the oldest is overwritten by a new one).
+   */
+  int getCapacity();
+
+  /**
+   * @return The number of slow requests recorded since the filter started (including those since overwritten).
+   */
+  long getRecordedCount();
+
+  /**
+   * @return The slow requests currently in the ring, oldest first. Each has the time, request URI, layout, phase timings, view
+   * size, number of sections yielded and the type of thread the request ran on.
+   */
+  List<String> dump();
+}
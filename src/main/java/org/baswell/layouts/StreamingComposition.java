@@ -0,0 +1,194 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.layouts;
+
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static org.baswell.layouts.Layouts.*;
+import static org.baswell.layouts.SharedMethods.*;
+
+/*
+ * Composes a page while the view is still rendering (COMPOSITION STREAMING). As soon as the view has written its </head> the layout
+ * is rendered in full into memory with a view that only has the content up to that point. Where the layout yields the body the
+ * layout content is split: everything before is sent to the client right away, the view body is streamed through as the view
+ * writes it and everything after is sent when the view is done.
+ */
+class StreamingComposition
+{
+  /*
+   * What the layout yields where it's split.
+   */
+  enum Split
+  {
+    /*
+     * The content of the view <body> tag.
+     */
+    BODY,
+
+    /*
+     * The entire view.
+     */
+    ALL,
+
+    /*
+     * Nothing, the layout never yields the body of the view.
+     */
+    NONE
+  }
+
+  private final LayoutsFilter layoutsFilter;
+
+  private final HttpServletRequest request;
+
+  private final HttpServletResponse response;
+
+  private final ServerTiming serverTiming;
+
+  private HeapViewBuffer layoutContent;
+
+  private int splitIndex = -1;
+
+  private Split split = Split.NONE;
+
+  private OutputStream compositionStream;
+
+  /*
+   * @param serverTiming Null if the request isn't sampled.
+   */
+  StreamingComposition(LayoutsFilter layoutsFilter, HttpServletRequest request, HttpServletResponse response, ServerTiming serverTiming)
+  {
+    this.layoutsFilter = layoutsFilter;
+    this.request = request;
+    this.response = response;
+    this.serverTiming = serverTiming;
+  }
+
+  /*
+   * Called when the view has written its </head>. If a layout applies it's rendered and the layout content before the split is sent.
+   *
+   * @return How the rest of the view is streamed or null if the view should just be buffered (no layout applies).
+   */
+  Split headClosed(ViewBuffer head, HttpBufferedResponse bufferedResponse) throws IOException, ServletException
+  {
+    if (!bufferedResponse.isHtmlContent() || trueValue(request.getAttribute(NO_LAYOUT)))
+    {
+      return null;
+    }
+
+    Layout layout = layoutsFilter.layoutFor(request);
+    if (layout == null)
+    {
+      /*
+       * Unknown layout names are reported once the view is done.
+       */
+      return null;
+    }
+
+    long layoutStart = (serverTiming == null) ? 0 : System.nanoTime();
+    layoutContent = new HeapViewBuffer();
+    HttpMixedOutputResponse layoutResponse = new HttpMixedOutputResponse(response, layoutContent);
+    request.setAttribute(VIEW, layoutsFilter.newView(request, layout, new StreamingView(head, layoutResponse, this)));
+    layoutsFilter.resolveLayoutData(request, layout);
+    LayoutsEvents.LayoutEvent layoutEvent = LayoutsEvents.layout();
+    request.getRequestDispatcher(layout.jspPath).forward(request, layoutResponse);
+    if (layoutEvent != null)
+    {
+      layoutEvent.finish(request, layout, head.size(), false);
+    }
+    if (serverTiming != null)
+    {
+      serverTiming.layoutNanos = System.nanoTime() - layoutStart;
+    }
+
+    compositionStream = layoutsFilter.compositionStream(request, response);
+    layoutContent.writeTo(compositionStream, 0, (splitIndex < 0) ? layoutContent.size() : splitIndex);
+    compositionStream.flush();
+    response.flushBuffer();
+
+    return split;
+  }
+
+  /*
+   * Called by the view when the layout yields the body (or the entire view).
+   */
+  void split(Split split, Flushable layoutOut) throws IOException
+  {
+    if (splitIndex < 0)
+    {
+      layoutOut.flush();
+      splitIndex = layoutContent.size();
+      this.split = split;
+    }
+  }
+
+  OutputStream compositionStream()
+  {
+    return compositionStream;
+  }
+
+  /*
+   * Called when the view is done. Sends the layout content after the split.
+   */
+  void finish() throws IOException
+  {
+    if (splitIndex >= 0)
+    {
+      layoutContent.writeTo(compositionStream, splitIndex, layoutContent.size() - splitIndex);
+    }
+    layoutsFilter.finishComposition(compositionStream);
+    layoutContent.release();
+  }
+
+  /*
+   * The view given to layouts in streaming composition. Only the head of the view is available, yielding the body (or the
+   * entire view) marks where the rest of the view is streamed.
+   */
+  static class StreamingView extends View
+  {
+    private final StreamingComposition composition;
+
+    StreamingView(ViewBuffer head, HttpMixedOutputResponse layoutResponse, StreamingComposition composition)
+    {
+      super(head, layoutResponse);
+      this.composition = composition;
+    }
+
+    @Override
+    void yield(Flushable layoutOut) throws IOException
+    {
+      super.yield(layoutOut);
+      composition.split(Split.ALL, layoutOut);
+    }
+
+    @Override
+    void yield(String tagName, Flushable layoutOut) throws IOException
+    {
+      if (tagName.equals("body"))
+      {
+        composition.split(Split.BODY, layoutOut);
+      }
+      else
+      {
+        super.yield(tagName, layoutOut);
+      }
+    }
+  }
+}
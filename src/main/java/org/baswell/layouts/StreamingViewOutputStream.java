@@ -0,0 +1,354 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.layouts;
+
+import jakarta.servlet.ServletException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/*
+ * Sits between the view and its buffer in streaming composition. Content is buffered until the view writes </head>, after that
+ * it goes to the client as it's written.
+ *
+ * When the body of the view is streamed the content before the <body> tag is dropped, as is everything from the last </body> tag
+ * on. Since there's no way to know which </body> is the last until the view is done, content from a </body> on is held back until
+ * another one is written or the view is done. Bytes that might be the start of a </body> split across writes are held back too.
+ */
+class StreamingViewOutputStream extends OutputStream
+{
+  enum State
+  {
+    /*
+     * Buffering the view and looking for </head>.
+     */
+    HEAD,
+
+    /*
+     * Just buffering, the view doesn't get a streaming layout.
+     */
+    BUFFER,
+
+    /*
+     * Dropping content until <body>.
+     */
+    BODY_OPEN,
+
+    /*
+     * Streaming the body.
+     */
+    BODY,
+
+    /*
+     * Streaming everything.
+     */
+    ALL,
+
+    /*
+     * Dropping everything, the layout doesn't use the rest of the view.
+     */
+    NONE
+  }
+
+  private final ViewBuffer buffer;
+
+  private final StreamingComposition composition;
+
+  private final HttpBufferedResponse bufferedResponse;
+
+  private final byte[] singleByte = new byte[1];
+
+  private State state = State.HEAD;
+
+  private OutputStream client;
+
+  /*
+   * How many bytes of the tag being looked for have been matched so far.
+   */
+  private int matched;
+
+  private boolean bodyCloseSeen;
+
+  /*
+   * Content from the last </body> on.
+   */
+  private byte[] held;
+
+  private int heldCount;
+
+  private long written;
+
+  StreamingViewOutputStream(ViewBuffer buffer, StreamingComposition composition, HttpBufferedResponse bufferedResponse)
+  {
+    this.buffer = buffer;
+    this.composition = composition;
+    this.bufferedResponse = bufferedResponse;
+  }
+
+  /*
+   * @return true if the view was streamed with a layout (false if it was only buffered).
+   */
+  boolean finish() throws IOException
+  {
+    if (state == State.HEAD || state == State.BUFFER)
+    {
+      return false;
+    }
+
+    if (state == State.BODY && !bodyCloseSeen && matched > 0)
+    {
+      client.write(BODY_CLOSE, 0, matched);
+    }
+    composition.finish();
+    return true;
+  }
+
+  long written()
+  {
+    return written;
+  }
+
+  @Override
+  public void write(int b) throws IOException
+  {
+    singleByte[0] = (byte) b;
+    write(singleByte, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] bytes, int offset, int length) throws IOException
+  {
+    written += length;
+    writeContent(bytes, offset, length);
+  }
+
+  private void writeContent(byte[] bytes, int offset, int length) throws IOException
+  {
+    switch (state)
+    {
+      case HEAD:
+        writeHead(bytes, offset, length);
+        break;
+
+      case BUFFER:
+        buffer.write(bytes, offset, length);
+        break;
+
+      case BODY_OPEN:
+        writeBodyOpen(bytes, offset, length);
+        break;
+
+      case BODY:
+        writeBody(bytes, offset, length);
+        break;
+
+      case ALL:
+        client.write(bytes, offset, length);
+        break;
+
+      case NONE:
+        break;
+    }
+  }
+
+  @Override
+  public void flush() throws IOException
+  {
+    if (client == null)
+    {
+      buffer.flush();
+    }
+    else
+    {
+      client.flush();
+    }
+  }
+
+  /*
+   * The layout content after the view still needs to go out so closing the view doesn't close anything.
+   */
+  @Override
+  public void close() throws IOException
+  {
+    flush();
+  }
+
+  private void writeHead(byte[] bytes, int offset, int length) throws IOException
+  {
+    int end = offset + length;
+    for (int i = offset; i < end; i++)
+    {
+      matched = advance(HEAD_CLOSE, matched, bytes[i]);
+      if (matched == HEAD_CLOSE.length)
+      {
+        matched = 0;
+        buffer.write(bytes, offset, i + 1 - offset);
+        startStreaming();
+        writeContent(bytes, i + 1, end - i - 1);
+        return;
+      }
+    }
+
+    buffer.write(bytes, offset, length);
+    if (buffer.overflowed())
+    {
+      state = State.BUFFER;
+    }
+  }
+
+  private void startStreaming() throws IOException
+  {
+    StreamingComposition.Split split;
+    try
+    {
+      split = buffer.overflowed() ? null : composition.headClosed(buffer, bufferedResponse);
+    }
+    catch (ServletException e)
+    {
+      throw new IOException("Unable to render layout.", e);
+    }
+
+    if (split == null)
+    {
+      state = State.BUFFER;
+    }
+    else
+    {
+      client = composition.compositionStream();
+      state = (split == StreamingComposition.Split.BODY) ? State.BODY_OPEN : (split == StreamingComposition.Split.ALL) ? State.ALL : State.NONE;
+    }
+  }
+
+  private void writeBodyOpen(byte[] bytes, int offset, int length) throws IOException
+  {
+    int end = offset + length;
+    for (int i = offset; i < end; i++)
+    {
+      matched = advance(BODY_OPEN, matched, bytes[i]);
+      if (matched == BODY_OPEN.length)
+      {
+        matched = 0;
+        state = State.BODY;
+        writeBody(bytes, i + 1, end - i - 1);
+        return;
+      }
+    }
+  }
+
+  private void writeBody(byte[] bytes, int offset, int length) throws IOException
+  {
+    int end = offset + length;
+
+    /*
+     * Bytes from runStart on go straight to the client (unless they turn out to be part of a </body>).
+     */
+    int runStart = offset;
+    for (int i = offset; i < end; i++)
+    {
+      byte b = bytes[i];
+      if (bodyCloseSeen)
+      {
+        hold(b);
+        matched = advance(BODY_CLOSE, matched, b);
+        if (matched == BODY_CLOSE.length)
+        {
+          /*
+           * A later </body>, everything held before it is part of the body after all.
+           */
+          matched = 0;
+          client.write(held, 0, heldCount - BODY_CLOSE.length);
+          heldCount = 0;
+          hold(BODY_CLOSE);
+        }
+      }
+      else
+      {
+        int next = advance(BODY_CLOSE, matched, b);
+        if (next == matched + 1)
+        {
+          if (matched == 0)
+          {
+            client.write(bytes, runStart, i - runStart);
+          }
+
+          matched = next;
+          if (matched == BODY_CLOSE.length)
+          {
+            matched = 0;
+            bodyCloseSeen = true;
+            hold(BODY_CLOSE);
+          }
+          runStart = i + 1;
+        }
+        else if (matched > 0)
+        {
+          /*
+           * Wasn't a </body> after all. The partial match is just the start of the tag so that's what gets written.
+           */
+          client.write(BODY_CLOSE, 0, matched);
+          matched = next;
+          runStart = (next == 0) ? i : i + 1;
+        }
+      }
+    }
+
+    if (!bodyCloseSeen && matched == 0 && runStart < end)
+    {
+      client.write(bytes, runStart, end - runStart);
+    }
+  }
+
+  private void hold(byte b)
+  {
+    singleByte[0] = b;
+    hold(singleByte);
+  }
+
+  private void hold(byte[] bytes)
+  {
+    if (held == null)
+    {
+      held = new byte[Math.max(64, bytes.length)];
+    }
+    else if (heldCount + bytes.length > held.length)
+    {
+      held = Arrays.copyOf(held, Math.max(held.length << 1, heldCount + bytes.length));
+    }
+    System.arraycopy(bytes, 0, held, heldCount, bytes.length);
+    heldCount += bytes.length;
+  }
+
+  /*
+   * The tags looked for only start with '<' once, so on a mismatch the match either starts over or restarts at this byte.
+   */
+  static int advance(byte[] tag, int matched, byte b)
+  {
+    if (b == tag[matched])
+    {
+      return matched + 1;
+    }
+    else
+    {
+      return (b == tag[0]) ? 1 : 0;
+    }
+  }
+
+  static final byte[] HEAD_CLOSE = "</head>".getBytes();
+
+  static final byte[] BODY_OPEN = "<body>".getBytes();
+
+  static final byte[] BODY_CLOSE = "</body>".getBytes();
+}
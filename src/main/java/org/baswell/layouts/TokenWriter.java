@@ -0,0 +1,77 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.layouts;
+
+import java.io.IOException;
+
+/**
+ * <p>
+ * Passes tokens from a {@link PageTransformer} on to the next transformer (or to the client after the last transformer).
+ * </p>
+ */
+public final class TokenWriter
+{
+  private final HtmlTokenizingOutputStream stream;
+
+  private final int stage;
+
+  private final HtmlToken text = new HtmlToken();
+
+  TokenWriter(HtmlTokenizingOutputStream stream, int stage)
+  {
+    this.stream = stream;
+    this.stage = stage;
+  }
+
+  /**
+   * @param token The token to pass on.
+   * @throws IOException If the token can't be written.
+   */
+  public void write(HtmlToken token) throws IOException
+  {
+    stream.dispatch(token, stage);
+  }
+
+  /**
+   * Passes the given content on as a text token. The content isn't tokenized so later transformers see it as text even if it
+   * contains tags.
+   *
+   * @param content The content to add to the page.
+   * @throws IOException If the content can't be written.
+   */
+  public void write(String content) throws IOException
+  {
+    byte[] bytes = content.getBytes();
+    write(bytes, 0, bytes.length);
+  }
+
+  /**
+   * Passes the given content on as a text token.
+   *
+   * @param bytes The content to add to the page.
+   * @param offset The start of the content in bytes.
+   * @param length The number of bytes.
+   * @throws IOException If the content can't be written.
+   */
+  public void write(byte[] bytes, int offset, int length) throws IOException
+  {
+    if (length > 0)
+    {
+      text.set(HtmlToken.Type.TEXT, bytes, offset, length, false);
+      stream.dispatch(text, stage);
+    }
+  }
+}
@@ -17,8 +17,15 @@ package org.baswell.layouts;
 
 import jakarta.servlet.ServletResponse;
 import jakarta.servlet.jsp.PageContext;
+import java.io.Flushable;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
 
 /**
  * <p>
@@ -32,11 +39,33 @@ import java.io.OutputStream;
  */
 public class View
 {
-  private final byte[] content;
+  private final ViewBuffer content;
 
   private final ServletResponse response;
 
+  /*
+   * The asset URLs already written by the layout. Link and script tags for these assets are dropped from the yielded head section.
+   */
+  Set<String> duplicateAssets;
+
+  /*
+   * The number of times the layout has yielded (part of) the view.
+   */
+  int sectionsYielded;
+
+  /*
+   * Set (with the name of the layout) when SECTION_DELTAS is enabled.
+   */
+  SectionDeltas sectionDeltas;
+
+  String layoutName;
+
   public View(byte[] content, ServletResponse response)
+  {
+    this(new HeapViewBuffer(content), response);
+  }
+
+  View(ViewBuffer content, ServletResponse response)
   {
     this.content = content;
     this.response = response;
@@ -101,8 +130,7 @@ public class View
    */
   public void yield(PageContext pageContext) throws IOException
   {
-    pageContext.getOut().flush();
-    response.getOutputStream().write(content);
+    this.yield(pageContext.getOut());
   }
 
   /**
@@ -114,47 +142,87 @@ public class View
    */
   public void yield(String tagName, PageContext pageContext) throws IOException
   {
-    /*
-     * TODO JSPs using a different encoding then the system default will break here if the values for the characters in the opening
-     * or closing tags are different. Not sure how to grab the encoding from the JSP that created the current content automatically.
-     * Maybe add a filter parameter to specify the encoding if it's different then default.
-     */
-    byte[] tagNameBytes = tagName.getBytes();
-    byte[] openTagBytes = new byte[tagNameBytes.length + 2];
-    openTagBytes[0] = LESS_THAN;
-    for (int i = 0; i < tagNameBytes.length; i++)
+    this.yield(tagName, pageContext.getOut());
+  }
+
+  /**
+   * <p>
+   * Yield the script that refreshes the sections of the page without reloading it when the <i>SECTION_DELTAS</i> init parameter of
+   * the {@link LayoutsFilter} is set (nothing otherwise). Calling {@code layoutsRefresh()} from the page fetches the sections that
+   * changed and replaces the content of the elements with matching {@code data-layouts-section} attributes.
+   * </p>
+   *
+   * @param pageContext The PageContext of the layout JSP file.
+   * @throws java.io.IOException
+   */
+  public void yieldSectionDeltas(PageContext pageContext) throws IOException
+  {
+    this.yield(SECTION_DELTAS_YIELD, pageContext.getOut());
+  }
+
+  /*
+   * The layoutOut is where the layout has been writing its own content (the JspWriter for a JSP layout).
+   */
+  void yield(Flushable layoutOut) throws IOException
+  {
+    LayoutsEvents.YieldEvent yieldEvent = LayoutsEvents.yield();
+    sectionsYielded++;
+    layoutOut.flush();
+    content.writeTo(response.getOutputStream());
+    if (yieldEvent != null)
     {
-      openTagBytes[i + 1] = tagNameBytes[i];
+      yieldEvent.finish(null, true, content.size());
     }
-    openTagBytes[openTagBytes.length - 1] = GREATER_THAN;
+  }
 
-    int openTagIndex = indexOf(content, openTagBytes);
-    if (openTagIndex >= 0)
+  void yield(String tagName, Flushable layoutOut) throws IOException
+  {
+    if (tagName.equals(SECTION_DELTAS_YIELD))
     {
-      byte[] closedTagBytes = new byte[tagNameBytes.length + 3];
-      closedTagBytes[0] = LESS_THAN;
-      closedTagBytes[1] = SOLIDUS;
-      for (int i = 0; i < tagNameBytes.length; i++)
+      /*
+       * Not a section of the view. Yielded so the layout cache replays the script with the hashes of each view.
+       */
+      if (sectionDeltas != null)
       {
-        closedTagBytes[i + 2] = tagNameBytes[i];
+        layoutOut.flush();
+        OutputStream out = response.getOutputStream();
+        sectionDeltas.writeScript(this, layoutName, out);
+        out.flush();
       }
-      closedTagBytes[closedTagBytes.length - 1] = GREATER_THAN;
+      return;
+    }
 
-      int closeTagIndex = lastIndexOf(content, closedTagBytes);
-      if (closeTagIndex > openTagIndex)
+    LayoutsEvents.YieldEvent yieldEvent = LayoutsEvents.yield();
+    sectionsYielded++;
+    long yielded = -1;
+
+    int[] section = section(tagName);
+    if (section != null)
+    {
+      int startIndex = section[0];
+      int length = section[1];
+      /*
+       * We're mixing the JSPWriter and the ServletOuptStream here because we don't want to take the hit to turn
+       * content back into a String. Need to make sure everything written to JSPWriter to this point is flushed so
+       * the content doesn't getting out of order.
+       */
+      layoutOut.flush();
+      OutputStream out = response.getOutputStream();
+      if (duplicateAssets != null && tagName.equals("head"))
       {
-        int startIndex = openTagIndex + openTagBytes.length;
-        int length = closeTagIndex - startIndex;
-        /*
-         * We're mixing the JSPWriter and the ServletOuptStream here because we don't want to take the hit to turn
-         * content back into a String. Need to make sure everything written to JSPWriter to this point is flushed so
-         * the content doesn't getting out of order.
-         */
-        pageContext.getOut().flush();
-        OutputStream out = response.getOutputStream();
-        out.write(content, startIndex, length);
-        out.flush();
+        writeWithoutDuplicateAssets(out, startIndex, startIndex + length);
       }
+      else
+      {
+        content.writeTo(out, startIndex, length);
+      }
+      out.flush();
+      yielded = length;
+    }
+
+    if (yieldEvent != null)
+    {
+      yieldEvent.finish(tagName, yielded >= 0, Math.max(yielded, 0));
     }
   }
 
@@ -167,6 +235,46 @@ public class View
    * @throws java.io.IOException
    */
   public boolean contains(String tagName, PageContext pageContext) throws IOException
+  {
+    return section(tagName) != null;
+  }
+
+  /*
+   * A checksum of the content of the outermost tag <tagName> (what yield(tagName) would write), null if the view doesn't have the tag.
+   */
+  String sectionHash(String tagName)
+  {
+    int[] section = section(tagName);
+    if (section == null)
+    {
+      return null;
+    }
+
+    CRC32 checksum = new CRC32();
+    try
+    {
+      content.writeTo(new CheckedOutputStream(OutputStream.nullOutputStream(), checksum), section[0], section[1]);
+    }
+    catch (IOException e)
+    {
+      throw new UncheckedIOException(e);
+    }
+    return Long.toHexString(checksum.getValue());
+  }
+
+  /*
+   * The content of the outermost tag <tagName>, null if the view doesn't have the tag.
+   */
+  byte[] sectionContent(String tagName)
+  {
+    int[] section = section(tagName);
+    return (section == null) ? null : content.toByteArray(section[0], section[1]);
+  }
+
+  /*
+   * @return The start index and length of the content of the outermost tag <tagName>, null if the view doesn't have the tag.
+   */
+  private int[] section(String tagName)
   {
     /*
      * TODO JSPs using a different encoding then the system default will break here if the values for the characters in the opening
@@ -195,23 +303,119 @@ public class View
       closedTagBytes[closedTagBytes.length - 1] = GREATER_THAN;
 
       int closeTagIndex = lastIndexOf(content, closedTagBytes);
-      return (closeTagIndex > openTagIndex);
+      if (closeTagIndex > openTagIndex)
+      {
+        int startIndex = openTagIndex + openTagBytes.length;
+        return new int[]{startIndex, closeTagIndex - startIndex};
+      }
     }
-    else
+    return null;
+  }
+
+  void writeWithoutDuplicateAssets(OutputStream out, int startIndex, int endIndex) throws IOException
+  {
+    int writeIndex = startIndex;
+    int index = startIndex;
+    while (index < endIndex)
     {
-      return false;
+      if (content.byteAt(index) == LESS_THAN)
+      {
+        boolean script = regionMatchesIgnoreCase(content, index + 1, endIndex, SCRIPT_TAG);
+        if ((script || regionMatchesIgnoreCase(content, index + 1, endIndex, LINK_TAG)))
+        {
+          int tagNameEnd = index + 1 + (script ? SCRIPT_TAG.length : LINK_TAG.length);
+          int tagEnd = indexOf(content, GREATER_THAN, tagNameEnd, endIndex);
+          if (tagEnd > 0 && (content.byteAt(tagNameEnd) == GREATER_THAN || Character.isWhitespace(content.byteAt(tagNameEnd))))
+          {
+            Map<String, String> attributes = LayoutAssets.parseAttributes(new String(content.toByteArray(tagNameEnd, tagEnd - tagNameEnd), StandardCharsets.ISO_8859_1));
+            String url = attributes.get(script ? "src" : "href");
+            if (url != null && duplicateAssets.contains(url.trim()))
+            {
+              int skipTo = tagEnd + 1;
+              if (script)
+              {
+                int closeIndex = indexOfIgnoreCase(content, SCRIPT_CLOSE_TAG, skipTo, endIndex);
+                if (closeIndex >= 0)
+                {
+                  skipTo = closeIndex + SCRIPT_CLOSE_TAG.length;
+                }
+              }
+
+              content.writeTo(out, writeIndex, index - writeIndex);
+              writeIndex = index = skipTo;
+              continue;
+            }
+            index = tagEnd;
+          }
+        }
+      }
+      ++index;
+    }
+
+    content.writeTo(out, writeIndex, endIndex - writeIndex);
+  }
+
+  static int indexOf(ViewBuffer data, byte value, int fromIndex, int toIndex)
+  {
+    for (int i = fromIndex; i < toIndex; i++)
+    {
+      if (data.byteAt(i) == value)
+      {
+        return i;
+      }
     }
+    return -1;
   }
 
+  static int indexOfIgnoreCase(ViewBuffer data, byte[] lowerCasePattern, int fromIndex, int toIndex)
+  {
+    for (int i = fromIndex; i <= toIndex - lowerCasePattern.length; i++)
+    {
+      if (regionMatchesIgnoreCase(data, i, toIndex, lowerCasePattern))
+      {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  static boolean regionMatchesIgnoreCase(ViewBuffer data, int index, int toIndex, byte[] lowerCasePattern)
+  {
+    if (index + lowerCasePattern.length > toIndex)
+    {
+      return false;
+    }
+
+    for (int i = 0; i < lowerCasePattern.length; i++)
+    {
+      byte b = data.byteAt(index + i);
+      if (b >= 'A' && b <= 'Z')
+      {
+        b += 'a' - 'A';
+      }
+
+      if (b != lowerCasePattern[i])
+      {
+        return false;
+      }
+    }
+    return true;
+  }
 
   static int indexOf(byte[] data, byte[] pattern)
+  {
+    return indexOf(new HeapViewBuffer(data), pattern);
+  }
+
+  static int indexOf(ViewBuffer data, byte[] pattern)
   {
     int matchIndex = 0;
 
     int finalIndex = pattern.length - 1;
-    for (int i = 0; i < data.length; i++)
+    int size = data.size();
+    for (int i = 0; i < size; i++)
     {
-      if (data[i] == pattern[matchIndex])
+      if (data.byteAt(i) == pattern[matchIndex])
       {
         if (matchIndex == finalIndex)
         {
@@ -232,13 +436,18 @@ public class View
   }
 
   static int lastIndexOf(byte[] data, byte[] pattern)
+  {
+    return lastIndexOf(new HeapViewBuffer(data), pattern);
+  }
+
+  static int lastIndexOf(ViewBuffer data, byte[] pattern)
   {
     int startMatchIndex = pattern.length - 1;
     int matchIndex = startMatchIndex;
 
-    for (int i = data.length - 1; i >= 0; i--)
+    for (int i = data.size() - 1; i >= 0; i--)
     {
-      if (data[i] == pattern[matchIndex])
+      if (data.byteAt(i) == pattern[matchIndex])
       {
         if (matchIndex == 0)
         {
@@ -258,11 +467,19 @@ public class View
     return -1;
   }
 
+  static final String SECTION_DELTAS_YIELD = "#sectionDeltas";
+
   static final byte LESS_THAN = (byte)'<';
 
   static final byte SOLIDUS = (byte)'/';
 
   static final byte GREATER_THAN = (byte)'>';
 
+  static final byte[] SCRIPT_TAG = "script".getBytes();
+
+  static final byte[] LINK_TAG = "link".getBytes();
+
+  static final byte[] SCRIPT_CLOSE_TAG = "</script>".getBytes();
+
 }
 
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.baswell.layouts;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/*
+ * Holds the content of the view. The buffer is confined to the request thread so unlike ByteArrayOutputStream none of its
+ * methods are synchronized. Subclasses provide the storage (heap or off-heap).
+ *
+ * If a BufferBudget is given every time the buffer grows the extra capacity is reserved from the budget first. When the budget
+ * can't cover the growth (or the storage can't be allocated) the buffer overflows: the content so far is handed to the overflow
+ * handler and all further writes go to the stream it returns.
+ */
+abstract class ViewBuffer extends OutputStream
+{
+  interface OverflowHandler
+  {
+    /*
+     * @return The stream to write the view content to from now on.
+     */
+    OutputStream overflow(ViewBuffer content) throws IOException;
+  }
+
+  private final BufferBudget budget;
+
+  private final OverflowHandler overflowHandler;
+
+  int count;
+
+  private long reserved;
+
+  private OutputStream overflowStream;
+
+  ViewBuffer(BufferBudget budget, OverflowHandler overflowHandler)
+  {
+    this.budget = budget;
+    this.overflowHandler = overflowHandler;
+  }
+
+  abstract byte byteAt(int index);
+
+  abstract void writeTo(OutputStream out, int offset, int length) throws IOException;
+
+  abstract byte[] toByteArray(int offset, int length);
+
+  abstract int capacity();
+
+  /*
+   * @param minimal If true only grow as much as is needed for minCapacity.
+   */
+  abstract int nextCapacity(int minCapacity, boolean minimal);
+
+  /*
+   * @return false if the storage couldn't be allocated.
+   */
+  abstract boolean allocate(int newCapacity);
+
+  abstract void put(byte b);
+
+  abstract void put(byte[] bytes, int offset, int length);
+
+  abstract void freeStorage();
+
+  int size()
+  {
+    return count;
+  }
+
+  boolean overflowed()
+  {
+    return overflowStream != null;
+  }
+
+  byte[] toByteArray()
+  {
+    return toByteArray(0, count);
+  }
+
+  void writeTo(OutputStream out) throws IOException
+  {
+    if (count > 0)
+    {
+      writeTo(out, 0, count);
+    }
+  }
+
+  /*
+   * Empty the buffer but keep its storage (and what it has reserved) so it can be filled again.
+   */
+  void clear()
+  {
+    count = 0;
+  }
+
+  /*
+   * Give the reserved bytes back to the budget and the storage back to where it came from. The buffer can't be used after this.
+   */
+  void release()
+  {
+    if (budget != null)
+    {
+      budget.release(reserved);
+    }
+    reserved = 0;
+    count = 0;
+    freeStorage();
+  }
+
+  @Override
+  public void write(int b) throws IOException
+  {
+    if (overflowStream != null)
+    {
+      overflowStream.write(b);
+    }
+    else if (ensureCapacity(count + 1))
+    {
+      put((byte) b);
+      ++count;
+    }
+    else
+    {
+      overflowStream.write(b);
+    }
+  }
+
+  @Override
+  public void write(byte[] bytes, int offset, int length) throws IOException
+  {
+    if (overflowStream != null)
+    {
+      overflowStream.write(bytes, offset, length);
+    }
+    else if (ensureCapacity(count + length))
+    {
+      put(bytes, offset, length);
+      count += length;
+    }
+    else
+    {
+      overflowStream.write(bytes, offset, length);
+    }
+  }
+
+  @Override
+  public void flush() throws IOException
+  {
+    if (overflowStream != null)
+    {
+      overflowStream.flush();
+    }
+  }
+
+  /*
+   * @return false if the buffer overflowed.
+   */
+  private boolean ensureCapacity(int minCapacity) throws IOException
+  {
+    int capacity = capacity();
+    if (minCapacity <= capacity)
+    {
+      return true;
+    }
+    else if (minCapacity < 0)
+    {
+      throw new OutOfMemoryError("View content too large to buffer.");
+    }
+
+    int newCapacity = nextCapacity(minCapacity, false);
+    if (budget != null)
+    {
+      if (!budget.tryReserve(newCapacity - capacity))
+      {
+        /*
+         * Try again with just what's needed before giving up.
+         */
+        newCapacity = nextCapacity(minCapacity, true);
+        if (!budget.tryReserve(newCapacity - capacity))
+        {
+          return overflow();
+        }
+      }
+      reserved += newCapacity - capacity;
+    }
+
+    LayoutsEvents.BufferGrowthEvent growthEvent = LayoutsEvents.bufferGrowth();
+    boolean allocated = allocate(newCapacity);
+    if (growthEvent != null)
+    {
+      growthEvent.finish(capacity, newCapacity, this instanceof DirectViewBuffer, allocated);
+    }
+    return allocated || overflow();
+  }
+
+  private boolean overflow() throws IOException
+  {
+    if (overflowHandler == null)
+    {
+      throw new OutOfMemoryError("Unable to allocate view buffer.");
+    }
+
+    overflowStream = overflowHandler.overflow(this);
+    release();
+    return false;
+  }
+}
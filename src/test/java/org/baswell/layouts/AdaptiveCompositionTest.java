@@ -0,0 +1,162 @@
+package org.baswell.layouts;/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import jakarta.servlet.ServletException;
+import java.lang.management.ManagementFactory;
+import javax.management.JMX;
+import javax.management.ObjectName;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.baswell.layouts.StreamingCompositionTest.*;
+import static org.junit.Assert.*;
+
+public class AdaptiveCompositionTest
+{
+  LayoutsFilter filter = new LayoutsFilter();
+
+  @After
+  public void after()
+  {
+    filter.destroy();
+  }
+
+  @Test
+  public void testRouteKey()
+  {
+    assertEquals("/users/{id}/edit", AdaptiveComposition.routeKey("/users/42/edit"));
+    assertEquals("/users/{id}", AdaptiveComposition.routeKey("/users/a1b2"));
+    assertEquals("/users/list", AdaptiveComposition.routeKey("/users/list"));
+    assertEquals("/", AdaptiveComposition.routeKey("/"));
+  }
+
+  @Test
+  public void testLargeViewsStreamed() throws Exception
+  {
+    init();
+    String view = "<html><head><title>Report</title></head><body>" + rows(100) + "</body></html>";
+    String expected = LAYOUT_BEFORE_HEAD + "<title>Report</title>" + LAYOUT_BEFORE_BODY + rows(100) + LAYOUT_AFTER_BODY;
+    for (int i = 0; i < AdaptiveComposition.MIN_SAMPLES; i++)
+    {
+      assertEquals(expected, run("/reports/" + i, view, null));
+    }
+    assertTrue(decision("/reports/{id}"), decision("/reports/{id}").startsWith("STREAMING"));
+    assertEquals(expected, run("/reports/1", view, null));
+
+    String small = "<html><head><title>Small</title></head><body><p>Small</p></body></html>";
+    for (int i = 0; i < AdaptiveComposition.MIN_SAMPLES; i++)
+    {
+      run("/reports/" + i, small, null);
+    }
+    assertTrue(decision("/reports/{id}"), decision("/reports/{id}").startsWith("BUFFERED"));
+    assertEquals(2, composition().getSwitchCount());
+  }
+
+  @Test
+  public void testSmallViewsBuffered() throws Exception
+  {
+    init();
+    for (int i = 0; i < 2 * AdaptiveComposition.MIN_SAMPLES; i++)
+    {
+      run("/home", "<html><head><title>Home</title></head><body><p>Home</p></body></html>", null);
+    }
+    assertTrue(decision("/home"), decision("/home").startsWith("BUFFERED"));
+  }
+
+  @Test
+  public void testNeverPassthroughUnlessPinned() throws Exception
+  {
+    init();
+    for (int i = 0; i < 2 * AdaptiveComposition.MIN_SAMPLES; i++)
+    {
+      assertEquals("{}", run("/users/" + i + ".json", "{}", "application/json"));
+    }
+    assertTrue(decision("/users/{id}"), decision("/users/{id}").startsWith("BUFFERED"));
+
+    String view = "<html><head><title>User</title></head><body><p>User</p></body></html>";
+    assertEquals(LAYOUT_BEFORE_HEAD + "<title>User</title>" + LAYOUT_BEFORE_BODY + "<p>User</p>" + LAYOUT_AFTER_BODY, run("/users/42", view, null));
+    assertEquals(0, composition().getSwitchCount());
+  }
+
+  @Test
+  public void testPinned() throws Exception
+  {
+    init("ADAPTIVE_PINS", "/raw/.*=PASSTHROUGH");
+    String view = "<html><head><title>Raw</title></head><body><p>Raw</p></body></html>";
+    assertEquals(view, run("/raw/page", view, null));
+    assertTrue(decision("/raw/page"), decision("/raw/page").startsWith("PASSTHROUGH (pinned)"));
+  }
+
+  @Test
+  public void testRoutesBounded() throws Exception
+  {
+    init("ADAPTIVE_ROUTES", "2");
+    run("/a", "<p>a</p>", null);
+    run("/b", "<p>b</p>", null);
+    run("/c", "<p>c</p>", null);
+    assertEquals(2, composition().getRoutes());
+    assertFalse(composition().getDecisions().containsKey("/a"));
+  }
+
+  @Test(expected = ServletException.class)
+  public void testInvalidPin() throws Exception
+  {
+    init("ADAPTIVE_PINS", "/raw/.*=SOMETIMES");
+  }
+
+  void init(String... parameters) throws Exception
+  {
+    InMemoryServlet.Config config = new InMemoryServlet.Config().initParameter("LAYOUTS", "application.jsp").initParameter("COMPOSITION", "ADAPTIVE")
+                                                                .initParameter("ADAPTIVE_STREAM_SIZE", "1K");
+    for (int i = 0; i < parameters.length; i += 2)
+    {
+      config.initParameter(parameters[i], parameters[i + 1]);
+    }
+    config.servletContext = new InMemoryServlet.Context().servletContext;
+    filter.init(config);
+  }
+
+  String run(String path, String view, String contentType) throws Exception
+  {
+    InMemoryServlet.Request request = request();
+    request.requestURI = path;
+    InMemoryServlet.View chain = new InMemoryServlet.View(view);
+    chain.contentType = contentType;
+    InMemoryServlet.Response response = new InMemoryServlet.Response();
+    filter.doFilter(request, response, chain);
+    return response.content();
+  }
+
+  String decision(String route) throws Exception
+  {
+    return String.valueOf(composition().getDecisions().get(route));
+  }
+
+  AdaptiveCompositionMXBean composition() throws Exception
+  {
+    return JMX.newMXBeanProxy(ManagementFactory.getPlatformMBeanServer(), new ObjectName("org.baswell.layouts:type=AdaptiveComposition,context=\"/\",filter=\"LayoutsFilter\""), AdaptiveCompositionMXBean.class);
+  }
+
+  static String rows(int count)
+  {
+    StringBuilder rows = new StringBuilder();
+    for (int i = 0; i < count; i++)
+    {
+      rows.append("<p>Row ").append(i).append("</p>");
+    }
+    return rows.toString();
+  }
+}
@@ -0,0 +1,98 @@
+package org.baswell.layouts;/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class AssetUrlRewritingOutputStreamTest
+{
+  @Test
+  public void testRewrite() throws IOException
+  {
+    String page = "<link href=\"/app/a.css\" rel=\"stylesheet\"><link href='/app/a.css.map'><script src=\"/app/js/b.js\"></script><a href=\"/app/js/c.js\">/app/a.css</a>";
+    String expected = "<link href=\"/app/a.1234.css\" rel=\"stylesheet\"><link href='/app/a.css.map'><script src=\"/app/js/b.5678.js\"></script><a href=\"/app/js/c.js\">/app/a.css</a>";
+
+    assertEquals(expected, rewrite(page, page.length()));
+    assertEquals(expected, rewrite(page, 1));
+    assertEquals(expected, rewrite(page, 7));
+  }
+
+  @Test
+  public void testPartialMatchReplay() throws IOException
+  {
+    assertEquals("'/app/a.c'/app/a.1234.css'", rewrite("'/app/a.c'/app/a.css'", 3));
+    assertEquals("\"/app/a.c=/app/js/b.5678.js\"", rewrite("\"/app/a.c=/app/js/b.js\"", 2));
+
+    for (int chunkSize : new int[]{1, 2, 100})
+    {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      AssetUrlRewritingOutputStream rewritingStream = new AssetUrlRewritingOutputStream(out, new byte[][]{"/a=/bc".getBytes(), "/b".getBytes()}, new byte[][]{"/A".getBytes(), "/B".getBytes()});
+      byte[] bytes = "'/a=/b' '/a=/bx'".getBytes();
+      for (int i = 0; i < bytes.length; i += chunkSize)
+      {
+        rewritingStream.write(bytes, i, Math.min(chunkSize, bytes.length - i));
+      }
+      rewritingStream.close();
+      assertEquals("'/a=/B' '/a=/bx'", out.toString());
+    }
+  }
+
+  @Test
+  public void testUrlMustStartAfterQuoteOrEquals() throws IOException
+  {
+    String page = "<link href=\"https://cdn.example.com/app/a.css\"><link href=\"/other/app/a.css\"><p>//app/a.css'</p><style>p { background: url('/app/a.css') }</style>";
+    String expected = "<link href=\"https://cdn.example.com/app/a.css\"><link href=\"/other/app/a.css\"><p>//app/a.css'</p><style>p { background: url('/app/a.1234.css') }</style>";
+
+    assertEquals(expected, rewrite(page, page.length()));
+    assertEquals(expected, rewrite(page, 1));
+    assertEquals(expected, rewrite(page, 5));
+  }
+
+  @Test
+  public void testFlushWritesPending() throws IOException
+  {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    AssetUrlRewritingOutputStream rewritingStream = newStream(out);
+    rewritingStream.write("<a href=\"/app/js".getBytes());
+    assertEquals("<a href=\"", out.toString());
+    rewritingStream.flush();
+    assertEquals("<a href=\"/app/js", out.toString());
+  }
+
+  static String rewrite(String content, int chunkSize) throws IOException
+  {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    AssetUrlRewritingOutputStream rewritingStream = newStream(out);
+    byte[] bytes = content.getBytes();
+    for (int i = 0; i < bytes.length; i += chunkSize)
+    {
+      rewritingStream.write(bytes, i, Math.min(chunkSize, bytes.length - i));
+    }
+    rewritingStream.close();
+    return out.toString();
+  }
+
+  static AssetUrlRewritingOutputStream newStream(ByteArrayOutputStream out)
+  {
+    byte[][] urls = new byte[][]{"/app/a.css".getBytes(), "/app/a.css.map2".getBytes(), "/app/js/b.js".getBytes()};
+    byte[][] replacements = new byte[][]{"/app/a.1234.css".getBytes(), "/app/a.css.4321.map2".getBytes(), "/app/js/b.5678.js".getBytes()};
+    return new AssetUrlRewritingOutputStream(out, urls, replacements);
+  }
+}
@@ -0,0 +1,202 @@
+package org.baswell.layouts;/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class BatchRendererTest
+{
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testRenderInParallel() throws Exception
+  {
+    List<BatchRenderer.Job> jobs = new ArrayList<BatchRenderer.Job>();
+    for (int i = 0; i < 500; i++)
+    {
+      jobs.add(new BatchRenderer.Job("/pages/" + i + ".html", view(i)));
+    }
+
+    MemorySink sink = new MemorySink();
+    BatchRenderer renderer = new BatchRenderer(filter());
+    BatchRenderer.Batch batch = renderer.render(jobs, sink);
+    assertTrue(batch.await(30, TimeUnit.SECONDS));
+    renderer.close();
+
+    assertTrue(batch.isDone());
+    assertEquals(500, batch.getRendered());
+    assertEquals(0, batch.getFailed());
+    long bytes = 0;
+    for (int i = 0; i < 500; i++)
+    {
+      String page = sink.pages.get("/pages/" + i + ".html").toString();
+      assertEquals(page(i), page);
+      bytes += page.length();
+    }
+    assertEquals(bytes, batch.getBytes());
+    assertTrue(batch.getPagesPerSecond() > 0);
+  }
+
+  @Test
+  public void testUnknownLayout() throws Exception
+  {
+    BatchRenderer.Job job = new BatchRenderer.Job("/missing.html", view(0).getBytes(), "missing", Collections.<String, Object>emptyMap());
+    MemorySink sink = new MemorySink();
+    BatchRenderer renderer = new BatchRenderer(filter());
+    BatchRenderer.Batch batch = renderer.render(Collections.singletonList(job), sink);
+    batch.await();
+    renderer.close();
+
+    assertEquals(0, batch.getRendered());
+    assertEquals(1, batch.getFailed());
+    assertEquals("No layout defined with name: missing", batch.getFailures().get(job).getMessage());
+    assertTrue(sink.pages.isEmpty());
+  }
+
+  @Test
+  public void testCancel() throws Exception
+  {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    MemorySink sink = new MemorySink()
+    {
+      @Override
+      public OutputStream open(BatchRenderer.Job job) throws IOException
+      {
+        started.countDown();
+        try
+        {
+          release.await();
+        }
+        catch (InterruptedException e)
+        {
+          throw new IOException(e);
+        }
+        return super.open(job);
+      }
+    };
+
+    List<BatchRenderer.Job> jobs = new ArrayList<BatchRenderer.Job>();
+    for (int i = 0; i < 10; i++)
+    {
+      jobs.add(new BatchRenderer.Job("/pages/" + i + ".html", view(i)));
+    }
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    BatchRenderer renderer = new BatchRenderer(filter(), executor);
+    BatchRenderer.Batch batch = renderer.render(jobs, sink);
+    started.await();
+    batch.cancel();
+    release.countDown();
+    batch.await();
+    executor.shutdown();
+
+    assertTrue(batch.isCancelled());
+    assertEquals(1, batch.getRendered());
+    assertEquals(9, batch.getSkipped());
+  }
+
+  @Test
+  public void testDirectorySink() throws Exception
+  {
+    File directory = folder.newFolder();
+    BatchRenderer renderer = new BatchRenderer(filter());
+    BatchRenderer.Batch batch = renderer.render(Collections.singletonList(new BatchRenderer.Job("reports/2026/summary.html", view(7))), BatchRenderer.directorySink(directory));
+    batch.await();
+    renderer.close();
+
+    assertEquals(1, batch.getRendered());
+    assertEquals(page(7), new String(Files.readAllBytes(new File(directory, "reports/2026/summary.html").toPath())));
+  }
+
+  @Test
+  public void testDirectorySinkRejectsPathsOutsideDirectory() throws Exception
+  {
+    File root = folder.newFolder();
+    File directory = new File(root, "export");
+    BatchRenderer renderer = new BatchRenderer(filter());
+    List<BatchRenderer.Job> jobs = Arrays.asList(new BatchRenderer.Job("../escaped.html", view(1)), new BatchRenderer.Job("/a/../../escaped.html", view(2)),
+                                                 new BatchRenderer.Job("/", view(3)), new BatchRenderer.Job("/a/../inside.html", view(4)));
+    BatchRenderer.Batch batch = renderer.render(jobs, BatchRenderer.directorySink(directory));
+    batch.await();
+    renderer.close();
+
+    assertEquals(1, batch.getRendered());
+    assertEquals(3, batch.getFailed());
+    assertFalse(new File(root, "escaped.html").exists());
+    assertEquals(page(4), new String(Files.readAllBytes(new File(directory, "inside.html").toPath())));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testFilterNotInitialized()
+  {
+    new BatchRenderer(new LayoutsFilter());
+  }
+
+  static String view(int i)
+  {
+    return "<head><title>Page " + i + "</title></head><body><p>Content " + i + "</p></body>";
+  }
+
+  static String page(int i)
+  {
+    return "<html><head><title>Page " + i + "</title></head><body><p>Content " + i + "</p></body></html>";
+  }
+
+  static LayoutsFilter filter() throws Exception
+  {
+    InMemoryServlet.Context context = new InMemoryServlet.Context();
+    context.dispatchers.put("/WEB-INF/jsps/layouts/application.jsp", new InMemoryServlet.Layout("<html><head>", "</head><body>", "</body></html>"));
+
+    InMemoryServlet.Config config = new InMemoryServlet.Config().initParameter("LAYOUTS", "application.jsp");
+    config.servletContext = context.servletContext;
+    LayoutsFilter filter = new LayoutsFilter();
+    filter.init(config);
+    return filter;
+  }
+
+  static class MemorySink implements BatchRenderer.Sink
+  {
+    final Map<String, ByteArrayOutputStream> pages = new ConcurrentHashMap<String, ByteArrayOutputStream>();
+
+    @Override
+    public OutputStream open(BatchRenderer.Job job) throws IOException
+    {
+      ByteArrayOutputStream page = new ByteArrayOutputStream();
+      pages.put(job.getPath(), page);
+      return page;
+    }
+  }
+}
@@ -0,0 +1,314 @@
+package org.baswell.layouts;/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.ServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.JMX;
+import javax.management.ObjectName;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.baswell.layouts.AdaptiveCompositionTest.rows;
+import static org.baswell.layouts.StreamingCompositionTest.*;
+import static org.junit.Assert.*;
+
+public class BufferBudgetTest
+{
+  static final String PAGE = "<html><head><title>Page</title></head><body><p>Page</p></body></html>";
+
+  static final String COMPOSED = LAYOUT_BEFORE_HEAD + "<title>Page</title>" + LAYOUT_BEFORE_BODY + "<p>Page</p>" + LAYOUT_AFTER_BODY;
+
+  LayoutsFilter filter = new LayoutsFilter();
+
+  @After
+  public void after()
+  {
+    filter.destroy();
+  }
+
+  @Test
+  public void testReserveAndRelease()
+  {
+    BufferBudget budget = new BufferBudget(100, BufferBudget.ExhaustedPolicy.PASSTHROUGH, 0);
+    assertTrue(budget.tryReserve(60));
+    assertFalse(budget.tryReserve(50));
+    assertEquals(60, budget.getReservedBytes());
+    assertFalse(budget.isExhausted());
+
+    assertTrue(budget.tryReserve(40));
+    assertTrue(budget.isExhausted());
+    assertEquals(100.0, budget.getReservedPercent(), 0);
+
+    budget.release(100);
+    budget.release(0);
+    assertEquals(0, budget.getReservedBytes());
+    assertEquals(100, budget.getPeakReservedBytes());
+    assertFalse(budget.isExhausted());
+  }
+
+  @Test
+  public void testConcurrentReservationsNeverExceedLimit() throws Exception
+  {
+    final BufferBudget budget = new BufferBudget(10000, BufferBudget.ExhaustedPolicy.PASSTHROUGH, 0);
+    final AtomicInteger reservations = new AtomicInteger();
+    Thread[] threads = new Thread[8];
+    for (int i = 0; i < threads.length; i++)
+    {
+      threads[i] = new Thread()
+      {
+        @Override
+        public void run()
+        {
+          while (budget.tryReserve(3))
+          {
+            reservations.incrementAndGet();
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread thread : threads)
+    {
+      thread.join();
+    }
+
+    assertEquals(3333, reservations.get());
+    assertEquals(9999, budget.getReservedBytes());
+    assertEquals(9999, budget.getPeakReservedBytes());
+
+    budget.release(9999);
+    assertEquals(0, budget.getReservedBytes());
+  }
+
+  @Test
+  public void testOverflowPushesBufferedContentThenStreams() throws Exception
+  {
+    BufferBudget budget = new BufferBudget(HeapViewBuffer.INITIAL_CAPACITY, BufferBudget.ExhaustedPolicy.PASSTHROUGH, 0);
+    final ByteArrayOutputStream client = new ByteArrayOutputStream();
+    final int[] bufferedAtOverflow = new int[1];
+    HeapViewBuffer buffer = new HeapViewBuffer(budget, new ViewBuffer.OverflowHandler()
+    {
+      @Override
+      public OutputStream overflow(ViewBuffer content) throws IOException
+      {
+        bufferedAtOverflow[0] = content.size();
+        content.writeTo(client);
+        return client;
+      }
+    });
+
+    byte[] view = rows(200).getBytes();
+    buffer.write(view, 0, 1000);
+    assertFalse(buffer.overflowed());
+    assertEquals(HeapViewBuffer.INITIAL_CAPACITY, budget.getReservedBytes());
+
+    buffer.write(view, 1000, 1000);
+    buffer.write(view[2000]);
+    buffer.write(view, 2001, view.length - 2001);
+    assertTrue(buffer.overflowed());
+    assertEquals(1000, bufferedAtOverflow[0]);
+    assertArrayEquals(view, client.toByteArray());
+
+    buffer.release();
+    assertEquals(0, budget.getReservedBytes());
+  }
+
+  @Test
+  public void testOverflowMidRenderSendsViewWithoutLayout() throws Exception
+  {
+    init("BUFFER_BUDGET", "1K");
+    String view = "<html><head><title>Report</title></head><body>" + rows(200) + "</body></html>";
+    InMemoryServlet.Response response = new InMemoryServlet.Response();
+    filter.doFilter(request(), response, new InMemoryServlet.View(view));
+
+    assertEquals(view, response.content());
+    assertEquals(1, budget().getPassthroughCount());
+    assertEquals(0, budget().getReservedBytes());
+    assertEquals(COMPOSED, run());
+  }
+
+  @Test
+  public void testExhaustedPassthrough() throws Exception
+  {
+    init("BUFFER_BUDGET", "1K");
+    assertEquals(PAGE, whileExhausted());
+    assertEquals(1, budget().getPassthroughCount());
+    assertEquals(0, budget().getWaitCount());
+    assertEquals(0, budget().getReservedBytes());
+    assertEquals(COMPOSED, run());
+  }
+
+  @Test
+  public void testExhaustedWaitGivesUp() throws Exception
+  {
+    init("BUFFER_BUDGET", "1K", "BUFFER_BUDGET_POLICY", "WAIT", "BUFFER_BUDGET_WAIT", "20");
+    assertEquals(PAGE, whileExhausted());
+    assertEquals(1, budget().getWaitCount());
+    assertEquals(1, budget().getPassthroughCount());
+  }
+
+  @Test
+  public void testExhaustedWaitUntilAvailable() throws Exception
+  {
+    init("BUFFER_BUDGET", "1K", "BUFFER_BUDGET_POLICY", "WAIT", "BUFFER_BUDGET_WAIT", "5000");
+    final CountDownLatch holding = new CountDownLatch(1);
+    final CountDownLatch finish = new CountDownLatch(1);
+    Thread holder = hold(holding, finish);
+    assertTrue(holding.await(5, TimeUnit.SECONDS));
+
+    new Thread()
+    {
+      @Override
+      public void run()
+      {
+        try
+        {
+          Thread.sleep(50);
+        }
+        catch (InterruptedException e)
+        {}
+        finish.countDown();
+      }
+    }.start();
+
+    assertEquals(COMPOSED, run());
+    holder.join();
+    assertEquals(1, budget().getWaitCount());
+    assertEquals(0, budget().getPassthroughCount());
+  }
+
+  @Test
+  public void testExhaustedReject() throws Exception
+  {
+    init("BUFFER_BUDGET", "1K", "BUFFER_BUDGET_POLICY", "REJECT");
+    final CountDownLatch holding = new CountDownLatch(1);
+    final CountDownLatch finish = new CountDownLatch(1);
+    Thread holder = hold(holding, finish);
+    assertTrue(holding.await(5, TimeUnit.SECONDS));
+
+    InMemoryServlet.Response response = new InMemoryServlet.Response();
+    filter.doFilter(request(), response, new InMemoryServlet.View(PAGE));
+    assertEquals(503, response.status);
+    assertEquals(1, budget().getRejectedCount());
+
+    finish.countDown();
+    holder.join();
+    assertEquals(COMPOSED, run());
+  }
+
+  @Test(expected = ServletException.class)
+  public void testInvalidPolicy() throws Exception
+  {
+    init("BUFFER_BUDGET", "1K", "BUFFER_BUDGET_POLICY", "SOMETIMES");
+  }
+
+  void init(String... parameters) throws Exception
+  {
+    InMemoryServlet.Config config = new InMemoryServlet.Config().initParameter("LAYOUTS", "application.jsp");
+    for (int i = 0; i < parameters.length; i += 2)
+    {
+      config.initParameter(parameters[i], parameters[i + 1]);
+    }
+    config.servletContext = new InMemoryServlet.Context().servletContext;
+    filter.init(config);
+  }
+
+  String run() throws Exception
+  {
+    InMemoryServlet.Response response = new InMemoryServlet.Response();
+    filter.doFilter(request(), response, new InMemoryServlet.View(PAGE));
+    return response.content();
+  }
+
+  /*
+   * @return The content of a request made while another request holds the whole budget.
+   */
+  String whileExhausted() throws Exception
+  {
+    CountDownLatch holding = new CountDownLatch(1);
+    CountDownLatch finish = new CountDownLatch(1);
+    Thread holder = hold(holding, finish);
+    assertTrue(holding.await(5, TimeUnit.SECONDS));
+    assertEquals(1024, budget().getReservedBytes());
+    try
+    {
+      return run();
+    }
+    finally
+    {
+      finish.countDown();
+      holder.join();
+    }
+  }
+
+  /*
+   * Starts a request whose view buffers a page (reserving the whole 1K budget) and then waits for finish.
+   */
+  Thread hold(final CountDownLatch holding, final CountDownLatch finish)
+  {
+    Thread thread = new Thread()
+    {
+      @Override
+      public void run()
+      {
+        try
+        {
+          filter.doFilter(request(), new InMemoryServlet.Response(), new FilterChain()
+          {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response) throws IOException
+            {
+              PrintWriter writer = response.getWriter();
+              writer.write(PAGE);
+              writer.flush();
+              holding.countDown();
+              try
+              {
+                finish.await(5, TimeUnit.SECONDS);
+              }
+              catch (InterruptedException e)
+              {
+                Thread.currentThread().interrupt();
+              }
+            }
+          });
+        }
+        catch (Exception e)
+        {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    thread.start();
+    return thread;
+  }
+
+  BufferBudgetMXBean budget() throws Exception
+  {
+    return JMX.newMXBeanProxy(ManagementFactory.getPlatformMBeanServer(), new ObjectName("org.baswell.layouts:type=BufferBudget,context=\"/\",filter=\"LayoutsFilter\""), BufferBudgetMXBean.class);
+  }
+}
@@ -0,0 +1,307 @@
+package org.baswell.layouts;/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.ServletResponse;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMX;
+import javax.management.ObjectName;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ConcurrencyLimiterTest
+{
+  LayoutsFilter filter = new LayoutsFilter();
+
+  @After
+  public void after()
+  {
+    filter.destroy();
+  }
+
+  @Test
+  public void testShedOverLimit() throws Exception
+  {
+    init("CONCURRENCY_LIMIT", "2", "CONCURRENCY_LIMIT_WAIT", "0", "EXCEPT", "/api/.*");
+    CountDownLatch entered = new CountDownLatch(2);
+    CountDownLatch finish = new CountDownLatch(1);
+    Thread[] threads = {start("/a", entered, finish), start("/b", entered, finish)};
+    assertTrue(entered.await(5, TimeUnit.SECONDS));
+
+    assertEquals(503, run("/c", null, null).status);
+    assertEquals(200, run("/api/users", null, null).status);
+
+    finish.countDown();
+    for (Thread thread : threads)
+    {
+      thread.join();
+    }
+    assertEquals(200, run("/d", null, null).status);
+
+    ConcurrencyLimiterMXBean mbean = mbean();
+    assertEquals(1, mbean.getShedCount());
+    assertEquals("LAYOUT", mbean.getGroupBy());
+    assertEquals(20, mbean.getMaxLimit());
+    assertEquals(Integer.valueOf(2), mbean.getLimits().get("application"));
+    assertTrue(mbean.getGroups().get("application"), mbean.getGroups().get("application").startsWith("limit=2 inFlight=0 queued=0 samples=3 "));
+  }
+
+  @Test
+  public void testQueuedUntilUnderLimit() throws Exception
+  {
+    init("CONCURRENCY_LIMIT", "1", "CONCURRENCY_LIMIT_WAIT", "5000");
+    CountDownLatch entered = new CountDownLatch(1);
+    CountDownLatch finish = new CountDownLatch(1);
+    Thread first = start("/a", entered, finish);
+    assertTrue(entered.await(5, TimeUnit.SECONDS));
+
+    final InMemoryServlet.Response[] second = new InMemoryServlet.Response[1];
+    Thread secondThread = new Thread()
+    {
+      @Override
+      public void run()
+      {
+        try
+        {
+          second[0] = ConcurrencyLimiterTest.this.run("/b", null, null);
+        }
+        catch (Exception e)
+        {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    secondThread.start();
+
+    ConcurrencyLimiterMXBean mbean = mbean();
+    long giveUp = System.currentTimeMillis() + 5000;
+    while (mbean.getQueueDepth() == 0 && System.currentTimeMillis() < giveUp)
+    {
+      Thread.sleep(5);
+    }
+    assertEquals(1, mbean.getQueueDepth());
+
+    finish.countDown();
+    first.join();
+    secondThread.join();
+    assertEquals(200, second[0].status);
+    assertEquals(0, mbean.getQueueDepth());
+    assertEquals(1, mbean.getQueuedCount());
+    assertEquals(0, mbean.getShedCount());
+  }
+
+  @Test
+  public void testGroupedByRoute() throws Exception
+  {
+    init("CONCURRENCY_LIMIT", "5", "CONCURRENCY_LIMIT_BY", "ROUTE");
+    run("/users/42", null, null);
+    run("/users/43", null, null);
+    run("/home", null, null);
+    assertEquals(2, mbean().getLimits().size());
+    assertEquals(Integer.valueOf(5), mbean().getLimits().get("/users/{id}"));
+    assertEquals(Integer.valueOf(5), mbean().getLimits().get("/home"));
+  }
+
+  @Test
+  public void testLimitAdapts()
+  {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(ConcurrencyLimiter.GroupBy.LAYOUT, 10, 100, 0);
+    ConcurrencyLimiter.Group group = limiter.group("application");
+
+    for (int i = 0; i < 10; i++)
+    {
+      group.sample(10000000, 1);
+    }
+    assertEquals(Integer.valueOf(10), limiter.getLimits().get("application"));
+
+    for (int i = 0; i < 50; i++)
+    {
+      group.sample(10000000, limiter.getLimits().get("application"));
+    }
+    int grown = limiter.getLimits().get("application");
+    assertTrue(String.valueOf(grown), grown > 30);
+
+    for (int i = 0; i < 20; i++)
+    {
+      group.sample(100000000, limiter.getLimits().get("application"));
+    }
+    int cut = limiter.getLimits().get("application");
+    assertTrue(String.valueOf(cut), cut < grown / 2);
+
+    for (int i = 0; i < 500; i++)
+    {
+      group.sample(10000000, 100);
+    }
+    assertEquals(Integer.valueOf(100), limiter.getLimits().get("application"));
+  }
+
+  @Test
+  public void testWaitersServedInOrder() throws Exception
+  {
+    final ConcurrencyLimiter limiter = new ConcurrencyLimiter(ConcurrencyLimiter.GroupBy.LAYOUT, 1, 1, 5000);
+    final ConcurrencyLimiter.Group group = limiter.group("application");
+    assertTrue(group.acquire());
+
+    final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+    Thread[] waiters = new Thread[3];
+    for (int i = 0; i < waiters.length; i++)
+    {
+      final int number = i;
+      waiters[i] = new Thread()
+      {
+        @Override
+        public void run()
+        {
+          if (limiter.group("application").acquire())
+          {
+            order.add(number);
+            group.release(-1);
+          }
+        }
+      };
+      waiters[i].start();
+
+      long giveUp = System.currentTimeMillis() + 5000;
+      while (limiter.getQueueDepth() < i + 1 && System.currentTimeMillis() < giveUp)
+      {
+        Thread.sleep(1);
+      }
+    }
+
+    group.release(-1);
+    for (Thread waiter : waiters)
+    {
+      waiter.join();
+    }
+    assertEquals("[0, 1, 2]", order.toString());
+    assertEquals(3, limiter.getQueuedCount());
+    assertEquals(0, limiter.getQueueDepth());
+  }
+
+  @Test
+  public void testGroupInUseNotEvicted()
+  {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(ConcurrencyLimiter.GroupBy.ROUTE, 1, 1, 0);
+    ConcurrencyLimiter.Group busy = limiter.group("/busy");
+    assertTrue(busy.acquire());
+
+    for (int i = 0; i < ConcurrencyLimiter.MAX_GROUPS; i++)
+    {
+      ConcurrencyLimiter.Group group = limiter.group("/route/" + i);
+      assertTrue(group.acquire());
+      group.release(-1);
+    }
+
+    assertEquals(ConcurrencyLimiter.MAX_GROUPS, limiter.getLimits().size());
+    assertSame(busy, limiter.group("/busy"));
+    assertFalse(limiter.group("/busy").acquire());
+    busy.release(-1);
+  }
+
+  @Test
+  public void testInvalidConfiguration() throws Exception
+  {
+    String[][] invalid = {{"CONCURRENCY_LIMIT", "0"}, {"CONCURRENCY_LIMIT", "lots"}, {"CONCURRENCY_LIMIT", "10", "CONCURRENCY_LIMIT_MAX", "5"},
+                          {"CONCURRENCY_LIMIT", "10", "CONCURRENCY_LIMIT_BY", "USER"}};
+    for (String[] parameters : invalid)
+    {
+      try
+      {
+        init(parameters);
+        fail();
+      }
+      catch (ServletException e)
+      {}
+    }
+  }
+
+  void init(String... parameters) throws Exception
+  {
+    InMemoryServlet.Config config = new InMemoryServlet.Config().initParameter("LAYOUTS", "application.jsp");
+    for (int i = 0; i < parameters.length; i += 2)
+    {
+      config.initParameter(parameters[i], parameters[i + 1]);
+    }
+    config.servletContext = new InMemoryServlet.Context().servletContext;
+    filter.init(config);
+  }
+
+  Thread start(final String path, final CountDownLatch entered, final CountDownLatch finish)
+  {
+    Thread thread = new Thread()
+    {
+      @Override
+      public void run()
+      {
+        try
+        {
+          ConcurrencyLimiterTest.this.run(path, entered, finish);
+        }
+        catch (Exception e)
+        {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    thread.start();
+    return thread;
+  }
+
+  InMemoryServlet.Response run(String path, final CountDownLatch entered, final CountDownLatch finish) throws Exception
+  {
+    InMemoryServlet.Request request = new InMemoryServlet.Request();
+    InMemoryServlet.Response response = new InMemoryServlet.Response();
+    request.headers.put("Accept", "text/html");
+    request.requestURI = path;
+    request.dispatchers.put("/WEB-INF/jsps/layouts/application.jsp", new InMemoryServlet.Layout("<html><head>", "</head><body>", "</body></html>"));
+    filter.doFilter(request, response, new FilterChain()
+    {
+      @Override
+      public void doFilter(ServletRequest request, ServletResponse response) throws IOException
+      {
+        if (entered != null)
+        {
+          entered.countDown();
+          try
+          {
+            finish.await(5, TimeUnit.SECONDS);
+          }
+          catch (InterruptedException e)
+          {
+            Thread.currentThread().interrupt();
+          }
+        }
+        response.getWriter().write("<head></head><body><p>Page</p></body>");
+      }
+    });
+    return response;
+  }
+
+  ConcurrencyLimiterMXBean mbean() throws Exception
+  {
+    return JMX.newMXBeanProxy(ManagementFactory.getPlatformMBeanServer(), new ObjectName("org.baswell.layouts:type=ConcurrencyLimiter,context=\"/\",filter=\"LayoutsFilter\""), ConcurrencyLimiterMXBean.class);
+  }
+}
@@ -0,0 +1,212 @@
+package org.baswell.layouts;/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.baswell.layouts.AdaptiveCompositionTest.rows;
+import static org.baswell.layouts.DirectBufferArena.*;
+import static org.baswell.layouts.StreamingCompositionTest.*;
+import static org.junit.Assert.*;
+
+public class DirectViewBufferTest
+{
+  @Test
+  public void testWritesAcrossChunkBoundaries() throws Exception
+  {
+    byte[] content = content(2 * CHUNK_SIZE + 100);
+    DirectViewBuffer buffer = new DirectViewBuffer(new DirectBufferArena(1024 * 1024), null, null);
+    buffer.write(content, 0, CHUNK_SIZE - 3);
+    buffer.write(content, CHUNK_SIZE - 3, 10);
+    for (int i = CHUNK_SIZE + 7; i < 2 * CHUNK_SIZE + 2; i++)
+    {
+      buffer.write(content[i]);
+    }
+    buffer.write(content, 2 * CHUNK_SIZE + 2, 98);
+
+    assertEquals(content.length, buffer.size());
+    assertEquals(3 * CHUNK_SIZE, buffer.capacity());
+    assertArrayEquals(content, buffer.toByteArray());
+    assertArrayEquals(Arrays.copyOfRange(content, CHUNK_SIZE - 5, 2 * CHUNK_SIZE + 5), buffer.toByteArray(CHUNK_SIZE - 5, CHUNK_SIZE + 10));
+    for (int index : new int[]{0, CHUNK_SIZE - 1, CHUNK_SIZE, 2 * CHUNK_SIZE, content.length - 1})
+    {
+      assertEquals(content[index], buffer.byteAt(index));
+    }
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    buffer.writeTo(out);
+    assertArrayEquals(content, out.toByteArray());
+
+    out.reset();
+    buffer.writeTo(out, CHUNK_SIZE - 5, CHUNK_SIZE + 10);
+    assertArrayEquals(Arrays.copyOfRange(content, CHUNK_SIZE - 5, 2 * CHUNK_SIZE + 5), out.toByteArray());
+
+    ChannelStream channel = new ChannelStream();
+    buffer.writeTo(channel);
+    assertArrayEquals(content, channel.toByteArray());
+    assertEquals(0, channel.streamWrites);
+    buffer.release();
+  }
+
+  @Test
+  public void testChunksReturnedToArena() throws Exception
+  {
+    DirectBufferArena arena = new DirectBufferArena(CHUNK_SIZE);
+    ByteBuffer first = arena.acquire();
+    ByteBuffer second = arena.acquire();
+    first.put((byte) 1);
+    arena.release(first);
+    arena.release(second);
+
+    /*
+     * Only one chunk is pooled, the second is left for the garbage collector.
+     */
+    assertSame(first, arena.acquire());
+    assertEquals(0, first.position());
+    ByteBuffer third = arena.acquire();
+    assertNotSame(first, third);
+    assertNotSame(second, third);
+
+    arena.release(first);
+    DirectViewBuffer buffer = new DirectViewBuffer(arena, null, null);
+    buffer.write(content(10), 0, 10);
+    assertEquals(CHUNK_SIZE, buffer.capacity());
+    buffer.release();
+    assertEquals(0, buffer.capacity());
+    assertSame(first, arena.acquire());
+  }
+
+  @Test
+  public void testOverflowWhenChunksCantBeAllocated() throws Exception
+  {
+    DirectBufferArena arena = new LimitedArena(1);
+    final ByteArrayOutputStream client = new ByteArrayOutputStream();
+    final int[] bufferedAtOverflow = new int[1];
+    DirectViewBuffer buffer = new DirectViewBuffer(arena, null, new ViewBuffer.OverflowHandler()
+    {
+      @Override
+      public OutputStream overflow(ViewBuffer content) throws IOException
+      {
+        bufferedAtOverflow[0] = content.size();
+        content.writeTo(client);
+        return client;
+      }
+    });
+
+    byte[] content = content(CHUNK_SIZE + 1000);
+    buffer.write(content, 0, CHUNK_SIZE - 10);
+    assertFalse(buffer.overflowed());
+    buffer.write(content, CHUNK_SIZE - 10, 1010);
+    assertTrue(buffer.overflowed());
+    assertEquals(CHUNK_SIZE - 10, bufferedAtOverflow[0]);
+    assertArrayEquals(content, client.toByteArray());
+    buffer.release();
+  }
+
+  @Test
+  public void testUnavailable()
+  {
+    assertTrue(new DirectBufferArena(CHUNK_SIZE).available());
+    assertFalse(new LimitedArena(0).available());
+  }
+
+  @Test
+  public void testComposedFromDirectBuffers() throws Exception
+  {
+    String view = "<html><head><title>Report</title></head><body>" + rows(10000) + "</body></html>";
+    assertTrue(view.length() > 2 * CHUNK_SIZE);
+
+    LayoutsFilter filter = new LayoutsFilter();
+    filter.init(new InMemoryServlet.Config().initParameter("LAYOUTS", "application.jsp").initParameter("BUFFER_MODE", "DIRECT"));
+    InMemoryServlet.Response response = new InMemoryServlet.Response();
+    filter.doFilter(request(), response, new InMemoryServlet.View(view));
+    filter.destroy();
+
+    assertEquals(LAYOUT_BEFORE_HEAD + "<title>Report</title>" + LAYOUT_BEFORE_BODY + rows(10000) + LAYOUT_AFTER_BODY, response.content());
+  }
+
+  static byte[] content(int length)
+  {
+    byte[] content = new byte[length];
+    new Random(length).nextBytes(content);
+    return content;
+  }
+
+  /*
+   * An arena that runs out of off-heap memory after handing out a number of chunks.
+   */
+  static class LimitedArena extends DirectBufferArena
+  {
+    int remaining;
+
+    LimitedArena(int chunks)
+    {
+      super(0);
+      remaining = chunks;
+    }
+
+    @Override
+    ByteBuffer acquire()
+    {
+      return (remaining-- > 0) ? super.acquire() : null;
+    }
+  }
+
+  /*
+   * A stream that is also a channel, like the output streams of containers that expose one.
+   */
+  static class ChannelStream extends OutputStream implements WritableByteChannel
+  {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+    int streamWrites;
+
+    @Override
+    public void write(int b)
+    {
+      ++streamWrites;
+      bytes.write(b);
+    }
+
+    @Override
+    public int write(ByteBuffer source)
+    {
+      int length = source.remaining();
+      byte[] chunk = new byte[length];
+      source.get(chunk);
+      bytes.write(chunk, 0, length);
+      return length;
+    }
+
+    @Override
+    public boolean isOpen()
+    {
+      return true;
+    }
+
+    byte[] toByteArray()
+    {
+      return bytes.toByteArray();
+    }
+  }
+}
@@ -0,0 +1,239 @@
+package org.baswell.layouts;/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.ServletResponse;
+import java.io.IOException;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HeadRequestsTest
+{
+  static final String VIEW = "<head><title>Page</title></head><body><p>Page</p></body>";
+
+  static final String PAGE = "<html><head><title>Page</title></head><body><p>Page</p></body></html>";
+
+  LayoutsFilter filter = new LayoutsFilter();
+
+  CountingLayout layout = new CountingLayout();
+
+  @After
+  public void after()
+  {
+    filter.destroy();
+  }
+
+  @Test
+  public void testNoETagOrLengthWithoutLayoutCache() throws Exception
+  {
+    init("FAST", null);
+    InMemoryServlet.Response head = run("HEAD", "/pages/1", new InMemoryServlet.View(VIEW));
+    assertEquals("", head.content());
+    assertEquals(0, layout.forwards);
+    assertNull(head.headers.get("ETag"));
+    assertNull(head.headers.get("Content-Length"));
+
+    /*
+     * The layout output could be different for every request (a user menu) so a GET of the page doesn't make it known either.
+     */
+    InMemoryServlet.Response get = run("GET", "/pages/1", new InMemoryServlet.View(VIEW));
+    assertEquals(PAGE, get.content());
+    assertEquals(1, layout.forwards);
+    assertNull(get.headers.get("ETag"));
+
+    head = run("HEAD", "/pages/1", new InMemoryServlet.View(VIEW));
+    assertEquals(1, layout.forwards);
+    assertNull(head.headers.get("ETag"));
+    assertNull(head.headers.get("Content-Length"));
+  }
+
+  @Test
+  public void testHeadFromLayoutCache() throws Exception
+  {
+    init("FAST", "application");
+    InMemoryServlet.Response get = run("GET", "/pages/1", new InMemoryServlet.View(VIEW));
+    assertEquals(1, layout.forwards);
+    assertNull(get.headers.get("ETag"));
+
+    get = run("GET", "/pages/1", new InMemoryServlet.View(VIEW));
+    assertEquals(PAGE, get.content());
+    assertEquals(1, layout.forwards);
+    String etag = get.headers.get("ETag");
+    assertTrue(etag, etag.startsWith("W/\"application-"));
+
+    InMemoryServlet.Response head = run("HEAD", "/pages/1", new InMemoryServlet.View(VIEW));
+    assertEquals("", head.content());
+    assertEquals(etag, head.headers.get("ETag"));
+    assertEquals(String.valueOf(PAGE.length()), head.headers.get("Content-Length"));
+
+    /*
+     * A different view of another route, the size comes from replaying the cached layout output.
+     */
+    String view = "<head><title>Other</title></head><body><p>Another page</p></body>";
+    head = run("HEAD", "/other", new InMemoryServlet.View(view));
+    assertEquals("", head.content());
+    assertEquals(1, layout.forwards);
+    assertNotEquals(etag, head.headers.get("ETag"));
+    assertEquals(String.valueOf("<html><head><title>Other</title></head><body><p>Another page</p></body></html>".length()), head.headers.get("Content-Length"));
+  }
+
+  @Test
+  public void testETagVariesWithLayoutOutput() throws Exception
+  {
+    layout = new RoleLayout();
+    init("FAST", "application=role");
+    String[] etags = new String[2];
+    String[] roles = {"admin", "user"};
+    for (int i = 0; i < roles.length; i++)
+    {
+      InMemoryServlet.View view = new InMemoryServlet.View(VIEW);
+      view.attributeName = "role";
+      view.attributeValue = roles[i];
+      run("GET", "/pages/1", view);
+      InMemoryServlet.Response head = run("HEAD", "/pages/1", view);
+      etags[i] = head.headers.get("ETag");
+      assertNotNull(etags[i]);
+      assertEquals(String.valueOf(("<!-- " + roles[i] + " -->" + PAGE).length()), head.headers.get("Content-Length"));
+    }
+    assertNotEquals(etags[0], etags[1]);
+    assertEquals(2, layout.forwards);
+  }
+
+  @Test
+  public void testNoETagWithPageTransformers() throws Exception
+  {
+    init("FAST", "application", "TRANSFORMERS", "NONCE");
+    run("GET", "/pages/1", new InMemoryServlet.View(VIEW));
+    InMemoryServlet.Response get = run("GET", "/pages/1", new InMemoryServlet.View(VIEW));
+    assertNull(get.headers.get("ETag"));
+    InMemoryServlet.Response head = run("HEAD", "/pages/1", new InMemoryServlet.View(VIEW));
+    assertNull(head.headers.get("ETag"));
+    assertNull(head.headers.get("Content-Length"));
+  }
+
+  @Test
+  public void testHeadWithoutLayout() throws Exception
+  {
+    init("FAST", null);
+    InMemoryServlet.View view = new InMemoryServlet.View("{}");
+    view.contentType = "application/json";
+    InMemoryServlet.Response head = run("HEAD", "/api", view);
+    assertNull(head.headers.get("ETag"));
+    assertEquals(0, layout.forwards);
+  }
+
+  @Test
+  public void testViewETagKept() throws Exception
+  {
+    init("FAST", null);
+    InMemoryServlet.View view = new InMemoryServlet.View(VIEW);
+    InMemoryServlet.Request request = new InMemoryServlet.Request();
+    InMemoryServlet.Response response = new InMemoryServlet.Response();
+    response.setHeader("ETag", "\"v42\"");
+    run("HEAD", "/pages/1", request, response, view);
+    assertEquals("\"v42\"", response.headers.get("ETag"));
+  }
+
+  @Test
+  public void testHeadComposedByDefault() throws Exception
+  {
+    init(null, null);
+    InMemoryServlet.Response head = run("HEAD", "/pages/1", new InMemoryServlet.View(VIEW));
+    assertEquals(PAGE, head.content());
+    assertEquals(1, layout.forwards);
+    assertNull(head.headers.get("ETag"));
+  }
+
+  @Test
+  public void testInvalidConfiguration() throws Exception
+  {
+    try
+    {
+      init("SLOW", null);
+      fail();
+    }
+    catch (ServletException e)
+    {}
+  }
+
+  void init(String headRequests, String layoutCache, String... parameters) throws Exception
+  {
+    InMemoryServlet.Config config = new InMemoryServlet.Config().initParameter("LAYOUTS", "application.jsp");
+    for (int i = 0; i < parameters.length; i += 2)
+    {
+      config.initParameter(parameters[i], parameters[i + 1]);
+    }
+    if (headRequests != null)
+    {
+      config.initParameter("HEAD_REQUESTS", headRequests);
+    }
+    if (layoutCache != null)
+    {
+      config.initParameter("LAYOUT_CACHE", layoutCache);
+    }
+    config.servletContext = new InMemoryServlet.Context().servletContext;
+    filter.init(config);
+  }
+
+  InMemoryServlet.Response run(String method, String path, InMemoryServlet.View view) throws Exception
+  {
+    InMemoryServlet.Response response = new InMemoryServlet.Response();
+    run(method, path, new InMemoryServlet.Request(), response, view);
+    return response;
+  }
+
+  void run(String method, String path, InMemoryServlet.Request request, InMemoryServlet.Response response, InMemoryServlet.View view) throws Exception
+  {
+    request.method = method;
+    request.headers.put("Accept", "text/html");
+    request.requestURI = path;
+    request.dispatchers.put("/WEB-INF/jsps/layouts/application.jsp", layout);
+    filter.doFilter(request, response, view);
+  }
+
+  static class CountingLayout extends InMemoryServlet.Layout
+  {
+    int forwards;
+
+    CountingLayout()
+    {
+      super("<html><head>", "</head><body>", "</body></html>");
+    }
+
+    @Override
+    public void forward(ServletRequest request, ServletResponse response) throws IOException
+    {
+      ++forwards;
+      super.forward(request, response);
+    }
+  }
+
+  /*
+   * Layout output that depends on the user.
+   */
+  static class RoleLayout extends CountingLayout
+  {
+    @Override
+    public void forward(ServletRequest request, ServletResponse response) throws IOException
+    {
+      response.getWriter().write("<!-- " + request.getAttribute("role") + " -->");
+      super.forward(request, response);
+    }
+  }
+}
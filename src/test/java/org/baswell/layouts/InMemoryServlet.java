@@ -0,0 +1,580 @@
+package org.baswell.layouts;/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import jakarta.servlet.DispatcherType;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.FilterConfig;
+import jakarta.servlet.RequestDispatcher;
+import jakarta.servlet.ServletContext;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.ServletResponse;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletRequestWrapper;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+import jakarta.servlet.http.HttpSession;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/*
+ * Reusable, in-memory stand-ins for the servlet container objects the LayoutsFilter touches. Anything not explicitly supported
+ * throws UnsupportedOperationException so tests fail loudly if the filter starts depending on something new.
+ */
+class InMemoryServlet
+{
+  static class Request extends HttpServletRequestWrapper
+  {
+    final Map<String, Object> attributes = new HashMap<String, Object>();
+
+    final Map<String, String> headers = new HashMap<String, String>();
+
+    final Map<String, RequestDispatcher> dispatchers = new HashMap<String, RequestDispatcher>();
+
+    String method = "GET";
+
+    String contextPath = "";
+
+    String requestURI = "/";
+
+    String queryString;
+
+    Principal userPrincipal;
+
+    Request()
+    {
+      super(unsupported(HttpServletRequest.class));
+    }
+
+    void clear()
+    {
+      attributes.clear();
+    }
+
+    @Override
+    public String getMethod()
+    {
+      return method;
+    }
+
+    @Override
+    public String getContextPath()
+    {
+      return contextPath;
+    }
+
+    @Override
+    public String getRequestURI()
+    {
+      return requestURI;
+    }
+
+    @Override
+    public String getHeader(String name)
+    {
+      return headers.get(name);
+    }
+
+    @Override
+    public Enumeration<String> getHeaders(String name)
+    {
+      return Collections.enumeration(headers.containsKey(name) ? Collections.singletonList(headers.get(name)) : Collections.<String>emptyList());
+    }
+
+    @Override
+    public Enumeration<String> getHeaderNames()
+    {
+      return Collections.enumeration(new ArrayList<String>(headers.keySet()));
+    }
+
+    @Override
+    public Enumeration<String> getAttributeNames()
+    {
+      return Collections.enumeration(new ArrayList<String>(attributes.keySet()));
+    }
+
+    @Override
+    public String getQueryString()
+    {
+      return queryString;
+    }
+
+    @Override
+    public String getRequestedSessionId()
+    {
+      return null;
+    }
+
+    @Override
+    public HttpSession getSession(boolean create)
+    {
+      if (create)
+      {
+        throw new UnsupportedOperationException("getSession(true)");
+      }
+      return null;
+    }
+
+    @Override
+    public Principal getUserPrincipal()
+    {
+      return userPrincipal;
+    }
+
+    @Override
+    public String getRemoteUser()
+    {
+      return (userPrincipal == null) ? null : userPrincipal.getName();
+    }
+
+    @Override
+    public String getAuthType()
+    {
+      return null;
+    }
+
+    @Override
+    public Object getAttribute(String name)
+    {
+      return attributes.get(name);
+    }
+
+    @Override
+    public void setAttribute(String name, Object value)
+    {
+      attributes.put(name, value);
+    }
+
+    @Override
+    public void removeAttribute(String name)
+    {
+      attributes.remove(name);
+    }
+
+    @Override
+    public DispatcherType getDispatcherType()
+    {
+      return DispatcherType.REQUEST;
+    }
+
+    @Override
+    public RequestDispatcher getRequestDispatcher(String path)
+    {
+      return dispatchers.get(path);
+    }
+  }
+
+  static class Response extends HttpServletResponseWrapper
+  {
+    final Map<String, String> headers = new HashMap<String, String>();
+
+    final Output output = new Output();
+
+    final PrintWriter writer = new PrintWriter(new OutputStreamWriter(output));
+
+    int status = 200;
+
+    String contentType;
+
+    Supplier<Map<String, String>> trailerFields;
+
+    Response()
+    {
+      super(unsupported(HttpServletResponse.class));
+    }
+
+    void clear()
+    {
+      writer.flush();
+      output.reset();
+      headers.clear();
+      status = 200;
+      contentType = null;
+      trailerFields = null;
+    }
+
+    String content()
+    {
+      writer.flush();
+      return output.toString();
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream()
+    {
+      return output;
+    }
+
+    @Override
+    public PrintWriter getWriter()
+    {
+      return writer;
+    }
+
+    @Override
+    public void setContentType(String contentType)
+    {
+      this.contentType = contentType;
+    }
+
+    @Override
+    public String getContentType()
+    {
+      return contentType;
+    }
+
+    @Override
+    public String getCharacterEncoding()
+    {
+      return "ISO-8859-1";
+    }
+
+    @Override
+    public void setContentLength(int length)
+    {}
+
+    @Override
+    public void setContentLengthLong(long length)
+    {
+      headers.put("Content-Length", String.valueOf(length));
+    }
+
+    @Override
+    public void setStatus(int status)
+    {
+      this.status = status;
+    }
+
+    @Override
+    public int getStatus()
+    {
+      return status;
+    }
+
+    @Override
+    public void sendError(int status)
+    {
+      this.status = status;
+    }
+
+    @Override
+    public void setHeader(String name, String value)
+    {
+      headers.put(name, value);
+    }
+
+    @Override
+    public void addHeader(String name, String value)
+    {
+      headers.put(name, value);
+    }
+
+    @Override
+    public String getHeader(String name)
+    {
+      return headers.get(name);
+    }
+
+    @Override
+    public void setTrailerFields(Supplier<Map<String, String>> trailerFields)
+    {
+      this.trailerFields = trailerFields;
+    }
+
+    @Override
+    public boolean isCommitted()
+    {
+      return false;
+    }
+
+    @Override
+    public void flushBuffer()
+    {
+      writer.flush();
+    }
+  }
+
+  /*
+   * Keeps everything written in a reusable array so writing to it doesn't allocate once it has grown.
+   */
+  static class Output extends ServletOutputStream
+  {
+    byte[] bytes = new byte[64 * 1024];
+
+    int count;
+
+    void reset()
+    {
+      count = 0;
+    }
+
+    @Override
+    public void write(int b)
+    {
+      ensureCapacity(count + 1);
+      bytes[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length)
+    {
+      ensureCapacity(count + length);
+      System.arraycopy(buffer, offset, bytes, count, length);
+      count += length;
+    }
+
+    @Override
+    public boolean isReady()
+    {
+      return true;
+    }
+
+    @Override
+    public void setWriteListener(WriteListener writeListener)
+    {}
+
+    @Override
+    public String toString()
+    {
+      return new String(bytes, 0, count);
+    }
+
+    private void ensureCapacity(int capacity)
+    {
+      if (capacity > bytes.length)
+      {
+        bytes = Arrays.copyOf(bytes, Math.max(capacity, bytes.length * 2));
+      }
+    }
+  }
+
+  static class Config implements FilterConfig
+  {
+    final Map<String, String> initParameters = new HashMap<String, String>();
+
+    ServletContext servletContext = unsupported(ServletContext.class);
+
+    Config initParameter(String name, String value)
+    {
+      initParameters.put(name, value);
+      return this;
+    }
+
+    @Override
+    public String getFilterName()
+    {
+      return "LayoutsFilter";
+    }
+
+    @Override
+    public ServletContext getServletContext()
+    {
+      return servletContext;
+    }
+
+    @Override
+    public String getInitParameter(String name)
+    {
+      return initParameters.get(name);
+    }
+
+    @Override
+    public Enumeration<String> getInitParameterNames()
+    {
+      return Collections.enumeration(initParameters.keySet());
+    }
+  }
+
+  /*
+   * A packed WAR, there are no real paths only resource paths. The servlet API has no ServletContext wrapper so this answers the
+   * supported methods through a proxy.
+   */
+  static class Context implements InvocationHandler
+  {
+    final Map<String, Set<String>> resourcePaths = new HashMap<String, Set<String>>();
+
+    final Map<String, RequestDispatcher> namedDispatchers = new HashMap<String, RequestDispatcher>();
+
+    final Map<String, RequestDispatcher> dispatchers = new HashMap<String, RequestDispatcher>();
+
+    final Map<String, String> resources = new HashMap<String, String>();
+
+    final List<String> log = new ArrayList<String>();
+
+    String serverInfo = "In memory";
+
+    final ServletContext servletContext = (ServletContext) Proxy.newProxyInstance(InMemoryServlet.class.getClassLoader(), new Class<?>[]{ServletContext.class}, this);
+
+    Context resourcePaths(String directory, String... paths)
+    {
+      resourcePaths.put(directory, new LinkedHashSet<String>(Arrays.asList(paths)));
+      return this;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args)
+    {
+      String name = method.getName();
+      if (name.equals("getContextPath"))
+      {
+        return "";
+      }
+      else if (name.equals("getRealPath"))
+      {
+        return null;
+      }
+      else if (name.equals("getRequestDispatcher"))
+      {
+        return dispatchers.get(args[0]);
+      }
+      else if (name.equals("getResourceAsStream"))
+      {
+        String resource = resources.get(args[0]);
+        return (resource == null) ? null : new ByteArrayInputStream(resource.getBytes());
+      }
+      else if (name.equals("getAttribute"))
+      {
+        return null;
+      }
+      else if (name.equals("getResourcePaths"))
+      {
+        return resourcePaths.get(args[0]);
+      }
+      else if (name.equals("getNamedDispatcher"))
+      {
+        return namedDispatchers.get(args[0]);
+      }
+      else if (name.equals("getServerInfo"))
+      {
+        return serverInfo;
+      }
+      else if (name.equals("log"))
+      {
+        log.add((String) args[0]);
+        return null;
+      }
+      else if (name.equals("toString"))
+      {
+        return "In memory ServletContext";
+      }
+      throw new UnsupportedOperationException("ServletContext." + name);
+    }
+  }
+
+  /*
+   * A view that writes fixed content, optionally setting a content type or request attribute first.
+   */
+  static class View implements FilterChain
+  {
+    final String content;
+
+    String contentType;
+
+    String attributeName;
+
+    Object attributeValue;
+
+    View(String content)
+    {
+      this.content = content;
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException
+    {
+      if (attributeName != null)
+      {
+        request.setAttribute(attributeName, attributeValue);
+      }
+
+      if (contentType != null)
+      {
+        response.setContentType(contentType);
+      }
+
+      PrintWriter writer = response.getWriter();
+      writer.write(content);
+      writer.flush();
+    }
+  }
+
+  /*
+   * A layout that writes its own content around a head and body yield the same way a layout JSP would.
+   */
+  static class Layout implements RequestDispatcher
+  {
+    final String[] parts;
+
+    Layout(String beforeHead, String betweenHeadAndBody, String afterBody)
+    {
+      parts = new String[]{beforeHead, betweenHeadAndBody, afterBody};
+    }
+
+    @Override
+    public void forward(ServletRequest request, ServletResponse response) throws IOException
+    {
+      org.baswell.layouts.View view = (org.baswell.layouts.View) request.getAttribute(Layouts.VIEW);
+      PrintWriter out = response.getWriter();
+      out.write(parts[0]);
+      view.yield("head", out);
+      out.write(parts[1]);
+      view.yield("body", out);
+      out.write(parts[2]);
+      out.flush();
+    }
+
+    @Override
+    public void include(ServletRequest request, ServletResponse response)
+    {
+      throw new UnsupportedOperationException("include");
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  static <T> T unsupported(final Class<T> type)
+  {
+    return (T) Proxy.newProxyInstance(InMemoryServlet.class.getClassLoader(), new Class<?>[]{type}, new InvocationHandler()
+    {
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args)
+      {
+        if (method.getName().equals("toString"))
+        {
+          return "Unsupported " + type.getSimpleName();
+        }
+        throw new UnsupportedOperationException(type.getSimpleName() + "." + method.getName());
+      }
+    });
+  }
+}
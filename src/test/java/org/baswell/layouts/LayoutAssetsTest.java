@@ -0,0 +1,128 @@
+package org.baswell.layouts;/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.baswell.layouts.LayoutAssets.*;
+import static org.junit.Assert.*;
+
+public class LayoutAssetsTest
+{
+  @Test
+  public void testFindAssets()
+  {
+    String layout = "<html>\n" +
+        "  <head>\n" +
+        "    <link href=\"<%=request.getContextPath() %>/assets/css/bootstrap.min.css\" rel=\"stylesheet\">\n" +
+        "    <link rel='preload' as='font' href='${pageContext.request.contextPath}/assets/fonts/icons.woff2'>\n" +
+        "    <link rel=\"icon\" href=\"/favicon.ico\">\n" +
+        "    <link rel=\"stylesheet\" href=\"<%= themeUrl %>\">\n" +
+        "    ${view.yield(\"head\", pageContext)}\n" +
+        "  </head>\n" +
+        "  <body>\n" +
+        "    ${view.yield(\"body\", pageContext)}\n" +
+        "    <script src=\"<%=request.getContextPath() %>/assets/js/bootstrap.min.js\"></script>\n" +
+        "    <script>var inline = true;</script>\n" +
+        "  </body>\n" +
+        "</html>";
+
+    Map<String, String> assets = findAssets(layout, "/app");
+    assertEquals(3, assets.size());
+    assertEquals(STYLE, assets.get("/app/assets/css/bootstrap.min.css"));
+    assertEquals(FONT, assets.get("/app/assets/fonts/icons.woff2"));
+    assertEquals(SCRIPT, assets.get("/app/assets/js/bootstrap.min.js"));
+
+    assertEquals("</app/assets/css/bootstrap.min.css>; rel=preload; as=style, </app/assets/fonts/icons.woff2>; rel=preload; as=font; crossorigin, </app/assets/js/bootstrap.min.js>; rel=preload; as=script", toPreloadLinkHeader(assets));
+  }
+
+  @Test
+  public void testNoAssets()
+  {
+    assertTrue(findAssets("<html><body>${view.yield(pageContext)}</body></html>", "").isEmpty());
+    assertNull(toPreloadLinkHeader(findAssets("<html></html>", "")));
+  }
+
+  @Test
+  public void testRelativeUrlsNotPreloaded()
+  {
+    Map<String, String> assets = findAssets("<link rel=\"stylesheet\" href=\"css/app.css\"><script src=\"https://cdn.example.com/lib.js\"></script><script src=\"/app/js/app.js\"></script>", "/app");
+    assertEquals(3, assets.size());
+    assertEquals("<https://cdn.example.com/lib.js>; rel=preload; as=script, </app/js/app.js>; rel=preload; as=script", toPreloadLinkHeader(assets));
+    assertNull(toPreloadLinkHeader(findAssets("<script src=\"../js/app.js\"></script>", "/app")));
+  }
+
+  @Test
+  public void testSupportsEarlyHints()
+  {
+    assertFalse(supportsEarlyHints("Apache Tomcat/10.1.10"));
+    assertTrue(supportsEarlyHints("Apache Tomcat/10.1.14"));
+    assertTrue(supportsEarlyHints("Apache Tomcat/11.0.0-M12"));
+    assertFalse(supportsEarlyHints("Apache Tomcat/10.0.27"));
+    assertTrue(supportsEarlyHints("jetty/12.0.3"));
+    assertFalse(supportsEarlyHints("jetty/9.4.53.v20231009"));
+    assertFalse(supportsEarlyHints("GlassFish Server Open Source Edition 7.0.9"));
+    assertFalse(supportsEarlyHints(null));
+  }
+
+  @Test
+  public void testEarlyHintsOnlySentWhenSupported() throws Exception
+  {
+    InMemoryServlet.Context context = new InMemoryServlet.Context();
+    context.serverInfo = "Apache Tomcat/10.1.14";
+    assertEquals("[103]", preload(context).toString());
+    assertTrue(context.log.isEmpty());
+
+    context = new InMemoryServlet.Context();
+    context.serverInfo = "Apache Tomcat/10.1.10";
+    assertEquals("[]", preload(context).toString());
+    assertEquals("LayoutsFilter: Apache Tomcat/10.1.10 doesn't support 103 Early Hints, preload hints are only sent as Link headers.", context.log.get(0));
+  }
+
+  /*
+   * @return The statuses sent with sendError.
+   */
+  static List<Integer> preload(InMemoryServlet.Context context) throws Exception
+  {
+    context.resources.put("/WEB-INF/jsps/layouts/application.jsp", "<html><head><script src=\"/js/app.js\"></script>${view.yieldHead(pageContext)}</head></html>");
+    InMemoryServlet.Config config = new InMemoryServlet.Config().initParameter("LAYOUTS", "application.jsp").initParameter("PRELOAD", "EARLY_HINTS");
+    config.servletContext = context.servletContext;
+    LayoutsFilter filter = new LayoutsFilter();
+    filter.init(config);
+
+    InMemoryServlet.Request request = new InMemoryServlet.Request();
+    request.headers.put("Accept", "text/html");
+    request.requestURI = "/home";
+    request.dispatchers.put("/WEB-INF/jsps/layouts/application.jsp", new InMemoryServlet.Layout("<html><head>", "</head><body>", "</body></html>"));
+    final List<Integer> sent = new ArrayList<Integer>();
+    InMemoryServlet.Response response = new InMemoryServlet.Response()
+    {
+      @Override
+      public void sendError(int status)
+      {
+        sent.add(status);
+      }
+    };
+    filter.doFilter(request, response, new InMemoryServlet.View("<head></head><body>Hi</body>"));
+    filter.destroy();
+
+    assertEquals("</js/app.js>; rel=preload; as=script", response.getHeader("Link"));
+    return sent;
+  }
+}
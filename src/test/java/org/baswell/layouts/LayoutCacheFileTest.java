@@ -0,0 +1,235 @@
+package org.baswell.layouts;/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class LayoutCacheFileTest
+{
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testReopen() throws Exception
+  {
+    File file = new File(folder.getRoot(), "cache/layouts.cache");
+    LayoutCacheFile cacheFile = new LayoutCacheFile(file, 64 * 1024);
+    cacheFile.put("application\u0000admin", entry("<html><head>", "</head><body class=\"admin\">", "</body></html>", 0));
+    cacheFile.put("application\u0000user", entry("<html><head>", "</head><body class=\"user\">", "</body></html>", 0));
+    cacheFile.close();
+
+    cacheFile = new LayoutCacheFile(file, 64 * 1024);
+    assertEquals(2, cacheFile.entries());
+    LayoutCache.Entry entry = cacheFile.get("application\u0000admin", System.currentTimeMillis());
+    assertEquals("</head><body class=\"admin\">", new String(entry.segments[1]));
+    assertArrayEquals(new String[]{"head", "body"}, entry.yields);
+    assertEquals("text/html;charset=UTF-8", entry.contentType);
+    cacheFile.close();
+  }
+
+  @Test
+  public void testLastRecordWins() throws Exception
+  {
+    File file = folder.newFile();
+    LayoutCacheFile cacheFile = new LayoutCacheFile(file, 64 * 1024);
+    cacheFile.put("application", entry("<html><head>", "</head><body>", "</body></html>", 0));
+    cacheFile.put("application", entry("<html lang=\"en\"><head>", "</head><body>", "</body></html>", 0));
+    cacheFile.close();
+
+    cacheFile = new LayoutCacheFile(file, 64 * 1024);
+    assertEquals(1, cacheFile.entries());
+    assertEquals("<html lang=\"en\"><head>", new String(cacheFile.get("application", System.currentTimeMillis()).segments[0]));
+    cacheFile.close();
+  }
+
+  @Test
+  public void testExpired() throws Exception
+  {
+    File file = folder.newFile();
+    long now = System.currentTimeMillis();
+    LayoutCacheFile cacheFile = new LayoutCacheFile(file, 64 * 1024);
+    cacheFile.put("expired", entry("<html><head>", "</head><body>", "</body></html>", now - 1));
+    cacheFile.put("live", entry("<html><head>", "</head><body>", "</body></html>", now + 60000));
+    assertNull(cacheFile.get("expired", now));
+    assertNotNull(cacheFile.get("live", now));
+    cacheFile.close();
+
+    cacheFile = new LayoutCacheFile(file, 64 * 1024);
+    assertEquals(1, cacheFile.entries());
+    assertNull(cacheFile.get("live", now + 60000));
+    cacheFile.close();
+  }
+
+  @Test
+  public void testCorruptRecord() throws Exception
+  {
+    File file = folder.newFile();
+    LayoutCacheFile cacheFile = new LayoutCacheFile(file, 64 * 1024);
+    cacheFile.put("one", entry("<html><head>", "</head><body>", "</body></html>", 0));
+    int secondRecord = cacheFile.bytes();
+    cacheFile.put("two", entry("<html><head>", "</head><body>", "</body></html>", 0));
+    cacheFile.put("three", entry("<html><head>", "</head><body>", "</body></html>", 0));
+    cacheFile.close();
+
+    /*
+     * A byte of the second record never made it to disk.
+     */
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    randomAccessFile.seek(secondRecord + LayoutCacheFile.HEADER_SIZE + 10);
+    randomAccessFile.write(0xFF);
+    randomAccessFile.close();
+
+    cacheFile = new LayoutCacheFile(file, 64 * 1024);
+    assertEquals(1, cacheFile.entries());
+    assertNotNull(cacheFile.get("one", System.currentTimeMillis()));
+    assertNull(cacheFile.get("two", System.currentTimeMillis()));
+    assertNull(cacheFile.get("three", System.currentTimeMillis()));
+
+    cacheFile.put("four", entry("<html><head>", "</head><body>", "</body></html>", 0));
+    cacheFile.close();
+
+    cacheFile = new LayoutCacheFile(file, 64 * 1024);
+    assertEquals(2, cacheFile.entries());
+    assertNotNull(cacheFile.get("four", System.currentTimeMillis()));
+    cacheFile.close();
+  }
+
+  @Test
+  public void testCompaction() throws Exception
+  {
+    File file = folder.newFile();
+    LayoutCacheFile cacheFile = new LayoutCacheFile(file, 4096);
+    cacheFile.put("kept", entry("<html><head>", "</head><body>", "</body></html>", 0));
+    for (int i = 0; i < 100; i++)
+    {
+      cacheFile.put("replaced", entry("<html data-version=\"" + i + "\"><head>", "</head><body>", "</body></html>", 0));
+    }
+    assertTrue(cacheFile.droppedCount() > 0);
+
+    long waitUntil = System.currentTimeMillis() + 5000;
+    while (cacheFile.compactionCount() == 0 && System.currentTimeMillis() < waitUntil)
+    {
+      Thread.sleep(10);
+    }
+    assertTrue(cacheFile.compactionCount() > 0);
+    assertEquals(2, cacheFile.entries());
+
+    /*
+     * The compaction can finish while the loop above is still putting, fill the file again and leave another compaction pending,
+     * so keep putting until the put is no longer dropped.
+     */
+    waitUntil = System.currentTimeMillis() + 5000;
+    long dropped;
+    do
+    {
+      dropped = cacheFile.droppedCount();
+      cacheFile.put("replaced", entry("<html data-version=\"100\"><head>", "</head><body>", "</body></html>", 0));
+      if (cacheFile.droppedCount() > dropped)
+      {
+        Thread.sleep(10);
+      }
+    }
+    while (cacheFile.droppedCount() > dropped && System.currentTimeMillis() < waitUntil);
+    assertEquals(dropped, cacheFile.droppedCount());
+    cacheFile.close();
+
+    cacheFile = new LayoutCacheFile(file, 4096);
+    assertEquals(2, cacheFile.entries());
+    assertNotNull(cacheFile.get("kept", System.currentTimeMillis()));
+    assertEquals("<html data-version=\"100\"><head>", new String(cacheFile.get("replaced", System.currentTimeMillis()).segments[0]));
+    cacheFile.close();
+  }
+
+  @Test
+  public void testCompactsExpiredRecordsNeverRead() throws Exception
+  {
+    File file = folder.newFile();
+    LayoutCacheFile cacheFile = new LayoutCacheFile(file, 4096);
+    long expires = System.currentTimeMillis() + 200;
+    for (int i = 0; cacheFile.droppedCount() == 0; i++)
+    {
+      cacheFile.put("expiring" + i, entry("<html><head>", "</head><body>", "</body></html>", expires));
+    }
+    Thread.sleep(250);
+
+    long waitUntil = System.currentTimeMillis() + 5000;
+    long dropped;
+    do
+    {
+      dropped = cacheFile.droppedCount();
+      cacheFile.put("fresh", entry("<html><head>", "</head><body>", "</body></html>", 0));
+      if (cacheFile.droppedCount() > dropped)
+      {
+        Thread.sleep(10);
+      }
+    }
+    while (cacheFile.droppedCount() > dropped && System.currentTimeMillis() < waitUntil);
+
+    assertEquals(dropped, cacheFile.droppedCount());
+    assertEquals(1, cacheFile.compactionCount());
+    assertEquals(1, cacheFile.entries());
+    assertNotNull(cacheFile.get("fresh", System.currentTimeMillis()));
+    cacheFile.close();
+  }
+
+  @Test
+  public void testUnusableAfterClose() throws Exception
+  {
+    File file = folder.newFile();
+    LayoutCacheFile cacheFile = new LayoutCacheFile(file, 4096);
+    cacheFile.put("kept", entry("<html><head>", "</head><body>", "</body></html>", 0));
+    cacheFile.close();
+
+    for (int i = 0; i < 100; i++)
+    {
+      cacheFile.put("replaced", entry("<html data-version=\"" + i + "\"><head>", "</head><body>", "</body></html>", 0));
+    }
+    cacheFile.clear();
+    assertNull(cacheFile.get("kept", System.currentTimeMillis()));
+    assertEquals(0, cacheFile.droppedCount());
+    cacheFile.close();
+
+    cacheFile = new LayoutCacheFile(file, 4096);
+    assertEquals(1, cacheFile.entries());
+    assertNotNull(cacheFile.get("kept", System.currentTimeMillis()));
+    cacheFile.close();
+  }
+
+  @Test
+  public void testClear() throws Exception
+  {
+    File file = folder.newFile();
+    LayoutCacheFile cacheFile = new LayoutCacheFile(file, 64 * 1024);
+    cacheFile.put("one", entry("<html><head>", "</head><body>", "</body></html>", 0));
+    cacheFile.clear();
+    cacheFile.close();
+
+    cacheFile = new LayoutCacheFile(file, 64 * 1024);
+    assertEquals(0, cacheFile.entries());
+    assertEquals(0, cacheFile.bytes());
+    cacheFile.close();
+  }
+
+  static LayoutCache.Entry entry(String beforeHead, String betweenHeadAndBody, String afterBody, long expires)
+  {
+    return new LayoutCache.Entry(new byte[][]{beforeHead.getBytes(), betweenHeadAndBody.getBytes(), afterBody.getBytes()}, new String[]{"head", "body"}, "text/html;charset=UTF-8", expires);
+  }
+}
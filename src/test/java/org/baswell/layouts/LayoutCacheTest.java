@@ -0,0 +1,264 @@
+package org.baswell.layouts;/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import jakarta.servlet.RequestDispatcher;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.ServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import javax.management.JMX;
+import javax.management.ObjectName;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class LayoutCacheTest
+{
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  LayoutsFilter filter;
+
+  CountingLayout layout;
+
+  @Before
+  public void before()
+  {
+    filter = new LayoutsFilter();
+    layout = new CountingLayout();
+  }
+
+  @After
+  public void after()
+  {
+    filter.destroy();
+  }
+
+  @Test
+  public void testLayoutRenderedOncePerKey() throws Exception
+  {
+    init("application=role");
+
+    assertEquals("<html><head><title>One</title></head><body role=\"admin\"><p>One</p></body></html>", run("admin", "One"));
+    assertEquals("<html><head><title>Two</title></head><body role=\"admin\"><p>Two</p></body></html>", run("admin", "Two"));
+    assertEquals(1, layout.forwards);
+
+    assertEquals("<html><head><title>Three</title></head><body role=\"user\"><p>Three</p></body></html>", run("user", "Three"));
+    assertEquals(2, layout.forwards);
+    assertEquals("<html><head><title>Four</title></head><body role=\"user\"><p>Four</p></body></html>", run("user", "Four"));
+    assertEquals(2, layout.forwards);
+
+    assertEquals(2, cache().getEntries());
+    assertEquals(2, cache().getHitCount());
+    assertEquals(2, cache().getMissCount());
+  }
+
+  @Test
+  public void testLayoutNotListed() throws Exception
+  {
+    init("admin");
+
+    run("admin", "One");
+    run("admin", "Two");
+    assertEquals(2, layout.forwards);
+    assertEquals(0, cache().getEntries());
+  }
+
+  @Test
+  public void testContainsNotCached() throws Exception
+  {
+    init("application=role");
+    layout.checkContains = true;
+
+    assertEquals("<html><head><title>One</title></head><body role=\"admin\"><p>One</p></body></html>", run("admin", "One"));
+    assertEquals("<html><head><title>Two</title></head><body role=\"admin\"><p>Two</p></body></html>", run("admin", "Two"));
+    assertEquals(2, layout.forwards);
+    assertEquals(1, cache().getUncacheableCount());
+    assertEquals(0, cache().getHitCount());
+  }
+
+  @Test
+  public void testEviction() throws Exception
+  {
+    init("application=role", "2");
+
+    run("a", "One");
+    run("b", "One");
+    run("c", "One");
+    assertEquals(2, cache().getEntries());
+    assertEquals(1, cache().getEvictionCount());
+
+    run("a", "One");
+    assertEquals(4, layout.forwards);
+    run("c", "One");
+    assertEquals(4, layout.forwards);
+  }
+
+  @Test
+  public void testReloadInvalidates() throws Exception
+  {
+    init("application=role");
+
+    run("admin", "One");
+    filter.reloadLayouts();
+    assertEquals(0, cache().getEntries());
+
+    run("admin", "One");
+    assertEquals(2, layout.forwards);
+  }
+
+  @Test
+  public void testCacheFileSurvivesRestart() throws Exception
+  {
+    File file = folder.newFile();
+    init("application=role", null, file, "<%-- version 1 --%>");
+    assertEquals("<html><head><title>One</title></head><body role=\"admin\"><p>One</p></body></html>", run("admin", "One"));
+    assertEquals(1, layout.forwards);
+    filter.destroy();
+
+    filter = new LayoutsFilter();
+    init("application=role", null, file, "<%-- version 1 --%>");
+    assertEquals("<html><head><title>Two</title></head><body role=\"admin\"><p>Two</p></body></html>", run("admin", "Two"));
+    assertEquals(1, layout.forwards);
+    assertEquals(1, cache().getFileHitCount());
+    filter.destroy();
+
+    /*
+     * A new version of the layout doesn't use what the old version recorded.
+     */
+    filter = new LayoutsFilter();
+    init("application=role", null, file, "<%-- version 2 --%>");
+    run("admin", "Three");
+    assertEquals(2, layout.forwards);
+    assertEquals(0, cache().getFileHitCount());
+  }
+
+  @Test
+  public void testTtl() throws Exception
+  {
+    init("application=role", null, null, null, "1");
+    run("admin", "One");
+    run("admin", "Two");
+    assertEquals(1, layout.forwards);
+
+    Thread.sleep(1100);
+    run("admin", "Three");
+    assertEquals(2, layout.forwards);
+  }
+
+  @Test(expected = jakarta.servlet.ServletException.class)
+  public void testInvalidSize() throws Exception
+  {
+    init("application", "many");
+  }
+
+  void init(String layoutCache) throws Exception
+  {
+    init(layoutCache, null);
+  }
+
+  void init(String layoutCache, String layoutCacheSize) throws Exception
+  {
+    init(layoutCache, layoutCacheSize, null, null);
+  }
+
+  void init(String layoutCache, String layoutCacheSize, File cacheFile, String layoutSource) throws Exception
+  {
+    init(layoutCache, layoutCacheSize, cacheFile, layoutSource, null);
+  }
+
+  void init(String layoutCache, String layoutCacheSize, File cacheFile, String layoutSource, String ttl) throws Exception
+  {
+    InMemoryServlet.Config config = new InMemoryServlet.Config().initParameter("LAYOUTS", "application.jsp").initParameter("LAYOUT_CACHE", layoutCache);
+    if (layoutCacheSize != null)
+    {
+      config.initParameter("LAYOUT_CACHE_SIZE", layoutCacheSize);
+    }
+    if (cacheFile != null)
+    {
+      config.initParameter("LAYOUT_CACHE_FILE", cacheFile.getPath());
+    }
+    if (ttl != null)
+    {
+      config.initParameter("LAYOUT_CACHE_TTL", ttl);
+    }
+
+    InMemoryServlet.Context context = new InMemoryServlet.Context();
+    if (layoutSource != null)
+    {
+      context.resources.put("/WEB-INF/jsps/layouts/application.jsp", layoutSource);
+    }
+    config.servletContext = context.servletContext;
+    filter.init(config);
+  }
+
+  LayoutCacheMXBean cache() throws Exception
+  {
+    return JMX.newMXBeanProxy(ManagementFactory.getPlatformMBeanServer(), new ObjectName("org.baswell.layouts:type=LayoutCache,context=\"/\",filter=\"LayoutsFilter\""), LayoutCacheMXBean.class);
+  }
+
+  String run(String role, String title) throws Exception
+  {
+    InMemoryServlet.Request request = new InMemoryServlet.Request();
+    request.headers.put("Accept", "text/html");
+    request.requestURI = "/home";
+    request.setAttribute("role", role);
+    request.dispatchers.put("/WEB-INF/jsps/layouts/application.jsp", layout);
+
+    InMemoryServlet.Response response = new InMemoryServlet.Response();
+    filter.doFilter(request, response, new InMemoryServlet.View("<head><title>" + title + "</title></head><body><p>" + title + "</p></body>"));
+    return response.content();
+  }
+
+  /*
+   * A layout whose output depends on the role request attribute.
+   */
+  static class CountingLayout implements RequestDispatcher
+  {
+    int forwards;
+
+    boolean checkContains;
+
+    @Override
+    public void forward(ServletRequest request, ServletResponse response) throws IOException
+    {
+      forwards++;
+      View view = (View) request.getAttribute(Layouts.VIEW);
+      PrintWriter out = response.getWriter();
+      out.write("<html><head>");
+      view.yield("head", out);
+      out.write("</head><body role=\"" + request.getAttribute("role") + "\">");
+      if (!checkContains || view.contains("body", null))
+      {
+        view.yield("body", out);
+      }
+      out.write("</body></html>");
+      out.flush();
+    }
+
+    @Override
+    public void include(ServletRequest request, ServletResponse response)
+    {
+      throw new UnsupportedOperationException("include");
+    }
+  }
+}
@@ -0,0 +1,276 @@
+package org.baswell.layouts;/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.RequestDispatcher;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.ServletResponse;
+import jakarta.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LayoutDataPrefetchTest
+{
+  static volatile CountDownLatch viewStarted;
+
+  LayoutsFilter filter = new LayoutsFilter();
+
+  InMemoryServlet.Context context = new InMemoryServlet.Context();
+
+  @After
+  public void after()
+  {
+    filter.destroy();
+  }
+
+  @Test
+  public void testFetchedWhileViewRuns() throws Exception
+  {
+    viewStarted = new CountDownLatch(1);
+    init("application=" + WaitsForView.class.getName(), "5000");
+
+    /*
+     * The provider only returns once the view has started so it can't have run after the view.
+     */
+    assertEquals("<nav>menu</nav><p>One</p>", run(new FilterChain()
+    {
+      @Override
+      public void doFilter(ServletRequest request, ServletResponse response) throws IOException
+      {
+        viewStarted.countDown();
+        response.getWriter().write("<p>One</p>");
+      }
+    }));
+  }
+
+  @Test
+  public void testTimeoutUsesFallback() throws Exception
+  {
+    viewStarted = new CountDownLatch(1);
+    init("application=" + WaitsForView.class.getName(), "50");
+
+    long start = System.nanoTime();
+    assertEquals("<nav>fallback</nav><p>One</p>", run(new InMemoryServlet.View("<p>One</p>")));
+    assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 4000);
+  }
+
+  @Test
+  public void testFailureUsesFallback() throws Exception
+  {
+    init("application=" + Fails.class.getName(), null);
+    assertEquals("<nav>fallback</nav><p>One</p>", run(new InMemoryServlet.View("<p>One</p>")));
+    assertEquals(1, context.log.size());
+  }
+
+  @Test
+  public void testLayoutPickedByView() throws Exception
+  {
+    init("application=" + Fails.class.getName() + ",other=" + Constant.class.getName(), null);
+    InMemoryServlet.View view = new InMemoryServlet.View("<p>One</p>");
+    view.attributeName = Layouts.LAYOUT;
+    view.attributeValue = "other";
+
+    assertEquals("<nav>constant</nav><p>One</p>", run(view));
+    assertTrue(context.log.isEmpty());
+  }
+
+  @Test
+  public void testNoProviderForLayout() throws Exception
+  {
+    init("admin=" + Constant.class.getName(), null);
+    assertEquals("<nav>null</nav><p>One</p>", run(new InMemoryServlet.View("<p>One</p>")));
+  }
+
+  @Test
+  public void testProviderGetsCopyOfRequest() throws Exception
+  {
+    viewStarted = new CountDownLatch(1);
+    init("application=" + ReadsRequest.class.getName(), "5000");
+    assertEquals("<nav>GET /home text/html before view user=null</nav><p>One</p>", run(new FilterChain()
+    {
+      @Override
+      public void doFilter(ServletRequest request, ServletResponse response) throws IOException
+      {
+        /*
+         * Changes the view makes to the live request aren't seen by the provider.
+         */
+        request.setAttribute("stage", "view");
+        viewStarted.countDown();
+        response.getWriter().write("<p>One</p>");
+      }
+    }));
+  }
+
+  @Test
+  public void testProviderRunsOnRequestThreadWhenThreadsBusy() throws Exception
+  {
+    viewStarted = new CountDownLatch(1);
+    Map<String, LayoutDataProvider> providers = new HashMap<String, LayoutDataProvider>();
+    providers.put("application", new WaitsForView());
+    LayoutDataPrefetch prefetch = new LayoutDataPrefetch(providers, 5000, 1, context.servletContext);
+    Layout layout = new Layout("application", "/WEB-INF/jsps/layouts/application.jsp");
+    try
+    {
+      InMemoryServlet.Request first = new InMemoryServlet.Request();
+      first.requestURI = "/home";
+      prefetch.start(first, layout);
+      assertNotNull(first.getAttribute(LayoutDataPrefetch.FETCH_ATTRIBUTE));
+
+      InMemoryServlet.Request second = new InMemoryServlet.Request();
+      second.requestURI = "/home";
+      prefetch.start(second, layout);
+      assertNull(second.getAttribute(LayoutDataPrefetch.FETCH_ATTRIBUTE));
+
+      viewStarted.countDown();
+      prefetch.resolve(second, layout);
+      assertEquals("menu", second.getAttribute(Layouts.LAYOUT_DATA));
+      prefetch.resolve(first, layout);
+      assertEquals("menu", first.getAttribute(Layouts.LAYOUT_DATA));
+    }
+    finally
+    {
+      prefetch.shutdown();
+    }
+  }
+
+  @Test(expected = ServletException.class)
+  public void testInvalidThreads() throws Exception
+  {
+    InMemoryServlet.Config config = new InMemoryServlet.Config().initParameter("LAYOUTS", "application.jsp").initParameter("LAYOUT_DATA", "application=" + Constant.class.getName())
+        .initParameter("LAYOUT_DATA_THREADS", "0");
+    config.servletContext = context.servletContext;
+    filter.init(config);
+  }
+
+  @Test(expected = ServletException.class)
+  public void testInvalidProvider() throws Exception
+  {
+    init("application", null);
+  }
+
+  void init(String layoutData, String timeout) throws Exception
+  {
+    InMemoryServlet.Config config = new InMemoryServlet.Config().initParameter("LAYOUTS", "application.jsp,other.jsp").initParameter("LAYOUT_DATA", layoutData);
+    if (timeout != null)
+    {
+      config.initParameter("LAYOUT_DATA_TIMEOUT", timeout);
+    }
+    config.servletContext = context.servletContext;
+    filter.init(config);
+  }
+
+  String run(FilterChain view) throws Exception
+  {
+    InMemoryServlet.Request request = new InMemoryServlet.Request();
+    request.headers.put("Accept", "text/html");
+    request.requestURI = "/home";
+    request.attributes.put("stage", "before view");
+    request.dispatchers.put("/WEB-INF/jsps/layouts/application.jsp", new DataLayout());
+    request.dispatchers.put("/WEB-INF/jsps/layouts/other.jsp", new DataLayout());
+
+    InMemoryServlet.Response response = new InMemoryServlet.Response();
+    filter.doFilter(request, response, view);
+    return response.content();
+  }
+
+  /*
+   * Writes the layout data before the view.
+   */
+  static class DataLayout implements RequestDispatcher
+  {
+    @Override
+    public void forward(ServletRequest request, ServletResponse response) throws IOException
+    {
+      View view = (View) request.getAttribute(Layouts.VIEW);
+      PrintWriter out = response.getWriter();
+      out.write("<nav>" + request.getAttribute(Layouts.LAYOUT_DATA) + "</nav>");
+      view.yield(out);
+      out.flush();
+    }
+
+    @Override
+    public void include(ServletRequest request, ServletResponse response)
+    {
+      throw new UnsupportedOperationException("include");
+    }
+  }
+
+  public static class WaitsForView implements LayoutDataProvider
+  {
+    @Override
+    public Object fetch(HttpServletRequest httpRequest) throws Exception
+    {
+      return viewStarted.await(5, TimeUnit.SECONDS) ? "menu" : "late";
+    }
+
+    @Override
+    public Object getFallback(HttpServletRequest httpRequest)
+    {
+      return "fallback";
+    }
+  }
+
+  public static class Fails implements LayoutDataProvider
+  {
+    @Override
+    public Object fetch(HttpServletRequest httpRequest) throws Exception
+    {
+      throw new IllegalStateException("down");
+    }
+
+    @Override
+    public Object getFallback(HttpServletRequest httpRequest)
+    {
+      return "fallback";
+    }
+  }
+
+  public static class Constant implements LayoutDataProvider
+  {
+    @Override
+    public Object fetch(HttpServletRequest httpRequest)
+    {
+      return "constant";
+    }
+  }
+
+  public static class ReadsRequest implements LayoutDataProvider
+  {
+    @Override
+    public Object fetch(HttpServletRequest httpRequest) throws Exception
+    {
+      viewStarted.await(5, TimeUnit.SECONDS);
+      try
+      {
+        httpRequest.getParameter("page");
+        return "parameters should not be available";
+      }
+      catch (UnsupportedOperationException e)
+      {}
+      return httpRequest.getMethod() + " " + httpRequest.getRequestURI() + " " + httpRequest.getHeader("accept") + " " + httpRequest.getAttribute("stage") +
+             " user=" + httpRequest.getRemoteUser();
+    }
+  }
+}
@@ -0,0 +1,170 @@
+package org.baswell.layouts;/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import jakarta.servlet.RequestDispatcher;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.ServletResponse;
+import jakarta.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.JMX;
+import javax.management.ObjectName;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LayoutWarmUpTest
+{
+  @Test
+  public void testCompileAndComposeLayoutsFromPackedWar() throws Exception
+  {
+    InMemoryServlet.Context context = new InMemoryServlet.Context().resourcePaths("/WEB-INF/jsps/layouts/",
+        "/WEB-INF/jsps/layouts/application.jsp", "/WEB-INF/jsps/layouts/admin.jspx", "/WEB-INF/jsps/layouts/partials/", "/WEB-INF/jsps/layouts/README.txt");
+    RecordingJspServlet jspServlet = new RecordingJspServlet();
+    context.namedDispatchers.put("jsp", jspServlet);
+
+    InMemoryServlet.Config config = new InMemoryServlet.Config().initParameter("WARM_UP", "COMPOSE").initParameter("WARM_UP_PASSES", "3");
+    config.servletContext = context.servletContext;
+    new LayoutsFilter().init(config);
+
+    assertEquals(8, jspServlet.forwards.size());
+    assertEquals(2, count(jspServlet.forwards, "precompile"));
+    assertEquals(3, count(jspServlet.forwards, "/WEB-INF/jsps/layouts/application.jsp"));
+    assertEquals(3, count(jspServlet.forwards, "/WEB-INF/jsps/layouts/admin.jspx"));
+    assertTrue(context.log.get(context.log.size() - 1).startsWith("LayoutsFilter: warmed up 2 of 2 layouts"));
+  }
+
+  @Test
+  public void testWarmUpSkipsLayoutCacheAndLayoutData() throws Exception
+  {
+    InMemoryServlet.Context context = new InMemoryServlet.Context().resourcePaths("/WEB-INF/jsps/layouts/", "/WEB-INF/jsps/layouts/application.jsp");
+    RecordingJspServlet jspServlet = new RecordingJspServlet();
+    context.namedDispatchers.put("jsp", jspServlet);
+
+    InMemoryServlet.Config config = new InMemoryServlet.Config().initParameter("WARM_UP", "COMPOSE").initParameter("WARM_UP_PASSES", "3")
+        .initParameter("LAYOUT_CACHE", "application").initParameter("LAYOUT_DATA", "application=" + CountingProvider.class.getName())
+        .initParameter("RENDER_DEADLINE", "1");
+    config.servletContext = context.servletContext;
+    CountingProvider.fetches.set(0);
+    LayoutsFilter filter = new LayoutsFilter();
+    filter.init(config);
+    try
+    {
+      assertEquals(3, count(jspServlet.forwards, "/WEB-INF/jsps/layouts/application.jsp"));
+      assertEquals(0, CountingProvider.fetches.get());
+
+      LayoutCacheMXBean layoutCache = JMX.newMXBeanProxy(ManagementFactory.getPlatformMBeanServer(), new ObjectName("org.baswell.layouts:type=LayoutCache,context=\"/\",filter=\"LayoutsFilter\""), LayoutCacheMXBean.class);
+      assertEquals(0, layoutCache.getEntries());
+      assertEquals(0, layoutCache.getMissCount());
+    }
+    finally
+    {
+      filter.destroy();
+    }
+  }
+
+  @Test
+  public void testFailedLayoutDoesNotStopWarmUp() throws Exception
+  {
+    InMemoryServlet.Context context = new InMemoryServlet.Context().resourcePaths("/WEB-INF/jsps/layouts/", "/WEB-INF/jsps/layouts/application.jsp");
+    context.namedDispatchers.put("jsp", new RecordingJspServlet()
+    {
+      @Override
+      public void forward(ServletRequest request, ServletResponse response) throws ServletException
+      {
+        throw new ServletException("Needs a user");
+      }
+    });
+
+    InMemoryServlet.Config config = new InMemoryServlet.Config().initParameter("WARM_UP", "COMPILE");
+    config.servletContext = context.servletContext;
+    new LayoutsFilter().init(config);
+
+    assertEquals("LayoutsFilter: unable to warm up layout /WEB-INF/jsps/layouts/application.jsp.", context.log.get(0));
+    assertTrue(context.log.get(1).startsWith("LayoutsFilter: warmed up 0 of 1 layouts"));
+  }
+
+  @Test(expected = ServletException.class)
+  public void testMissingLayoutsDirectory() throws Exception
+  {
+    InMemoryServlet.Config config = new InMemoryServlet.Config();
+    config.servletContext = new InMemoryServlet.Context().servletContext;
+    new LayoutsFilter().init(config);
+  }
+
+  public static class CountingProvider implements LayoutDataProvider
+  {
+    static final AtomicInteger fetches = new AtomicInteger();
+
+    @Override
+    public Object fetch(HttpServletRequest httpRequest)
+    {
+      fetches.incrementAndGet();
+      return "menu";
+    }
+  }
+
+  static int count(List<String> values, String value)
+  {
+    int count = 0;
+    for (String v : values)
+    {
+      if (v.equals(value)) ++count;
+    }
+    return count;
+  }
+
+  /*
+   * Stands in for the container's JSP servlet. Records the precompile requests and the layout of each compose.
+   */
+  static class RecordingJspServlet implements RequestDispatcher
+  {
+    final List<String> forwards = new ArrayList<String>();
+
+    @Override
+    public void forward(ServletRequest request, ServletResponse response) throws IOException, ServletException
+    {
+      HttpServletRequest httpRequest = (HttpServletRequest) request;
+      if ("jsp_precompile=true".equals(httpRequest.getQueryString()))
+      {
+        forwards.add("precompile");
+      }
+      else
+      {
+        View view = (View) request.getAttribute(Layouts.VIEW);
+        PrintWriter out = response.getWriter();
+        out.write("<html><head>");
+        view.yield("head", out);
+        out.write("</head><body>");
+        view.yield("body", out);
+        out.write("</body></html>");
+        out.flush();
+        forwards.add(httpRequest.getServletPath());
+      }
+    }
+
+    @Override
+    public void include(ServletRequest request, ServletResponse response)
+    {
+      throw new UnsupportedOperationException("include");
+    }
+  }
+}
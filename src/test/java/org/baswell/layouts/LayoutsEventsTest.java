@@ -0,0 +1,107 @@
+package org.baswell.layouts;/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class LayoutsEventsTest
+{
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testEventsRecorded() throws Exception
+  {
+    LayoutsFilter filter = new LayoutsFilter();
+    filter.init(new InMemoryServlet.Config().initParameter("LAYOUTS", "application.jsp").initParameter("ONLY", "/home.*"));
+
+    List<RecordedEvent> events;
+    try (Recording recording = new Recording())
+    {
+      for (String name : new String[]{"Patterns", "Decider", "View", "BufferGrowth", "Yield", "Layout"})
+      {
+        recording.enable("org.baswell.layouts." + name).withoutThreshold();
+      }
+      recording.start();
+
+      InMemoryServlet.Request request = new InMemoryServlet.Request();
+      request.headers.put("Accept", "text/html");
+      request.requestURI = "/home";
+      request.dispatchers.put("/WEB-INF/jsps/layouts/application.jsp", new InMemoryServlet.Layout("<html><head>", "</head><body>", "</body></html>"));
+      InMemoryServlet.Response response = new InMemoryServlet.Response();
+      filter.doFilter(request, response, new InMemoryServlet.View("<head><title>Home</title></head><body><p>Home</p></body>"));
+      assertEquals("<html><head><title>Home</title></head><body><p>Home</p></body></html>", response.content());
+
+      recording.stop();
+      Path file = folder.newFile("layouts.jfr").toPath();
+      recording.dump(file);
+      events = new ArrayList<RecordedEvent>();
+      for (RecordedEvent event : RecordingFile.readAllEvents(file))
+      {
+        if (event.getEventType().getName().startsWith("org.baswell.layouts."))
+        {
+          events.add(event);
+        }
+      }
+    }
+
+    RecordedEvent patterns = event(events, "Patterns");
+    assertEquals("/home", patterns.getString("uri"));
+    assertFalse(patterns.getBoolean("excluded"));
+    assertTrue(event(events, "Decider").getBoolean("candidate"));
+
+    RecordedEvent view = event(events, "View");
+    assertEquals("application", view.getString("layout"));
+    assertEquals(56, view.getLong("bytes"));
+
+    assertEquals("application", event(events, "Layout").getString("layout"));
+    assertTrue(event(events, "BufferGrowth").getLong("to") > 0);
+
+    int yields = 0;
+    for (RecordedEvent event : events)
+    {
+      if (event.getEventType().getName().equals("org.baswell.layouts.Yield"))
+      {
+        ++yields;
+        assertTrue(event.getBoolean("found"));
+        assertEquals(event.getString("section").equals("head") ? 19 : 11, event.getLong("bytes"));
+      }
+    }
+    assertEquals(2, yields);
+  }
+
+  static RecordedEvent event(List<RecordedEvent> events, String name)
+  {
+    for (RecordedEvent event : events)
+    {
+      if (event.getEventType().getName().equals("org.baswell.layouts." + name))
+      {
+        return event;
+      }
+    }
+    fail("No " + name + " event recorded.");
+    return null;
+  }
+}
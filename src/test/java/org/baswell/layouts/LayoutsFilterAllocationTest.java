@@ -0,0 +1,174 @@
+package org.baswell.layouts;/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+/*
+ * Drives LayoutsFilter.doFilter with in-memory stand-ins and fails if the bytes allocated per request go over the budget recorded
+ * in allocation-budgets.properties. After an optimization lowers the allocation of a scenario lower its budget to lock it in. Run
+ * with -Dlayouts.allocation.report=true to print the measured values.
+ */
+public class LayoutsFilterAllocationTest
+{
+  static final int WARM_UP_ITERATIONS = 20000;
+
+  static final int MEASURED_ITERATIONS = 5000;
+
+  static final String HEAD = "<title>Allocation Test</title><meta name=\"description\" content=\"Allocation test page\">";
+
+  static com.sun.management.ThreadMXBean threadMXBean;
+
+  static Properties budgets;
+
+  @BeforeClass
+  public static void beforeClass() throws IOException
+  {
+    assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+    threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    assumeTrue(threadMXBean.isThreadAllocatedMemorySupported());
+    threadMXBean.setThreadAllocatedMemoryEnabled(true);
+
+    budgets = new Properties();
+    InputStream budgetsStream = LayoutsFilterAllocationTest.class.getResourceAsStream("allocation-budgets.properties");
+    try
+    {
+      budgets.load(budgetsStream);
+    }
+    finally
+    {
+      budgetsStream.close();
+    }
+  }
+
+  @Test
+  public void testPassthrough() throws Exception
+  {
+    Scenario scenario = new Scenario(new InMemoryServlet.Config().initParameter("EXCEPT", "/api/.*"));
+    scenario.request.requestURI = "/api/users";
+
+    scenario.run();
+    assertEquals(scenario.view.content, scenario.response.content());
+
+    assertWithinBudget("passthrough", scenario);
+  }
+
+  @Test
+  public void testNonHtml() throws Exception
+  {
+    Scenario scenario = new Scenario(new InMemoryServlet.Config());
+    scenario.view.contentType = "application/json";
+
+    scenario.run();
+    assertEquals(scenario.view.content, scenario.response.content());
+
+    assertWithinBudget("nonHtml", scenario);
+  }
+
+  @Test
+  public void testLayout() throws Exception
+  {
+    Scenario scenario = new Scenario(new InMemoryServlet.Config());
+
+    scenario.run();
+    String content = scenario.response.content();
+    assertTrue(content.startsWith("<html><head>" + HEAD + "</head>"));
+    assertTrue(content.endsWith("</body></html>"));
+
+    assertWithinBudget("layout", scenario);
+  }
+
+  @Test
+  public void testUnknownLayout() throws Exception
+  {
+    Scenario scenario = new Scenario(new InMemoryServlet.Config());
+    scenario.view.attributeName = Layouts.LAYOUT;
+    scenario.view.attributeValue = "unknown";
+
+    scenario.run();
+    assertEquals(500, scenario.response.status);
+
+    assertWithinBudget("unknownLayout", scenario);
+  }
+
+  static void assertWithinBudget(String scenarioName, Scenario scenario) throws Exception
+  {
+    for (int i = 0; i < WARM_UP_ITERATIONS; i++)
+    {
+      scenario.run();
+    }
+
+    long start = threadMXBean.getCurrentThreadAllocatedBytes();
+    for (int i = 0; i < MEASURED_ITERATIONS; i++)
+    {
+      scenario.run();
+    }
+    long bytesPerRequest = (threadMXBean.getCurrentThreadAllocatedBytes() - start) / MEASURED_ITERATIONS;
+
+    if (Boolean.getBoolean("layouts.allocation.report"))
+    {
+      System.out.println("Allocation " + scenarioName + ": " + bytesPerRequest + " bytes/request");
+    }
+
+    long budget = Long.parseLong(budgets.getProperty(scenarioName));
+    assertTrue(scenarioName + " allocated " + bytesPerRequest + " bytes per request which is over the budget of " + budget + " bytes.", bytesPerRequest <= budget);
+  }
+
+  static class Scenario
+  {
+    final LayoutsFilter filter = new LayoutsFilter();
+
+    final InMemoryServlet.Request request = new InMemoryServlet.Request();
+
+    final InMemoryServlet.Response response = new InMemoryServlet.Response();
+
+    final InMemoryServlet.View view;
+
+    Scenario(InMemoryServlet.Config config) throws Exception
+    {
+      StringBuilder body = new StringBuilder();
+      for (int i = 0; i < 40; i++)
+      {
+        body.append("<p>Paragraph ").append(i).append(" of the allocation test view with <a href=\"/link/").append(i).append("\">a link</a>.</p>\n");
+      }
+      view = new InMemoryServlet.View("<head>" + HEAD + "</head><body>" + body + "</body>");
+
+      config.initParameter("LAYOUTS", "application.jsp");
+      filter.init(config);
+
+      request.headers.put("Accept", "text/html,application/xhtml+xml");
+      request.requestURI = "/home";
+      request.dispatchers.put("/WEB-INF/jsps/layouts/application.jsp", new InMemoryServlet.Layout("<html><head>", "</head><body><nav>Menu</nav>", "<footer>Footer</footer></body></html>"));
+    }
+
+    void run() throws Exception
+    {
+      String requestURI = request.requestURI;
+      request.clear();
+      response.clear();
+      filter.doFilter(request, response, view);
+      request.requestURI = requestURI;
+    }
+  }
+}
@@ -0,0 +1,467 @@
+package org.baswell.layouts;/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.catalina.Context;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.tomcat.util.descriptor.web.FilterDef;
+import org.apache.tomcat.util.descriptor.web.FilterMap;
+import org.apache.tomcat.util.scan.StandardJarScanner;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * End-to-end load benchmark. Boots embedded Tomcat on localhost with JSP views and a JSP layout, then drives it with a built-in
+ * concurrent HTTP client and reports throughput, p50/p99/p999 latency and the bytes allocated by the Tomcat request threads per
+ * request. Each view size is run with the layout off (no LayoutsFilter) and with the LayoutsFilter in each buffer mode, using both
+ * platform and (when the JVM has them) virtual client threads.
+ *
+ * Time to first byte is reported along with the full latency since that's where streaming composition differs.
+ *
+ * Not run as part of the unit tests. To run:
+ *
+ *   mvn test-compile exec:java -Dexec.mainClass=org.baswell.layouts.LayoutsLoadBenchmark -Dexec.classpathScope=test -Dexec.args="duration=10 concurrency=32"
+ *
+ * Arguments (all optional): duration (seconds per run, default 10), warmup (seconds per run, default 3), concurrency (client threads, default 32).
+ */
+public class LayoutsLoadBenchmark
+{
+  static final Map<String, Integer> VIEW_SIZES = new LinkedHashMap<String, Integer>();
+
+  static
+  {
+    /*
+     * Number of rows in the view, each row is about 100 bytes.
+     */
+    VIEW_SIZES.put("small", 20);
+    VIEW_SIZES.put("medium", 500);
+    VIEW_SIZES.put("large", 5000);
+  }
+
+  /*
+   * Context path mapped to the LayoutsFilter init parameters for that context (null for no LayoutsFilter).
+   */
+  static final Map<String, Map<String, String>> MODES = new LinkedHashMap<String, Map<String, String>>();
+
+  static
+  {
+    MODES.put("/off", null);
+    MODES.put("/heap", initParameters("BUFFER_MODE", "HEAP"));
+    MODES.put("/direct", initParameters("BUFFER_MODE", "DIRECT"));
+    MODES.put("/streaming", initParameters("COMPOSITION", "STREAMING"));
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    Map<String, String> arguments = new LinkedHashMap<String, String>();
+    for (String arg : args)
+    {
+      int index = arg.indexOf('=');
+      if (index > 0)
+      {
+        arguments.put(arg.substring(0, index), arg.substring(index + 1));
+      }
+    }
+
+    int durationSeconds = Integer.parseInt(valueOf(arguments, "duration", "10"));
+    int warmUpSeconds = Integer.parseInt(valueOf(arguments, "warmup", "3"));
+    int concurrency = Integer.parseInt(valueOf(arguments, "concurrency", "32"));
+
+    File baseDir = Files.createTempDirectory("layouts-benchmark").toFile();
+    File docBase = createWebapp(new File(baseDir, "webapp"));
+
+    Tomcat tomcat = new Tomcat();
+    tomcat.setBaseDir(baseDir.getAbsolutePath());
+    tomcat.setPort(0);
+    tomcat.getConnector();
+
+    for (Map.Entry<String, Map<String, String>> mode : MODES.entrySet())
+    {
+      addContext(tomcat, mode.getKey(), docBase, mode.getValue());
+    }
+
+    tomcat.start();
+    try
+    {
+      int port = tomcat.getConnector().getLocalPort();
+
+      Map<String, ThreadFactory> threadFactories = new LinkedHashMap<String, ThreadFactory>();
+      threadFactories.put("platform", new ThreadFactory()
+      {
+        @Override
+        public Thread newThread(Runnable runnable)
+        {
+          return new Thread(runnable);
+        }
+      });
+
+      ThreadFactory virtualThreadFactory = virtualThreadFactory();
+      if (virtualThreadFactory == null)
+      {
+        System.out.println("Virtual threads are not available in this JVM (" + System.getProperty("java.version") + "), only platform client threads are used.");
+      }
+      else
+      {
+        threadFactories.put("virtual", virtualThreadFactory);
+      }
+
+      System.out.println();
+      System.out.println(String.format("%-8s %-10s %-8s %12s %10s %10s %10s %10s %12s %14s", "view", "mode", "client", "req/sec", "ttfb p50", "p50 ms", "p99 ms", "p999 ms", "bytes/req", "alloc/req"));
+
+      for (String viewSize : VIEW_SIZES.keySet())
+      {
+        for (String contextPath : MODES.keySet())
+        {
+          for (Map.Entry<String, ThreadFactory> threadFactory : threadFactories.entrySet())
+          {
+            URL url = new URL("http://localhost:" + port + contextPath + "/views/" + viewSize + ".jsp");
+            run(url, threadFactory.getValue(), concurrency, warmUpSeconds);
+            Result result = run(url, threadFactory.getValue(), concurrency, durationSeconds);
+            System.out.println(String.format("%-8s %-10s %-8s %12.0f %10.3f %10.3f %10.3f %10.3f %12d %14d", viewSize, contextPath.substring(1), threadFactory.getKey(),
+                result.throughput(), result.firstBytePercentileMillis(50), result.percentileMillis(50), result.percentileMillis(99), result.percentileMillis(99.9), result.bytesPerRequest(), result.allocatedPerRequest()));
+          }
+        }
+      }
+    }
+    finally
+    {
+      tomcat.stop();
+      tomcat.destroy();
+    }
+  }
+
+  static Result run(final URL url, ThreadFactory threadFactory, int concurrency, int durationSeconds) throws Exception
+  {
+    final AtomicBoolean running = new AtomicBoolean(true);
+    final CountDownLatch done = new CountDownLatch(concurrency);
+    final List<Worker> workers = new ArrayList<Worker>();
+
+    long allocatedBefore = serverAllocatedBytes();
+    long start = System.nanoTime();
+    for (int i = 0; i < concurrency; i++)
+    {
+      Worker worker = new Worker(url, running, done);
+      workers.add(worker);
+      threadFactory.newThread(worker).start();
+    }
+
+    Thread.sleep(durationSeconds * 1000L);
+    running.set(false);
+    done.await();
+    long elapsed = System.nanoTime() - start;
+    long allocated = serverAllocatedBytes() - allocatedBefore;
+
+    Result result = new Result(elapsed, allocated);
+    for (Worker worker : workers)
+    {
+      if (worker.error != null)
+      {
+        throw new IllegalStateException("Request to " + url + " failed.", worker.error);
+      }
+      result.add(worker);
+    }
+    return result;
+  }
+
+  static class Worker implements Runnable
+  {
+    final URL url;
+
+    final AtomicBoolean running;
+
+    final CountDownLatch done;
+
+    final byte[] readBuffer = new byte[16 * 1024];
+
+    long[] latencies = new long[1024];
+
+    long[] firstByteLatencies = new long[1024];
+
+    int requests;
+
+    long bytes;
+
+    Exception error;
+
+    Worker(URL url, AtomicBoolean running, CountDownLatch done)
+    {
+      this.url = url;
+      this.running = running;
+      this.done = done;
+    }
+
+    @Override
+    public void run()
+    {
+      try
+      {
+        while (running.get())
+        {
+          long start = System.nanoTime();
+          HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+          if (connection.getResponseCode() != 200)
+          {
+            throw new IOException("Status " + connection.getResponseCode());
+          }
+
+          InputStream inputStream = connection.getInputStream();
+          try
+          {
+            int read = inputStream.read(readBuffer);
+            long firstByte = System.nanoTime() - start;
+            while (read != -1)
+            {
+              bytes += read;
+              read = inputStream.read(readBuffer);
+            }
+
+            if (requests == firstByteLatencies.length)
+            {
+              firstByteLatencies = Arrays.copyOf(firstByteLatencies, firstByteLatencies.length * 2);
+            }
+            firstByteLatencies[requests] = firstByte;
+          }
+          finally
+          {
+            inputStream.close();
+          }
+
+          if (requests == latencies.length)
+          {
+            latencies = Arrays.copyOf(latencies, latencies.length * 2);
+          }
+          latencies[requests++] = System.nanoTime() - start;
+        }
+      }
+      catch (Exception e)
+      {
+        error = e;
+      }
+      finally
+      {
+        done.countDown();
+      }
+    }
+  }
+
+  static class Result
+  {
+    final long elapsedNanos;
+
+    final long allocatedBytes;
+
+    long[] latencies = new long[0];
+
+    long[] firstByteLatencies = new long[0];
+
+    long bytes;
+
+    Result(long elapsedNanos, long allocatedBytes)
+    {
+      this.elapsedNanos = elapsedNanos;
+      this.allocatedBytes = allocatedBytes;
+    }
+
+    void add(Worker worker)
+    {
+      int length = latencies.length;
+      latencies = Arrays.copyOf(latencies, length + worker.requests);
+      System.arraycopy(worker.latencies, 0, latencies, length, worker.requests);
+      firstByteLatencies = Arrays.copyOf(firstByteLatencies, length + worker.requests);
+      System.arraycopy(worker.firstByteLatencies, 0, firstByteLatencies, length, worker.requests);
+      bytes += worker.bytes;
+    }
+
+    double throughput()
+    {
+      return latencies.length / (elapsedNanos / 1e9);
+    }
+
+    double percentileMillis(double percentile)
+    {
+      return percentileMillis(latencies, percentile);
+    }
+
+    double firstBytePercentileMillis(double percentile)
+    {
+      return percentileMillis(firstByteLatencies, percentile);
+    }
+
+    static double percentileMillis(long[] latencies, double percentile)
+    {
+      if (latencies.length == 0)
+      {
+        return 0;
+      }
+
+      long[] sorted = latencies.clone();
+      Arrays.sort(sorted);
+      int index = (int) Math.min(sorted.length - 1, Math.ceil(percentile / 100.0 * sorted.length) - 1);
+      return sorted[Math.max(index, 0)] / 1e6;
+    }
+
+    long bytesPerRequest()
+    {
+      return latencies.length == 0 ? 0 : bytes / latencies.length;
+    }
+
+    long allocatedPerRequest()
+    {
+      return latencies.length == 0 ? 0 : allocatedBytes / latencies.length;
+    }
+  }
+
+  /*
+   * The total bytes allocated by the Tomcat request processing threads.
+   */
+  static long serverAllocatedBytes()
+  {
+    if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean))
+    {
+      return 0;
+    }
+
+    com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long total = 0;
+    for (ThreadInfo threadInfo : threadMXBean.getThreadInfo(threadMXBean.getAllThreadIds()))
+    {
+      if (threadInfo != null && threadInfo.getThreadName().contains("-exec-"))
+      {
+        long allocated = threadMXBean.getThreadAllocatedBytes(threadInfo.getThreadId());
+        if (allocated > 0)
+        {
+          total += allocated;
+        }
+      }
+    }
+    return total;
+  }
+
+  static ThreadFactory virtualThreadFactory()
+  {
+    try
+    {
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+    }
+    catch (Exception e)
+    {
+      return null;
+    }
+  }
+
+  static void addContext(Tomcat tomcat, String contextPath, File docBase, Map<String, String> filterInitParameters)
+  {
+    Context context = tomcat.addWebapp(contextPath, docBase.getAbsolutePath());
+    context.setParentClassLoader(LayoutsLoadBenchmark.class.getClassLoader());
+
+    StandardJarScanner jarScanner = new StandardJarScanner();
+    jarScanner.setScanClassPath(false);
+    context.setJarScanner(jarScanner);
+
+    if (filterInitParameters != null)
+    {
+      FilterDef filterDef = new FilterDef();
+      filterDef.setFilterName("LayoutsFilter");
+      filterDef.setFilterClass(LayoutsFilter.class.getName());
+      for (Map.Entry<String, String> initParameter : filterInitParameters.entrySet())
+      {
+        filterDef.addInitParameter(initParameter.getKey(), initParameter.getValue());
+      }
+      context.addFilterDef(filterDef);
+
+      FilterMap filterMap = new FilterMap();
+      filterMap.setFilterName("LayoutsFilter");
+      filterMap.addURLPattern("/*");
+      context.addFilterMap(filterMap);
+    }
+  }
+
+  static File createWebapp(File docBase) throws IOException
+  {
+    write(new File(docBase, "WEB-INF/jsps/layouts/application.jsp"),
+        "<%@ page contentType=\"text/html;charset=UTF-8\" %><!DOCTYPE html>\n" +
+        "<html>\n" +
+        "  <head>\n" +
+        "    <link href=\"<%=request.getContextPath() %>/assets/app.css\" rel=\"stylesheet\">\n" +
+        "    ${view.yieldHead(pageContext)}\n" +
+        "  </head>\n" +
+        "  <body>\n" +
+        "    <nav><a href=\"<%=request.getContextPath() %>/\">Home</a> <a href=\"<%=request.getContextPath() %>/reports\">Reports</a></nav>\n" +
+        "    ${view.yieldBody(pageContext)}\n" +
+        "    <footer>Layouts benchmark</footer>\n" +
+        "    <script src=\"<%=request.getContextPath() %>/assets/app.js\"></script>\n" +
+        "  </body>\n" +
+        "</html>\n");
+
+    write(new File(docBase, "assets/app.css"), "body { font-family: sans-serif; }\n");
+    write(new File(docBase, "assets/app.js"), "console.log('layouts benchmark');\n");
+
+    for (Map.Entry<String, Integer> viewSize : VIEW_SIZES.entrySet())
+    {
+      write(new File(docBase, "views/" + viewSize.getKey() + ".jsp"),
+          "<%@ page contentType=\"text/html;charset=UTF-8\" %>\n" +
+          "<head><title>Benchmark " + viewSize.getKey() + "</title></head>\n" +
+          "<body>\n" +
+          "<table>\n" +
+          "<% for (int i = 0; i < " + viewSize.getValue() + "; i++) { %>" +
+          "<tr><td><%= i %></td><td>Row of the benchmark view with enough text to look like a real page.</td></tr>\n" +
+          "<% } %>" +
+          "</table>\n" +
+          "</body>\n");
+    }
+
+    return docBase;
+  }
+
+  static void write(File file, String content) throws IOException
+  {
+    file.getParentFile().mkdirs();
+    Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  static Map<String, String> initParameters(String... namesAndValues)
+  {
+    Map<String, String> initParameters = new LinkedHashMap<String, String>();
+    for (int i = 0; i < namesAndValues.length; i += 2)
+    {
+      initParameters.put(namesAndValues[i], namesAndValues[i + 1]);
+    }
+    return initParameters;
+  }
+
+  static String valueOf(Map<String, String> arguments, String name, String defaultValue)
+  {
+    String value = arguments.get(name);
+    return (value == null) ? defaultValue : value;
+  }
+}
@@ -0,0 +1,97 @@
+package org.baswell.layouts;/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LayoutsPrintWriterTest
+{
+  @Test
+  public void testWrites()
+  {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    LayoutsPrintWriter writer = new LayoutsPrintWriter(out, StandardCharsets.UTF_8);
+    writer.write('<');
+    writer.write("p>");
+    writer.write("xx\u00e9t\u00e9xx", 2, 3);
+    writer.write(new char[]{'!', '<', '/'}, 1, 2);
+    writer.print(42);
+    writer.print(true);
+    writer.append("p>");
+    writer.println();
+    assertEquals(0, out.size());
+
+    writer.flush();
+    assertEquals("<p>\u00e9t\u00e9</42truep>" + System.lineSeparator(), new String(out.toByteArray(), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testLongContent()
+  {
+    StringBuilder content = new StringBuilder();
+    for (int i = 0; i < 2000; i++)
+    {
+      /*
+       * Multi-byte characters and surrogate pairs land across the char and byte buffer boundaries.
+       */
+      content.append("caf\u00e9 \u20ac \ud83d\ude00 ").append(i).append('\n');
+    }
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    LayoutsPrintWriter writer = new LayoutsPrintWriter(out, StandardCharsets.UTF_8);
+    writer.write(content.toString());
+    writer.close();
+    assertEquals(content.toString(), new String(out.toByteArray(), StandardCharsets.UTF_8));
+
+    out = new ByteArrayOutputStream();
+    writer = new LayoutsPrintWriter(out, StandardCharsets.UTF_8);
+    for (int i = 0; i < content.length(); i++)
+    {
+      writer.write(content.charAt(i));
+    }
+    writer.flush();
+    assertEquals(content.toString(), new String(out.toByteArray(), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testErrors()
+  {
+    LayoutsPrintWriter writer = new LayoutsPrintWriter(new OutputStream()
+    {
+      @Override
+      public void write(int b) throws IOException
+      {
+        throw new IOException("Connection reset");
+      }
+    }, StandardCharsets.UTF_8);
+    writer.write("<p>Page</p>");
+    assertTrue(writer.checkError());
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writer = new LayoutsPrintWriter(out, StandardCharsets.UTF_8);
+    writer.write("<p>Page</p>");
+    assertFalse(writer.checkError());
+    writer.close();
+    writer.write("<p>Closed</p>");
+    assertTrue(writer.checkError());
+    assertEquals("<p>Page</p>", new String(out.toByteArray(), StandardCharsets.UTF_8));
+  }
+}
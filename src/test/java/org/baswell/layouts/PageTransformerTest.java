@@ -0,0 +1,293 @@
+package org.baswell.layouts;/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.ServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PageTransformerTest
+{
+  @Test
+  public void testTokens() throws IOException
+  {
+    RecordingTransformer recorder = new RecordingTransformer();
+    String page = "<!DOCTYPE html><p class=\"a>b\">1 < 2</p><!-- x > y --><script>if (a<b) {}</script><br/>";
+    assertEquals(page, transform(page, page.length(), recorder));
+    assertEquals("[OTHER <!DOCTYPE html>, START_TAG <p class=\"a>b\">, TEXT 1 , TEXT < , TEXT 2, END_TAG </p>, COMMENT <!-- x > y -->, START_TAG <script>, TEXT(raw) if (a<b) {}, END_TAG </script>, START_TAG <br/>]", recorder.tokens.toString());
+  }
+
+  @Test
+  public void testSplitWritesGiveSamePage() throws IOException
+  {
+    String[] pages = new String[]{
+        "<html><head><title>A</title></head><body><p>One</p></body></html>",
+        "<p>a</p><script>document.write('</p><p>')</scr + ipt>')</SCRIPT><p>b</p>",
+        "<textarea><b>not a tag</b></textarea><style>p > a { }</style>",
+        "<!-- a -- b --><!--> <!---->< p><</<",
+        "<p title='it\"s'>x</p><p title=\"it's\">y</p><br/ ><input disabled>",
+    };
+
+    for (String page : pages)
+    {
+      RecordingTransformer whole = new RecordingTransformer();
+      transform(page, page.length(), whole);
+      for (int chunkSize : new int[]{1, 2, 3, 7})
+      {
+        RecordingTransformer split = new RecordingTransformer();
+        assertEquals(page, transform(page, chunkSize, split));
+        assertEquals(page, joinText(whole.tokens), joinText(split.tokens));
+      }
+    }
+  }
+
+  @Test
+  public void testLargeScriptNotBuffered() throws IOException
+  {
+    StringBuilder script = new StringBuilder();
+    while (script.length() < 3 * HtmlTokenizingOutputStream.RAW_CHUNK_SIZE)
+    {
+      script.append("var a = b < c;\n");
+    }
+    String page = "<script>" + script + "</script>";
+    RecordingTransformer recorder = new RecordingTransformer();
+    assertEquals(page, transform(page, 1000, recorder));
+    assertTrue(recorder.tokens.size() > 4);
+    assertEquals("END_TAG </script>", recorder.tokens.get(recorder.tokens.size() - 1));
+  }
+
+  @Test
+  public void testAttributes() throws IOException
+  {
+    PageTransformer transformer = new PageTransformer()
+    {
+      @Override
+      public void token(HtmlToken token, TokenWriter out) throws IOException
+      {
+        if (token.getType() == HtmlToken.Type.START_TAG && token.isTag("a"))
+        {
+          assertEquals("a", token.getTagName());
+          if (token.getAttribute("disabled") != null)
+          {
+            assertEquals("", token.getAttribute("disabled"));
+          }
+          token.setAttribute("href", token.getAttribute("HREF") + "?v=1");
+          token.setAttribute("data-x", "\"&\"");
+        }
+        out.write(token);
+      }
+    };
+
+    assertEquals("<a href=\"/a?v=1\" id=b data-x=\"&quot;&amp;&quot;\">A</a><A disabled href=\"/c?v=1\" data-x=\"&quot;&amp;&quot;\"/>",
+        transform("<a HREF='/a' id=b>A</a><A disabled href=/c />", 5, transformer));
+  }
+
+  @Test
+  public void testMinify() throws IOException
+  {
+    String page = "<html>\n  <head>\n    <title>  A   page </title>\n  </head>\n  <!-- nav -->\n  <body>\n" +
+                  "<!--[if IE]><p>IE</p><![endif]--><pre>  keep\n   this </pre><script>\n  var a  =  1;\n</script>  <p>x   y</p>  </body>\n</html>\n";
+    String expected = "<html>\n<head>\n<title> A page </title>\n</head>\n<body>\n" +
+                      "<!--[if IE]><p>IE</p><![endif]--><pre>  keep\n   this </pre><script>\n  var a  =  1;\n</script> <p>x y</p> </body>\n</html>\n";
+
+    assertEquals(expected, transform(page, page.length(), new HtmlMinifier()));
+    assertEquals(expected, transform(page, 3, new HtmlMinifier()));
+  }
+
+  @Test
+  public void testNonceAndMinifyThroughFilter() throws Exception
+  {
+    LayoutsFilter filter = new LayoutsFilter();
+    filter.init(new InMemoryServlet.Config().initParameter("LAYOUTS", "application.jsp").initParameter("TRANSFORMERS", "NONCE, MINIFY"));
+
+    InMemoryServlet.Request request = new InMemoryServlet.Request();
+    request.headers.put("Accept", "text/html");
+    request.requestURI = "/home";
+    request.dispatchers.put("/WEB-INF/jsps/layouts/application.jsp", new NonceLayout("<html>\n  <head>\n    <script src=\"/app.js\" nonce=\"{nonce}\"></script><script src=\"/b.js\"></script>", "</head>\n  <body>", "</body>\n</html>"));
+
+    InMemoryServlet.Response response = new InMemoryServlet.Response();
+    response.setHeader("Content-Security-Policy", "script-src 'nonce-{nonce}'");
+    filter.doFilter(request, response, new NonceView("<head><style nonce=\"{nonce}\">a {}</style><style nonce=\"mine\">p {}</style></head><body>\n\n  <p>Hi</p><script nonce=mine>x()</script></body>"));
+
+    String nonce = (String) request.getAttribute(Layouts.CSP_NONCE);
+    assertNotNull(nonce);
+    assertEquals("script-src 'nonce-" + nonce + "'", response.getHeader("Content-Security-Policy"));
+    assertEquals("<html>\n<head>\n<script src=\"/app.js\" nonce=\"" + nonce + "\"></script><script src=\"/b.js\"></script><style nonce=\"" + nonce + "\">a {}</style><style>p {}</style></head>\n<body>\n<p>Hi</p><script>x()</script></body>\n</html>", response.content());
+    filter.destroy();
+  }
+
+  @Test
+  public void testLayoutWithNonceNotCached() throws Exception
+  {
+    LayoutsFilter filter = new LayoutsFilter();
+    InMemoryServlet.Config config = new InMemoryServlet.Config().initParameter("LAYOUTS", "application.jsp").initParameter("TRANSFORMERS", "NONCE").initParameter("LAYOUT_CACHE", "application");
+    config.servletContext = new InMemoryServlet.Context().servletContext;
+    filter.init(config);
+
+    for (int i = 0; i < 2; i++)
+    {
+      InMemoryServlet.Request request = new InMemoryServlet.Request();
+      request.headers.put("Accept", "text/html");
+      request.requestURI = "/home";
+      request.dispatchers.put("/WEB-INF/jsps/layouts/application.jsp", new NonceLayout("<html><head><script nonce=\"{nonce}\"></script>", "</head><body>", "</body></html>"));
+
+      InMemoryServlet.Response response = new InMemoryServlet.Response();
+      filter.doFilter(request, response, new InMemoryServlet.View("<head></head><body>Hi</body>"));
+      assertEquals("<html><head><script nonce=\"" + request.getAttribute(Layouts.CSP_NONCE) + "\"></script></head><body>Hi</body></html>", response.content());
+    }
+    filter.destroy();
+  }
+
+  @Test
+  public void testCustomTransformerWithStreamingComposition() throws Exception
+  {
+    LayoutsFilter filter = new LayoutsFilter();
+    filter.init(new InMemoryServlet.Config().initParameter("LAYOUTS", "application.jsp").initParameter("COMPOSITION", "STREAMING").initParameter("TRANSFORMERS", UpperCaseTitle.class.getName()));
+
+    InMemoryServlet.Response response = new InMemoryServlet.Response();
+    filter.doFilter(StreamingCompositionTest.request(), response, new InMemoryServlet.View("<html><head><title>Report</title></head><body><p>Report</p></body></html>"));
+    assertEquals(StreamingCompositionTest.LAYOUT_BEFORE_HEAD + "<title>REPORT</title>" + StreamingCompositionTest.LAYOUT_BEFORE_BODY + "<p>Report</p>" +
+                 StreamingCompositionTest.LAYOUT_AFTER_BODY + "<!-- end -->", response.content());
+    filter.destroy();
+  }
+
+  @Test(expected = ServletException.class)
+  public void testInvalidTransformer() throws Exception
+  {
+    new LayoutsFilter().init(new InMemoryServlet.Config().initParameter("LAYOUTS", "application.jsp").initParameter("TRANSFORMERS", "java.lang.String"));
+  }
+
+  static String transform(String page, int chunkSize, PageTransformer... transformers) throws IOException
+  {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    HtmlTokenizingOutputStream tokenizer = new HtmlTokenizingOutputStream(out, transformers);
+    byte[] bytes = page.getBytes();
+    for (int i = 0; i < bytes.length; i += chunkSize)
+    {
+      tokenizer.write(bytes, i, Math.min(chunkSize, bytes.length - i));
+      tokenizer.flush();
+    }
+    tokenizer.finish();
+    return out.toString();
+  }
+
+  /*
+   * Joins adjacent text tokens since text can be split differently depending on how the page was written.
+   */
+  static List<String> joinText(List<String> tokens)
+  {
+    List<String> joined = new ArrayList<String>();
+    for (String token : tokens)
+    {
+      int last = joined.size() - 1;
+      if (last >= 0 && token.startsWith("TEXT") && joined.get(last).startsWith("TEXT"))
+      {
+        joined.set(last, joined.get(last) + token.substring(token.indexOf(' ') + 1));
+      }
+      else
+      {
+        joined.add(token);
+      }
+    }
+    return joined;
+  }
+
+  static class RecordingTransformer implements PageTransformer
+  {
+    final List<String> tokens = new ArrayList<String>();
+
+    @Override
+    public void token(HtmlToken token, TokenWriter out) throws IOException
+    {
+      tokens.add(token.getType() + (token.isRawText() ? "(raw) " : " ") + token);
+      out.write(token);
+    }
+  }
+
+  public static class UpperCaseTitle implements PageTransformer
+  {
+    boolean inTitle;
+
+    @Override
+    public void token(HtmlToken token, TokenWriter out) throws IOException
+    {
+      if (token.isTag("title"))
+      {
+        inTitle = token.getType() == HtmlToken.Type.START_TAG;
+      }
+
+      if (inTitle && token.getType() == HtmlToken.Type.TEXT)
+      {
+        out.write(token.toString().toUpperCase());
+      }
+      else
+      {
+        out.write(token);
+      }
+    }
+
+    @Override
+    public void end(TokenWriter out) throws IOException
+    {
+      out.write("<!-- end -->");
+    }
+  }
+
+  /*
+   * Layouts and views opt into the nonce by writing the request attribute the filter set before the view ran.
+   */
+  static class NonceLayout extends InMemoryServlet.Layout
+  {
+    NonceLayout(String beforeHead, String betweenHeadAndBody, String afterBody)
+    {
+      super(beforeHead, betweenHeadAndBody, afterBody);
+    }
+
+    @Override
+    public void forward(ServletRequest request, ServletResponse response) throws IOException
+    {
+      String nonce = (String) request.getAttribute(Layouts.CSP_NONCE);
+      for (int i = 0; i < parts.length; i++)
+      {
+        parts[i] = parts[i].replace("{nonce}", nonce);
+      }
+      super.forward(request, response);
+    }
+  }
+
+  static class NonceView extends InMemoryServlet.View
+  {
+    NonceView(String content)
+    {
+      super(content);
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException
+    {
+      PrintWriter writer = response.getWriter();
+      writer.write(content.replace("{nonce}", (String) request.getAttribute(Layouts.CSP_NONCE)));
+      writer.flush();
+    }
+  }
+}
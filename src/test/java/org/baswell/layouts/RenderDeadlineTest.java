@@ -0,0 +1,310 @@
+package org.baswell.layouts;/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.ServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMX;
+import javax.management.ObjectName;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RenderDeadlineTest
+{
+  static final String SHELL = "<html><head></head><body><div id=\"layouts-deadline\">Loading</div></body></html>";
+
+  LayoutsFilter filter = new LayoutsFilter();
+
+  @After
+  public void after()
+  {
+    filter.destroy();
+  }
+
+  @Test
+  public void testViewInTime() throws Exception
+  {
+    init("RENDER_DEADLINE", "5000");
+    assertEquals("<html><head><title>A</title></head><body><p>A</p></body></html>", run("/a", new SlowView(0, "<head><title>A</title></head><body><p>A</p></body>")).content());
+  }
+
+  @Test
+  public void testLateContentStreamed() throws Exception
+  {
+    init("RENDER_DEADLINE", "50");
+    InMemoryServlet.Response response = run("/a", new SlowView(300, "<head><title>A</title></head><body><p>Late</p></body>"));
+    assertEquals(SHELL + "<template id=\"layouts-late\"><p>Late</p></template><script>", response.content().substring(0, response.content().indexOf("<script>") + 8));
+    assertTrue(response.content().endsWith("</script>"));
+  }
+
+  @Test
+  public void testShellSentBeforeViewIsDone() throws Exception
+  {
+    init("RENDER_DEADLINE", "50", "RENDER_DEADLINE_LATE", "DROP");
+    final InMemoryServlet.Response response = new InMemoryServlet.Response();
+    final StringBuilder sentBeforeViewDone = new StringBuilder();
+    run("/a", response, new FilterChain()
+    {
+      @Override
+      public void doFilter(ServletRequest request, ServletResponse viewResponse) throws IOException
+      {
+        long giveUp = System.currentTimeMillis() + 5000;
+        while (response.content().isEmpty() && System.currentTimeMillis() < giveUp)
+        {
+          sleep(10);
+        }
+        sentBeforeViewDone.append(response.content());
+        viewResponse.getWriter().write("<head></head><body><p>Late</p></body>");
+      }
+    });
+
+    assertEquals(SHELL, sentBeforeViewDone.toString());
+    assertEquals(SHELL, response.content());
+  }
+
+  @Test
+  public void testRouteDeadlinesAndFallbackLayout() throws Exception
+  {
+    init("RENDER_DEADLINE_ROUTES", "/slow/.*=50", "RENDER_DEADLINE_LAYOUT", "shell", "RENDER_DEADLINE_LATE", "DROP");
+    assertEquals("<shell><div id=\"layouts-deadline\">Loading</div></shell>", run("/slow/report", new SlowView(300, "<body><p>Late</p></body>")).content());
+    assertEquals("<html><head></head><body><p>Slow</p></body></html>", run("/fast", new SlowView(300, "<body><p>Slow</p></body>")).content());
+  }
+
+  @Test
+  public void testViewWritingThroughIsWaitedFor() throws Exception
+  {
+    init("RENDER_DEADLINE", "50");
+    InMemoryServlet.Response response = run("/a", new FilterChain()
+    {
+      @Override
+      public void doFilter(ServletRequest request, ServletResponse viewResponse) throws IOException
+      {
+        viewResponse.setContentType("application/json");
+        viewResponse.getOutputStream().write("{".getBytes());
+        sleep(300);
+        viewResponse.getOutputStream().write("}".getBytes());
+      }
+    });
+    assertEquals("{}", response.content());
+  }
+
+  @Test
+  public void testViewFailureInTimeThrown() throws Exception
+  {
+    init("RENDER_DEADLINE", "5000");
+    try
+    {
+      run("/a", new FilterChain()
+      {
+        @Override
+        public void doFilter(ServletRequest request, ServletResponse viewResponse) throws IOException
+        {
+          throw new IOException("view failed");
+        }
+      });
+      fail();
+    }
+    catch (IOException e)
+    {
+      assertEquals("view failed", e.getMessage());
+    }
+  }
+
+  @Test
+  public void testBufferKeptUntilInterruptedViewIsDone() throws Exception
+  {
+    init("RENDER_DEADLINE", "5000", "BUFFER_BUDGET", "1M");
+    final CountDownLatch written = new CountDownLatch(1);
+    final CountDownLatch finish = new CountDownLatch(1);
+    final Exception[] thrown = new Exception[1];
+    Thread requestThread = new Thread()
+    {
+      @Override
+      public void run()
+      {
+        try
+        {
+          RenderDeadlineTest.this.run("/a", new FilterChain()
+          {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse viewResponse) throws IOException
+            {
+              PrintWriter writer = viewResponse.getWriter();
+              writer.write("<head></head><body>");
+              writer.flush();
+              written.countDown();
+
+              /*
+               * Blocked in I/O that doesn't notice the interrupt.
+               */
+              while (finish.getCount() > 0)
+              {
+                RenderDeadlineTest.sleep(5);
+              }
+              writer.write("<p>Late</p></body>");
+              writer.flush();
+            }
+          });
+        }
+        catch (Exception e)
+        {
+          thrown[0] = e;
+        }
+      }
+    };
+    requestThread.start();
+    assertTrue(written.await(5, TimeUnit.SECONDS));
+    requestThread.interrupt();
+    requestThread.join();
+    assertTrue(String.valueOf(thrown[0]), thrown[0] instanceof ServletException);
+
+    BufferBudgetMXBean budget = JMX.newMXBeanProxy(ManagementFactory.getPlatformMBeanServer(), new ObjectName("org.baswell.layouts:type=BufferBudget,context=\"/\",filter=\"LayoutsFilter\""), BufferBudgetMXBean.class);
+    assertTrue(budget.getReservedBytes() > 0);
+
+    finish.countDown();
+    long giveUp = System.currentTimeMillis() + 5000;
+    while (budget.getReservedBytes() > 0 && System.currentTimeMillis() < giveUp)
+    {
+      Thread.sleep(5);
+    }
+    assertEquals(0, budget.getReservedBytes());
+  }
+
+  @Test
+  public void testViewRunsOnRequestThreadWhenThreadsBusy() throws Exception
+  {
+    init("RENDER_DEADLINE", "50", "RENDER_DEADLINE_LATE", "DROP", "RENDER_DEADLINE_THREADS", "1");
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch finish = new CountDownLatch(1);
+    Thread busyRequest = new Thread()
+    {
+      @Override
+      public void run()
+      {
+        try
+        {
+          RenderDeadlineTest.this.run("/a", new FilterChain()
+          {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse viewResponse)
+            {
+              started.countDown();
+              while (finish.getCount() > 0)
+              {
+                RenderDeadlineTest.sleep(5);
+              }
+            }
+          });
+        }
+        catch (Exception e)
+        {}
+      }
+    };
+    busyRequest.start();
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+
+    final Thread requestThread = Thread.currentThread();
+    final boolean[] onRequestThread = new boolean[1];
+    try
+    {
+      assertEquals("<html><head></head><body><p>Slow</p></body></html>", run("/a", new FilterChain()
+      {
+        @Override
+        public void doFilter(ServletRequest request, ServletResponse viewResponse) throws IOException
+        {
+          onRequestThread[0] = (Thread.currentThread() == requestThread);
+          RenderDeadlineTest.sleep(200);
+          viewResponse.getWriter().write("<head></head><body><p>Slow</p></body>");
+        }
+      }).content());
+      assertTrue(onRequestThread[0]);
+    }
+    finally
+    {
+      finish.countDown();
+      busyRequest.join();
+    }
+  }
+
+  void init(String... parameters) throws Exception
+  {
+    InMemoryServlet.Config config = new InMemoryServlet.Config().initParameter("LAYOUTS", "application.jsp,shell.jsp").initParameter("RENDER_DEADLINE_PLACEHOLDER", "Loading");
+    for (int i = 0; i < parameters.length; i += 2)
+    {
+      config.initParameter(parameters[i], parameters[i + 1]);
+    }
+    config.servletContext = new InMemoryServlet.Context().servletContext;
+    filter.init(config);
+  }
+
+  InMemoryServlet.Response run(String path, FilterChain view) throws Exception
+  {
+    InMemoryServlet.Response response = new InMemoryServlet.Response();
+    run(path, response, view);
+    return response;
+  }
+
+  void run(String path, InMemoryServlet.Response response, FilterChain view) throws Exception
+  {
+    InMemoryServlet.Request request = new InMemoryServlet.Request();
+    request.headers.put("Accept", "text/html");
+    request.requestURI = path;
+    request.dispatchers.put("/WEB-INF/jsps/layouts/application.jsp", new InMemoryServlet.Layout("<html><head>", "</head><body>", "</body></html>"));
+    request.dispatchers.put("/WEB-INF/jsps/layouts/shell.jsp", new InMemoryServlet.Layout("<shell>", "", "</shell>"));
+    filter.doFilter(request, response, view);
+  }
+
+  static void sleep(long millis)
+  {
+    try
+    {
+      Thread.sleep(millis);
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  static class SlowView implements FilterChain
+  {
+    final long millis;
+
+    final String content;
+
+    SlowView(long millis, String content)
+    {
+      this.millis = millis;
+      this.content = content;
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response) throws IOException
+    {
+      sleep(millis);
+      response.getWriter().write(content);
+      response.getWriter().flush();
+    }
+  }
+}
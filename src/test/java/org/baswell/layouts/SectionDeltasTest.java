@@ -0,0 +1,177 @@
+package org.baswell.layouts;/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import jakarta.servlet.RequestDispatcher;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.ServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.zip.CRC32;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SectionDeltasTest
+{
+  static final String VIEW = "<head><title>Dashboard</title></head><body><main><p>Orders: 42</p></main></body>";
+
+  LayoutsFilter filter = new LayoutsFilter();
+
+  DashboardLayout layout = new DashboardLayout();
+
+  @After
+  public void after()
+  {
+    filter.destroy();
+  }
+
+  @Test
+  public void testPageHasScriptWithHashes() throws Exception
+  {
+    init("head,main", false);
+    InMemoryServlet.Response response = run(VIEW, null);
+    String content = response.content();
+    assertTrue(content, content.startsWith("<html><head><title>Dashboard</title></head><body><nav>Menu</nav><main data-layouts-section=\"main\"><p>Orders: 42</p></main>" +
+                                           "<script>(function(){var layout=\"application\",hashes={\"head\":\"" + hash("<title>Dashboard</title>") +
+                                           "\",\"main\":\"" + hash("<p>Orders: 42</p>") + "\"};window.layoutsRefresh=function(){"));
+    assertTrue(content, content.endsWith("})();</script></body></html>"));
+    assertEquals(SectionDeltas.HEADER, response.headers.get("Vary"));
+    assertEquals(1, layout.forwards);
+  }
+
+  @Test
+  public void testOnlyChangedSectionsSent() throws Exception
+  {
+    init("head,main", false);
+    String hashes = "head=" + hash("<title>Dashboard</title>") + ", main=" + hash("<p>Orders: 42</p>");
+
+    InMemoryServlet.Response response = run(VIEW, hashes);
+    assertEquals("application/json;charset=UTF-8", response.contentType);
+    assertEquals("{\"layout\":\"application\",\"sections\":{},\"hashes\":{\"head\":\"" + hash("<title>Dashboard</title>") + "\",\"main\":\"" + hash("<p>Orders: 42</p>") + "\"}}", response.content());
+
+    response = run(VIEW.replace("Orders: 42", "Orders: \"43\""), hashes);
+    assertEquals("{\"layout\":\"application\",\"sections\":{\"main\":\"\\u003cp>Orders: \\\"43\\\"\\u003c/p>\"},\"hashes\":{\"head\":\"" + hash("<title>Dashboard</title>") +
+                 "\",\"main\":\"" + hash("<p>Orders: \"43\"</p>") + "\"}}", response.content());
+
+    response = run("<head><title>Dashboard</title></head><body><p>Gone</p></body>", hashes);
+    assertEquals("{\"layout\":\"application\",\"sections\":{\"main\":null},\"hashes\":{\"head\":\"" + hash("<title>Dashboard</title>") + "\"}}", response.content());
+
+    response = run(VIEW, "");
+    assertTrue(response.content(), response.content().startsWith("{\"layout\":\"application\",\"sections\":{\"head\":\"\\u003ctitle>Dashboard\\u003c/title>\",\"main\":\"\\u003cp>Orders: 42\\u003c/p>\"}"));
+
+    assertEquals(0, layout.forwards);
+  }
+
+  @Test
+  public void testNonHtmlViewSentAsIs() throws Exception
+  {
+    init("main", false);
+    InMemoryServlet.Request request = new InMemoryServlet.Request();
+    InMemoryServlet.Response response = new InMemoryServlet.Response();
+    InMemoryServlet.View view = new InMemoryServlet.View("{\"orders\":42}");
+    view.contentType = "application/json";
+    request.headers.put(SectionDeltas.HEADER, "main=abc");
+    run(request, response, view);
+    assertEquals("{\"orders\":42}", response.content());
+  }
+
+  @Test
+  public void testScriptReplayedFromLayoutCache() throws Exception
+  {
+    init("main", true);
+    run(VIEW, null);
+    String content = run(VIEW.replace("42", "43"), null).content();
+    assertEquals(1, layout.forwards);
+    assertTrue(content, content.contains("hashes={\"main\":\"" + hash("<p>Orders: 43</p>") + "\"}"));
+  }
+
+  @Test
+  public void testNotEnabled() throws Exception
+  {
+    InMemoryServlet.Config config = new InMemoryServlet.Config().initParameter("LAYOUTS", "application.jsp");
+    config.servletContext = new InMemoryServlet.Context().servletContext;
+    filter.init(config);
+    InMemoryServlet.Response response = run(VIEW, "main=abc");
+    assertEquals("<html><head><title>Dashboard</title></head><body><nav>Menu</nav><main data-layouts-section=\"main\"><p>Orders: 42</p></main></body></html>", response.content());
+    assertNull(response.headers.get("Vary"));
+  }
+
+  void init(String sections, boolean layoutCache) throws Exception
+  {
+    InMemoryServlet.Config config = new InMemoryServlet.Config().initParameter("LAYOUTS", "application.jsp").initParameter("SECTION_DELTAS", sections);
+    if (layoutCache)
+    {
+      config.initParameter("LAYOUT_CACHE", "application");
+    }
+    config.servletContext = new InMemoryServlet.Context().servletContext;
+    filter.init(config);
+  }
+
+  InMemoryServlet.Response run(String view, String sectionsHeader) throws Exception
+  {
+    InMemoryServlet.Request request = new InMemoryServlet.Request();
+    InMemoryServlet.Response response = new InMemoryServlet.Response();
+    if (sectionsHeader != null)
+    {
+      request.headers.put(SectionDeltas.HEADER, sectionsHeader);
+    }
+    run(request, response, new InMemoryServlet.View(view));
+    return response;
+  }
+
+  void run(InMemoryServlet.Request request, InMemoryServlet.Response response, InMemoryServlet.View view) throws Exception
+  {
+    request.headers.put("Accept", "text/html");
+    request.requestURI = "/dashboard";
+    request.dispatchers.put("/WEB-INF/jsps/layouts/application.jsp", layout);
+    filter.doFilter(request, response, view);
+  }
+
+  static String hash(String section)
+  {
+    CRC32 checksum = new CRC32();
+    checksum.update(section.getBytes());
+    return Long.toHexString(checksum.getValue());
+  }
+
+  static class DashboardLayout implements RequestDispatcher
+  {
+    int forwards;
+
+    @Override
+    public void forward(ServletRequest request, ServletResponse response) throws IOException
+    {
+      ++forwards;
+      View view = (View) request.getAttribute(Layouts.VIEW);
+      PrintWriter out = response.getWriter();
+      out.write("<html><head>");
+      view.yield("head", out);
+      out.write("</head><body><nav>Menu</nav><main data-layouts-section=\"main\">");
+      view.yield("main", out);
+      out.write("</main>");
+      view.yield(View.SECTION_DELTAS_YIELD, out);
+      out.write("</body></html>");
+      out.flush();
+    }
+
+    @Override
+    public void include(ServletRequest request, ServletResponse response)
+    {
+      throw new UnsupportedOperationException("include");
+    }
+  }
+}
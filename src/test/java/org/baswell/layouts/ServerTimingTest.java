@@ -0,0 +1,108 @@
+package org.baswell.layouts;/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ServerTimingTest
+{
+  static final String VIEW = "<head><title>Timing</title></head><body><p>Timed</p></body>";
+
+  static final String PAGE = "<html><head><title>Timing</title></head><body><p>Timed</p></body></html>";
+
+  @Test
+  public void testRequestHeader() throws Exception
+  {
+    InMemoryServlet.Response response = run(new InMemoryServlet.Config().initParameter("SERVER_TIMING_REQUEST_HEADER", "X-Server-Timing"), "/home", true);
+    assertEquals(PAGE, response.content());
+
+    String serverTiming = response.headers.get("Server-Timing");
+    assertNotNull(serverTiming);
+    assertTrue(serverTiming, serverTiming.matches("decider;dur=\\d+\\.\\d{3}, view;dur=\\d+\\.\\d{3}, buffer;dur=\\d+\\.\\d{3};desc=\"" + VIEW.length() + " bytes\", layout;dur=\\d+\\.\\d{3}"));
+  }
+
+  @Test
+  public void testNotSampled() throws Exception
+  {
+    InMemoryServlet.Response response = run(new InMemoryServlet.Config().initParameter("SERVER_TIMING_REQUEST_HEADER", "X-Server-Timing"), "/home", false);
+    assertEquals(PAGE, response.content());
+    assertNull(response.headers.get("Server-Timing"));
+  }
+
+  @Test
+  public void testSampleRate() throws Exception
+  {
+    InMemoryServlet.Response response = run(new InMemoryServlet.Config().initParameter("SERVER_TIMING_SAMPLE_RATE", "1"), "/home", false);
+    assertEquals(PAGE, response.content());
+    assertNotNull(response.headers.get("Server-Timing"));
+  }
+
+  @Test
+  public void testNotCandidateForLayout() throws Exception
+  {
+    InMemoryServlet.Response response = run(new InMemoryServlet.Config().initParameter("SERVER_TIMING_SAMPLE_RATE", "1").initParameter("EXCEPT", "/api/.*"), "/api/users", false);
+    assertEquals(VIEW, response.content());
+    assertTrue(response.headers.get("Server-Timing").matches("decider;dur=\\d+\\.\\d{3}"));
+  }
+
+  @Test
+  public void testStreamingTrailer() throws Exception
+  {
+    InMemoryServlet.Response response = run(new InMemoryServlet.Config().initParameter("SERVER_TIMING_SAMPLE_RATE", "1").initParameter("COMPOSITION", "STREAMING"), "/home", false);
+    assertEquals(PAGE, response.content());
+    assertEquals("Server-Timing", response.headers.get("Trailer"));
+
+    String serverTiming = response.trailerFields.get().get("Server-Timing");
+    assertTrue(serverTiming, serverTiming.matches("decider;dur=\\d+\\.\\d{3}, view;dur=\\d+\\.\\d{3}, layout;dur=\\d+\\.\\d{3}"));
+  }
+
+  @Test
+  public void testFormat()
+  {
+    ServerTiming serverTiming = new ServerTiming();
+    serverTiming.deciderNanos = 12000;
+    serverTiming.viewNanos = 1234567890;
+    serverTiming.bufferNanos = 5000000;
+    serverTiming.bufferedBytes = 100;
+    assertEquals("decider;dur=0.012, view;dur=1234.567, buffer;dur=5.000;desc=\"100 bytes\"", serverTiming.toString());
+  }
+
+  @Test(expected = jakarta.servlet.ServletException.class)
+  public void testInvalidSampleRate() throws Exception
+  {
+    new LayoutsFilter().init(new InMemoryServlet.Config().initParameter("LAYOUTS", "application.jsp").initParameter("SERVER_TIMING_SAMPLE_RATE", "2"));
+  }
+
+  static InMemoryServlet.Response run(InMemoryServlet.Config config, String requestURI, boolean timingHeader) throws Exception
+  {
+    LayoutsFilter filter = new LayoutsFilter();
+    filter.init(config.initParameter("LAYOUTS", "application.jsp"));
+
+    InMemoryServlet.Request request = new InMemoryServlet.Request();
+    request.headers.put("Accept", "text/html");
+    if (timingHeader)
+    {
+      request.headers.put("X-Server-Timing", "1");
+    }
+    request.requestURI = requestURI;
+    request.dispatchers.put("/WEB-INF/jsps/layouts/application.jsp", new InMemoryServlet.Layout("<html><head>", "</head><body>", "</body></html>"));
+
+    InMemoryServlet.Response response = new InMemoryServlet.Response();
+    filter.doFilter(request, response, new InMemoryServlet.View(VIEW));
+    return response;
+  }
+}
@@ -0,0 +1,221 @@
+package org.baswell.layouts;/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.ServletResponse;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import javax.management.JMX;
+import javax.management.ObjectName;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SlowRequestRingTest
+{
+  LayoutsFilter filter = new LayoutsFilter();
+
+  @After
+  public void after()
+  {
+    filter.destroy();
+  }
+
+  @Test
+  public void testSlowRequestsRecorded() throws Exception
+  {
+    init("50", null);
+    run("/fast", 0, "<head></head><body><p>Fast</p></body>");
+    run("/slow/1", 80, "<head><title>Slow</title></head><body><p>Slow</p></body>");
+
+    SlowRequestRingMXBean mbean = mbean();
+    assertEquals(50, mbean.getThresholdMillis());
+    assertEquals(128, mbean.getCapacity());
+    assertEquals(1, mbean.getRecordedCount());
+
+    List<String> dump = mbean.dump();
+    assertEquals(1, dump.size());
+    String record = dump.get(0);
+    assertTrue(record, record.contains(" /slow/1 layout=application total="));
+    assertTrue(record, record.contains(" decider="));
+    assertTrue(record, record.contains(" view="));
+    assertTrue(record, record.contains(" bytes=56 sections=2 thread="));
+  }
+
+  @Test
+  public void testRingOverwritesOldest() throws Exception
+  {
+    init("0", "3");
+    for (int i = 1; i <= 5; i++)
+    {
+      run("/page/" + i, 0, "<head></head><body><p>" + i + "</p></body>");
+    }
+
+    SlowRequestRingMXBean mbean = mbean();
+    assertEquals(5, mbean.getRecordedCount());
+    List<String> dump = mbean.dump();
+    assertEquals(3, dump.size());
+    assertTrue(dump.get(0), dump.get(0).contains(" /page/3 "));
+    assertTrue(dump.get(1), dump.get(1).contains(" /page/4 "));
+    assertTrue(dump.get(2), dump.get(2).contains(" /page/5 "));
+  }
+
+  @Test
+  public void testRequestsWithoutLayout() throws Exception
+  {
+    init("0", null);
+    InMemoryServlet.Request request = new InMemoryServlet.Request();
+    request.headers.put("Accept", "text/html");
+    request.requestURI = "/api/orders";
+    InMemoryServlet.View view = new InMemoryServlet.View("{}");
+    view.contentType = "application/json";
+    filter.doFilter(request, new InMemoryServlet.Response(), view);
+
+    String record = mbean().dump().get(0);
+    assertTrue(record, record.contains(" /api/orders layout=none total="));
+    assertTrue(record, record.contains(" sections=0 "));
+  }
+
+  @Test
+  public void testConcurrentRecording() throws Exception
+  {
+    init("0", "16");
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++)
+    {
+      threads[i] = new Thread()
+      {
+        @Override
+        public void run()
+        {
+          try
+          {
+            for (int j = 0; j < 50; j++)
+            {
+              SlowRequestRingTest.this.run("/page", 0, "<head></head><body><p>Page</p></body>");
+            }
+          }
+          catch (Exception e)
+          {
+            throw new RuntimeException(e);
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread thread : threads)
+    {
+      thread.join();
+    }
+
+    assertEquals(200, mbean().getRecordedCount());
+    assertEquals(16, mbean().dump().size());
+  }
+
+  @Test
+  public void testForwardDoesNotRestartTiming() throws Exception
+  {
+    init("50", null);
+    final InMemoryServlet.Request request = new InMemoryServlet.Request();
+    request.headers.put("Accept", "text/html");
+    request.requestURI = "/slow";
+    request.dispatchers.put("/WEB-INF/jsps/layouts/application.jsp", new InMemoryServlet.Layout("<html><head>", "</head><body>", "</body></html>"));
+    filter.doFilter(request, new InMemoryServlet.Response(), new FilterChain()
+    {
+      @Override
+      public void doFilter(ServletRequest servletRequest, ServletResponse response) throws IOException, ServletException
+      {
+        RenderDeadlineTest.sleep(80);
+
+        /*
+         * The filter is run again for a forward of the same request.
+         */
+        InMemoryServlet.View forwarded = new InMemoryServlet.View("{}");
+        forwarded.contentType = "application/json";
+        filter.doFilter(request, response, forwarded);
+      }
+    });
+
+    assertNull(request.getAttribute(SlowRequestRing.TIMING_ATTRIBUTE));
+    assertEquals(1, mbean().getRecordedCount());
+    String record = mbean().dump().get(0);
+    assertTrue(record, record.contains(" /slow layout=none total="));
+  }
+
+  @Test
+  public void testInvalidConfiguration() throws Exception
+  {
+    try
+    {
+      init("fast", null);
+      fail();
+    }
+    catch (ServletException e)
+    {}
+
+    try
+    {
+      init("50", "0");
+      fail();
+    }
+    catch (ServletException e)
+    {}
+  }
+
+  void init(String threshold, String ring) throws Exception
+  {
+    InMemoryServlet.Config config = new InMemoryServlet.Config().initParameter("LAYOUTS", "application.jsp").initParameter("SLOW_REQUEST_THRESHOLD", threshold);
+    if (ring != null)
+    {
+      config.initParameter("SLOW_REQUEST_RING", ring);
+    }
+    config.servletContext = new InMemoryServlet.Context().servletContext;
+    filter.init(config);
+  }
+
+  void run(String path, final long viewMillis, final String content) throws Exception
+  {
+    InMemoryServlet.Request request = new InMemoryServlet.Request();
+    request.headers.put("Accept", "text/html");
+    request.requestURI = path;
+    request.dispatchers.put("/WEB-INF/jsps/layouts/application.jsp", new InMemoryServlet.Layout("<html><head>", "</head><body>", "</body></html>"));
+    filter.doFilter(request, new InMemoryServlet.Response(), new FilterChain()
+    {
+      @Override
+      public void doFilter(ServletRequest request, ServletResponse response) throws IOException
+      {
+        try
+        {
+          Thread.sleep(viewMillis);
+        }
+        catch (InterruptedException e)
+        {
+          Thread.currentThread().interrupt();
+        }
+        response.getWriter().write(content);
+      }
+    });
+  }
+
+  SlowRequestRingMXBean mbean() throws Exception
+  {
+    return JMX.newMXBeanProxy(ManagementFactory.getPlatformMBeanServer(), new ObjectName("org.baswell.layouts:type=SlowRequestRing,context=\"/\",filter=\"LayoutsFilter\""), SlowRequestRingMXBean.class);
+  }
+}
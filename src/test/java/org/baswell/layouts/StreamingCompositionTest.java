@@ -0,0 +1,179 @@
+package org.baswell.layouts;/*
+ * Copyright 2015 Corey Baswell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.ServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class StreamingCompositionTest
+{
+  static final String LAYOUT_BEFORE_HEAD = "<html><head><link href=\"/app.css\" rel=\"stylesheet\">";
+
+  static final String LAYOUT_BEFORE_BODY = "</head><body><nav>Menu</nav>";
+
+  static final String LAYOUT_AFTER_BODY = "<footer>Footer</footer></body></html>";
+
+  @Test
+  public void testLayoutPrefixSentBeforeViewIsDone() throws Exception
+  {
+    final InMemoryServlet.Response response = new InMemoryServlet.Response();
+    final StringBuilder sentBeforeBody = new StringBuilder();
+    compose(response, new FilterChain()
+    {
+      @Override
+      public void doFilter(ServletRequest request, ServletResponse viewResponse) throws IOException
+      {
+        OutputStream out = viewResponse.getOutputStream();
+        out.write("<html><head><title>Report</title></head>\n<body><table>".getBytes());
+        sentBeforeBody.append(response.content());
+        out.write("<tr><td>1</td></tr></table></body></html>".getBytes());
+      }
+    });
+
+    assertEquals(LAYOUT_BEFORE_HEAD + "<title>Report</title>" + LAYOUT_BEFORE_BODY + "<table>", sentBeforeBody.toString());
+    assertEquals(LAYOUT_BEFORE_HEAD + "<title>Report</title>" + LAYOUT_BEFORE_BODY + "<table><tr><td>1</td></tr></table>" + LAYOUT_AFTER_BODY, response.content());
+  }
+
+  @Test
+  public void testSameAsBufferedComposition() throws Exception
+  {
+    String[] views = new String[]{
+        "<html><head><title>A</title></head><body><p>One</p></body></html>",
+        "<head></head><body></body>",
+        "<head><title>B</title></head>\n\n<body><p>a</p><script>document.write('</body>')</script><p>b</p></body>\n</html>\n",
+        "<head><title>C</title></head><body><p>No closing body tag</p>",
+        "<head><title>D</title></head><body><p>&lt;/bod</p></bo</body></body></html>",
+        "<head><title>E</title></head><body><</</b</bo<p>x</p></body><</body",
+    };
+
+    Random random = new Random(42);
+    for (String view : views)
+    {
+      String buffered = composeBuffered(view);
+      for (int i = 0; i < 50; i++)
+      {
+        InMemoryServlet.Response response = new InMemoryServlet.Response();
+        compose(response, new ChunkedView(view, random));
+        assertEquals(view, expectedStreamed(buffered, view), response.content());
+      }
+    }
+  }
+
+  @Test
+  public void testNoHeadFallsBackToBuffered() throws Exception
+  {
+    String view = "<body><p>Fragment</p></body>";
+    InMemoryServlet.Response response = new InMemoryServlet.Response();
+    compose(response, new ChunkedView(view, new Random(7)));
+    assertEquals(composeBuffered(view), response.content());
+  }
+
+  @Test
+  public void testNoLayoutSetByView() throws Exception
+  {
+    InMemoryServlet.Response response = new InMemoryServlet.Response();
+    final String view = "<html><head><title>A</title></head><body><p>One</p></body></html>";
+    compose(response, new FilterChain()
+    {
+      @Override
+      public void doFilter(ServletRequest request, ServletResponse viewResponse) throws IOException
+      {
+        request.setAttribute(Layouts.NO_LAYOUT, true);
+        viewResponse.getOutputStream().write(view.getBytes());
+      }
+    });
+    assertEquals(view, response.content());
+  }
+
+  /*
+   * A view without a closing body tag gets its body yielded when streamed, buffered composition yields nothing.
+   */
+  static String expectedStreamed(String buffered, String view)
+  {
+    if (view.lastIndexOf("</body>") < 0)
+    {
+      return buffered.replace(LAYOUT_BEFORE_BODY, LAYOUT_BEFORE_BODY + view.substring(view.indexOf("<body>") + "<body>".length()));
+    }
+    return buffered;
+  }
+
+  static String composeBuffered(String view) throws Exception
+  {
+    InMemoryServlet.Response response = new InMemoryServlet.Response();
+    LayoutsFilter filter = new LayoutsFilter();
+    filter.init(new InMemoryServlet.Config().initParameter("LAYOUTS", "application.jsp"));
+    filter.doFilter(request(), response, new InMemoryServlet.View(view));
+    return response.content();
+  }
+
+  static void compose(InMemoryServlet.Response response, FilterChain view) throws Exception
+  {
+    LayoutsFilter filter = new LayoutsFilter();
+    filter.init(new InMemoryServlet.Config().initParameter("LAYOUTS", "application.jsp").initParameter("COMPOSITION", "STREAMING"));
+    filter.doFilter(request(), response, view);
+  }
+
+  static InMemoryServlet.Request request()
+  {
+    InMemoryServlet.Request request = new InMemoryServlet.Request();
+    request.headers.put("Accept", "text/html");
+    request.requestURI = "/report";
+    request.dispatchers.put("/WEB-INF/jsps/layouts/application.jsp", new InMemoryServlet.Layout(LAYOUT_BEFORE_HEAD, LAYOUT_BEFORE_BODY, LAYOUT_AFTER_BODY));
+    return request;
+  }
+
+  /*
+   * Writes the view in random sized pieces so tags get split across writes.
+   */
+  static class ChunkedView implements FilterChain
+  {
+    final byte[] content;
+
+    final Random random;
+
+    ChunkedView(String content, Random random)
+    {
+      this.content = content.getBytes();
+      this.random = random;
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response) throws IOException
+    {
+      OutputStream out = response.getOutputStream();
+      int index = 0;
+      while (index < content.length)
+      {
+        int length = Math.min(content.length - index, 1 + random.nextInt(5));
+        if (length == 1 && random.nextBoolean())
+        {
+          out.write(content[index]);
+        }
+        else
+        {
+          out.write(content, index, length);
+        }
+        index += length;
+      }
+    }
+  }
+}